@@ -0,0 +1,132 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.Model;
+import wwutil.model.annotation.Key;
+import wwutil.model.annotation.ModifiedTime;
+import wwutil.model.annotation.Trim;
+import wwutil.model.annotation.ToLower;
+import wwutil.model.annotation.MaxSize;
+import wwutil.model.annotation.Required;
+import wwutil.model.annotation.CacheByField;
+
+
+/**
+ * Representative model classes for the benchmarks, similar to the ones in the samples, and a Jsoda object
+ * registering them.  The Jsoda object makes no AWS calls, as the benchmarks exercise the local code paths only.
+ */
+public class BenchModels {
+
+    /** Product catalog item stored in SimpleDB, like Sample2's SampleProduct. */
+    @Model(dbtype = DbType.SimpleDB)
+    public static class Product implements Serializable {
+        @Key
+        public String       productId;
+        @Required @Trim
+        public String       name;
+        @Trim @MaxSize(1000)
+        public String       desc;
+        @ToLower @CacheByField
+        public String       sku;
+        public Float        price;
+        public int          stock;
+        public long         sales;
+        public boolean      active;
+        @ModifiedTime
+        public Date         updateTime;
+        public URL[]        urls = new URL[2];      // compound field stored as JSON
+        public List<String> tags;                   // stored as JSON
+
+        public Product() {}
+
+        public Product(int i) {
+            this.productId = "product-" + i;
+            this.name = " Product name " + i + " ";
+            this.desc = "Description of product " + i + ", long enough to be a typical catalog entry text.";
+            this.sku = "SKU-" + (100000 + i);
+            this.price = 9.99f + i;
+            this.stock = i % 500;
+            this.sales = 1000000L + i;
+            this.active = true;
+            this.updateTime = new Date(1350000000000L + i);
+            this.tags = Arrays.asList("tag" + (i % 7), "tag" + (i % 11), "sale");
+            try {
+                urls[0] = new URL("http://foobar.com/" + productId);
+                urls[1] = new URL("http://foobar.com/img/" + productId + ".jpg");
+            } catch(Exception ignored) {}
+        }
+    }
+
+    /** Customer order stored in DynamoDB with a composite key. */
+    @Model(dbtype = DbType.DynamoDB)
+    public static class Order implements Serializable {
+        @Key(hashKey=true)
+        public String       customerId;
+        @Key(rangeKey=true)
+        public long         orderId;
+        public int          quantity;
+        public double       total;
+        public String       status;
+        public Date         orderTime;
+        public Set<String>  productIds;             // multi-value attribute in DynamoDB
+        public Set<Long>    lineNumbers;            // multi-value attribute in DynamoDB
+        public Map<String, Integer> counts;         // stored as JSON
+
+        public Order() {}
+
+        public Order(int i) {
+            this.customerId = "customer-" + (i % 1000);
+            this.orderId = 5000000000L + i;
+            this.quantity = 1 + i % 9;
+            this.total = 19.95 * quantity;
+            this.status = i % 3 == 0 ? "shipped" : "pending";
+            this.orderTime = new Date(1350000000000L + i * 1000L);
+            this.productIds = new HashSet<String>(Arrays.asList("product-" + i, "product-" + (i + 1)));
+            this.lineNumbers = new HashSet<Long>(Arrays.asList(1L, 2L));
+            this.counts = new HashMap<String, Integer>();
+            this.counts.put("product-" + i, quantity);
+        }
+    }
+
+
+    /** Create a Jsoda object with the models registered, without connecting to AWS. */
+    public static Jsoda newJsoda()
+        throws Exception
+    {
+        Jsoda   jsoda = new Jsoda(new BasicAWSCredentials("bench", "bench"));
+        jsoda.registerModel(Product.class);
+        jsoda.registerModel(Order.class);
+        return jsoda;
+    }
+
+    static SimpleDBService sdbService(Jsoda jsoda) {
+        return (SimpleDBService)((DbServiceWrapper)jsoda.getDb(Jsoda.getModelName(Product.class))).getService();
+    }
+
+    static DynamoDBService ddbService(Jsoda jsoda) {
+        return (DynamoDBService)((DbServiceWrapper)jsoda.getDb(Jsoda.getModelName(Order.class))).getService();
+    }
+
+}
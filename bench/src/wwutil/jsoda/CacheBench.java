@@ -0,0 +1,143 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import wwutil.model.MemCacheableSimple;
+
+
+/**
+ * Benchmarks of the object caching paths: ObjCacheMgr get and put on the models, including the cache key
+ * building, and MemCacheableSimple under contention from concurrent readers and writers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheBench {
+
+    static final int    KEYS = 10000;
+
+
+    @State(Scope.Benchmark)
+    public static class CacheMgrState {
+        Jsoda                   jsoda;
+        ObjCacheMgr             cacheMgr;
+        String                  productModel;
+        String                  orderModel;
+        BenchModels.Product[]   products = new BenchModels.Product[KEYS];
+        BenchModels.Order[]     orders = new BenchModels.Order[KEYS];
+
+        @Setup
+        public void setup() throws Exception {
+            jsoda = BenchModels.newJsoda();
+            jsoda.setMemCacheable(new MemCacheableSimple(KEYS * 4));    // room for the pk and field keys of both models
+            cacheMgr = jsoda.getObjCacheMgr();
+            productModel = Jsoda.getModelName(BenchModels.Product.class);
+            orderModel = Jsoda.getModelName(BenchModels.Order.class);
+            for (int i = 0; i < KEYS; i++) {
+                products[i] = new BenchModels.Product(i);
+                orders[i] = new BenchModels.Order(i);
+                cacheMgr.cachePut(productModel, products[i]);
+                cacheMgr.cachePut(orderModel, orders[i]);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            jsoda.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int     next;
+
+        int next() {
+            next = (next + 7919) % KEYS;    // stride by a prime to visit all the keys out of order.
+            return next;
+        }
+    }
+
+    @Benchmark
+    public Object cacheMgrGetById(CacheMgrState state, Cursor cursor) {
+        return state.cacheMgr.cacheGet(state.productModel, state.products[cursor.next()].productId, null);
+    }
+
+    @Benchmark
+    public Object cacheMgrGetByHashRange(CacheMgrState state, Cursor cursor) {
+        BenchModels.Order   order = state.orders[cursor.next()];
+        return state.cacheMgr.cacheGet(state.orderModel, order.customerId, order.orderId);
+    }
+
+    @Benchmark
+    public Object cacheMgrGetByField(CacheMgrState state, Cursor cursor) {
+        return state.cacheMgr.cacheGetByField(state.productModel, "sku", state.products[cursor.next()].sku);
+    }
+
+    /** Put caches the object by its key and by its @CacheByField fields. */
+    @Benchmark
+    public void cacheMgrPut(CacheMgrState state, Cursor cursor) {
+        state.cacheMgr.cachePut(state.productModel, state.products[cursor.next()]);
+    }
+
+
+    /** MemCacheableSimple shared by all the threads, smaller than the key set so that puts evict. */
+    @State(Scope.Group)
+    public static class SharedCache {
+        MemCacheableSimple  cache;
+        String[]            keys = new String[KEYS];
+        Serializable[]      values = new Serializable[KEYS];
+
+        @Setup
+        public void setup() {
+            cache = new MemCacheableSimple(KEYS / 2);
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = "key" + i;
+                values[i] = new BenchModels.Product(i);
+                cache.put(keys[i], 0, values[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("memCache")
+    @GroupThreads(6)
+    public Serializable memCacheGet(SharedCache shared, Cursor cursor) {
+        return shared.cache.get(shared.keys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("memCache")
+    @GroupThreads(2)
+    public void memCachePut(SharedCache shared, Cursor cursor) {
+        int     i = cursor.next();
+        shared.cache.put(shared.keys[i], 0, shared.values[i]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Serializable memCacheGetOnly(SharedCache shared, Cursor cursor) {
+        return shared.cache.get(shared.keys[cursor.next()]);
+    }
+
+}
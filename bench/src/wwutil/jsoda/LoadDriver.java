@@ -0,0 +1,455 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+
+import wwutil.model.MemCacheableNoop;
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.Model;
+import wwutil.model.annotation.Key;
+import wwutil.model.annotation.S3Field;
+
+
+/**
+ * YCSB style workload driver of the Jsoda client.  It loads a table of records, then runs a mix of Dao.get(),
+ * Dao.put(), Query.run(), and Dao.batchPut() from many threads, with the keys picked in a Zipfian or uniform
+ * distribution.  The throughput and latency percentiles of each operation are reported at the end, along with
+ * the Jsoda metrics and the cache stats.
+ *
+ * The driver is meant to run against local stand-ins of the AWS services, e.g. DynamoDB Local, a SimpleDB
+ * emulator, and an S3 emulator, set up with the dbendpoint and s3endpoint options, for capacity planning and
+ * for catching client side regressions such as lock contention in the cache.
+ *
+ * Usage: LoadDriver name=value ...  See the setters for the options, e.g.
+ * <pre>
+ *  LoadDriver dbtype=DynamoDB dbendpoint=http://localhost:8000 recordcount=100000 operationcount=1000000 threads=32
+ * </pre>
+ */
+public class LoadDriver
+{
+    private static Log  log = LogFactory.getLog(LoadDriver.class);
+
+    public static final String  OP_LOAD = "load";
+    public static final String  OP_READ = "read";
+    public static final String  OP_UPDATE = "update";
+    public static final String  OP_QUERY = "query";
+    public static final String  OP_BATCH_PUT = "batchPut";
+
+    private static final String CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+
+    /** Record of the workload, grouped by the hashKey so that a group can be queried. */
+    @Model
+    public static class LoadRecord implements Serializable {
+        @Key(hashKey=true)
+        public String  group;
+        @Key(rangeKey=true)
+        public long    seq;
+        public String  field0;
+        public String  field1;
+        public String  field2;
+        public String  field3;
+        public String  field4;
+    }
+
+    /** Record with its body stored in S3, to include the S3 calls in the workload. */
+    @Model
+    public static class LoadDocument extends LoadRecord {
+        @S3Field
+        public String  body;
+    }
+
+
+    private Jsoda                           jsoda;
+    private Class<? extends LoadRecord>     modelClass;
+    private Dao<LoadRecord>                 dao;
+    private long                            recordCount = 10000;
+    private long                            operationCount = 100000;
+    private int                             maxSeconds = 0;
+    private int                             threads = 16;
+    private double                          readProportion = 0.80;
+    private double                          updateProportion = 0.15;
+    private double                          queryProportion = 0.04;
+    private double                          batchPutProportion = 0.01;
+    private int                             fieldLength = 100;
+    private int                             bodyLength = 1000;
+    private int                             groupSize = 100;
+    private int                             queryLength = 20;
+    private int                             batchSize = 25;
+    private boolean                         zipfian = true;
+    private double                          zipfianConstant = ZipfianGenerator.DEFAULT_CONSTANT;
+    private double                          targetOpsPerSecond = 0;
+
+    private ZipfianGenerator                zipfianGenerator;
+    private ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private ConcurrentMap<String, AtomicLong>       errors = new ConcurrentHashMap<String, AtomicLong>();
+    private Map<String, Long>               elapsedMs = new LinkedHashMap<String, Long>();
+
+
+    /** Create a driver on a model class registered in the Jsoda object, LoadRecord or a subclass of it. */
+    @SuppressWarnings("unchecked")
+    public LoadDriver(Jsoda jsoda, Class<? extends LoadRecord> modelClass)
+        throws JsodaException
+    {
+        this.jsoda = jsoda;
+        this.modelClass = modelClass;
+        this.dao = (Dao<LoadRecord>)jsoda.dao(modelClass);
+    }
+
+    /** Number of records loaded, which is the key space of the operations. */
+    public LoadDriver setRecordCount(long recordCount) {
+        this.recordCount = recordCount;
+        return this;
+    }
+
+    public LoadDriver setOperationCount(long operationCount) {
+        this.operationCount = operationCount;
+        return this;
+    }
+
+    /** Stop the run after the time even if the operations are not done.  0 for no limit. */
+    public LoadDriver setMaxSeconds(int maxSeconds) {
+        this.maxSeconds = maxSeconds;
+        return this;
+    }
+
+    public LoadDriver setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /** Proportions of the operations in the mix.  They are normalized to their sum. */
+    public LoadDriver setProportions(double read, double update, double query, double batchPut) {
+        if (read < 0 || update < 0 || query < 0 || batchPut < 0 || read + update + query + batchPut <= 0)
+            throw new IllegalArgumentException("Proportions must not be negative and must not all be 0.");
+        this.readProportion = read;
+        this.updateProportion = update;
+        this.queryProportion = query;
+        this.batchPutProportion = batchPut;
+        return this;
+    }
+
+    /** Length of each of the five string fields of a record. */
+    public LoadDriver setFieldLength(int fieldLength) {
+        this.fieldLength = fieldLength;
+        return this;
+    }
+
+    /** Length of the S3 body of a LoadDocument. */
+    public LoadDriver setBodyLength(int bodyLength) {
+        this.bodyLength = bodyLength;
+        return this;
+    }
+
+    /** Number of records sharing a group hashKey. */
+    public LoadDriver setGroupSize(int groupSize) {
+        this.groupSize = groupSize;
+        return this;
+    }
+
+    /** Limit of the records returned by a query of a group. */
+    public LoadDriver setQueryLength(int queryLength) {
+        this.queryLength = queryLength;
+        return this;
+    }
+
+    public LoadDriver setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** Pick the keys in the scrambled Zipfian distribution with the constant, or in the uniform distribution. */
+    public LoadDriver setDistribution(boolean zipfian, double zipfianConstant) {
+        this.zipfian = zipfian;
+        this.zipfianConstant = zipfianConstant;
+        return this;
+    }
+
+    /** Throttle the operations of all threads to the rate.  0 for unlimited. */
+    public LoadDriver setTargetOpsPerSecond(double targetOpsPerSecond) {
+        this.targetOpsPerSecond = targetOpsPerSecond;
+        return this;
+    }
+
+
+    /** Load the records with batch puts, split over the threads. */
+    public void load()
+        throws Exception
+    {
+        final AtomicLong    nextBatch = new AtomicLong();
+        runThreads(OP_LOAD, new Worker() {
+                public void run(Random random) throws Exception {
+                    for (long start = nextBatch.getAndAdd(batchSize); start < recordCount; start = nextBatch.getAndAdd(batchSize)) {
+                        List<LoadRecord>    batch = new ArrayList<LoadRecord>();
+                        for (long i = start; i < Math.min(start + batchSize, recordCount); i++)
+                            batch.add(newRecord(i, random));
+                        timed(OP_LOAD, batch);
+                    }
+                }
+            });
+    }
+
+    /** Run the operation mix. */
+    public void run()
+        throws Exception
+    {
+        if (zipfian && zipfianGenerator == null)
+            zipfianGenerator = new ZipfianGenerator(recordCount, zipfianConstant, true);
+
+        final double        total = readProportion + updateProportion + queryProportion + batchPutProportion;
+        final AtomicLong    opsIssued = new AtomicLong();
+        final RateLimiter   limiter = new RateLimiter(targetOpsPerSecond);
+        final long          endTime = maxSeconds > 0 ? System.currentTimeMillis() + maxSeconds * 1000L : Long.MAX_VALUE;
+
+        runThreads("run", new Worker() {
+                public void run(Random random) throws Exception {
+                    while (opsIssued.getAndIncrement() < operationCount && System.currentTimeMillis() < endTime) {
+                        limiter.acquire(1);
+                        double  r = random.nextDouble() * total;
+                        if ((r -= readProportion) < 0)
+                            timed(OP_READ, nextKey(random));
+                        else if ((r -= updateProportion) < 0)
+                            timed(OP_UPDATE, newRecord(nextKey(random), random));
+                        else if ((r -= queryProportion) < 0)
+                            timed(OP_QUERY, groupOf(nextKey(random)));
+                        else {
+                            List<LoadRecord>    batch = new ArrayList<LoadRecord>();
+                            for (int i = 0; i < batchSize; i++)
+                                batch.add(newRecord(nextKey(random), random));
+                            timed(OP_BATCH_PUT, batch);
+                        }
+                    }
+                }
+            });
+    }
+
+    /** Report the throughput, latency percentiles in microseconds, and errors of each operation. */
+    public String report() {
+        StringBuilder   sb = new StringBuilder();
+        for (Map.Entry<String, Long> phase : elapsedMs.entrySet())
+            sb.append(String.format("[%s] elapsed: %d ms%n", phase.getKey(), phase.getValue()));
+        for (String op : Arrays.asList(OP_LOAD, OP_READ, OP_UPDATE, OP_QUERY, OP_BATCH_PUT)) {
+            LatencyHistogram    histogram = histograms.get(op);
+            if (histogram == null)
+                continue;
+            Long    ms = elapsedMs.get(op.equals(OP_LOAD) ? OP_LOAD : "run");
+            double  seconds = Math.max(ms == null ? 0 : ms, 1) / 1000.0;
+            sb.append(String.format("[%s] ops: %d, ops/sec: %.1f, mean: %.0f, p50: %d, p95: %d, p99: %d, p99.9: %d, max: %d, errors: %d%n",
+                                    op, histogram.getCount(), histogram.getCount() / seconds, histogram.getMean(),
+                                    histogram.getPercentile(0.5), histogram.getPercentile(0.95), histogram.getPercentile(0.99),
+                                    histogram.getPercentile(0.999), histogram.getMax(), errors.get(op).get()));
+        }
+        sb.append("[cache] ").append(jsoda.getMemCacheable().dumpStats()).append(String.format("%n"));
+        sb.append(jsoda.getMetrics().dumpMetrics());
+        return sb.toString();
+    }
+
+
+    private interface Worker {
+        void run(Random random) throws Exception;
+    }
+
+    /** Run the worker on the threads, each with its own Random, and record the elapsed time of the phase. */
+    private void runThreads(String phase, final Worker worker)
+        throws Exception
+    {
+        ExecutorService         executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>>    futures = new ArrayList<Future<Object>>();
+        long                    start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < threads; i++) {
+                final long  seed = System.nanoTime() + i;
+                futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            worker.run(new Random(seed));
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Object> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        elapsedMs.put(phase, System.currentTimeMillis() - start);
+    }
+
+    /** Run the operation on the argument and record its latency.  Errors are counted and logged, not thrown. */
+    @SuppressWarnings("unchecked")
+    private void timed(String op, Object arg) {
+        long    start = System.nanoTime();
+        try {
+            if (op.equals(OP_READ)) {
+                long    key = (Long)arg;
+                dao.get(groupOf(key), key);
+            } else if (op.equals(OP_UPDATE)) {
+                dao.put((LoadRecord)arg);
+            } else if (op.equals(OP_QUERY)) {
+                jsoda.query(modelClass).eq("group", arg).limit(queryLength).run();
+            } else {
+                dao.batchPut((List<LoadRecord>)arg);
+            }
+        } catch(Exception e) {
+            counter(errors, op).incrementAndGet();
+            if (log.isDebugEnabled())
+                log.debug(op + " failed.  Error: " + e.getMessage(), e);
+        }
+        histogram(op).record((System.nanoTime() - start) / 1000L);
+    }
+
+    private long nextKey(Random random) {
+        return zipfian ? zipfianGenerator.next(random) : (long)(random.nextDouble() * recordCount);
+    }
+
+    private String groupOf(long key) {
+        return "group" + (key / groupSize);
+    }
+
+    private LoadRecord newRecord(long key, Random random)
+        throws Exception
+    {
+        LoadRecord  record = modelClass.newInstance();
+        record.group = groupOf(key);
+        record.seq = key;
+        record.field0 = randomString(fieldLength, random);
+        record.field1 = randomString(fieldLength, random);
+        record.field2 = randomString(fieldLength, random);
+        record.field3 = randomString(fieldLength, random);
+        record.field4 = randomString(fieldLength, random);
+        if (record instanceof LoadDocument)
+            ((LoadDocument)record).body = randomString(bodyLength, random);
+        return record;
+    }
+
+    private static String randomString(int length, Random random) {
+        char[]  chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = CHARS.charAt(random.nextInt(CHARS.length()));
+        return new String(chars);
+    }
+
+    private LatencyHistogram histogram(String op) {
+        LatencyHistogram    histogram = histograms.get(op);
+        if (histogram == null) {
+            histograms.putIfAbsent(op, new LatencyHistogram());
+            histogram = histograms.get(op);
+            counter(errors, op);
+        }
+        return histogram;
+    }
+
+    private static AtomicLong counter(ConcurrentMap<String, AtomicLong> map, String key) {
+        AtomicLong  count = map.get(key);
+        if (count == null) {
+            map.putIfAbsent(key, new AtomicLong());
+            count = map.get(key);
+        }
+        return count;
+    }
+
+
+    /** Run the driver with the name=value options.  Defaults are in brackets.
+     * <pre>
+     *  dbtype          SimpleDB or DynamoDB [SimpleDB]
+     *  dbendpoint      endpoint of the database, e.g. http://localhost:8000 for DynamoDB Local
+     *  s3endpoint      endpoint of S3
+     *  s3bucket        S3 bucket; when set, the records have an S3 body field of bodylength [1000]
+     *  accesskey       [local]
+     *  secretkey       [local]
+     *  createtable     create the table if it does not exist [true]
+     *  load            load the records before running [true]
+     *  recordcount     [10000]
+     *  operationcount  [100000]
+     *  maxseconds      [0]
+     *  threads         [16]
+     *  readproportion, updateproportion, queryproportion, batchputproportion   [0.80, 0.15, 0.04, 0.01]
+     *  fieldlength     [100]
+     *  groupsize       [100]
+     *  querylength     [20]
+     *  batchsize       [25]
+     *  distribution    zipfian or uniform [zipfian]
+     *  zipfianconstant [0.99]
+     *  target          target ops per second of all threads, 0 for unlimited [0]
+     *  cache           cache the records in the Jsoda object's cache [true]
+     * </pre>
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        Properties  props = new Properties();
+        for (String arg : args) {
+            int     index = arg.indexOf('=');
+            if (index <= 0)
+                throw new IllegalArgumentException("Option must be name=value: " + arg);
+            props.setProperty(arg.substring(0, index).toLowerCase(), arg.substring(index + 1));
+        }
+
+        DbType      dbtype = DbType.valueOf(props.getProperty("dbtype", "SimpleDB"));
+        String      s3bucket = props.getProperty("s3bucket");
+        Class<? extends LoadRecord> modelClass = s3bucket == null ? LoadRecord.class : LoadDocument.class;
+        Jsoda       jsoda = new Jsoda(new BasicAWSCredentials(props.getProperty("accesskey", "local"), props.getProperty("secretkey", "local")));
+        try {
+            if (props.getProperty("dbendpoint") != null)
+                jsoda.setDbEndpoint(dbtype, props.getProperty("dbendpoint"));
+            if (props.getProperty("s3endpoint") != null)
+                jsoda.setS3Endpoint(props.getProperty("s3endpoint"));
+            if (s3bucket != null)
+                jsoda.setDefaultS3Bucket(s3bucket);
+            if (!Boolean.parseBoolean(props.getProperty("cache", "true")))
+                jsoda.setMemCacheable(new MemCacheableNoop());
+            jsoda.registerModel(modelClass, dbtype);
+            if (Boolean.parseBoolean(props.getProperty("createtable", "true")) &&
+                !jsoda.listNativeTables(dbtype).contains(jsoda.getModelTable(modelClass)))
+                jsoda.createModelTable(modelClass);
+
+            LoadDriver  driver = new LoadDriver(jsoda, modelClass)
+                .setRecordCount(Long.parseLong(props.getProperty("recordcount", "10000")))
+                .setOperationCount(Long.parseLong(props.getProperty("operationcount", "100000")))
+                .setMaxSeconds(Integer.parseInt(props.getProperty("maxseconds", "0")))
+                .setThreads(Integer.parseInt(props.getProperty("threads", "16")))
+                .setProportions(Double.parseDouble(props.getProperty("readproportion", "0.80")),
+                                Double.parseDouble(props.getProperty("updateproportion", "0.15")),
+                                Double.parseDouble(props.getProperty("queryproportion", "0.04")),
+                                Double.parseDouble(props.getProperty("batchputproportion", "0.01")))
+                .setFieldLength(Integer.parseInt(props.getProperty("fieldlength", "100")))
+                .setBodyLength(Integer.parseInt(props.getProperty("bodylength", "1000")))
+                .setGroupSize(Integer.parseInt(props.getProperty("groupsize", "100")))
+                .setQueryLength(Integer.parseInt(props.getProperty("querylength", "20")))
+                .setBatchSize(Integer.parseInt(props.getProperty("batchsize", "25")))
+                .setDistribution(!"uniform".equals(props.getProperty("distribution", "zipfian")),
+                                 Double.parseDouble(props.getProperty("zipfianconstant", String.valueOf(ZipfianGenerator.DEFAULT_CONSTANT))))
+                .setTargetOpsPerSecond(Double.parseDouble(props.getProperty("target", "0")));
+
+            if (Boolean.parseBoolean(props.getProperty("load", "true")))
+                driver.load();
+            driver.run();
+            System.out.println(driver.report());
+        } finally {
+            jsoda.shutdown();
+        }
+    }
+
+}
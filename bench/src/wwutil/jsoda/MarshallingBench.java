@@ -0,0 +1,190 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+
+import wwutil.model.AnnotationRegistry;
+import wwutil.model.BuiltinFunc;
+
+
+/**
+ * Benchmarks of the marshalling hot paths: encoding field values to attribute strings, building the SimpleDB
+ * attributes and DynamoDB items of a model object and loading them back, and applying the field annotation handlers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MarshallingBench {
+
+    Jsoda               jsoda;
+    SimpleDBService     sdb;
+    DynamoDBService     ddb;
+    String              productModel;
+    String              orderModel;
+    BenchModels.Product product;
+    BenchModels.Order   order;
+    List<Attribute>     productAttrs;
+    Map<String, AttributeValue> orderItem;
+    AnnotationRegistry  preStoreRegistry;
+    AnnotationRegistry  validationRegistry;
+
+    Integer             intValue = 123456;
+    Long                longValue = 9876543210L;
+    Float               floatValue = 12.34f;
+    Date                dateValue = new Date(1350000000000L);
+    List<String>        listValue = Arrays.asList("tag1", "tag2", "sale");
+    String              intStr;
+    String              longStr;
+    String              floatStr;
+    String              dateStr;
+    String              listStr;
+
+
+    @Setup
+    public void setup() throws Exception {
+        jsoda = BenchModels.newJsoda();
+        sdb = BenchModels.sdbService(jsoda);
+        ddb = BenchModels.ddbService(jsoda);
+        productModel = Jsoda.getModelName(BenchModels.Product.class);
+        orderModel = Jsoda.getModelName(BenchModels.Order.class);
+        product = new BenchModels.Product(42);
+        order = new BenchModels.Order(42);
+
+        productAttrs = new ArrayList<Attribute>();
+        for (ReplaceableAttribute attr : sdb.buildAttrs(product, productModel))
+            productAttrs.add(new Attribute(attr.getName(), attr.getValue()));
+        orderItem = ddb.objToAttrs(order, orderModel);
+
+        preStoreRegistry = BuiltinFunc.clonePreStore1Registry();
+        validationRegistry = BuiltinFunc.cloneValidationRegistry();
+
+        intStr = DataUtil.encodeValueToAttrStr(intValue, Integer.class);
+        longStr = DataUtil.encodeValueToAttrStr(longValue, Long.class);
+        floatStr = DataUtil.encodeValueToAttrStr(floatValue, Float.class);
+        dateStr = DataUtil.encodeValueToAttrStr(dateValue, Date.class);
+        listStr = DataUtil.encodeValueToAttrStr(listValue, List.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jsoda.shutdown();
+    }
+
+
+    @Benchmark
+    public String encodeInt() {
+        return DataUtil.encodeValueToAttrStr(intValue, Integer.class);
+    }
+
+    @Benchmark
+    public String encodeLong() {
+        return DataUtil.encodeValueToAttrStr(longValue, Long.class);
+    }
+
+    @Benchmark
+    public String encodeFloat() {
+        return DataUtil.encodeValueToAttrStr(floatValue, Float.class);
+    }
+
+    @Benchmark
+    public String encodeDate() {
+        return DataUtil.encodeValueToAttrStr(dateValue, Date.class);
+    }
+
+    @Benchmark
+    public String encodeJson() {
+        return DataUtil.encodeValueToAttrStr(listValue, List.class);
+    }
+
+    @Benchmark
+    public Object decodeInt() throws Exception {
+        return DataUtil.decodeAttrStrToValue(intStr, Integer.class);
+    }
+
+    @Benchmark
+    public Object decodeLong() throws Exception {
+        return DataUtil.decodeAttrStrToValue(longStr, Long.class);
+    }
+
+    @Benchmark
+    public Object decodeFloat() throws Exception {
+        return DataUtil.decodeAttrStrToValue(floatStr, Float.class);
+    }
+
+    @Benchmark
+    public Object decodeDate() throws Exception {
+        return DataUtil.decodeAttrStrToValue(dateStr, Date.class);
+    }
+
+    @Benchmark
+    public Object decodeJson() throws Exception {
+        return DataUtil.decodeAttrStrToValue(listStr, List.class);
+    }
+
+    @Benchmark
+    public List<ReplaceableAttribute> sdbBuildAttrs() throws Exception {
+        return sdb.buildAttrs(product, productModel);
+    }
+
+    @Benchmark
+    public BenchModels.Product sdbBuildLoadObj() throws Exception {
+        return sdb.buildLoadObj(BenchModels.Product.class, productModel, product.productId, productAttrs, null);
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> ddbObjToAttrs() throws Exception {
+        return ddb.objToAttrs(order, orderModel);
+    }
+
+    @Benchmark
+    public BenchModels.Order ddbItemToObj() throws Exception {
+        return ddb.itemToObj(BenchModels.Order.class, orderItem);
+    }
+
+    /** Baseline of the object creation in applyPreStoreHandlers. */
+    @Benchmark
+    public BenchModels.Product newProduct() {
+        return new BenchModels.Product(42);
+    }
+
+    /** The pre-store handlers modify the fields, e.g. @Trim and @ModifiedTime, so each call works on a fresh copy. */
+    @Benchmark
+    public void applyPreStoreHandlers(Blackhole bh) {
+        BenchModels.Product obj = new BenchModels.Product(42);
+        preStoreRegistry.applyFieldHandlers(obj, jsoda.getAllFieldMap(productModel));
+        bh.consume(obj);
+    }
+
+    @Benchmark
+    public BenchModels.Product applyValidationHandlers() {
+        validationRegistry.applyFieldHandlers(product, jsoda.getAllFieldMap(productModel));
+        return product;
+    }
+
+}
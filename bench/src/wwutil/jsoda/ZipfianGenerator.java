@@ -0,0 +1,98 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.Random;
+
+
+/**
+ * Zipfian distributed generator of the item numbers 0 to n - 1, as in YCSB, using the algorithm of Gray et al.,
+ * "Quickly Generating Billion-Record Synthetic Databases".  Item 0 is the most popular, unless the generator is
+ * scrambled, in which case the popular items are spread over the item space by hashing.
+ * Class is thread-safe.  Each thread passes in its own Random.
+ */
+public class ZipfianGenerator
+{
+    public static final double  DEFAULT_CONSTANT = 0.99;
+
+    private static final long   FNV_OFFSET_BASIS_64 = 0xCBF29CE484222325L;
+    private static final long   FNV_PRIME_64 = 1099511628211L;
+
+    private long        items;
+    private double      theta;
+    private double      zetan;
+    private double      alpha;
+    private double      eta;
+    private boolean     scrambled;
+
+
+    public ZipfianGenerator(long items) {
+        this(items, DEFAULT_CONSTANT, true);
+    }
+
+    /** Create a generator over the items with the Zipfian constant theta, between 0 and 1 exclusive.
+     * Computing zeta takes time linear to the number of items.
+     */
+    public ZipfianGenerator(long items, double theta, boolean scrambled) {
+        if (items <= 0)
+            throw new IllegalArgumentException("Number of items must be positive.");
+        if (theta <= 0 || theta >= 1)
+            throw new IllegalArgumentException("Zipfian constant must be between 0 and 1.");
+        this.items = items;
+        this.theta = theta;
+        this.scrambled = scrambled;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+    }
+
+    public long getItems() {
+        return items;
+    }
+
+    public long next(Random random) {
+        double  u = random.nextDouble();
+        double  uz = u * zetan;
+        long    item;
+        if (uz < 1.0)
+            item = 0;
+        else if (uz < 1.0 + Math.pow(0.5, theta))
+            item = 1;
+        else
+            item = Math.min(items - 1, (long)(items * Math.pow(eta * u - eta + 1, alpha)));
+        return scrambled ? Math.abs(fnvHash64(item) % items) : item;
+    }
+
+    static double zeta(long n, double theta) {
+        double  sum = 0;
+        for (long i = 1; i <= n; i++)
+            sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    /** FNV-1a hash of the 8 bytes of the value. */
+    static long fnvHash64(long value) {
+        long    hash = FNV_OFFSET_BASIS_64;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= FNV_PRIME_64;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,879 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.math.*;
+import java.lang.reflect.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.ReflectUtil;
+
+
+/**
+ * Compact binary codec for object graphs, used by @S3Field(storeAs=AS_BINARY).
+ *
+ * The encoding is driven by the class structure obtained by reflection and cached per class.
+ * Numbers are encoded as zigzag varints, strings as UTF-8.  Each value carries a one byte type tag.
+ * The field names of a class are written once per stream, the first time the class is encountered,
+ * and later objects of the class refer to it by a small id.
+ *
+ * Decoding matches the written field names against the current class, so that fields can be
+ * added, removed or reordered between versions of a class.  Values of removed fields are skipped,
+ * added fields keep their default values, and numeric fields can be widened or narrowed.
+ * The stream starts with a format version for evolving the encoding itself.
+ *
+ * Objects are encoded field by field if their class has a no-arg constructor.  Otherwise Serializable
+ * objects fall back to Java serialization.  Cyclic object graphs are not supported.
+ */
+public class BinaryCodec
+{
+    private static Log  log = LogFactory.getLog(BinaryCodec.class);
+
+    public static final int     FORMAT_VERSION = 1;
+
+    private static final int    MAGIC1 = 'J';
+    private static final int    MAGIC2 = 'B';
+    private static final int    MAX_DEPTH = 512;
+    private static final int    BUFFER_SIZE = 8 * 1024;
+
+    // Type tags
+    private static final int    T_NULL = 0;
+    private static final int    T_TRUE = 1;
+    private static final int    T_FALSE = 2;
+    private static final int    T_BYTE = 3;
+    private static final int    T_SHORT = 4;
+    private static final int    T_CHAR = 5;
+    private static final int    T_INT = 6;
+    private static final int    T_LONG = 7;
+    private static final int    T_FLOAT = 8;
+    private static final int    T_DOUBLE = 9;
+    private static final int    T_STRING = 10;
+    private static final int    T_BYTES = 11;
+    private static final int    T_DATE = 12;
+    private static final int    T_BIGINT = 13;
+    private static final int    T_BIGDEC = 14;
+    private static final int    T_ENUM = 15;
+    private static final int    T_LIST = 16;
+    private static final int    T_SET = 17;
+    private static final int    T_MAP = 18;
+    private static final int    T_ARRAY = 19;
+    private static final int    T_OBJECT = 20;
+    private static final int    T_SERIALIZED = 21;
+
+    private static final Map<String, Class> sPrimitiveClasses = new HashMap<String, Class>();
+    static {
+        for (Class c : new Class[] {boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class})
+            sPrimitiveClasses.put(c.getName(), c);
+    }
+
+    private static final ConcurrentMap<Class, ClassSchema>  sSchemas = new ConcurrentHashMap<Class, ClassSchema>();
+
+
+    /** Encode the value to the output stream.  The output stream is flushed but not closed. */
+    public static void encode(OutputStream os, Object value)
+        throws IOException
+    {
+        Encoder enc = new Encoder(os);
+        enc.writeByte(MAGIC1);
+        enc.writeByte(MAGIC2);
+        enc.writeVarint(FORMAT_VERSION);
+        enc.writeValue(value, 0);
+        enc.flush();
+    }
+
+    /** Decode a value from the input stream, converting it to the expected type where applicable. */
+    @SuppressWarnings("unchecked")
+    public static <T> T decode(InputStream is, Class<T> type)
+        throws IOException
+    {
+        return (T)decode(is, (Type)type);
+    }
+
+    /** Decode a value from the input stream.  The expected type can be a generic type, e.g. Field.getGenericType(),
+     * for converting the elements of collections and maps as well.
+     */
+    public static Object decode(InputStream is, Type type)
+        throws IOException
+    {
+        Decoder dec = new Decoder(is);
+        if (dec.readByte() != MAGIC1 || dec.readByte() != MAGIC2)
+            throw new IOException("Not a binary encoded content.");
+        int version = dec.readVarint();
+        if (version > FORMAT_VERSION)
+            throw new IOException("Unsupported binary format version " + version + ".  Supported up to version " + FORMAT_VERSION);
+        return coerce(dec.readValue(type, 0), rawClass(type));
+    }
+
+    public static byte[] toBytes(Object value)
+        throws IOException
+    {
+        ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+        encode(bos, value);
+        return bos.toByteArray();
+    }
+
+    public static <T> T fromBytes(byte[] bytes, Class<T> type)
+        throws IOException
+    {
+        return decode(new ByteArrayInputStream(bytes), type);
+    }
+
+
+    private static ClassSchema getSchema(Class clazz) {
+        ClassSchema schema = sSchemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            sSchemas.putIfAbsent(clazz, schema);
+        }
+        return schema;
+    }
+
+    /** Convert numbers between types for reading a field whose type has changed.  Other values are returned as is. */
+    private static Object coerce(Object value, Class type) {
+        if (value == null || type == null || !(value instanceof Number))
+            return value;
+        Number  num = (Number)value;
+        if (type == int.class || type == Integer.class)     return num.intValue();
+        if (type == long.class || type == Long.class)       return num.longValue();
+        if (type == short.class || type == Short.class)     return num.shortValue();
+        if (type == byte.class || type == Byte.class)       return num.byteValue();
+        if (type == double.class || type == Double.class)   return num.doubleValue();
+        if (type == float.class || type == Float.class)     return num.floatValue();
+        if (type == BigInteger.class && !(num instanceof BigInteger))   return BigInteger.valueOf(num.longValue());
+        if (type == BigDecimal.class && !(num instanceof BigDecimal))   return new BigDecimal(num.toString());
+        return value;
+    }
+
+    private static Class loadClass(String name) {
+        Class   primitive = sPrimitiveClasses.get(name);
+        if (primitive != null)
+            return primitive;
+        try {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            return Class.forName(name, false, cl != null ? cl : BinaryCodec.class.getClassLoader());
+        } catch(ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Class rawClass(Type type) {
+        if (type instanceof Class)
+            return (Class)type;
+        if (type instanceof ParameterizedType)
+            return rawClass(((ParameterizedType)type).getRawType());
+        if (type instanceof GenericArrayType) {
+            Class   component = rawClass(((GenericArrayType)type).getGenericComponentType());
+            return component == null ? null : Array.newInstance(component, 0).getClass();
+        }
+        return null;    // Type variable or wildcard.
+    }
+
+    private static Type typeArg(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[]  args = ((ParameterizedType)type).getActualTypeArguments();
+            if (index < args.length)
+                return args[index];
+        }
+        return null;
+    }
+
+    /** Create the container for decoding.  Use the expected type if it's a concrete container class,
+     * otherwise the first of the default types compatible with the expected type.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object newContainer(Class expected, Class base, Class... defaultTypes) {
+        if (expected != null && base.isAssignableFrom(expected) && !expected.isInterface() && !Modifier.isAbstract(expected.getModifiers())) {
+            try {
+                Constructor ctor = expected.getDeclaredConstructor();
+                ctor.setAccessible(true);
+                return ctor.newInstance();
+            } catch(Exception ignored) {
+            }
+        }
+        Class   type = defaultTypes[0];
+        for (Class defaultType : defaultTypes) {
+            if (expected != null && expected.isAssignableFrom(defaultType)) {
+                type = defaultType;
+                break;
+            }
+        }
+        try {
+            return type.newInstance();
+        } catch(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /** Field layout of an object class.  Only classes outside the JDK with a no-arg constructor are encoded field by field. */
+    private static class ClassSchema {
+        final Class                 clazz;
+        final Field[]               fields;
+        final Map<String, Field>    fieldsByName = new HashMap<String, Field>();
+        final Constructor           ctor;
+
+        ClassSchema(Class clazz) {
+            this.clazz = clazz;
+            this.ctor = isJdkClass(clazz) ? null : getNoArgConstructor(clazz);
+
+            List<Field> list = new ArrayList<Field>();
+            if (ctor != null) {
+                for (Field field : ReflectUtil.getAllFields(clazz)) {
+                    if (Modifier.isTransient(field.getModifiers()) || fieldsByName.containsKey(field.getName()))
+                        continue;       // Skip transient fields and the hidden fields of super classes.
+                    field.setAccessible(true);
+                    list.add(field);
+                    fieldsByName.put(field.getName(), field);
+                }
+            }
+            this.fields = list.toArray(new Field[list.size()]);
+        }
+
+        /** Object of the class can be encoded field by field. */
+        boolean isStructured() {
+            return ctor != null;
+        }
+
+        private static boolean isJdkClass(Class clazz) {
+            return clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.");
+        }
+
+        private static Constructor getNoArgConstructor(Class<?> clazz) {
+            try {
+                Constructor<?>  ctor = clazz.getDeclaredConstructor();
+                ctor.setAccessible(true);
+                return ctor;
+            } catch(Exception e) {
+                return null;
+            }
+        }
+    }
+
+
+    /** Encoding state for one stream. */
+    private static class Encoder {
+        private OutputStream        os;
+        private byte[]              buf = new byte[BUFFER_SIZE];
+        private int                 count = 0;
+        private Map<Class, Integer> classIds = new HashMap<Class, Integer>();          // ids of any class definition
+        private Map<Class, Integer> objectClassIds = new HashMap<Class, Integer>();    // ids of the definitions with field names
+        private int                 classCount = 0;
+
+        Encoder(OutputStream os) {
+            this.os = os;
+        }
+
+        void flush()
+            throws IOException
+        {
+            if (count > 0) {
+                os.write(buf, 0, count);
+                count = 0;
+            }
+            os.flush();
+        }
+
+        void writeByte(int b)
+            throws IOException
+        {
+            if (count == buf.length) {
+                os.write(buf, 0, count);
+                count = 0;
+            }
+            buf[count++] = (byte)b;
+        }
+
+        void writeBytes(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len > buf.length - count) {
+                os.write(buf, 0, count);
+                count = 0;
+                if (len > buf.length) {
+                    os.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void writeVarint(int v)
+            throws IOException
+        {
+            while ((v & ~0x7F) != 0) {
+                writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            writeByte(v);
+        }
+
+        void writeVarlong(long v)
+            throws IOException
+        {
+            while ((v & ~0x7FL) != 0) {
+                writeByte((int)(v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            writeByte((int)v);
+        }
+
+        void writeZigzag(int v)
+            throws IOException
+        {
+            writeVarint((v << 1) ^ (v >> 31));
+        }
+
+        void writeZigzag(long v)
+            throws IOException
+        {
+            writeVarlong((v << 1) ^ (v >> 63));
+        }
+
+        void writeFixed(long v, int bytes)
+            throws IOException
+        {
+            for (int i = 0; i < bytes; i++) {
+                writeByte((int)(v & 0xFF));
+                v >>>= 8;
+            }
+        }
+
+        void writeString(String s)
+            throws IOException
+        {
+            byte[]  bytes = s.getBytes("UTF-8");
+            writeVarint(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        /** Write the class id, or the class definition the first time the class is seen in the stream.
+         * An object class needs a definition with its field names, which is written again if the class
+         * was first defined without them, e.g. as the component type of an array.
+         */
+        void writeClassRef(Class clazz, ClassSchema schema)
+            throws IOException
+        {
+            Integer id = schema == null ? classIds.get(clazz) : objectClassIds.get(clazz);
+            if (id != null) {
+                writeVarint(id.intValue());
+                return;
+            }
+            id = Integer.valueOf(++classCount);
+            classIds.put(clazz, id);
+            if (schema != null)
+                objectClassIds.put(clazz, id);
+            writeVarint(0);
+            writeString(clazz.getName());
+            if (schema != null) {
+                writeVarint(schema.fields.length);
+                for (Field field : schema.fields)
+                    writeString(field.getName());
+            }
+        }
+
+        void writeValue(Object value, int depth)
+            throws IOException
+        {
+            if (depth > MAX_DEPTH)
+                throw new IOException("Object graph too deep or cyclic for binary encoding.");
+            if (value == null) {
+                writeByte(T_NULL);
+                return;
+            }
+
+            Class   clazz = value.getClass();
+            if (clazz == String.class) {
+                writeByte(T_STRING);
+                writeString((String)value);
+            } else if (clazz == Integer.class) {
+                writeByte(T_INT);
+                writeZigzag(((Integer)value).intValue());
+            } else if (clazz == Long.class) {
+                writeByte(T_LONG);
+                writeZigzag(((Long)value).longValue());
+            } else if (clazz == Boolean.class) {
+                writeByte(((Boolean)value).booleanValue() ? T_TRUE : T_FALSE);
+            } else if (clazz == Double.class) {
+                writeByte(T_DOUBLE);
+                writeFixed(Double.doubleToLongBits(((Double)value).doubleValue()), 8);
+            } else if (clazz == Float.class) {
+                writeByte(T_FLOAT);
+                writeFixed(Float.floatToIntBits(((Float)value).floatValue()), 4);
+            } else if (clazz == Short.class) {
+                writeByte(T_SHORT);
+                writeZigzag(((Short)value).intValue());
+            } else if (clazz == Byte.class) {
+                writeByte(T_BYTE);
+                writeByte(((Byte)value).intValue());
+            } else if (clazz == Character.class) {
+                writeByte(T_CHAR);
+                writeVarint(((Character)value).charValue());
+            } else if (clazz == Date.class) {
+                writeByte(T_DATE);
+                writeZigzag(((Date)value).getTime());
+            } else if (clazz == BigInteger.class) {
+                byte[]  bytes = ((BigInteger)value).toByteArray();
+                writeByte(T_BIGINT);
+                writeVarint(bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            } else if (clazz == BigDecimal.class) {
+                byte[]  bytes = ((BigDecimal)value).unscaledValue().toByteArray();
+                writeByte(T_BIGDEC);
+                writeZigzag(((BigDecimal)value).scale());
+                writeVarint(bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            } else if (clazz == byte[].class) {
+                byte[]  bytes = (byte[])value;
+                writeByte(T_BYTES);
+                writeVarint(bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            } else if (value instanceof Enum) {
+                writeByte(T_ENUM);
+                writeClassRef(((Enum)value).getDeclaringClass(), null);
+                writeString(((Enum)value).name());
+            } else if (clazz.isArray()) {
+                writeByte(T_ARRAY);
+                writeClassRef(clazz.getComponentType(), null);
+                writeArray(value, depth);
+            } else if (value instanceof Collection) {
+                Collection  coll = (Collection)value;
+                writeByte(value instanceof Set ? T_SET : T_LIST);
+                writeVarint(coll.size());
+                for (Object item : coll)
+                    writeValue(item, depth + 1);
+            } else if (value instanceof Map) {
+                Map map = (Map)value;
+                writeByte(T_MAP);
+                writeVarint(map.size());
+                for (Object obj : map.entrySet()) {
+                    Map.Entry   entry = (Map.Entry)obj;
+                    writeValue(entry.getKey(), depth + 1);
+                    writeValue(entry.getValue(), depth + 1);
+                }
+            } else {
+                ClassSchema schema = getSchema(clazz);
+                if (schema.isStructured()) {
+                    writeByte(T_OBJECT);
+                    writeClassRef(clazz, schema);
+                    try {
+                        for (Field field : schema.fields)
+                            writeValue(field.get(value), depth + 1);
+                    } catch(IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                } else if (value instanceof Serializable) {
+                    ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+                    ObjectOutputStream      oos = new ObjectOutputStream(bos);
+                    oos.writeObject(value);
+                    oos.close();
+                    writeByte(T_SERIALIZED);
+                    writeVarint(bos.size());
+                    writeBytes(bos.toByteArray(), 0, bos.size());
+                } else {
+                    throw new NotSerializableException(clazz.getName() + " has no no-arg constructor and is not Serializable.");
+                }
+            }
+        }
+
+        void writeArray(Object array, int depth)
+            throws IOException
+        {
+            Class   type = array.getClass().getComponentType();
+            int     length = Array.getLength(array);
+            writeVarint(length);
+            if (type == int.class) {
+                for (int v : (int[])array)
+                    writeZigzag(v);
+            } else if (type == long.class) {
+                for (long v : (long[])array)
+                    writeZigzag(v);
+            } else if (type == double.class) {
+                for (double v : (double[])array)
+                    writeFixed(Double.doubleToLongBits(v), 8);
+            } else if (type == float.class) {
+                for (float v : (float[])array)
+                    writeFixed(Float.floatToIntBits(v), 4);
+            } else if (type == boolean.class) {
+                for (boolean v : (boolean[])array)
+                    writeByte(v ? 1 : 0);
+            } else if (type == short.class) {
+                for (short v : (short[])array)
+                    writeZigzag(v);
+            } else if (type == char.class) {
+                for (char v : (char[])array)
+                    writeVarint(v);
+            } else {
+                for (Object v : (Object[])array)
+                    writeValue(v, depth + 1);
+            }
+        }
+    }
+
+
+    /** Class definition read from a stream. */
+    private static class ClassRef {
+        final Class     clazz;          // null if the class no longer exists.
+        final Field[]   fields;         // current field for each written field name, null for removed fields.
+
+        ClassRef(Class clazz, Field[] fields) {
+            this.clazz = clazz;
+            this.fields = fields;
+        }
+    }
+
+
+    /** Decoding state for one stream. */
+    private static class Decoder {
+        private InputStream         is;
+        private byte[]              buf = new byte[BUFFER_SIZE];
+        private int                 pos = 0;
+        private int                 limit = 0;
+        private List<ClassRef>      classRefs = new ArrayList<ClassRef>();
+
+        Decoder(InputStream is) {
+            this.is = is;
+        }
+
+        int readByte()
+            throws IOException
+        {
+            if (pos == limit) {
+                limit = is.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    throw new EOFException("Unexpected end of binary encoded content.");
+                }
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        void readFully(byte[] b)
+            throws IOException
+        {
+            int off = 0;
+            int avail = Math.min(limit - pos, b.length);
+            System.arraycopy(buf, pos, b, 0, avail);
+            pos += avail;
+            off += avail;
+            while (off < b.length) {
+                int n = is.read(b, off, b.length - off);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of binary encoded content.");
+                off += n;
+            }
+        }
+
+        int readVarint()
+            throws IOException
+        {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint in binary encoded content.");
+        }
+
+        long readVarlong()
+            throws IOException
+        {
+            long    v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint in binary encoded content.");
+        }
+
+        int readZigzag()
+            throws IOException
+        {
+            int v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readZigzagLong()
+            throws IOException
+        {
+            long    v = readVarlong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readFixed(int bytes)
+            throws IOException
+        {
+            long    v = 0;
+            for (int i = 0; i < bytes; i++)
+                v |= (long)readByte() << (8 * i);
+            return v;
+        }
+
+        byte[] readByteArray()
+            throws IOException
+        {
+            byte[]  bytes = new byte[readVarint()];
+            readFully(bytes);
+            return bytes;
+        }
+
+        String readString()
+            throws IOException
+        {
+            int len = readVarint();
+            if (len <= limit - pos) {
+                String  s = new String(buf, pos, len, "UTF-8");
+                pos += len;
+                return s;
+            }
+            byte[]  bytes = new byte[len];
+            readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        /** Read a class id or a class definition.  Field names are present in the definitions of object classes. */
+        ClassRef readClassRef(boolean withFields)
+            throws IOException
+        {
+            int id = readVarint();
+            if (id > 0) {
+                if (id > classRefs.size())
+                    throw new IOException("Invalid class reference in binary encoded content.");
+                return classRefs.get(id - 1);
+            }
+
+            String  className = readString();
+            Class   clazz = loadClass(className);
+            Field[] fields = null;
+            if (withFields) {
+                ClassSchema schema = clazz == null ? null : getSchema(clazz);
+                fields = new Field[readVarint()];
+                for (int i = 0; i < fields.length; i++) {
+                    String  fieldName = readString();
+                    fields[i] = schema == null ? null : schema.fieldsByName.get(fieldName);
+                }
+            }
+            if (clazz == null)
+                log.warn("Class " + className + " in binary encoded content is not found.  Its values are skipped.");
+            ClassRef    ref = new ClassRef(clazz, fields);
+            classRefs.add(ref);
+            return ref;
+        }
+
+        @SuppressWarnings("unchecked")
+        /** Read a value, converting it toward the expected type, which can be a generic type carrying the element types. */
+        Object readValue(Type expectedType, int depth)
+            throws IOException
+        {
+            Class   expected = rawClass(expectedType);
+            if (depth > MAX_DEPTH)
+                throw new IOException("Binary encoded content too deeply nested.");
+
+            int tag = readByte();
+            switch (tag) {
+            case T_NULL:    return null;
+            case T_TRUE:    return Boolean.TRUE;
+            case T_FALSE:   return Boolean.FALSE;
+            case T_BYTE:    return Byte.valueOf((byte)readByte());
+            case T_SHORT:   return Short.valueOf((short)readZigzag());
+            case T_CHAR:    return Character.valueOf((char)readVarint());
+            case T_INT:     return Integer.valueOf(readZigzag());
+            case T_LONG:    return Long.valueOf(readZigzagLong());
+            case T_FLOAT:   return Float.valueOf(Float.intBitsToFloat((int)readFixed(4)));
+            case T_DOUBLE:  return Double.valueOf(Double.longBitsToDouble(readFixed(8)));
+            case T_STRING:  return readString();
+            case T_BYTES:   return readByteArray();
+            case T_DATE:    return new Date(readZigzagLong());
+            case T_BIGINT:  return new BigInteger(readByteArray());
+            case T_BIGDEC: {
+                int scale = readZigzag();
+                return new BigDecimal(new BigInteger(readByteArray()), scale);
+            }
+            case T_ENUM: {
+                ClassRef    ref = readClassRef(false);
+                String      name = readString();
+                if (ref.clazz == null || !ref.clazz.isEnum())
+                    return null;
+                try {
+                    return Enum.valueOf(ref.clazz, name);
+                } catch(IllegalArgumentException e) {
+                    log.warn("Enum constant " + name + " of " + ref.clazz.getName() + " no longer exists.  Value is skipped.");
+                    return null;
+                }
+            }
+            case T_ARRAY: {
+                ClassRef    ref = readClassRef(false);
+                Object      array = readArray(ref.clazz, depth);
+                if (array != null && expected != null && Collection.class.isAssignableFrom(expected)) {
+                    Collection  coll = (Collection)newContainer(expected, Collection.class, ArrayList.class, LinkedHashSet.class, TreeSet.class);
+                    Class       elemType = rawClass(typeArg(expectedType, 0));
+                    for (int i = 0; i < Array.getLength(array); i++)
+                        coll.add(coerce(Array.get(array, i), elemType));
+                    return coll;
+                }
+                return array;
+            }
+            case T_LIST:
+            case T_SET: {
+                int         size = readVarint();
+                Collection  coll;
+                if (expected != null && expected.isArray())
+                    coll = new ArrayList(size);
+                else if (tag == T_SET)
+                    coll = (Collection)newContainer(expected, Collection.class, LinkedHashSet.class, TreeSet.class, ArrayList.class);
+                else
+                    coll = (Collection)newContainer(expected, Collection.class, ArrayList.class, LinkedHashSet.class, TreeSet.class);
+                Type    elemType = expected != null && expected.isArray() ? expected.getComponentType() : typeArg(expectedType, 0);
+                Class   elemClass = rawClass(elemType);
+                for (int i = 0; i < size; i++)
+                    coll.add(coerce(readValue(elemType, depth + 1), elemClass));
+                if (expected != null && expected.isArray())
+                    return toArray(coll, expected.getComponentType());
+                return coll;
+            }
+            case T_MAP: {
+                int size = readVarint();
+                Map map = (Map)newContainer(expected, Map.class, LinkedHashMap.class, TreeMap.class);
+                Type    keyType = typeArg(expectedType, 0);
+                Type    valueType = typeArg(expectedType, 1);
+                for (int i = 0; i < size; i++) {
+                    Object  key = coerce(readValue(keyType, depth + 1), rawClass(keyType));
+                    map.put(key, coerce(readValue(valueType, depth + 1), rawClass(valueType)));
+                }
+                return map;
+            }
+            case T_OBJECT: {
+                ClassRef    ref = readClassRef(true);
+                Object      obj = null;
+                if (ref.fields == null)
+                    throw new IOException("Class reference without field names for an object in binary encoded content.");
+                if (ref.clazz != null) {
+                    ClassSchema schema = getSchema(ref.clazz);
+                    if (!schema.isStructured())
+                        throw new IOException(ref.clazz.getName() + " no longer has a no-arg constructor for binary decoding.");
+                    try {
+                        obj = schema.ctor.newInstance();
+                    } catch(Exception e) {
+                        throw new IOException("Cannot create " + ref.clazz.getName() + " for binary decoding.", e);
+                    }
+                }
+                for (Field field : ref.fields) {
+                    Object  value = readValue(field == null ? null : field.getGenericType(), depth + 1);
+                    if (obj != null && field != null)
+                        setField(obj, field, value);
+                }
+                return obj;
+            }
+            case T_SERIALIZED: {
+                byte[]  bytes = readByteArray();
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch(ClassNotFoundException e) {
+                    log.warn("Class of serialized value is not found.  Value is skipped.  " + e.getMessage());
+                    return null;
+                }
+            }
+            default:
+                throw new IOException("Unknown type tag " + tag + " in binary encoded content.");
+            }
+        }
+
+        Object readArray(Class type, int depth)
+            throws IOException
+        {
+            int length = readVarint();
+            if (type == int.class) {
+                int[]   a = new int[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = readZigzag();
+                return a;
+            } else if (type == long.class) {
+                long[]  a = new long[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = readZigzagLong();
+                return a;
+            } else if (type == double.class) {
+                double[]    a = new double[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = Double.longBitsToDouble(readFixed(8));
+                return a;
+            } else if (type == float.class) {
+                float[] a = new float[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = Float.intBitsToFloat((int)readFixed(4));
+                return a;
+            } else if (type == boolean.class) {
+                boolean[]   a = new boolean[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = readByte() != 0;
+                return a;
+            } else if (type == short.class) {
+                short[] a = new short[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = (short)readZigzag();
+                return a;
+            } else if (type == char.class) {
+                char[]  a = new char[length];
+                for (int i = 0; i < length; i++)
+                    a[i] = (char)readVarint();
+                return a;
+            } else {
+                Object[]    a = (Object[])Array.newInstance(type == null ? Object.class : type, length);
+                for (int i = 0; i < length; i++) {
+                    Object  value = readValue(type, depth + 1);
+                    if (type != null && value != null && !type.isInstance(value))
+                        value = coerce(value, type);
+                    if (type == null || value == null || type.isInstance(value))
+                        a[i] = value;
+                }
+                return type == null ? null : a;
+            }
+        }
+
+        private Object toArray(Collection coll, Class componentType) {
+            Object  array = Array.newInstance(componentType, coll.size());
+            int     i = 0;
+            for (Object item : coll)
+                Array.set(array, i++, coerce(item, componentType));
+            return array;
+        }
+
+        private void setField(Object obj, Field field, Object value) {
+            Class   type = field.getType();
+            if (value == null && type.isPrimitive())
+                return;
+            value = coerce(value, type);
+            try {
+                field.set(obj, value);
+            } catch(Exception e) {
+                log.warn("Cannot set field " + field.getName() + " of " + obj.getClass().getName() + " with a value of " +
+                         value.getClass().getName() + ".  Value is skipped.");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,503 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.reflect.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.IOUtil;
+import wwutil.sys.ReflectUtil;
+import wwutil.model.ValidationException;
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.Model;
+
+
+/**
+ * Bulk load records from a NDJSON (one JSON object per line) or CSV file into the table of a model class.
+ * Records are parsed and run through the pre-store steps on the worker threads, and written in batches
+ * of up to 25 items, with up to the number of threads of batches in flight.  As with Dao.batchPut, the written
+ * objects are put in the cache and mirrored to the secondary of a dual-write.
+ * Writing is throttled to the target rate in items per second, which defaults to the @Model.writeThroughput
+ * for DynamoDB and is unlimited for SimpleDB.
+ *
+ * Records failed to be parsed or validated are skipped and counted as invalid.  A failed batch write stops the load.
+ * With a checkpoint file set, the number of leading records done is saved periodically, and a load
+ * restarted with the same checkpoint file resumes after them.
+ * <pre>
+ * e.g.
+ *   jsoda.bulkLoader(Model1.class).setThreads(8).setCheckpointFile(new File("model1.ckpt")).loadNdjson(new File("model1.json"));
+ * </pre>
+ */
+public class BulkLoader<T>
+{
+    private static Log  log = LogFactory.getLog(BulkLoader.class);
+
+    public static final int     MAX_BATCH_SIZE = 25;
+    public static final int     DEFAULT_THREADS = 4;
+    public static final long    DEFAULT_PROGRESS_INTERVAL = 10000;
+    private static final long   CHECKPOINT_INTERVAL = 1000;
+
+    private Class<T>            modelClass;
+    private String              modelName;
+    private Jsoda               jsoda;
+    private int                 threads = DEFAULT_THREADS;
+    private int                 batchSize = MAX_BATCH_SIZE;
+    private RateLimiter         rateLimiter;
+    private File                checkpointFile;
+    private long                progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    // Progress of the current load.
+    private AtomicLong          recordsRead = new AtomicLong();
+    private AtomicLong          recordsLoaded = new AtomicLong();
+    private AtomicLong          recordsInvalid = new AtomicLong();
+    private AtomicLong          batchesWritten = new AtomicLong();
+    private volatile long       startTime;
+    private long                recordsDone;            // leading records done, saved in the checkpoint.
+    private long                lastCheckpointTime;
+    private TreeMap<Long, Long> doneBatches = new TreeMap<Long, Long>();    // start to end of the batches done out of order.
+    private volatile Exception  failure;
+
+
+    public BulkLoader(Class<T> modelClass, Jsoda jsoda) {
+        this.modelClass = modelClass;
+        this.modelName = Jsoda.getModelName(modelClass);
+        this.jsoda = jsoda;
+
+        long    rate = 0;
+        if (jsoda.getDb(modelName).getDbType() == DbType.DynamoDB)
+            rate = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "writeThroughput", Long.class, Long.valueOf(5));
+        this.rateLimiter = new RateLimiter(rate);
+    }
+
+    /** Number of batches written concurrently. */
+    public BulkLoader<T> setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads must be at least 1.");
+        this.threads = threads;
+        return this;
+    }
+
+    /** Number of records per batch, up to 25. */
+    public BulkLoader<T> setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** Target write rate in items per second.  0 for unlimited. */
+    public BulkLoader<T> setRate(double itemsPerSecond) {
+        rateLimiter.setRate(itemsPerSecond);
+        return this;
+    }
+
+    /** File to save the load progress, for resuming an interrupted load. */
+    public BulkLoader<T> setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    /** Interval in milliseconds to log the load progress.  0 to turn off. */
+    public BulkLoader<T> setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+
+    /** Load the records of a NDJSON file, one JSON object per line.  Return the number of records loaded. */
+    public long loadNdjson(File file)
+        throws JsodaException
+    {
+        Reader  reader = openFile(file);
+        try {
+            return loadNdjson(reader);
+        } finally {
+            IOUtil.close(reader);
+        }
+    }
+
+    /** Load the records from a NDJSON stream, one JSON object per line.  The reader is not closed. */
+    public long loadNdjson(Reader reader)
+        throws JsodaException
+    {
+        final BufferedReader    br = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+        return load(new Source() {
+                Object next() throws IOException {
+                    String  line;
+                    while ((line = br.readLine()) != null) {
+                        if (line.trim().length() > 0)
+                            return line;
+                    }
+                    return null;
+                }
+
+                T parse(Object record) throws Exception {
+                    return DataUtil.fromJson((String)record, modelClass);
+                }
+            });
+    }
+
+    /** Load the records of a CSV file.  The first row is the header of the field names of the model class.
+     * Values are converted to the field types as stored in SimpleDB, with non-basic types in JSON.
+     * Return the number of records loaded.
+     */
+    public long loadCsv(File file)
+        throws JsodaException
+    {
+        Reader  reader = openFile(file);
+        try {
+            return loadCsv(reader);
+        } finally {
+            IOUtil.close(reader);
+        }
+    }
+
+    /** Load the records from a CSV stream.  The reader is not closed. */
+    public long loadCsv(Reader reader)
+        throws JsodaException
+    {
+        final Reader    in = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+        final Field[]   fields;
+        try {
+            List<String>    header = readCsvRecord(in);
+            if (header == null)
+                return 0;
+            fields = new Field[header.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = jsoda.getField(modelName, header.get(i).trim());
+                if (fields[i] == null)
+                    throw new ValidationException("CSV column " + header.get(i) + " is not a field of " + modelName);
+            }
+        } catch(IOException e) {
+            throw new JsodaException("Failed to read CSV header", e);
+        }
+
+        return load(new Source() {
+                Object next() throws IOException {
+                    return readCsvRecord(in);
+                }
+
+                @SuppressWarnings("unchecked")
+                T parse(Object record) throws Exception {
+                    List<String>    values = (List<String>)record;
+                    if (values.size() != fields.length)
+                        throw new ValidationException("Expecting " + fields.length + " columns but got " + values.size());
+                    T   dataObj = modelClass.newInstance();
+                    for (int i = 0; i < fields.length; i++) {
+                        Object  value = DataUtil.decodeAttrStrToValue(values.get(i), fields[i].getType());
+                        if (value != null)
+                            fields[i].set(dataObj, value);
+                    }
+                    return dataObj;
+                }
+            });
+    }
+
+
+    public long getRecordsRead() {
+        return recordsRead.get();
+    }
+
+    public long getRecordsLoaded() {
+        return recordsLoaded.get();
+    }
+
+    public long getRecordsInvalid() {
+        return recordsInvalid.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    /** Number of leading records of the input done, as saved in the checkpoint. */
+    public synchronized long getRecordsDone() {
+        return recordsDone;
+    }
+
+    /** Average items loaded per second since the load started. */
+    public double getItemsPerSecond() {
+        long    elapsed = System.currentTimeMillis() - startTime;
+        return startTime == 0 || elapsed <= 0 ? 0 : recordsLoaded.get() * 1000.0 / elapsed;
+    }
+
+    public String dumpProgress() {
+        return "BulkLoader " + modelName + " read: " + getRecordsRead() + ", loaded: " + getRecordsLoaded() +
+            ", invalid: " + getRecordsInvalid() + ", batches: " + getBatchesWritten() + ", done: " + getRecordsDone() +
+            ", items/s: " + Math.round(getItemsPerSecond());
+    }
+
+
+    private abstract class Source {
+        /** Return the next raw record, or null at the end of input. */
+        abstract Object next() throws IOException;
+        /** Parse the raw record into a data object. */
+        abstract T parse(Object record) throws Exception;
+    }
+
+    private long load(Source source)
+        throws JsodaException
+    {
+        resetProgress();
+        long    resumeFrom = readCheckpoint();
+        if (resumeFrom > 0)
+            log.info("Resume loading " + modelName + " after record " + resumeFrom);
+
+        ExecutorService executor = jsoda.getExecutor();
+        Semaphore       inFlight = new Semaphore(threads);
+        long            lastProgress = startTime;
+        long            index = 0;
+
+        try {
+            for (; index < resumeFrom; index++) {
+                if (source.next() == null)
+                    break;
+            }
+            synchronized(this) {
+                recordsDone = index;
+            }
+
+            List<Object>    batch = new ArrayList<Object>(batchSize);
+            Object          record;
+            while (failure == null) {
+                record = source.next();
+                if (record != null) {
+                    recordsRead.incrementAndGet();
+                    batch.add(record);
+                }
+                if (batch.size() == batchSize || (record == null && batch.size() > 0)) {
+                    inFlight.acquire();
+                    executor.submit(new BatchTask(source, index, batch, inFlight));
+                    index += batch.size();
+                    batch = new ArrayList<Object>(batchSize);
+                }
+                if (record == null)
+                    break;
+
+                if (progressInterval > 0 && System.currentTimeMillis() - lastProgress >= progressInterval) {
+                    lastProgress = System.currentTimeMillis();
+                    log.info(dumpProgress());
+                }
+            }
+            inFlight.acquire(threads);      // wait for the batches in flight.
+            inFlight.release(threads);
+        } catch(IOException e) {
+            failure = e;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+
+        writeCheckpoint();
+        log.info(dumpProgress());
+        if (failure != null)
+            throw new JsodaException("Failed to bulk load " + modelName + " after record " + getRecordsDone(), failure);
+        return recordsLoaded.get();
+    }
+
+    private class BatchTask implements Runnable {
+        private Source          source;
+        private long            start;
+        private List<Object>    records;
+        private Semaphore       inFlight;
+
+        BatchTask(Source source, long start, List<Object> records, Semaphore inFlight) {
+            this.source = source;
+            this.start = start;
+            this.records = records;
+            this.inFlight = inFlight;
+        }
+
+        public void run() {
+            try {
+                if (failure != null)
+                    return;
+                List<T>     dataObjs = new ArrayList<T>(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    try {
+                        T   dataObj = source.parse(records.get(i));
+                        jsoda.preStoreSteps(dataObj);
+                        dataObjs.add(dataObj);
+                    } catch(Exception e) {
+                        recordsInvalid.incrementAndGet();
+                        log.warn("Skip invalid record " + (start + i + 1) + " of " + modelName + ".  " + e);
+                    }
+                }
+                if (dataObjs.size() > 0) {
+                    rateLimiter.acquire(dataObjs.size());
+                    jsoda.dao(modelClass).batchPutPrepared(dataObjs);
+                    recordsLoaded.addAndGet(dataObjs.size());
+                    batchesWritten.incrementAndGet();
+                }
+                batchDone(start, start + records.size());
+            } catch(Exception e) {
+                if (failure == null)
+                    failure = e;
+                log.error("Failed to write batch of records " + (start + 1) + "-" + (start + records.size()) + " of " + modelName, e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private void resetProgress() {
+        recordsRead.set(0);
+        recordsLoaded.set(0);
+        recordsInvalid.set(0);
+        batchesWritten.set(0);
+        failure = null;
+        synchronized(this) {
+            recordsDone = 0;
+            doneBatches.clear();
+            lastCheckpointTime = System.currentTimeMillis();
+        }
+        startTime = System.currentTimeMillis();
+    }
+
+    /** Advance the leading records done over the contiguous batches done, and save the checkpoint periodically. */
+    private synchronized void batchDone(long start, long end) {
+        doneBatches.put(start, end);
+        Long    next;
+        while ((next = doneBatches.remove(recordsDone)) != null)
+            recordsDone = next;
+        if (System.currentTimeMillis() - lastCheckpointTime >= CHECKPOINT_INTERVAL)
+            writeCheckpoint();
+    }
+
+    private long readCheckpoint()
+        throws JsodaException
+    {
+        if (checkpointFile == null || !checkpointFile.exists())
+            return 0;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(checkpointFile);
+            Properties  props = new Properties();
+            props.load(is);
+            if (!modelName.equals(props.getProperty("model")))
+                throw new ValidationException("Checkpoint file " + checkpointFile + " is for model " + props.getProperty("model") + ", not " + modelName);
+            return Long.parseLong(props.getProperty("records", "0"));
+        } catch(IOException e) {
+            throw new JsodaException("Failed to read checkpoint file " + checkpointFile, e);
+        } catch(NumberFormatException e) {
+            throw new JsodaException("Invalid checkpoint file " + checkpointFile, e);
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    /** Save the checkpoint to a temp file and rename it over the checkpoint file, so that a crash never leaves a partial checkpoint. */
+    private synchronized void writeCheckpoint() {
+        lastCheckpointTime = System.currentTimeMillis();
+        if (checkpointFile == null)
+            return;
+
+        File            tempFile = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream    os = null;
+        try {
+            Properties  props = new Properties();
+            props.setProperty("model", modelName);
+            props.setProperty("records", Long.toString(recordsDone));
+            os = new FileOutputStream(tempFile);
+            props.store(os, "Jsoda bulk load checkpoint");
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(checkpointFile)) {
+                checkpointFile.delete();
+                if (!tempFile.renameTo(checkpointFile))
+                    throw new IOException("Cannot move " + tempFile + " to " + checkpointFile);
+            }
+        } catch(IOException e) {
+            log.warn("Failed to save checkpoint " + checkpointFile + ".  " + e.getMessage());
+        } finally {
+            IOUtil.close(os);
+        }
+    }
+
+    private static Reader openFile(File file)
+        throws JsodaException
+    {
+        try {
+            return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), S3Dao.IO_BUFFER_SIZE);
+        } catch(IOException e) {
+            throw new JsodaException("Failed to open " + file, e);
+        }
+    }
+
+    /** Read a CSV record (RFC 4180).  Quoted values can contain commas, quotes as "", and line breaks.
+     * Blank lines are skipped.  Return null at the end of input.
+     */
+    static List<String> readCsvRecord(Reader in)
+        throws IOException
+    {
+        List<String>    values = new ArrayList<String>();
+        StringBuilder   sb = new StringBuilder();
+        boolean         quoted = false;
+        boolean         any = false;
+        int             c;
+
+        while ((c = in.read()) != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    int next = in.read();
+                    if (next == '"') {
+                        sb.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1)
+                            in.reset();
+                    }
+                } else {
+                    sb.append((char)c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                any = true;
+            } else if (c == ',') {
+                values.add(sb.toString());
+                sb.setLength(0);
+                any = true;
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r') {
+                    in.mark(1);
+                    if (in.read() != '\n')
+                        in.reset();
+                }
+                if (any || sb.length() > 0)
+                    break;
+            } else {
+                sb.append((char)c);
+                any = true;
+            }
+        }
+        if (quoted)
+            throw new IOException("Unterminated quoted value in CSV.");
+        if (!any && sb.length() == 0)
+            return null;
+        values.add(sb.toString());
+        return values;
+    }
+
+}
@@ -0,0 +1,139 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Circuit breaker of the database calls on a model of a DbService.  The outcomes of the recent calls are kept
+ * in a window.  When the failure rate or the slow call rate of the window passes its threshold, the circuit opens
+ * and the calls are rejected without going to the database.  After the open period, a few trial calls are let
+ * through in the half-open state.  The circuit closes if they all succeed, or opens again on any failure.
+ * Class is thread-safe.
+ */
+public class CircuitBreaker
+{
+    private static Log  log = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private CircuitBreakerPolicy    policy;
+    private String                  name;
+    private State                   state = State.CLOSED;
+    private boolean[]               failures;
+    private boolean[]               slows;
+    private int                     count;
+    private int                     next;
+    private int                     failureCount;
+    private int                     slowCount;
+    private long                    openedAt;
+    private int                     trialsAllowed;
+    private int                     trialsSucceeded;
+
+
+    CircuitBreaker(CircuitBreakerPolicy policy, String name) {
+        this.policy = policy;
+        this.name = name;
+        this.failures = new boolean[policy.getWindowSize()];
+        this.slows = new boolean[policy.getWindowSize()];
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= policy.getOpenMs())
+            return State.HALF_OPEN;
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String toString() {
+        return "CircuitBreaker " + name + " " + getState();
+    }
+
+
+    /** Whether the call can go to the database.  An open circuit turns half-open once the open period is over. */
+    synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < policy.getOpenMs())
+                return false;
+            state = State.HALF_OPEN;
+            trialsAllowed = 0;
+            trialsSucceeded = 0;
+            log.info("Circuit " + name + " half-open");
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsAllowed >= policy.getHalfOpenCalls())
+                return false;
+            trialsAllowed++;
+        }
+        return true;
+    }
+
+    /** Record the outcome of an allowed call. */
+    synchronized void onResult(boolean failure, long latencyMs) {
+        boolean slow = latencyMs >= policy.getSlowCallMs();
+        if (state == State.HALF_OPEN) {
+            if (failure || slow) {
+                open();
+            } else if (++trialsSucceeded >= policy.getHalfOpenCalls()) {
+                state = State.CLOSED;
+                reset();
+                log.info("Circuit " + name + " closed");
+            }
+            return;
+        }
+        if (state == State.OPEN)
+            return;
+
+        if (count == failures.length) {
+            failureCount -= failures[next] ? 1 : 0;
+            slowCount -= slows[next] ? 1 : 0;
+        } else {
+            count++;
+        }
+        failures[next] = failure;
+        slows[next] = slow;
+        failureCount += failure ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        next = (next + 1) % failures.length;
+
+        if (count >= policy.getMinimumCalls() &&
+            ((double)failureCount / count >= policy.getFailureRateThreshold() ||
+             (double)slowCount / count >= policy.getSlowCallRateThreshold())) {
+            log.warn("Circuit " + name + " opened on " + failureCount + " failures and " + slowCount + " slow calls out of " + count);
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        reset();
+    }
+
+    private void reset() {
+        count = 0;
+        next = 0;
+        failureCount = 0;
+        slowCount = 0;
+    }
+
+}
@@ -0,0 +1,178 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Circuit breaker policy of the database calls of a Jsoda object, with one CircuitBreaker per DbService and model.
+ * A call fails fast with CircuitOpenException while its circuit is open, instead of tying up the calling thread
+ * until the database times out.  Only throttling errors, transient errors, and missed deadlines count as failures;
+ * errors of the request itself, such as a failed condition, do not.
+ *
+ * While the circuit is open, Dao.get() and Dao.findBy() serve the last cached object, even if expired, when
+ * the cache service is a StaleCacheable, e.g. MemCacheableSimple.
+ * Class is thread-safe.
+ */
+public class CircuitBreakerPolicy
+{
+    public static final double  DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final double  DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.8;
+    public static final long    DEFAULT_SLOW_CALL_MS = 5000;
+    public static final int     DEFAULT_WINDOW_SIZE = 50;
+    public static final int     DEFAULT_MINIMUM_CALLS = 20;
+    public static final long    DEFAULT_OPEN_MS = 10000;
+    public static final int     DEFAULT_HALF_OPEN_CALLS = 3;
+
+    private volatile double     failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private volatile double     slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private volatile long       slowCallMs = DEFAULT_SLOW_CALL_MS;
+    private volatile int        windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int        minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private volatile long       openMs = DEFAULT_OPEN_MS;
+    private volatile int        halfOpenCalls = DEFAULT_HALF_OPEN_CALLS;
+    private ConcurrentMap<String, CircuitBreaker>   breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    // Metrics
+    private AtomicLong          rejected = new AtomicLong();
+    private AtomicLong          staleServed = new AtomicLong();
+
+
+    /** Ratio of failed calls in the window to open the circuit. */
+    public CircuitBreakerPolicy setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /** Ratio of slow calls in the window to open the circuit. */
+    public CircuitBreakerPolicy setSlowCallRateThreshold(double slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /** Latency at which a call counts as slow. */
+    public CircuitBreakerPolicy setSlowCallMs(long slowCallMs) {
+        this.slowCallMs = slowCallMs;
+        return this;
+    }
+
+    public long getSlowCallMs() {
+        return slowCallMs;
+    }
+
+    /** Number of recent calls kept in the window.  Applies to the circuits created afterward. */
+    public CircuitBreakerPolicy setWindowSize(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("Window size must be positive.");
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /** Minimum number of calls in the window before the rates are checked. */
+    public CircuitBreakerPolicy setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /** Time the circuit stays open before letting the trial calls through. */
+    public CircuitBreakerPolicy setOpenMs(long openMs) {
+        this.openMs = openMs;
+        return this;
+    }
+
+    public long getOpenMs() {
+        return openMs;
+    }
+
+    /** Number of trial calls in the half-open state, which all need to succeed to close the circuit. */
+    public CircuitBreakerPolicy setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls <= 0)
+            throw new IllegalArgumentException("Half-open calls must be positive.");
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /** Number of calls rejected by open circuits. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /** Number of stale cached objects served while the circuits are open. */
+    public long getStaleServed() {
+        return staleServed.get();
+    }
+
+    /** State of the circuits by DbService id and model name. */
+    public Map<String, CircuitBreaker.State> getStates() {
+        Map<String, CircuitBreaker.State>   map = new TreeMap<String, CircuitBreaker.State>();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet())
+            map.put(entry.getKey(), entry.getValue().getState());
+        return map;
+    }
+
+    public String dumpMetrics() {
+        return "CircuitBreakerPolicy rejected: " + getRejected() + ", staleServed: " + getStaleServed() + ", states: " + getStates();
+    }
+
+
+    CircuitBreaker getBreaker(String dbTypeId, String modelName) {
+        String          key = dbTypeId + "/" + modelName;
+        CircuitBreaker  breaker = breakers.get(key);
+        if (breaker == null) {
+            breakers.putIfAbsent(key, new CircuitBreaker(this, key));
+            breaker = breakers.get(key);
+        }
+        return breaker;
+    }
+
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    void staleServed() {
+        staleServed.incrementAndGet();
+    }
+
+    /** Whether the error of a call counts as a failure of the database. */
+    static boolean isFailure(Throwable e) {
+        return e instanceof JsodaTimeoutException || RetryPolicy.isThrottling(e) || RetryPolicy.isTransient(e);
+    }
+
+}
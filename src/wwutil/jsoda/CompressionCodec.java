@@ -0,0 +1,383 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+
+/**
+ * Compression codec for @S3Field content.  The codec name is recorded in the S3 object metadata
+ * so that content is decompressed with the codec it was stored with.
+ *
+ * Built-in codecs are "none", "gzip", "deflate" and "lzf".  Additional codecs can be registered.
+ * The gzip and deflate codecs reuse pooled Deflater and Inflater objects, whose native memory
+ * is otherwise allocated and freed for every stream.
+ */
+public abstract class CompressionCodec
+{
+    public static final int     DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int    BUFFER_SIZE = 8 * 1024;
+    private static final int    MAX_POOLED = 32;
+
+    private static final ConcurrentMap<String, CompressionCodec>    sCodecs = new ConcurrentHashMap<String, CompressionCodec>();
+    private static final Queue<Deflater>[]  sDeflaterPool = newPool(22);      // indexed by level and nowrap.
+    private static final Queue<Inflater>[]  sInflaterPool = newPool(2);       // indexed by nowrap.
+
+    public static final CompressionCodec    NONE = new NoneCodec();
+    public static final CompressionCodec    GZIP = new GzipCodec();
+    public static final CompressionCodec    DEFLATE = new DeflateCodec();
+    public static final CompressionCodec    LZF = new LzfCodec();
+
+    static {
+        register(NONE);
+        register(GZIP);
+        register(DEFLATE);
+        register(LZF);
+    }
+
+
+    /** Register a codec under its name, replacing any codec of the same name. */
+    public static void register(CompressionCodec codec) {
+        sCodecs.put(codec.getName(), codec);
+    }
+
+    /** Return the codec registered under the name, or null if none. */
+    public static CompressionCodec get(String name) {
+        return name == null ? null : sCodecs.get(name);
+    }
+
+
+    /** Name of the codec recorded in the S3 object metadata. */
+    public abstract String getName();
+
+    /** Return a stream compressing to the output stream.  Closing the returned stream finishes the compression and closes the output stream.
+     * @param level  codec specific compression level, or DEFAULT_LEVEL.
+     */
+    public abstract OutputStream compress(OutputStream os, int level)
+        throws IOException;
+
+    /** Return a stream decompressing the input stream.  Closing the returned stream closes the input stream. */
+    public abstract InputStream decompress(InputStream is)
+        throws IOException;
+
+    /** The HTTP Content-Encoding for the compressed content, or null if the codec is not a standard HTTP encoding. */
+    public String getContentEncoding() {
+        return null;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <T> Queue<T>[] newPool(int size) {
+        Queue<T>[]  pool = new Queue[size];
+        for (int i = 0; i < size; i++)
+            pool[i] = new ConcurrentLinkedQueue<T>();
+        return pool;
+    }
+
+    private static int deflaterIndex(int level, boolean nowrap) {
+        return (level + 1) * 2 + (nowrap ? 1 : 0);
+    }
+
+    static Deflater acquireDeflater(int level, boolean nowrap) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        Deflater    def = sDeflaterPool[deflaterIndex(level, nowrap)].poll();
+        return def != null ? def : new Deflater(level, nowrap);
+    }
+
+    static void releaseDeflater(Deflater def, int level, boolean nowrap) {
+        Queue<Deflater> pool = sDeflaterPool[deflaterIndex(level, nowrap)];
+        if (pool.size() < MAX_POOLED) {
+            def.reset();
+            pool.offer(def);
+        } else {
+            def.end();
+        }
+    }
+
+    static Inflater acquireInflater(boolean nowrap) {
+        Inflater    inf = sInflaterPool[nowrap ? 1 : 0].poll();
+        return inf != null ? inf : new Inflater(nowrap);
+    }
+
+    static void releaseInflater(Inflater inf, boolean nowrap) {
+        Queue<Inflater> pool = sInflaterPool[nowrap ? 1 : 0];
+        if (pool.size() < MAX_POOLED) {
+            inf.reset();
+            pool.offer(inf);
+        } else {
+            inf.end();
+        }
+    }
+
+
+    private static class NoneCodec extends CompressionCodec {
+        public String getName() {
+            return "none";
+        }
+
+        public OutputStream compress(OutputStream os, int level) {
+            return os;
+        }
+
+        public InputStream decompress(InputStream is) {
+            return is;
+        }
+    }
+
+    private static class DeflateCodec extends CompressionCodec {
+        public String getName() {
+            return "deflate";
+        }
+
+        public String getContentEncoding() {
+            return "deflate";
+        }
+
+        public OutputStream compress(OutputStream os, int level) {
+            return new PooledDeflaterOutputStream(os, level, false);
+        }
+
+        public InputStream decompress(InputStream is) {
+            return new PooledInflaterInputStream(is, false);
+        }
+    }
+
+    private static class GzipCodec extends CompressionCodec {
+        public String getName() {
+            return "gzip";
+        }
+
+        public String getContentEncoding() {
+            return "gzip";
+        }
+
+        public OutputStream compress(OutputStream os, int level)
+            throws IOException
+        {
+            return new PooledGzipOutputStream(os, level);
+        }
+
+        public InputStream decompress(InputStream is)
+            throws IOException
+        {
+            return new PooledGzipInputStream(is);
+        }
+    }
+
+
+    /** Deflater stream returning its Deflater to the pool when closed. */
+    private static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+        private int         level;
+        private boolean     nowrap;
+        private boolean     closed = false;
+
+        PooledDeflaterOutputStream(OutputStream os, int level, boolean nowrap) {
+            super(os, acquireDeflater(level, nowrap), BUFFER_SIZE);
+            this.level = level;
+            this.nowrap = nowrap;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+            boolean finished = false;
+            try {
+                super.close();
+                finished = true;
+            } finally {
+                if (finished)
+                    releaseDeflater(def, level, nowrap);
+                else
+                    def.end();
+            }
+        }
+    }
+
+    /** Inflater stream returning its Inflater to the pool when closed. */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+        private boolean     nowrap;
+        private boolean     closed = false;
+
+        PooledInflaterInputStream(InputStream is, boolean nowrap) {
+            super(is, acquireInflater(nowrap), BUFFER_SIZE);
+            this.nowrap = nowrap;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                releaseInflater(inf, nowrap);
+            }
+        }
+    }
+
+    /** Gzip format (RFC 1952) over a pooled raw Deflater, since GZIPOutputStream always allocates its own. */
+    private static class PooledGzipOutputStream extends PooledDeflaterOutputStream {
+        private CRC32       crc = new CRC32();
+        private boolean     trailerWritten = false;
+
+        PooledGzipOutputStream(OutputStream os, int level)
+            throws IOException
+        {
+            super(os, level, true);
+            out.write(new byte[] { (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 });
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish()
+            throws IOException
+        {
+            if (trailerWritten)
+                return;
+            super.finish();
+            writeInt((int)crc.getValue());
+            writeInt((int)def.getBytesRead());
+            trailerWritten = true;
+        }
+
+        private void writeInt(int v)
+            throws IOException
+        {
+            out.write(v & 0xFF);
+            out.write((v >> 8) & 0xFF);
+            out.write((v >> 16) & 0xFF);
+            out.write((v >> 24) & 0xFF);
+        }
+    }
+
+    /** Gzip format (RFC 1952) over a pooled raw Inflater, since GZIPInputStream always allocates its own.
+     * Reads a single gzip member, as written by Jsoda and by GZIPOutputStream.
+     */
+    private static class PooledGzipInputStream extends PooledInflaterInputStream {
+        private static final int    FHCRC = 2;
+        private static final int    FEXTRA = 4;
+        private static final int    FNAME = 8;
+        private static final int    FCOMMENT = 16;
+
+        private CRC32       crc = new CRC32();
+        private boolean     eos = false;
+
+        PooledGzipInputStream(InputStream is)
+            throws IOException
+        {
+            super(is, true);
+            try {
+                readHeader();
+            } catch(IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (eos)
+                return -1;
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                readTrailer();
+                eos = true;
+            } else {
+                crc.update(b, off, n);
+            }
+            return n;
+        }
+
+        private void readHeader()
+            throws IOException
+        {
+            if (readUByte(in) != 0x1f || readUByte(in) != 0x8b)
+                throw new ZipException("Not in GZIP format");
+            if (readUByte(in) != Deflater.DEFLATED)
+                throw new ZipException("Unsupported compression method");
+            int flags = readUByte(in);
+            for (int i = 0; i < 6; i++)     // mtime, xfl, os
+                readUByte(in);
+            if ((flags & FEXTRA) != 0) {
+                int xlen = readUByte(in) | (readUByte(in) << 8);
+                for (int i = 0; i < xlen; i++)
+                    readUByte(in);
+            }
+            if ((flags & FNAME) != 0) {
+                while (readUByte(in) != 0) ;
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readUByte(in) != 0) ;
+            }
+            if ((flags & FHCRC) != 0) {
+                readUByte(in);
+                readUByte(in);
+            }
+        }
+
+        private void readTrailer()
+            throws IOException
+        {
+            // The trailer starts in the unconsumed part of the input buffer.
+            int         remaining = inf.getRemaining();
+            InputStream trailer = remaining > 0 ? new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in) : in;
+            long        crcValue = readUInt(trailer);
+            long        size = readUInt(trailer);
+            if (crcValue != crc.getValue())
+                throw new ZipException("Corrupt GZIP trailer");
+            if (size != (inf.getBytesWritten() & 0xFFFFFFFFL))
+                throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        private static long readUInt(InputStream is)
+            throws IOException
+        {
+            return (readUByte(is) | (readUByte(is) << 8) | (readUByte(is) << 16) | ((long)readUByte(is) << 24)) & 0xFFFFFFFFL;
+        }
+
+        private static int readUByte(InputStream is)
+            throws IOException
+        {
+            int b = is.read();
+            if (b == -1)
+                throw new EOFException("Unexpected end of GZIP input stream");
+            return b;
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
 package wwutil.jsoda;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.io.*;
 import java.lang.reflect.*;
 
@@ -43,6 +44,7 @@ public class Dao<T>
     private Class<T>    modelClass;
     private String      modelName;
     private Jsoda       jsoda;
+    private long        deadlineMs;
 
 
     public Dao(Class<T> modelClass, Jsoda jsoda) {
@@ -51,6 +53,19 @@ public class Dao<T>
         this.jsoda = jsoda;
     }
 
+    /** Return a Dao whose get() and findBy() calls are bounded by the deadline, instead of the model's default deadline.
+     * The call is cancelled and fails with JsodaTimeoutException once the deadline has passed.
+     */
+    public Dao<T> withDeadline(long deadlineMs) {
+        Dao<T>  dao = new Dao<T>(modelClass, jsoda);
+        dao.deadlineMs = deadlineMs;
+        return dao;
+    }
+
+    private long getDeadline() {
+        return deadlineMs > 0 ? deadlineMs : jsoda.getModelDeadline(modelName);
+    }
+
     public void put(T dataObj)
         throws JsodaException
     {
@@ -63,7 +78,7 @@ public class Dao<T>
                 // Get old version as the expectedVersion before preStoreSteps() incrementing the version number.
                 Integer expectedVersion = (Integer)versionField.get(dataObj);
                 boolean expectedExists = (expectedVersion != null && expectedVersion.intValue() > 0);
-                expectedVersion = (expectedExists ? expectedVersion : new Integer(0));
+                expectedVersion = (expectedExists ? expectedVersion : Integer.valueOf(0));
                 putIf(dataObj, versionField.getName(), expectedVersion, expectedExists);
             }
         } catch(JsodaException je) {
@@ -81,6 +96,7 @@ public class Dao<T>
             jsoda.getDb(modelName).putObj(modelClass, dataObj, expectedField, expectedValue, expectedExists);
             jsoda.s3dao(modelClass).saveS3Fields(dataObj);
             jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
+            dualWritePut(Collections.singletonList(dataObj));
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -105,11 +121,7 @@ public class Dao<T>
             for (T dataObj : dataObjs) {
                 jsoda.preStoreSteps(dataObj);
             }
-            jsoda.getDb(modelName).putObjs(modelClass, dataObjs);
-            for (T dataObj : dataObjs) {
-                jsoda.s3dao(modelClass).saveS3Fields(dataObj);
-                jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
-            }
+            batchPutPrepared(dataObjs);
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -117,6 +129,18 @@ public class Dao<T>
         }
     }
 
+    /** Batch put the objects already gone through the pre-store steps, and update the cache and the dual-write secondary. */
+    void batchPutPrepared(List<T> dataObjs)
+        throws Exception
+    {
+        jsoda.getDb(modelName).putObjs(modelClass, dataObjs);
+        for (T dataObj : dataObjs) {
+            jsoda.s3dao(modelClass).saveS3Fields(dataObj);
+            jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
+        }
+        dualWritePut(dataObjs);
+    }
+
     public T get(Object id)
         throws JsodaException
     {
@@ -125,7 +149,7 @@ public class Dao<T>
               id instanceof String))
             throw new ValidationException("The Id can only be String, Integer, or Long.");
 
-        return getObj(id, null);
+        return getObj(id, null, false);
     }
 
     public T get(Object hashKey, Object rangeKey)
@@ -140,32 +164,69 @@ public class Dao<T>
               rangeKey instanceof String))
             throw new ValidationException("The rangeKey can only be String, Integer, or Long.");
 
-        return getObj(hashKey, rangeKey);
+        return getObj(hashKey, rangeKey, false);
     }
 
-    private T getObj(Object id, Object rangeKey)
+    /** Get the object with a consistent read from the database, bypassing the cache. */
+    public T getConsistent(Object id)
         throws JsodaException
     {
-        try {
-            T   obj = (T)jsoda.getObjCacheMgr().cacheGet(modelName, id, rangeKey);
-            if (obj != null)
-                return obj;
+        if (!(id instanceof Integer ||
+              id instanceof Long ||
+              id instanceof String))
+            throw new ValidationException("The Id can only be String, Integer, or Long.");
 
-            if (rangeKey == null) {
-                if (jsoda.getRangeField(modelName) != null) {
-                    throw new ValidationException("Model " + modelName + " requires rangeKey for get.");
-                }
-                obj = jsoda.getDb(modelName).getObj(modelClass, id, null);
-            } else {
-                obj = jsoda.getDb(modelName).getObj(modelClass, id, rangeKey);
+        return getObj(id, null, true);
+    }
+
+    /** Get the object with a consistent read from the database, bypassing the cache. */
+    public T getConsistent(Object hashKey, Object rangeKey)
+        throws JsodaException
+    {
+        if (!(hashKey instanceof Integer ||
+              hashKey instanceof Long ||
+              hashKey instanceof String))
+            throw new ValidationException("The hashKey can only be String, Integer, or Long.");
+        if (!(rangeKey instanceof Integer ||
+              rangeKey instanceof Long ||
+              rangeKey instanceof String))
+            throw new ValidationException("The rangeKey can only be String, Integer, or Long.");
+
+        return getObj(hashKey, rangeKey, true);
+    }
+
+    private T getObj(final Object id, final Object rangeKey, final boolean consistentRead)
+        throws JsodaException
+    {
+        try {
+            if (!consistentRead) {
+                T   obj = (T)jsoda.getObjCacheMgr().cacheGet(modelName, id, rangeKey);
+                if (obj != null)
+                    return obj;
             }
 
-            if (obj != null) {
-                jsoda.s3dao(modelClass).loadS3Fields(obj);
-                jsoda.postLoadSteps(obj);
+            if (rangeKey == null && jsoda.getRangeField(modelName) != null) {
+                throw new ValidationException("Model " + modelName + " requires rangeKey for get.");
             }
 
-            return obj;
+            return Deadline.call("get on " + modelName, getDeadline(), new Callable<T>() {
+                    public T call() throws Exception {
+                        T   obj = jsoda.getDb(modelName).getObj(modelClass, id, rangeKey, consistentRead);
+                        if (obj != null) {
+                            Deadline.checkCurrent();
+                            jsoda.s3dao(modelClass).loadS3Fields(obj);
+                            jsoda.postLoadSteps(obj);
+                        }
+                        return obj;
+                    }
+                }, jsoda.getExecutor());
+        } catch(CircuitOpenException ce) {
+            // Serve the last cached object, even if expired, while the circuit is open.
+            T   stale = consistentRead ? null : (T)jsoda.getObjCacheMgr().cacheGetStale(modelName, id, rangeKey);
+            if (stale == null)
+                throw ce;
+            jsoda.getCircuitBreakerPolicy().staleServed();
+            return stale;
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -214,8 +275,9 @@ public class Dao<T>
                 jsoda.getDb(modelName).delete(modelName, id, rangeKey);
             }
 
+            dualWriteDelete(Collections.singletonList(id), rangeKey == null ? null : Collections.singletonList(rangeKey));
             jsoda.s3dao(modelClass).deleteS3Fields(id, rangeKey);
-            
+
         } catch(Exception e) {
             throw new JsodaException("Failed to delete object " + id + "/" + rangeKey, e);
         }
@@ -237,9 +299,10 @@ public class Dao<T>
             }
             jsoda.getDb(modelName).batchDelete(modelName, idList, null);
 
-            for (Object id : idList) {
-                jsoda.s3dao(modelClass).deleteS3Fields(id, null);
-            }
+            dualWriteDelete(idList, null);     // mirror before the S3 delete, which can fail after the rows are gone.
+            jsoda.s3dao(modelClass).batchDeleteS3Fields(idList, null);
+        } catch(S3DeleteException e) {
+            throw e;
         } catch(Exception e) {
             throw new JsodaException("Failed to batch delete objects", e);
         }
@@ -254,9 +317,10 @@ public class Dao<T>
             }
             jsoda.getDb(modelName).batchDelete(modelName, idList, rangeKeyList);
             
-            for (int i = 0; i < idList.size(); i++) {
-                jsoda.s3dao(modelClass).deleteS3Fields(idList.get(i), rangeKeyList.get(i));
-            }
+            dualWriteDelete(idList, rangeKeyList);     // mirror before the S3 delete, which can fail after the rows are gone.
+            jsoda.s3dao(modelClass).batchDeleteS3Fields(idList, rangeKeyList);
+        } catch(S3DeleteException e) {
+            throw e;
         } catch(Exception e) {
             throw new JsodaException("Failed to batch delete objects", e);
         }
@@ -270,11 +334,53 @@ public class Dao<T>
         if (obj != null)
             return obj;
 
-        List<T> items = jsoda.query(modelClass).eq(field, fieldValue).run();
-        // query.run() has already cached the object.  No need to cache it here.
-        return items.size() == 0 ? null : items.get(0);
+        try {
+            List<T> items = jsoda.query(modelClass).eq(field, fieldValue).deadline(getDeadline()).run();
+            // query.run() has already cached the object.  No need to cache it here.
+            return items.size() == 0 ? null : items.get(0);
+        } catch(CircuitOpenException ce) {
+            // Serve the last cached object, even if expired, while the circuit is open.
+            obj = (T)jsoda.getObjCacheMgr().cacheGetStaleByField(modelName, field, fieldValue);
+            if (obj == null)
+                throw ce;
+            jsoda.getCircuitBreakerPolicy().staleServed();
+            return obj;
+        }
+    }
+
+    /** Mirror the stored objects to the secondary Jsoda of dual-write.  The write at the primary has been done,
+     * so a failure here is logged rather than failing the call.  Migrator.verify() detects the divergence.
+     */
+    private void dualWritePut(List<T> dataObjs) {
+        Jsoda   secondary = jsoda.getDualWrite(modelName);
+        if (secondary == null)
+            return;
+        try {
+            if (dataObjs.size() == 1)
+                secondary.getDb(modelName).putObj(modelClass, dataObjs.get(0), null, null, false);
+            else
+                secondary.getDb(modelName).putObjs(modelClass, dataObjs);
+            for (T dataObj : dataObjs)
+                secondary.getObjCacheMgr().cachePut(modelName, dataObj);
+        } catch(Exception e) {
+            log.error("Failed to dual-write " + dataObjs.size() + " objects of " + modelName, e);
+        }
     }
 
+    private void dualWriteDelete(List idList, List rangeKeyList) {
+        Jsoda   secondary = jsoda.getDualWrite(modelName);
+        if (secondary == null)
+            return;
+        try {
+            for (int i = 0; i < idList.size(); i++)
+                secondary.getObjCacheMgr().cacheDelete(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
+            if (idList.size() == 1)
+                secondary.getDb(modelName).delete(modelName, idList.get(0), rangeKeyList == null ? null : rangeKeyList.get(0));
+            else
+                secondary.getDb(modelName).batchDelete(modelName, idList, rangeKeyList);
+        } catch(Exception e) {
+            log.error("Failed to dual-write delete of " + idList.size() + " objects of " + modelName, e);
+        }
+    }
 
 }
-
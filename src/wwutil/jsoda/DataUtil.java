@@ -20,8 +20,11 @@ import java.io.*;
 import java.util.*;
 import java.math.*;
 import java.lang.reflect.*;
+import java.text.SimpleDateFormat;
 
 import org.apache.commons.beanutils.ConvertUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
 import com.amazonaws.services.simpledb.util.SimpleDBUtils;
 
@@ -36,6 +39,13 @@ class DataUtil
         }
     };
 
+    // Same format as SimpleDBUtils.encodeDate(), which creates a SimpleDateFormat on every call.
+    private static TlsMap.Factory<SimpleDateFormat> sTlsDateFormat = new TlsMap.Factory<SimpleDateFormat>() {
+        public SimpleDateFormat create(Object key) {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        }
+    };
+
 
     static String getFieldValueStr(Object dataObj, Field field)
         throws Exception
@@ -88,7 +98,7 @@ class DataUtil
         } else if (valueType == Character.class || valueType == char.class) {
             return value.toString();
         } else if (valueType == Date.class) {
-            return SimpleDBUtils.encodeDate((Date)value);
+            return encodeDate((Date)value);
         } else if (valueType.isEnum()) {
             return ((Enum)value).name();
         }
@@ -114,23 +124,23 @@ class DataUtil
             return null;
 
         if (valueType == Byte.class || valueType == byte.class) {
-            return new Byte((byte)SimpleDBUtils.decodeZeroPaddingInt(attrStr));
+            return Byte.valueOf((byte)SimpleDBUtils.decodeZeroPaddingInt(attrStr));
         } else if (valueType == Short.class || valueType == short.class) {
-            return new Short((short)SimpleDBUtils.decodeZeroPaddingInt(attrStr));
+            return Short.valueOf((short)SimpleDBUtils.decodeZeroPaddingInt(attrStr));
         } else if (valueType == Integer.class || valueType == int.class) {
-            return new Integer(SimpleDBUtils.decodeZeroPaddingInt(attrStr));
+            return Integer.valueOf(SimpleDBUtils.decodeZeroPaddingInt(attrStr));
         } else if (valueType == Long.class || valueType == long.class) {
-            return new Long(SimpleDBUtils.decodeZeroPaddingLong(attrStr));
+            return Long.valueOf(SimpleDBUtils.decodeZeroPaddingLong(attrStr));
         } else if (valueType == Float.class || valueType == float.class) {
-            return new Float(SimpleDBUtils.decodeZeroPaddingFloat(attrStr));
+            return Float.valueOf(SimpleDBUtils.decodeZeroPaddingFloat(attrStr));
         } else if (valueType == Double.class || valueType == double.class) {
-            return new Double(attrStr);
+            return Double.valueOf(attrStr);
         } else if (valueType == Boolean.class || valueType == boolean.class) {
-            return new Boolean(attrStr);
+            return Boolean.valueOf(attrStr);
         } else if (valueType == Character.class || valueType == char.class) {
             return attrStr.charAt(0);
         } else if (valueType == Date.class) {
-            return SimpleDBUtils.decodeDate(attrStr);
+            return decodeDate(attrStr);
         } else if (valueType.isEnum()) {
             return Enum.valueOf(valueType, attrStr);
         }
@@ -175,6 +185,20 @@ class DataUtil
         return false;
     }
 
+    /** Encode the date as SimpleDBUtils.encodeDate() does, e.g. 2012-10-12T08:00:00.000-07:00, with a per-thread formatter. */
+    static String encodeDate(Date date) {
+        StringBuilder   sb = new StringBuilder(29).append(TlsMap.get("jsoda_df", sTlsDateFormat).format(date));
+        return sb.insert(sb.length() - 2, ':').toString();
+    }
+
+    /** Decode the date as SimpleDBUtils.decodeDate() does. */
+    static Date decodeDate(String attrStr)
+        throws java.text.ParseException
+    {
+        StringBuilder   sb = new StringBuilder(attrStr).deleteCharAt(attrStr.length() - 3);
+        return TlsMap.get("jsoda_df", sTlsDateFormat).parse(sb.toString());
+    }
+
 
     @SuppressWarnings("unchecked")
     public static String toJson(Object value) {
@@ -192,6 +216,24 @@ class DataUtil
         return (T)TlsMap.get("jsoda_om", sTlsObjectMapper).readValue(jsonStr, objType);
     }
 
+    /** Write the value as JSON to the output stream.  The output stream is flushed but not closed. */
+    public static void toJson(OutputStream os, Object value)
+        throws IOException
+    {
+        ObjectMapper    om = TlsMap.get("jsoda_om", sTlsObjectMapper);
+        JsonGenerator   gen = om.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        om.writeValue(gen, value);
+        gen.close();
+    }
+
+    /** Read the value from the JSON content of the input stream. */
+    public static <T> T fromJson(InputStream is, Class<T> objType)
+        throws IOException
+    {
+        return TlsMap.get("jsoda_om", sTlsObjectMapper).readValue(is, objType);
+    }
+
 
     /** Convert Set<paramType> to Set<String> */
     static Set<String> toStringSet(Set valueSet, Class paramType) {
@@ -32,12 +32,14 @@ interface DbService {
 
     public <T> void putObj(Class<T> modelClass, T dataObj, String expectedField, Object expectedValue, boolean expectedExists) throws Exception;
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs) throws Exception;
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey) throws Exception;
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead) throws Exception;
     public void delete(String modelName, Object id, Object rangeKey) throws Exception;
     public void batchDelete(String modelName, List idList, List rangeKeyList) throws Exception;
     public <T> long queryCount(Class<T> modelClass, Query<T> query) throws JsodaException;
-    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun) throws JsodaException;
+    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun, QueryPage page) throws JsodaException;
     public <T> boolean queryHasNext(Query<T> query);
+    public <T> String explainQuery(Query<T> query);
+    public <T> List<T> scanPartition(Class<T> modelClass, ScanPartition partition) throws JsodaException;
     public String getFieldAttrName(String modelName, String fieldName);
 
     public void validateFilterOperator(String operator);
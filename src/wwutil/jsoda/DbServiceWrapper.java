@@ -0,0 +1,349 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.reflect.Field;
+
+import wwutil.model.annotation.DbType;
+
+
+/**
+ * Decorator of a DbService, running the data operations through invoke() to apply the circuit breaker,
+ * operation deadline, and retry policy of the Jsoda object, and hedging the single object reads with
+ * its hedge policy.  The calls are recorded in the metrics.  Each attempt of a call goes through the interceptors
+ * of the Jsoda object.  The keys of the single object reads and writes are sampled by the HotKeySampler of the metrics.
+ * The table admin calls are run through the retry policy only, and the metadata methods are passed through.
+ */
+class DbServiceWrapper implements DbService
+{
+    static final String OP_PUT = "put";
+    static final String OP_PUT_IF = "putIf";
+    static final String OP_BATCH_PUT = "batchPut";
+    static final String OP_GET = "get";
+    static final String OP_DELETE = "delete";
+    static final String OP_BATCH_DELETE = "batchDelete";
+    static final String OP_QUERY_COUNT = "queryCount";
+    static final String OP_QUERY = "query";
+    static final String OP_SCAN = "scan";
+    static final Set<String> OPS = new LinkedHashSet<String>(Arrays.asList(
+        OP_PUT, OP_PUT_IF, OP_BATCH_PUT, OP_GET, OP_DELETE, OP_BATCH_DELETE, OP_QUERY_COUNT, OP_QUERY, OP_SCAN));
+    static final String OP_CREATE_TABLE = "createTable";
+    static final String OP_DELETE_TABLE = "deleteTable";
+    static final String OP_LIST_TABLES = "listTables";
+
+    private Jsoda       jsoda;
+    private DbService   service;
+
+
+    DbServiceWrapper(Jsoda jsoda, DbService service) {
+        this.jsoda = jsoda;
+        this.service = service;
+    }
+
+    /** Return the underlying DbService. */
+    DbService getService() {
+        return service;
+    }
+
+    /** Run an operation on the model through the circuit breaker, and the retry policy within the operation's deadline.
+     * The call is recorded in the metrics.
+     */
+    <R> R invoke(String op, String modelName, boolean idempotent, Callable<R> call)
+        throws Exception
+    {
+        long    start = System.nanoTime();
+        boolean error = true;
+        try {
+            R   result = withBreaker(op, modelName, idempotent, call);
+            error = false;
+            return result;
+        } finally {
+            jsoda.getMetrics().record(modelName, op, start, error);
+        }
+    }
+
+    private <R> R withBreaker(String op, String modelName, boolean idempotent, Callable<R> call)
+        throws Exception
+    {
+        CircuitBreakerPolicy    policy = jsoda.getCircuitBreakerPolicy();
+        if (policy == null)
+            return withDeadline(op, modelName, idempotent, call);
+
+        CircuitBreaker  breaker = policy.getBreaker(service.getDbTypeId(), modelName);
+        if (!breaker.allowRequest()) {
+            policy.rejected();
+            throw new CircuitOpenException("Circuit " + breaker.getName() + " is open.  " + op + " is rejected.");
+        }
+        long    start = System.currentTimeMillis();
+        try {
+            R   result = withDeadline(op, modelName, idempotent, call);
+            breaker.onResult(false, System.currentTimeMillis() - start);
+            return result;
+        } catch(Exception e) {
+            breaker.onResult(CircuitBreakerPolicy.isFailure(e), System.currentTimeMillis() - start);
+            throw e;
+        }
+    }
+
+    /** Run the operation through the retry policy, within the operation's deadline and the deadline of the enclosing call. */
+    private <R> R withDeadline(final String op, String modelName, final boolean idempotent, final Callable<R> call)
+        throws Exception
+    {
+        return Deadline.call(op + " on " + modelName, jsoda.getOperationDeadline(op), new Callable<R>() {
+                public R call() throws Exception {
+                    return jsoda.getRetryPolicy().execute(op, idempotent, call);
+                }
+            }, jsoda.getExecutor());
+    }
+
+    /** Wrap the call of an attempt to run through the interceptors. */
+    private <R> Callable<R> intercepted(final String op, final String modelName, final int items, final Callable<R> call) {
+        final List<Interceptor> interceptors = jsoda.getInterceptorList();
+        if (interceptors.isEmpty())
+            return call;
+        return new Callable<R>() {
+            public R call() throws Exception {
+                return Invocation.invoke(interceptors, service.getDbType().toString(), modelName, op,
+                                         jsoda.getModelTable(modelName), items, call);
+            }
+        };
+    }
+
+    /** Sample the access of an object by its keys into the hot key sampler, if any. */
+    private void sampleKey(String modelName, boolean write, Object id, Object rangeKey) {
+        HotKeySampler   sampler = jsoda.getMetrics().getHotKeySampler();
+        if (sampler == null || id == null || !sampler.sample())
+            return;
+        String  hashKey = DataUtil.encodeValueToAttrStr(id, jsoda.getIdField(modelName).getType());
+        Field   rangeField = jsoda.getRangeField(modelName);
+        String  pkKey = rangeField == null ? hashKey : hashKey + "/" + DataUtil.encodeValueToAttrStr(rangeKey, rangeField.getType());
+        sampler.add(modelName, write, pkKey, hashKey);
+    }
+
+    private void sampleObj(String modelName, Object dataObj)
+        throws Exception
+    {
+        if (jsoda.getMetrics().getHotKeySampler() == null)
+            return;
+        Field   rangeField = jsoda.getRangeField(modelName);
+        sampleKey(modelName, true, jsoda.getIdField(modelName).get(dataObj), rangeField == null ? null : rangeField.get(dataObj));
+    }
+
+    /** Run a table admin call through the retry policy, as the AWS clients' own retrying is turned off.
+     * Creating and deleting a table are not idempotent and are retried on throttling only.
+     */
+    private <R> R invokeAdmin(String op, boolean idempotent, Callable<R> call) {
+        try {
+            return jsoda.getRetryPolicy().execute(op, idempotent, call);
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new IllegalStateException(op + " failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
+    /** Run a query operation, which fails with JsodaException only. */
+    private <R> R invokeQuery(String op, String modelName, Callable<R> call)
+        throws JsodaException
+    {
+        try {
+            return invoke(op, modelName, true, call);
+        } catch(JsodaException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new JsodaException(op + " failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
+
+    public DbType getDbType() {
+        return service.getDbType();
+    }
+
+    public String getDbTypeId() {
+        return service.getDbTypeId();
+    }
+
+    public void setDbEndpoint(String endpoint) {
+        service.setDbEndpoint(endpoint);
+    }
+
+    public String getDbEndpoint() {
+        return service.getDbEndpoint();
+    }
+
+    public void createModelTable(final String modelName) {
+        invokeAdmin(OP_CREATE_TABLE, false, new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.createModelTable(modelName);
+                    return null;
+                }
+            });
+    }
+
+    public void deleteTable(final String tableName) {
+        invokeAdmin(OP_DELETE_TABLE, false, new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.deleteTable(tableName);
+                    return null;
+                }
+            });
+    }
+
+    public List<String> listTables() {
+        return invokeAdmin(OP_LIST_TABLES, true, new Callable<List<String>>() {
+                public List<String> call() throws Exception {
+                    return service.listTables();
+                }
+            });
+    }
+
+    /** A plain put is idempotent.  A conditional put is not, as a retry after it was done fails the condition. */
+    public <T> void putObj(final Class<T> modelClass, final T dataObj, final String expectedField, final Object expectedValue, final boolean expectedExists)
+        throws Exception
+    {
+        String  modelName = Jsoda.getModelName(modelClass);
+        String  op = expectedField == null ? OP_PUT : OP_PUT_IF;
+        sampleObj(modelName, dataObj);
+        invoke(op, modelName, expectedField == null, intercepted(op, modelName, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.putObj(modelClass, dataObj, expectedField, expectedValue, expectedExists);
+                    return null;
+                }
+            }));
+        jsoda.getMetrics().addItems(modelName, op, 1);
+    }
+
+    public <T> void putObjs(final Class<T> modelClass, final List<T> dataObjs)
+        throws Exception
+    {
+        String  modelName = Jsoda.getModelName(modelClass);
+        for (T dataObj : dataObjs)
+            sampleObj(modelName, dataObj);
+        invoke(OP_BATCH_PUT, modelName, true, intercepted(OP_BATCH_PUT, modelName, dataObjs.size(), new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.putObjs(modelClass, dataObjs);
+                    return null;
+                }
+            }));
+        jsoda.getMetrics().addItems(modelName, OP_BATCH_PUT, dataObjs.size());
+    }
+
+    /** The read is hedged when the Jsoda object has a hedge policy.  Each hedged attempt is retried as a whole. */
+    public <T> T getObj(final Class<T> modelClass, final Object id, final Object rangeKey, final boolean consistentRead)
+        throws Exception
+    {
+        final String        modelName = Jsoda.getModelName(modelClass);
+        sampleKey(modelName, false, id, rangeKey);
+        final Callable<T>   read = intercepted(OP_GET, modelName, 1, new Callable<T>() {
+                public T call() throws Exception {
+                    return service.getObj(modelClass, id, rangeKey, consistentRead);
+                }
+            });
+        T   obj = invoke(OP_GET, modelName, true, new Callable<T>() {
+                public T call() throws Exception {
+                    HedgePolicy hedgePolicy = jsoda.getHedgePolicy();
+                    return hedgePolicy == null ? read.call() : hedgePolicy.execute(modelName, read, jsoda.getExecutor());
+                }
+            });
+        if (obj != null)
+            jsoda.getMetrics().addItems(modelName, OP_GET, 1);
+        return obj;
+    }
+
+    public void delete(final String modelName, final Object id, final Object rangeKey)
+        throws Exception
+    {
+        sampleKey(modelName, true, id, rangeKey);
+        invoke(OP_DELETE, modelName, true, intercepted(OP_DELETE, modelName, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.delete(modelName, id, rangeKey);
+                    return null;
+                }
+            }));
+        jsoda.getMetrics().addItems(modelName, OP_DELETE, 1);
+    }
+
+    public void batchDelete(final String modelName, final List idList, final List rangeKeyList)
+        throws Exception
+    {
+        for (int i = 0; i < idList.size(); i++)
+            sampleKey(modelName, true, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
+        invoke(OP_BATCH_DELETE, modelName, true, intercepted(OP_BATCH_DELETE, modelName, idList.size(), new Callable<Object>() {
+                public Object call() throws Exception {
+                    service.batchDelete(modelName, idList, rangeKeyList);
+                    return null;
+                }
+            }));
+        jsoda.getMetrics().addItems(modelName, OP_BATCH_DELETE, idList.size());
+    }
+
+    public <T> long queryCount(final Class<T> modelClass, final Query<T> query)
+        throws JsodaException
+    {
+        return invokeQuery(OP_QUERY_COUNT, query.modelName, intercepted(OP_QUERY_COUNT, query.modelName, 0, new Callable<Long>() {
+                public Long call() throws Exception {
+                    return service.queryCount(modelClass, query);
+                }
+            }));
+    }
+
+    /** The query is not advanced by a run, so a retry fetches the same page. */
+    public <T> List<T> queryRun(final Class<T> modelClass, final Query<T> query, final boolean continueFromLastRun, final QueryPage page)
+        throws JsodaException
+    {
+        List<T> items = invokeQuery(OP_QUERY, query.modelName, intercepted(OP_QUERY, query.modelName, 0, new Callable<List<T>>() {
+                public List<T> call() throws Exception {
+                    return service.queryRun(modelClass, query, continueFromLastRun, page);
+                }
+            }));
+        jsoda.getMetrics().addItems(query.modelName, OP_QUERY, items.size());
+        return items;
+    }
+
+    public <T> boolean queryHasNext(Query<T> query) {
+        return service.queryHasNext(query);
+    }
+
+    public <T> String explainQuery(Query<T> query) {
+        return service.explainQuery(query);
+    }
+
+    public <T> List<T> scanPartition(final Class<T> modelClass, final ScanPartition partition)
+        throws JsodaException
+    {
+        String  modelName = Jsoda.getModelName(modelClass);
+        List<T> items = invokeQuery(OP_SCAN, modelName, intercepted(OP_SCAN, modelName, 0, new Callable<List<T>>() {
+                public List<T> call() throws Exception {
+                    return service.scanPartition(modelClass, partition);
+                }
+            }));
+        jsoda.getMetrics().addItems(modelName, OP_SCAN, items.size());
+        return items;
+    }
+
+    public String getFieldAttrName(String modelName, String fieldName) {
+        return service.getFieldAttrName(modelName, fieldName);
+    }
+
+    public void validateFilterOperator(String operator) {
+        service.validateFilterOperator(operator);
+    }
+
+}
@@ -0,0 +1,109 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.concurrent.*;
+
+
+/**
+ * Deadline of a call, carried on the thread running the call through its paging, retries, and S3 field loads.
+ * A call with a deadline runs on the executor and the caller waits up to the deadline.  Once passed, the call
+ * is cancelled by interrupting its thread and JsodaTimeoutException is thrown.  The priority override of
+ * ThroughputLimiter.setThreadBackground() is carried over to the executor thread.  The steps of the call check
+ * the deadline to stop early.  A nested call with a later deadline runs within the enclosing deadline.
+ */
+class Deadline
+{
+    private static final ThreadLocal<Deadline>  current = new ThreadLocal<Deadline>();
+
+    private final String    name;
+    private final long      deadlineMs;
+    private final long      expireAt;
+
+
+    private Deadline(String name, long deadlineMs, long expireAt) {
+        this.name = name;
+        this.deadlineMs = deadlineMs;
+        this.expireAt = expireAt;
+    }
+
+    /** Return the deadline of the call running on the current thread, or null. */
+    static Deadline current() {
+        return current.get();
+    }
+
+    /** Throw JsodaTimeoutException if the deadline of the current thread has passed. */
+    static void checkCurrent()
+        throws JsodaTimeoutException
+    {
+        Deadline    deadline = current.get();
+        if (deadline != null)
+            deadline.check();
+    }
+
+    long remainingMs() {
+        return expireAt - System.currentTimeMillis();
+    }
+
+    void check()
+        throws JsodaTimeoutException
+    {
+        if (remainingMs() <= 0)
+            throw timeout(null);
+    }
+
+    JsodaTimeoutException timeout(Throwable cause) {
+        return new JsodaTimeoutException(name + " did not complete within its deadline of " + deadlineMs + "ms", cause);
+    }
+
+    /** Run the call within the deadline.  0 or less for no deadline of its own. */
+    static <R> R call(String name, long deadlineMs, final Callable<R> call, ExecutorService executor)
+        throws Exception
+    {
+        Deadline    enclosing = current.get();
+        long        expireAt = System.currentTimeMillis() + deadlineMs;
+        if (deadlineMs <= 0 || (enclosing != null && enclosing.expireAt <= expireAt)) {
+            if (enclosing != null)
+                enclosing.check();
+            return call.call();
+        }
+
+        final Deadline  deadline = new Deadline(name, deadlineMs, expireAt);
+        Future<R>       future = executor.submit(ThroughputLimiter.withThreadBackground(new Callable<R>() {
+                public R call() throws Exception {
+                    current.set(deadline);
+                    try {
+                        return call.call();
+                    } finally {
+                        current.remove();
+                    }
+                }
+            }));
+        try {
+            return future.get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            future.cancel(true);
+            throw deadline.timeout(e);
+        } catch(InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch(ExecutionException e) {
+            throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+        }
+    }
+
+}
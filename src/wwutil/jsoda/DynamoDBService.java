@@ -19,13 +19,16 @@ package wwutil.jsoda;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
+import java.math.BigDecimal;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.commons.beanutils.ConvertUtils;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
@@ -37,11 +40,19 @@ import com.amazonaws.services.dynamodb.model.KeySchemaElement;
 import com.amazonaws.services.dynamodb.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodb.model.Key;
 import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.PutRequest;
+import com.amazonaws.services.dynamodb.model.WriteRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemResult;
 import com.amazonaws.services.dynamodb.model.AttributeValue;
 import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodb.model.GetItemRequest;
 import com.amazonaws.services.dynamodb.model.GetItemResult;
 import com.amazonaws.services.dynamodb.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodb.model.DeleteItemResult;
+import com.amazonaws.services.dynamodb.model.BatchWriteResponse;
+import com.amazonaws.services.dynamodb.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodb.model.ComparisonOperator;
 import com.amazonaws.services.dynamodb.model.QueryRequest;
 import com.amazonaws.services.dynamodb.model.QueryResult;
@@ -57,6 +68,7 @@ import wwutil.model.annotation.CachePolicy;
 import wwutil.model.annotation.DefaultGUID;
 import wwutil.model.annotation.DefaultComposite;
 import wwutil.model.annotation.CacheByField;
+import wwutil.model.annotation.ShardedKey;
 
 
 /**
@@ -66,6 +78,9 @@ class DynamoDBService implements DbService
 {
     private static Log  log = LogFactory.getLog(DynamoDBService.class);
 
+    static final int    MAX_BATCH_WRITE = 25;           // DynamoDB BatchWriteItem limit per request.
+    static final int    MAX_UNPROCESSED_RETRIES = 8;
+
     
     static final Map<String, ComparisonOperator>    sOperatorMap = new HashMap<String, ComparisonOperator>(){{
             put(Filter.NULL,        ComparisonOperator.NULL);
@@ -92,13 +107,18 @@ class DynamoDBService implements DbService
     // AWS Access Key ID and Secret Access Key
     public DynamoDBService(Jsoda jsoda, AWSCredentials cred) {
         this.jsoda = jsoda;
-        this.ddbClient = new AmazonDynamoDBClient(cred);
+        this.ddbClient = new AmazonDynamoDBClient(cred, new ClientConfiguration().withMaxErrorRetry(0));   // retried by Jsoda's RetryPolicy
     }
 
     public void shutdown() {
         ddbClient.shutdown();
     }
 
+    /** Replace the DynamoDB client, e.g. with an in-process stand-in for testing. */
+    void setClient(AmazonDynamoDBClient ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
     public DbType getDbType() {
         return DbType.DynamoDB;
     }
@@ -126,8 +146,8 @@ class DynamoDBService implements DbService
         String      idName = getFieldAttrName(modelName, idField.getName());
         Field       rangeField = jsoda.getRangeField(modelName);
         KeySchema   key = new KeySchema();
-        Long        readTP  = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "readThroughput", Long.class, new Long(10));
-        Long        writeTP = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "writeThroughput", Long.class, new Long(5));
+        Long        readTP  = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "readThroughput", Long.class, Long.valueOf(10));
+        Long        writeTP = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "writeThroughput", Long.class, Long.valueOf(5));
 
         key.setHashKeyElement(makeKeySchemaElement(idField));
         if (rangeField != null)
@@ -170,46 +190,174 @@ class DynamoDBService implements DbService
         if (expectedField != null)
             req.setExpected(makeExpectedMap(modelName, expectedField, expectedValue, expectedExists));
 
-        ddbClient.putItem(req);
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireWrite(1, false);
+        try {
+            PutItemResult   result = ddbClient.putItem(req);
+            String          op = expectedField == null ? DbServiceWrapper.OP_PUT : DbServiceWrapper.OP_PUT_IF;
+            limiter.consumedWrite(1, result.getConsumedCapacityUnits());
+            addCapacity(modelName, op, result.getConsumedCapacityUnits());
+            addItemBytes(modelName, op, req.getItem());
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledWrite();
+            throw e;
+        }
     }
 
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs)
         throws Exception
     {
-        // Dynamodb has no batch put support.  Emulate it.
-        for (T obj : dataObjs)
-            putObj(modelClass, obj, null, null, false);
+        String  modelName = Jsoda.getModelName(modelClass);
+        String  table = jsoda.getModelTable(modelName);
+
+        // BatchWriteItem rejects a batch with duplicate keys.  The last one wins, as with individual puts.
+        Map<String, T>  uniqueObjs = new LinkedHashMap<String, T>();
+        for (T obj : dataObjs) {
+            String  pkKey = jsoda.makePkKey(modelName, obj);
+            uniqueObjs.remove(pkKey);
+            uniqueObjs.put(pkKey, obj);
+        }
+
+        List<WriteRequest>  writes = new ArrayList<WriteRequest>();
+        for (T obj : uniqueObjs.values()) {
+            writes.add(new WriteRequest().withPutRequest(new PutRequest().withItem(objToAttrs(obj, modelName))));
+            if (writes.size() == MAX_BATCH_WRITE) {
+                batchWrite(modelName, table, writes);
+                writes = new ArrayList<WriteRequest>();
+            }
+        }
+        if (writes.size() > 0)
+            batchWrite(modelName, table, writes);
     }
 
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey)
+    /** Write the batch with BatchWriteItem, resubmitting the unprocessed items with backoff when the table is over its throughput. */
+    private void batchWrite(String modelName, String table, List<WriteRequest> writes)
+        throws Exception
+    {
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+        requestItems.put(table, writes);
+
+        for (int attempt = 0; ; attempt++) {
+            int                     units = requestItems.get(table).size();
+            BatchWriteItemResult    result;
+            limiter.acquireWrite(units, true);
+            try {
+                result = ddbClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems));
+            } catch(ProvisionedThroughputExceededException e) {
+                limiter.throttledWrite();
+                throw e;
+            }
+            BatchWriteResponse  response = result.getResponses() == null ? null : result.getResponses().get(table);
+            limiter.consumedWrite(units, response == null ? null : response.getConsumedCapacityUnits());
+            addCapacity(modelName, DbServiceWrapper.OP_BATCH_PUT, response == null ? null : response.getConsumedCapacityUnits());
+
+            Map<String, List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+            if (unprocessed == null || unprocessed.size() == 0 || unprocessed.get(table) == null || unprocessed.get(table).size() == 0) {
+                for (WriteRequest write : writes)
+                    addItemBytes(modelName, DbServiceWrapper.OP_BATCH_PUT, write.getPutRequest().getItem());
+                return;
+            }
+            limiter.throttledWrite();
+            if (attempt >= MAX_UNPROCESSED_RETRIES)
+                throw new JsodaException(unprocessed.get(table).size() + " items of the batch put on " + table + " remain unprocessed after retries.");
+            Thread.sleep(50L << attempt);
+            requestItems = unprocessed;
+        }
+    }
+
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead)
         throws Exception
     {
         String          modelName = jsoda.getModelName(modelClass);
         String          table = jsoda.getModelTable(modelName);
-        GetItemRequest  req = new GetItemRequest(table, makeKey(modelName, id, rangeKey));
-        GetItemResult   result = ddbClient.getItem(req);
+        GetItemRequest  req = new GetItemRequest(table, makeKey(modelName, id, rangeKey)).withConsistentRead(consistentRead);
+        GetItemResult   result;
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireRead(1, false);
+        try {
+            result = ddbClient.getItem(req);
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledRead();
+            throw e;
+        }
+        limiter.consumedRead(1, result.getConsumedCapacityUnits());
+        addCapacity(modelName, DbServiceWrapper.OP_GET, result.getConsumedCapacityUnits());
 
         if (result.getItem() == null || result.getItem().size() == 0)
             return null;        // not existed.
 
+        addItemBytes(modelName, DbServiceWrapper.OP_GET, result.getItem());
         return itemToObj(modelClass, result.getItem());
     }
 
     public void delete(String modelName, Object id, Object rangeKey)
         throws Exception
     {
-        String  table = jsoda.getModelTable(modelName);
-        ddbClient.deleteItem(new DeleteItemRequest(table, makeKey(modelName, id, rangeKey)));
+        deleteItem(modelName, id, rangeKey, false);
     }
 
     public void batchDelete(String modelName, List idList, List rangeKeyList)
         throws Exception
     {
         for (int i = 0; i < idList.size(); i++) {
-            delete(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
+            deleteItem(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i), true);
         }
     }
 
+    private void deleteItem(String modelName, Object id, Object rangeKey, boolean background)
+        throws Exception
+    {
+        String              table = jsoda.getModelTable(modelName);
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireWrite(1, background);
+        try {
+            DeleteItemResult    result = ddbClient.deleteItem(new DeleteItemRequest(table, makeKey(modelName, id, rangeKey)));
+            limiter.consumedWrite(1, result.getConsumedCapacityUnits());
+            addCapacity(modelName, background ? DbServiceWrapper.OP_BATCH_DELETE : DbServiceWrapper.OP_DELETE, result.getConsumedCapacityUnits());
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledWrite();
+            throw e;
+        }
+    }
+
+    /** Add the consumed capacity reported by DynamoDB to the metrics. */
+    private void addCapacity(String modelName, String op, Double units) {
+        if (units != null)
+            jsoda.getMetrics().addCapacity(modelName, op, units.doubleValue());
+    }
+
+    /** Add the consumed capacity to the metrics and to the query, counting even the pages abandoned on a timeout. */
+    private void addQueryCapacity(Query query, String op, Double units) {
+        if (units != null) {
+            jsoda.getMetrics().addCapacity(query.modelName, op, units.doubleValue());
+            query.addConsumedCapacity(units.doubleValue());
+        }
+    }
+
+    /** Add the approximate size of the item to the metrics, as the length of its attribute names and values. */
+    private void addItemBytes(String modelName, String op, Map<String, AttributeValue> item) {
+        Metrics metrics = jsoda.getMetrics();
+        if (!metrics.isEnabled())
+            return;
+        long    bytes = 0;
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            AttributeValue  value = entry.getValue();
+            bytes += entry.getKey().length();
+            bytes += value.getS() != null ? value.getS().length() : 0;
+            bytes += value.getN() != null ? value.getN().length() : 0;
+            bytes += value.getB() != null ? value.getB().remaining() : 0;
+            if (value.getSS() != null)
+                for (String str : value.getSS())
+                    bytes += str.length();
+            if (value.getNS() != null)
+                for (String str : value.getNS())
+                    bytes += str.length();
+        }
+        metrics.addBytes(modelName, op, bytes);
+    }
+
     public void validateFilterOperator(String operator) {
         if (sOperatorMap.get(operator) == null)
             throw new UnsupportedOperationException("Unsupported operator: " + operator);
@@ -237,49 +385,77 @@ class DynamoDBService implements DbService
         QueryRequest    queryReq = new QueryRequest();
         ScanRequest     scanReq = new ScanRequest();
 
+        if (isShardedQuery(query))
+            return shardedQueryCount(query);
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
         try {
+            limiter.acquireRead(1, true);
             if (toRequest(query, queryReq, scanReq)) {
-                return ddbClient.query(queryReq).getCount().intValue();
+                QueryResult result = ddbClient.query(queryReq);
+                limiter.consumedRead(1, result.getConsumedCapacityUnits());
+                addQueryCapacity(query, DbServiceWrapper.OP_QUERY_COUNT, result.getConsumedCapacityUnits());
+                return result.getCount().intValue();
             } else {
-                return ddbClient.scan(scanReq).getCount().intValue();
+                ScanResult  result = ddbClient.scan(scanReq);
+                limiter.consumedRead(1, result.getConsumedCapacityUnits());
+                addQueryCapacity(query, DbServiceWrapper.OP_QUERY_COUNT, result.getConsumedCapacityUnits());
+                return result.getCount().intValue();
             }
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledRead();
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
         } catch(Exception e) {
             throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
         }
     }
 
     @SuppressWarnings("unchecked")
-    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun)
+    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun, QueryPage page)
         throws JsodaException
     {
         List<T>         resultObjs = new ArrayList<T>();
 
         if (continueFromLastRun && !queryHasNext(query))
             return resultObjs;
+        if (isShardedQuery(query))
+            return shardedQueryRun(modelClass, query, continueFromLastRun, page);
 
         QueryRequest    queryReq = new QueryRequest();
         ScanRequest     scanReq = new ScanRequest();
         List<Map<String,AttributeValue>>    items;
+        ThroughputLimiter                   limiter = jsoda.getLimiter(query.modelName);
 
         try {
+            limiter.acquireRead(1, true);
             if (toRequest(query, queryReq, scanReq)) {
                 if (continueFromLastRun)
                     queryReq.setExclusiveStartKey((Key)query.nextKey);
                 QueryResult result = ddbClient.query(queryReq);
-                query.nextKey = result.getLastEvaluatedKey();
+                limiter.consumedRead(1, result.getConsumedCapacityUnits());
+                addQueryCapacity(query, DbServiceWrapper.OP_QUERY, result.getConsumedCapacityUnits());
+                page.nextKey = result.getLastEvaluatedKey();
+                page.itemsScanned = result.getCount();
                 items = result.getItems();
             } else {
                 if (continueFromLastRun)
-                    queryReq.setExclusiveStartKey((Key)query.nextKey);
+                    scanReq.setExclusiveStartKey((Key)query.nextKey);
                 ScanResult  result = ddbClient.scan(scanReq);
-                query.nextKey = result.getLastEvaluatedKey();
+                limiter.consumedRead(1, result.getConsumedCapacityUnits());
+                addQueryCapacity(query, DbServiceWrapper.OP_QUERY, result.getConsumedCapacityUnits());
+                page.nextKey = result.getLastEvaluatedKey();
+                page.itemsScanned = result.getScannedCount();
                 items = result.getItems();
             }
             for (Map<String, AttributeValue> item : items) {
                 T   obj = itemToObj(modelClass, item);
                 resultObjs.add(obj);
+                addItemBytes(query.modelName, DbServiceWrapper.OP_QUERY, item);
             }
             return resultObjs;
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledRead();
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
         } catch(Exception e) {
             throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
         }
@@ -289,6 +465,178 @@ class DynamoDBService implements DbService
         return query.nextKey != null;
     }
 
+    /** Whether the query is on a @ShardedKey model with an EQ condition on the hash key, to run on all the shards. */
+    private <T> boolean isShardedQuery(Query<T> query) {
+        if (jsoda.getKeyShards(query.modelName) <= 1)
+            return false;
+        for (Filter filter : query.filters) {
+            if (jsoda.isIdField(query.modelName, filter.fieldName) && filter.operator.equals(Filter.EQ))
+                return true;
+        }
+        return false;
+    }
+
+    /** Build the query request of a shard, starting after the start key. */
+    private <T> QueryRequest toShardRequest(Query<T> query, int shard, Key startKey) {
+        QueryRequest    queryReq = new QueryRequest();
+        toRequest(query, queryReq, new ScanRequest());
+        queryReq.setHashKeyValue(new AttributeValue().withS(queryReq.getHashKeyValue().getS() + ShardedKey.SEPARATOR + shard));
+        queryReq.setExclusiveStartKey(startKey);
+        return queryReq;
+    }
+
+    /** Run the query requests of the shards in parallel.  Fails if any of them fails. */
+    private <T> Map<Integer, QueryResult> queryShards(final Query<T> query, final String op, Map<Integer, QueryRequest> requests)
+        throws Exception
+    {
+        final ThroughputLimiter             limiter = jsoda.getLimiter(query.modelName);
+        Map<Integer, Future<QueryResult>>   futures = new LinkedHashMap<Integer, Future<QueryResult>>();
+        for (Map.Entry<Integer, QueryRequest> entry : requests.entrySet()) {
+            final QueryRequest  queryReq = entry.getValue();
+            futures.put(entry.getKey(), jsoda.getExecutor().submit(ThroughputLimiter.withThreadBackground(new Callable<QueryResult>() {
+                    public QueryResult call() throws Exception {
+                        limiter.acquireRead(1, true);
+                        try {
+                            QueryResult result = ddbClient.query(queryReq);
+                            limiter.consumedRead(1, result.getConsumedCapacityUnits());
+                            addQueryCapacity(query, op, result.getConsumedCapacityUnits());
+                            return result;
+                        } catch(ProvisionedThroughputExceededException e) {
+                            limiter.throttledRead();
+                            throw e;
+                        }
+                    }
+                })));
+        }
+
+        Map<Integer, QueryResult>   results = new HashMap<Integer, QueryResult>();
+        try {
+            for (Map.Entry<Integer, Future<QueryResult>> entry : futures.entrySet())
+                results.put(entry.getKey(), entry.getValue().get());
+            return results;
+        } catch(ExecutionException e) {
+            throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+        } finally {
+            for (Future<QueryResult> future : futures.values())
+                future.cancel(true);
+        }
+    }
+
+    private <T> long shardedQueryCount(Query<T> query)
+        throws JsodaException
+    {
+        Map<Integer, QueryRequest>  requests = new LinkedHashMap<Integer, QueryRequest>();
+        for (int shard = 0; shard < jsoda.getKeyShards(query.modelName); shard++)
+            requests.put(shard, toShardRequest(query, shard, null));
+        try {
+            long    count = 0;
+            for (QueryResult result : queryShards(query, DbServiceWrapper.OP_QUERY_COUNT, requests).values())
+                count += result.getCount().intValue();
+            return count;
+        } catch(Exception e) {
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
+    /** Run the query on the shards and merge their items in the range key order.  The pages of the shards are
+     * buffered in a ShardCursor kept as the query's nextKey.  A run returns up to the query's limit of items, stopping
+     * early when the buffer of a shard with more pages runs out.  A run advances a copy of the query's cursor, returned
+     * in the page, so a retry or a run abandoned by its deadline leaves the query's cursor as it was.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> shardedQueryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun, QueryPage page)
+        throws JsodaException
+    {
+        ShardCursor<Map<String, AttributeValue>>    cursor = continueFromLastRun ?
+            ((ShardCursor<Map<String, AttributeValue>>)query.nextKey).copy() :
+            new ShardCursor<Map<String, AttributeValue>>(jsoda.getKeyShards(query.modelName), toRangeKeyOrder(query));
+        List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>();
+        long                                itemsScanned = 0;
+
+        try {
+            while (items.isEmpty() && cursor.hasMore()) {
+                Map<Integer, QueryRequest>  requests = new LinkedHashMap<Integer, QueryRequest>();
+                for (int shard = 0; shard < cursor.shards; shard++) {
+                    if (cursor.needsFetch(shard))
+                        requests.put(shard, toShardRequest(query, shard, (Key)cursor.nextKeys[shard]));
+                }
+                Map<Integer, QueryResult>   results = queryShards(query, DbServiceWrapper.OP_QUERY, requests);
+                for (Map.Entry<Integer, QueryResult> entry : results.entrySet()) {
+                    cursor.add(entry.getKey(), entry.getValue().getItems(), entry.getValue().getLastEvaluatedKey());
+                    itemsScanned += entry.getValue().getCount();
+                }
+                cursor.merge(items, query.limit);
+            }
+            page.nextKey = cursor.hasMore() ? cursor : null;
+            page.itemsScanned = itemsScanned;
+
+            List<T> resultObjs = new ArrayList<T>();
+            for (Map<String, AttributeValue> item : items) {
+                resultObjs.add(itemToObj(modelClass, item));
+                addItemBytes(query.modelName, DbServiceWrapper.OP_QUERY, item);
+            }
+            return resultObjs;
+        } catch(Exception e) {
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
+    /** A query needs an EQ condition on the hash key and a condition on the range key.  Others result in a scan. */
+    public <T> String explainQuery(Query<T> query) {
+        QueryRequest    queryReq = new QueryRequest();
+        ScanRequest     scanReq = new ScanRequest();
+        if (isShardedQuery(query)) {
+            toRequest(query, queryReq, scanReq);
+            return "DynamoDB query on the " + jsoda.getKeyShards(query.modelName) + " shards of the hash key in parallel" +
+                ", merged on the range key.  Request of a shard: " + queryReq;
+        } else if (toRequest(query, queryReq, scanReq)) {
+            return "DynamoDB query using the hash key and range key" +
+                (query.orderbyFields.size() == 0 ? ", unsorted." : ", sorted by DynamoDB on the range key.") +
+                "  Request: " + queryReq;
+        } else {
+            return "DynamoDB scan reading the whole table" +
+                (query.filters.size() == 0 ? ", unsorted." : ", filtering the items, unsorted.") +
+                "  Request: " + scanReq;
+        }
+    }
+
+    /** Scan the next page of the whole table.  DynamoDB scan has no key range partitioning. */
+    public <T> List<T> scanPartition(Class<T> modelClass, ScanPartition partition)
+        throws JsodaException
+    {
+        if (!partition.isWholeTable())
+            throw new UnsupportedOperationException("DynamoDB scan supports only a partition of the whole table.");
+
+        List<T>     resultObjs = new ArrayList<T>();
+        if (!partition.hasNext())
+            return resultObjs;
+
+        String      modelName = Jsoda.getModelName(modelClass);
+        ScanRequest scanReq = new ScanRequest(jsoda.getModelTable(modelName));
+        if (partition.nextKey != null)
+            scanReq.setExclusiveStartKey((Key)partition.nextKey);
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        try {
+            limiter.acquireRead(1, true);
+            ScanResult  result = ddbClient.scan(scanReq);
+            limiter.consumedRead(1, result.getConsumedCapacityUnits());
+            addCapacity(modelName, DbServiceWrapper.OP_SCAN, result.getConsumedCapacityUnits());
+            partition.started = true;
+            partition.nextKey = result.getLastEvaluatedKey();
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                resultObjs.add(itemToObj(modelClass, item));
+                addItemBytes(modelName, DbServiceWrapper.OP_SCAN, item);
+            }
+            return resultObjs;
+        } catch(ProvisionedThroughputExceededException e) {
+            limiter.throttledRead();
+            throw new JsodaException("Scan failed.  Error: " + e.getMessage(), e);
+        } catch(Exception e) {
+            throw new JsodaException("Scan failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
 
     public String getFieldAttrName(String modelName, String fieldName) {
         String  attrName = jsoda.getFieldAttrMap(modelName).get(fieldName);
@@ -369,7 +717,7 @@ class DynamoDBService implements DbService
         return DataUtil.decodeAttrStrToValue(attr.getS(), field.getType());
     }
 
-    private Map<String, AttributeValue> objToAttrs(Object dataObj, String modelName)
+    Map<String, AttributeValue> objToAttrs(Object dataObj, String modelName)
         throws Exception
     {
         Map<String, AttributeValue> attrs = new HashMap<String, AttributeValue>();
@@ -386,9 +734,32 @@ class DynamoDBService implements DbService
             // Skip setting attribute if it's null.
         }
 
+        if (jsoda.getKeyShards(modelName) > 1) {
+            String  idAttrName = jsoda.getFieldAttrMap(modelName).get(jsoda.getIdField(modelName).getName());
+            String  rangeAttrName = jsoda.getFieldAttrMap(modelName).get(jsoda.getRangeField(modelName).getName());
+            if (attrs.get(idAttrName) == null || attrs.get(rangeAttrName) == null)
+                throw new IllegalArgumentException("Missing the hash key or range key of the @ShardedKey model " + modelName);
+            attrs.put(idAttrName, toShardedHashKey(modelName, attrs.get(idAttrName), attrs.get(rangeAttrName)));
+        }
         return attrs;
     }
 
+    /** Physical hash key of an item of a @ShardedKey model, the logical hash key suffixed with the shard picked by the range key. */
+    private AttributeValue toShardedHashKey(String modelName, AttributeValue hashKey, AttributeValue rangeKey) {
+        int     shards = jsoda.getKeyShards(modelName);
+        if (shards <= 1)
+            return hashKey;
+        String  rangeStr = rangeKey.getS() != null ? rangeKey.getS() : rangeKey.getN();
+        return new AttributeValue().withS(hashKey.getS() + ShardedKey.SEPARATOR + ((rangeStr.hashCode() & 0x7fffffff) % shards));
+    }
+
+    /** Logical hash key of an item of a @ShardedKey model, with the shard suffix removed. */
+    private static AttributeValue toLogicalHashKey(AttributeValue hashKey) {
+        String  str = hashKey.getS();
+        int     index = str == null ? -1 : str.lastIndexOf(ShardedKey.SEPARATOR);
+        return index < 0 ? hashKey : new AttributeValue().withS(str.substring(0, index));
+    }
+
     private Key makeKey(String modelName, Object id, Object rangeKey)
         throws Exception
     {
@@ -402,7 +773,8 @@ class DynamoDBService implements DbService
         else {
             if (rangeKey == null)
                 throw new IllegalArgumentException("Missing range key for the composite primary key (id,rangekey) of " + modelName);
-            return new Key(valueToAttr(idField, id), valueToAttr(rangeField, rangeKey));
+            AttributeValue  rangeAttr = valueToAttr(rangeField, rangeKey);
+            return new Key(toShardedHashKey(modelName, valueToAttr(idField, id), rangeAttr), rangeAttr);
         }
     }
 
@@ -427,11 +799,12 @@ class DynamoDBService implements DbService
         return expectedMap;
     }
 
-    private <T> T itemToObj(Class<T> modelClass, Map<String, AttributeValue> attrs)
+    <T> T itemToObj(Class<T> modelClass, Map<String, AttributeValue> attrs)
         throws Exception
     {
         String      modelName = jsoda.getModelName(modelClass);
         T           dataObj = modelClass.newInstance();
+        Field       shardedIdField = jsoda.getKeyShards(modelName) > 1 ? jsoda.getIdField(modelName) : null;
 
         // Set the attr field 
         for (String attrName : attrs.keySet()) {
@@ -444,6 +817,8 @@ class DynamoDBService implements DbService
             }
 
             AttributeValue  attr = attrs.get(attrName);
+            if (field == shardedIdField)
+                attr = toLogicalHashKey(attr);
             Object          fieldValue = attrToValue(field, attr);
             //log.debug("attrName " + attrName + " attr: " + attr);
             field.set(dataObj, fieldValue);
@@ -501,13 +876,13 @@ class DynamoDBService implements DbService
             }
         }
 
-        doQuery = (hasIdEq && hasRange);
+        doQuery = (hasIdEq && (hasRange || jsoda.getKeyShards(query.modelName) > 1));
 
         if (doQuery) {
-            log.info("Query results in a DynamoDB query.");
             addQueryFilter(query, queryReq);
         } else {
-            log.info("Query results in a DynamoDB scan.");
+            if (log.isDebugEnabled())
+                log.debug("Query on " + query.modelName + " results in a DynamoDB scan.");
             addScanFilter(query, scanReq);
         }
         return doQuery;
@@ -546,6 +921,8 @@ class DynamoDBService implements DbService
         Map<String,Condition>   conditions = new HashMap<String,Condition>();
 
         for (Filter filter : query.filters) {
+            if (jsoda.getKeyShards(query.modelName) > 1 && jsoda.isIdField(query.modelName, filter.fieldName))
+                throw new IllegalArgumentException("Only EQ condition is allowed on the Id field of the @ShardedKey model " + query.modelName);
             String  attrName = jsoda.getFieldAttrMap(query.modelName).get(filter.fieldName);
             conditions.put(attrName, toCondition(filter));
         }
@@ -614,5 +991,24 @@ class DynamoDBService implements DbService
         }
     }
 
-}
+    /** Order of the items of a sharded query by the range key, in the direction of its order-by. */
+    private <T> Comparator<Map<String, AttributeValue>> toRangeKeyOrder(Query<T> query) {
+        final String    rangeAttrName = jsoda.getFieldAttrMap(query.modelName).get(jsoda.getRangeField(query.modelName).getName());
+        final boolean   forward = query.orderbyFields.size() == 0 || query.orderbyFields.get(0).charAt(0) == '+';
+        return new Comparator<Map<String, AttributeValue>>() {
+                public int compare(Map<String, AttributeValue> item1, Map<String, AttributeValue> item2) {
+                    int cmp = compareValues(item1.get(rangeAttrName), item2.get(rangeAttrName));
+                    return forward ? cmp : -cmp;
+                }
+            };
+    }
 
+    private static int compareValues(AttributeValue value1, AttributeValue value2) {
+        if (value1.getN() != null && value2.getN() != null)
+            return new BigDecimal(value1.getN()).compareTo(new BigDecimal(value2.getN()));
+        String  str1 = value1.getS() != null ? value1.getS() : value1.getN();
+        String  str2 = value2.getS() != null ? value2.getS() : value2.getN();
+        return str1.compareTo(str2);
+    }
+
+}
@@ -0,0 +1,319 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.IOUtil;
+
+
+/**
+ * Export all the objects of a model class to gzip compressed NDJSON files, one JSON object per line.
+ * SimpleDB tables are split into partitions by item name ranges, exported in parallel.  DynamoDB tables are
+ * scanned page by page in one partition, as the DynamoDB API in use has no parallel scan segments.
+ * Each partition fetches its next page while writing the current one, so memory is bounded to a couple of
+ * pages per partition.  Each partition writes its own files, rolled over when reaching the maximum file size.
+ * The @S3Field content can be included, fetched in parallel for each page.
+ * <pre>
+ * e.g.
+ *   jsoda.exporter(Model1.class).setThreads(8).setIncludeS3Fields(true).exportTo(new File("/backup/model1"));
+ * </pre>
+ */
+public class Exporter<T>
+{
+    private static Log  log = LogFactory.getLog(Exporter.class);
+
+    public static final int     DEFAULT_THREADS = 4;
+    public static final long    DEFAULT_MAX_FILE_BYTES = 128L * 1024 * 1024;
+    public static final String  FILE_EXT = ".ndjson.gz";
+    private static final int    FILE_BUFFER_SIZE = 64 * 1024;
+
+    private Class<T>            modelClass;
+    private String              modelName;
+    private Jsoda               jsoda;
+    private int                 threads = DEFAULT_THREADS;
+    private String[]            splitPoints;
+    private long                maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private boolean             includeS3Fields = false;
+    private String              filePrefix;
+    private int                 compressionLevel = CompressionCodec.DEFAULT_LEVEL;
+
+    // Progress of the current export.
+    private AtomicLong          itemsExported = new AtomicLong();
+    private AtomicLong          pagesScanned = new AtomicLong();
+    private List<File>          files = Collections.synchronizedList(new ArrayList<File>());
+    private volatile Exception  failure;
+
+
+    public Exporter(Class<T> modelClass, Jsoda jsoda) {
+        this.modelClass = modelClass;
+        this.modelName = Jsoda.getModelName(modelClass);
+        this.jsoda = jsoda;
+        this.filePrefix = modelName;
+    }
+
+    /** Number of partitions exported concurrently.  For SimpleDB, it's also the default number of partitions. */
+    public Exporter<T> setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads must be at least 1.");
+        this.threads = threads;
+        return this;
+    }
+
+    /** Item names to split a SimpleDB table into partitions, in ascending order.  N split points make N+1 partitions.
+     * By default the item names are split evenly by their first alphanumeric character, which suits string ids
+     * with random prefixes such as GUIDs.  Set the split points according to the distribution of the ids otherwise.
+     */
+    public Exporter<T> setSplitPoints(String... splitPoints) {
+        for (int i = 1; i < splitPoints.length; i++) {
+            if (splitPoints[i - 1].compareTo(splitPoints[i]) >= 0)
+                throw new IllegalArgumentException("Split points must be in ascending order.");
+        }
+        this.splitPoints = splitPoints;
+        return this;
+    }
+
+    /** Uncompressed size to roll over to the next file. */
+    public Exporter<T> setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+        return this;
+    }
+
+    /** Include the @S3Field content of the objects.  Default false. */
+    public Exporter<T> setIncludeS3Fields(boolean includeS3Fields) {
+        this.includeS3Fields = includeS3Fields;
+        return this;
+    }
+
+    /** Prefix of the file names.  Default is the model name. */
+    public Exporter<T> setFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+        return this;
+    }
+
+    /** Gzip compression level, 0-9. */
+    public Exporter<T> setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+
+    /** Export all the objects to files in the directory.  Files are named prefix-partition-sequence.ndjson.gz.
+     * Return the number of objects exported.
+     */
+    public long exportTo(final File dir)
+        throws JsodaException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new JsodaException("Cannot create export directory " + dir);
+
+        itemsExported.set(0);
+        pagesScanned.set(0);
+        files.clear();
+        failure = null;
+
+        List<ScanPartition>     partitions = ScanPartition.split(jsoda.getDb(modelName).getDbType(), threads, splitPoints);
+        ExecutorService         executor = jsoda.getExecutor();
+        final Semaphore         running = new Semaphore(threads);
+        List<Future<?>>         futures = new ArrayList<Future<?>>();
+
+        try {
+            for (int i = 0; i < partitions.size() && failure == null; i++) {
+                final ScanPartition partition = partitions.get(i);
+                final int           partIndex = i;
+                running.acquire();
+                futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                exportPartition(dir, partIndex, partition);
+                            } catch(Exception e) {
+                                if (failure == null)
+                                    failure = e;
+                                log.error("Failed to export partition " + partition + " of " + modelName, e);
+                            } finally {
+                                running.release();
+                            }
+                        }
+                    }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } catch(ExecutionException e) {
+            failure = e;
+        }
+
+        log.info(dumpProgress());
+        if (failure != null)
+            throw new JsodaException("Failed to export " + modelName, failure);
+        return itemsExported.get();
+    }
+
+    public long getItemsExported() {
+        return itemsExported.get();
+    }
+
+    public long getPagesScanned() {
+        return pagesScanned.get();
+    }
+
+    /** Files written by the export. */
+    public List<File> getFiles() {
+        synchronized(files) {
+            return new ArrayList<File>(files);
+        }
+    }
+
+    public String dumpProgress() {
+        return "Exporter " + modelName + " items: " + getItemsExported() + ", pages: " + getPagesScanned() + ", files: " + files.size();
+    }
+
+
+    private void exportPartition(File dir, int partIndex, final ScanPartition partition)
+        throws Exception
+    {
+        Callable<List<T>>   fetchPage = new Callable<List<T>>() {
+                public List<T> call() throws Exception {
+                    return jsoda.getDb(modelName).scanPartition(modelClass, partition);
+                }
+            };
+        RollingWriter       writer = new RollingWriter(dir, partIndex);
+        boolean             done = false;
+        try {
+            Future<List<T>> next = jsoda.getExecutor().submit(fetchPage);
+            while (next != null && failure == null) {
+                List<T>     page = next.get();
+                pagesScanned.incrementAndGet();
+                // Fetch the next page while the current one is being written.
+                next = partition.hasNext() ? jsoda.getExecutor().submit(fetchPage) : null;
+
+                if (includeS3Fields)
+                    loadS3Fields(page);
+                for (T obj : page)
+                    writer.write(obj);
+                itemsExported.addAndGet(page.size());
+            }
+            if (next != null)
+                next.cancel(true);
+            done = true;
+        } finally {
+            writer.close(done);
+        }
+    }
+
+    /** Load the S3 fields of the objects in parallel, up to the number of S3 transfer threads at a time. */
+    private void loadS3Fields(List<T> page)
+        throws Exception
+    {
+        final S3Dao<T>          s3dao = jsoda.s3dao(modelClass);
+        LinkedList<Future<?>>   pending = new LinkedList<Future<?>>();
+        try {
+            for (final T obj : page) {
+                while (pending.size() >= jsoda.getS3TransferThreads())
+                    pending.removeFirst().get();
+                pending.add(jsoda.getExecutor().submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            s3dao.loadS3Fields(obj);
+                            return null;
+                        }
+                    }));
+            }
+            while (pending.size() > 0)
+                pending.removeFirst().get();
+        } finally {
+            for (Future<?> future : pending)
+                future.cancel(true);
+        }
+    }
+
+
+    /** Writer of the NDJSON files of a partition, rolling over to the next file at the maximum size. */
+    private class RollingWriter {
+        private File                    dir;
+        private int                     partIndex;
+        private int                     sequence = 0;
+        private OutputStream            out;
+        private long                    fileBytes;
+        private ByteArrayOutputStream   line = new ByteArrayOutputStream(S3Dao.IO_BUFFER_SIZE);
+
+        RollingWriter(File dir, int partIndex) {
+            this.dir = dir;
+            this.partIndex = partIndex;
+        }
+
+        void write(Object obj)
+            throws IOException
+        {
+            line.reset();
+            DataUtil.toJson(line, obj);
+            line.write('\n');
+
+            if (out != null && fileBytes + line.size() > maxFileBytes)
+                closeFile();
+            if (out == null)
+                openFile();
+            line.writeTo(out);
+            fileBytes += line.size();
+        }
+
+        void close(boolean done)
+            throws IOException
+        {
+            if (done)
+                closeFile();
+            else
+                IOUtil.close(out);
+            out = null;
+        }
+
+        private void openFile()
+            throws IOException
+        {
+            File                file = new File(dir, String.format("%s-%03d-%05d%s", filePrefix, partIndex, sequence++, FILE_EXT));
+            FileOutputStream    fos = new FileOutputStream(file);
+            try {
+                OutputStream    bos = new BufferedOutputStream(Channels.newOutputStream(fos.getChannel()), FILE_BUFFER_SIZE);
+                out = CompressionCodec.GZIP.compress(bos, compressionLevel);
+            } catch(IOException e) {
+                IOUtil.close(fos);
+                throw e;
+            }
+            fileBytes = 0;
+            files.add(file);
+        }
+
+        private void closeFile()
+            throws IOException
+        {
+            if (out == null)
+                return;
+            OutputStream    os = out;
+            out = null;
+            os.close();
+        }
+    }
+
+}
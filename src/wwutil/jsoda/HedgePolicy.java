@@ -0,0 +1,246 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Hedging policy of the single object reads of Dao.get(), to cut the tail latency caused by occasional slow responses.
+ * When a read has not returned after the hedge delay, a duplicate read is sent and whichever returns first is used.
+ * The hedge delay is the percentile of the recent read latencies of the model, e.g. p95, bounded by the min and max delay.
+ * Hedging applies to eventually consistent and consistent reads alike, as both reads of a consistent read return
+ * the latest data.
+ *
+ * The hedge rate is capped by a budget.  Each read adds the max hedge ratio to the budget and each hedge takes one
+ * from it, so that hedges stay under the ratio of reads when the database slows down as a whole.
+ * The hedge rate and win rate are kept as metrics.
+ * Class is thread-safe.
+ */
+public class HedgePolicy
+{
+    private static Log  log = LogFactory.getLog(HedgePolicy.class);
+
+    public static final double  DEFAULT_PERCENTILE = 0.95;
+    public static final long    DEFAULT_MIN_DELAY_MS = 5;
+    public static final long    DEFAULT_MAX_DELAY_MS = 1000;
+    public static final double  DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    static final int            SAMPLE_SIZE = 1024;
+    static final int            MIN_SAMPLES = 100;
+    static final int            RECOMPUTE_INTERVAL = 64;
+    private static final double MAX_BUDGET = 100;
+
+    private volatile double     percentile = DEFAULT_PERCENTILE;
+    private volatile long       minDelayMs = DEFAULT_MIN_DELAY_MS;
+    private volatile long       maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile double     maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private double              budget = 1;
+    private ConcurrentMap<String, LatencyTracker>   trackers = new ConcurrentHashMap<String, LatencyTracker>();
+
+    // Metrics
+    private AtomicLong          reads = new AtomicLong();
+    private AtomicLong          hedges = new AtomicLong();
+    private AtomicLong          hedgeWins = new AtomicLong();
+    private AtomicLong          hedgesSkipped = new AtomicLong();
+
+
+    /** Percentile of the read latencies to use as the hedge delay, between 0 and 1. */
+    public HedgePolicy setPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1)
+            throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+        this.percentile = percentile;
+        return this;
+    }
+
+    public HedgePolicy setMinDelayMs(long minDelayMs) {
+        this.minDelayMs = minDelayMs;
+        return this;
+    }
+
+    /** Maximum hedge delay, also used as the delay until enough latencies are sampled. */
+    public HedgePolicy setMaxDelayMs(long maxDelayMs) {
+        this.maxDelayMs = maxDelayMs;
+        return this;
+    }
+
+    /** Maximum ratio of hedged reads to reads. */
+    public HedgePolicy setMaxHedgeRatio(double maxHedgeRatio) {
+        this.maxHedgeRatio = maxHedgeRatio;
+        return this;
+    }
+
+    /** Current hedge delay of the model. */
+    public long getDelayMs(Class modelClass) {
+        return tracker(Jsoda.getModelName(modelClass)).delayMs();
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /** Number of hedged reads returned before the original reads. */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /** Number of reads not hedged because of the hedge rate cap. */
+    public long getHedgesSkipped() {
+        return hedgesSkipped.get();
+    }
+
+    /** Ratio of reads hedged. */
+    public double getHedgeRate() {
+        long    n = reads.get();
+        return n == 0 ? 0 : (double)hedges.get() / n;
+    }
+
+    /** Ratio of hedges winning over the original reads. */
+    public double getWinRate() {
+        long    n = hedges.get();
+        return n == 0 ? 0 : (double)hedgeWins.get() / n;
+    }
+
+    public String dumpMetrics() {
+        return "HedgePolicy reads: " + getReads() + ", hedges: " + getHedges() + ", wins: " + getHedgeWins() +
+            ", skipped: " + getHedgesSkipped() + ", hedgeRate: " + getHedgeRate() + ", winRate: " + getWinRate();
+    }
+
+
+    /** Run the read, hedging it with a duplicate read if it's slower than the hedge delay.  The read is run on the
+     * executor only when the budget allows a hedge, otherwise on the calling thread.  Whichever read returns first,
+     * the other one is cancelled so that it doesn't hold a thread of the executor.
+     */
+    <R> R execute(String modelName, final Callable<R> read, ExecutorService executor)
+        throws Exception
+    {
+        final LatencyTracker    tracker = tracker(modelName);
+        reads.incrementAndGet();
+        deposit();
+        if (!hasBudget()) {
+            long    start = System.nanoTime();
+            R       result = read.call();
+            long    latencyMs = (System.nanoTime() - start) / 1000000L;
+            tracker.record(latencyMs);
+            if (latencyMs >= tracker.delayMs())
+                hedgesSkipped.incrementAndGet();
+            return result;
+        }
+
+        CompletionService<R>    completion = new ExecutorCompletionService<R>(executor);
+        Callable<R>             timedRead = ThroughputLimiter.withThreadBackground(new Callable<R>() {
+                public R call() throws Exception {
+                    long    start = System.nanoTime();
+                    R       result = read.call();
+                    tracker.record((System.nanoTime() - start) / 1000000L);
+                    return result;
+                }
+            });
+
+        Future<R>   primary = completion.submit(timedRead);
+        Future<R>   hedge = null;
+        try {
+            Future<R>   done = completion.poll(tracker.delayMs(), TimeUnit.MILLISECONDS);
+            if (done == null) {
+                if (withdraw()) {
+                    hedges.incrementAndGet();
+                    hedge = completion.submit(timedRead);
+                } else {
+                    hedgesSkipped.incrementAndGet();
+                }
+            }
+
+            for (int pending = (hedge == null ? 1 : 2); ; pending--) {
+                if (done == null)
+                    done = completion.take();
+                try {
+                    R   result = done.get();
+                    if (done == hedge)
+                        hedgeWins.incrementAndGet();
+                    return result;
+                } catch(ExecutionException e) {
+                    if (pending == 1)
+                        throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+                    if (log.isDebugEnabled())
+                        log.debug("Hedged read of " + modelName + " failed on one of the reads.  Error: " + e.getCause());
+                }
+                done = null;
+            }
+        } finally {
+            // Cancel the read still running.  Its latency is still sampled if its call completes regardless.
+            primary.cancel(true);
+            if (hedge != null)
+                hedge.cancel(true);
+        }
+    }
+
+    LatencyTracker tracker(String modelName) {
+        LatencyTracker  tracker = trackers.get(modelName);
+        if (tracker == null) {
+            trackers.putIfAbsent(modelName, new LatencyTracker());
+            tracker = trackers.get(modelName);
+        }
+        return tracker;
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(MAX_BUDGET, budget + maxHedgeRatio);
+    }
+
+    private synchronized boolean hasBudget() {
+        return budget >= 1;
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1)
+            return false;
+        budget -= 1;
+        return true;
+    }
+
+
+    /** Ring buffer of the recent read latencies of a model, with the hedge delay recomputed periodically. */
+    class LatencyTracker {
+        private long[]          samples = new long[SAMPLE_SIZE];
+        private int             count;
+        private volatile long   delayMs = -1;
+
+        synchronized void record(long latencyMs) {
+            samples[count % SAMPLE_SIZE] = latencyMs;
+            count++;
+            if (count >= MIN_SAMPLES && count % RECOMPUTE_INTERVAL == 0) {
+                long[]  sorted = Arrays.copyOf(samples, Math.min(count, SAMPLE_SIZE));
+                Arrays.sort(sorted);
+                delayMs = sorted[(int)(percentile * (sorted.length - 1))];
+            }
+        }
+
+        long delayMs() {
+            long    delay = delayMs;
+            return delay < 0 ? maxDelayMs : Math.max(minDelayMs, Math.min(maxDelayMs, delay));
+        }
+    }
+
+}
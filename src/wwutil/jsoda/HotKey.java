@@ -0,0 +1,77 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Snapshot of a frequently accessed key of a model, from the HotKeySampler.  The count and rate are
+ * estimated from the sampled accesses, and the count may be over by up to the error.
+ */
+public class HotKey
+{
+    private String  modelName;
+    private String  kind;
+    private String  key;
+    private long    count;
+    private long    error;
+    private double  perSecond;
+
+
+    HotKey(String modelName, String kind, String key, long count, long error, double perSecond) {
+        this.modelName = modelName;
+        this.kind = kind;
+        this.key = key;
+        this.count = count;
+        this.error = error;
+        this.perSecond = perSecond;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    /** One of HotKeySampler.READ, WRITE, READ_HASH, and WRITE_HASH. */
+    public String getKind() {
+        return kind;
+    }
+
+    /** The pk key, i.e. the id and range key joined by '/', or the hash key for the hash kinds. */
+    public String getKey() {
+        return key;
+    }
+
+    /** Estimated number of accesses over the sampler's window. */
+    public long getCount() {
+        return count;
+    }
+
+    /** Upper bound of the overestimate in the count. */
+    public long getError() {
+        return error;
+    }
+
+    /** Estimated accesses per second over the sampler's window. */
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public String toString() {
+        return modelName + "/" + kind + " " + key + " count: " + count + ", error: " + error + ", " +
+            String.format("%.2f", perSecond) + "/s";
+    }
+
+}
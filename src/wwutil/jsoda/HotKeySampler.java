@@ -0,0 +1,154 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Sampler of the keys accessed on the database, to find the hot keys and hot partitions.  A ratio of the reads
+ * and writes of single objects, i.e. get, put, putIf, batchPut, delete, and batchDelete, is sampled into a
+ * space-bounded heavy-hitters sketch per model, separately for reads and writes, and by pk key and by hash key.
+ * The hash key view shows the hot partitions of DynamoDB, where a single hot hash key is throttled.
+ *
+ * The sampler is set on the Metrics of the Jsoda object, and the top keys are read with Metrics.getHotKeys().
+ * Accesses are counted as they are sent to the database, including those throttled and those rejected by an
+ * open circuit; cache hits are not counted.
+ * Class is thread-safe.
+ */
+public class HotKeySampler
+{
+    public static final String  READ = "read";
+    public static final String  WRITE = "write";
+    public static final String  READ_HASH = "readHash";
+    public static final String  WRITE_HASH = "writeHash";
+
+    public static final double  DEFAULT_SAMPLE_RATE = 0.1;
+    public static final int     DEFAULT_CAPACITY = 100;
+    public static final long    DEFAULT_WINDOW_MS = 60000;
+
+    private volatile double     sampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile int        capacity = DEFAULT_CAPACITY;
+    private volatile long       windowMs = DEFAULT_WINDOW_MS;
+    private Random              random = new Random();
+    private ConcurrentMap<String, HotKeySketch> sketches = new ConcurrentHashMap<String, HotKeySketch>();
+
+    // Metrics
+    private AtomicLong          sampled = new AtomicLong();
+
+
+    /** Ratio of the accesses to sample, between 0 and 1. */
+    public HotKeySampler setSampleRate(double sampleRate) {
+        if (sampleRate <= 0 || sampleRate > 1)
+            throw new IllegalArgumentException("Sample rate must be above 0 and at most 1.");
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Number of keys tracked per model and kind.  Applies to the sketches created afterward. */
+    public HotKeySampler setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.capacity = capacity;
+        return this;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Length of a window of counts.  The top keys cover the last one to two windows.  Applies to the sketches created afterward. */
+    public HotKeySampler setWindowMs(long windowMs) {
+        if (windowMs <= 0)
+            throw new IllegalArgumentException("Window must be positive.");
+        this.windowMs = windowMs;
+        return this;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /** Number of accesses sampled. */
+    public long getSampled() {
+        return sampled.get();
+    }
+
+    /** Return the top k keys of the model of a kind, READ, WRITE, READ_HASH, or WRITE_HASH, most frequent first. */
+    public List<HotKey> getHotKeys(String modelName, String kind, int k) {
+        List<HotKey>    hotKeys = new ArrayList<HotKey>();
+        HotKeySketch    sketch = sketches.get(modelName + "/" + kind);
+        if (sketch == null)
+            return hotKeys;
+        double  scale = 1 / sampleRate;
+        for (HotKeySketch.Entry entry : sketch.top(k, System.currentTimeMillis()))
+            hotKeys.add(new HotKey(modelName, kind, entry.key, Math.round(entry.count * scale),
+                                   Math.round(entry.error * scale), entry.perSecond * scale));
+        return hotKeys;
+    }
+
+    /** Return the top k keys of every model and kind. */
+    public List<HotKey> getHotKeys(int k) {
+        List<HotKey>    hotKeys = new ArrayList<HotKey>();
+        for (String name : new TreeSet<String>(sketches.keySet())) {
+            int     slash = name.lastIndexOf('/');
+            hotKeys.addAll(getHotKeys(name.substring(0, slash), name.substring(slash + 1), k));
+        }
+        return hotKeys;
+    }
+
+    public void reset() {
+        sketches.clear();
+    }
+
+    public String dumpMetrics() {
+        StringBuilder   sb = new StringBuilder("HotKeySampler sampled: ").append(getSampled());
+        for (HotKey hotKey : getHotKeys(5))
+            sb.append("\n  ").append(hotKey);
+        return sb.toString();
+    }
+
+
+    /** Whether to sample the next access. */
+    boolean sample() {
+        return sampleRate >= 1 || random.nextDouble() < sampleRate;
+    }
+
+    /** Record a sampled access by its pk key and hash key. */
+    void add(String modelName, boolean write, String pkKey, String hashKey) {
+        long    now = System.currentTimeMillis();
+        sampled.incrementAndGet();
+        sketch(modelName + "/" + (write ? WRITE : READ)).add(pkKey, now);
+        sketch(modelName + "/" + (write ? WRITE_HASH : READ_HASH)).add(hashKey, now);
+    }
+
+    private HotKeySketch sketch(String name) {
+        HotKeySketch    sketch = sketches.get(name);
+        if (sketch == null) {
+            sketches.putIfAbsent(name, new HotKeySketch(capacity, windowMs, System.currentTimeMillis()));
+            sketch = sketches.get(name);
+        }
+        return sketch;
+    }
+
+}
@@ -0,0 +1,132 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+
+
+/**
+ * Space-Saving sketch of the most frequent keys, with a bounded number of counters.  A new key, when all
+ * the counters are taken, replaces the key with the least count and inherits its count as the error bound.
+ * Any key with more than 1/capacity of the accesses is guaranteed to be kept.
+ *
+ * The counts are kept in two windows, the current and the previous one, so the top keys reflect the last one
+ * to two windows of time.  Finding the least count is a scan of the counters, which is cheap at the sampled rate.
+ * Class is thread-safe.
+ */
+class HotKeySketch
+{
+    private int                     capacity;
+    private long                    windowMs;
+    private Map<String, Counter>    current = new HashMap<String, Counter>();
+    private Map<String, Counter>    previous = new HashMap<String, Counter>();
+    private long                    currentStart;
+    private long                    previousStart;
+
+
+    HotKeySketch(int capacity, long windowMs, long nowMs) {
+        this.capacity = capacity;
+        this.windowMs = windowMs;
+        this.currentStart = nowMs;
+        this.previousStart = nowMs;
+    }
+
+    synchronized void add(String key, long nowMs) {
+        rotate(nowMs);
+        Counter counter = current.get(key);
+        if (counter == null) {
+            if (current.size() < capacity) {
+                counter = new Counter();
+            } else {
+                String  minKey = null;
+                for (Map.Entry<String, Counter> entry : current.entrySet()) {
+                    if (minKey == null || entry.getValue().count < counter.count) {
+                        minKey = entry.getKey();
+                        counter = entry.getValue();
+                    }
+                }
+                current.remove(minKey);
+                counter.error = counter.count;
+            }
+            current.put(key, counter);
+        }
+        counter.count++;
+    }
+
+    /** Return the top k keys by count over both windows, with the rate per second over the time they cover. */
+    synchronized List<Entry> top(int k, long nowMs) {
+        rotate(nowMs);
+        Map<String, Entry>  merged = new HashMap<String, Entry>();
+        merge(merged, previous);
+        merge(merged, current);
+        List<Entry> entries = new ArrayList<Entry>(merged.values());
+        Collections.sort(entries);
+        if (entries.size() > k)
+            entries = new ArrayList<Entry>(entries.subList(0, k));
+        double  seconds = Math.max(1, nowMs - previousStart) / 1000.0;
+        for (Entry entry : entries)
+            entry.perSecond = entry.count / seconds;
+        return entries;
+    }
+
+    private void merge(Map<String, Entry> merged, Map<String, Counter> counters) {
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Entry   e = merged.get(entry.getKey());
+            if (e == null)
+                merged.put(entry.getKey(), e = new Entry(entry.getKey()));
+            e.count += entry.getValue().count;
+            e.error += entry.getValue().error;
+        }
+    }
+
+    private void rotate(long nowMs) {
+        if (nowMs - currentStart < windowMs)
+            return;
+        if (nowMs - currentStart < windowMs * 2) {
+            previous = current;
+            previousStart = currentStart;
+            currentStart += windowMs;
+        } else {
+            previous = new HashMap<String, Counter>();
+            previousStart = nowMs;
+            currentStart = nowMs;
+        }
+        current = new HashMap<String, Counter>();
+    }
+
+
+    private static class Counter {
+        long    count;
+        long    error;
+    }
+
+    static class Entry implements Comparable<Entry> {
+        final String    key;
+        long            count;
+        long            error;
+        double          perSecond;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        public int compareTo(Entry other) {
+            return count > other.count ? -1 : count < other.count ? 1 : key.compareTo(other.key);
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Interceptor of the database and S3 calls of a Jsoda object, for tracing, custom metrics, fault injection,
+ * or request tagging.  Interceptors are registered with Jsoda.addInterceptor() and called in the order
+ * registered, each wrapping the next one and the call itself.  An interceptor calls invocation.proceed() to
+ * continue the call, and sees its result or exception.  It can also skip the call by returning or throwing
+ * without proceeding.
+ *
+ * Each attempt of a call is intercepted, including the retries and the hedged reads, inside the circuit breaker,
+ * deadline, and metrics, so that an exception thrown by an interceptor goes through them as a database error.
+ *
+ * The database operations are put, putIf, batchPut, get, delete, batchDelete, queryCount, query, and scan.
+ * The S3 field operations are s3Save, s3Load, s3Delete, and s3BatchDelete.
+ * Interceptors are called concurrently and need to be thread-safe.
+ */
+public interface Interceptor
+{
+    /** Intercept the call, calling invocation.proceed() to continue it. */
+    public Object intercept(Invocation invocation)
+        throws Exception;
+}
@@ -0,0 +1,115 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+
+/**
+ * An intercepted call of a database or S3 operation, passed through the interceptors.  It describes the call,
+ * and carries attributes set by the interceptors, e.g. a trace span or a tag to share with the later interceptors.
+ */
+public class Invocation
+{
+    public static final String  SERVICE_S3 = "S3";
+
+    private List<Interceptor>   interceptors;
+    private Callable<?>         call;
+    private int                 index;
+    private String              service;
+    private String              modelName;
+    private String              operation;
+    private String              resource;
+    private int                 items;
+    private Map<String, Object> attributes;
+
+
+    Invocation(List<Interceptor> interceptors, String service, String modelName, String operation, String resource, int items, Callable<?> call) {
+        this.interceptors = interceptors;
+        this.service = service;
+        this.modelName = modelName;
+        this.operation = operation;
+        this.resource = resource;
+        this.items = items;
+        this.call = call;
+    }
+
+    /** Run the call through the interceptors.  The call is run directly when there's no interceptor. */
+    @SuppressWarnings("unchecked")
+    static <R> R invoke(List<Interceptor> interceptors, String service, String modelName, String operation, String resource, int items, Callable<R> call)
+        throws Exception
+    {
+        if (interceptors.isEmpty())
+            return call.call();
+        return (R)new Invocation(interceptors, service, modelName, operation, resource, items, call).proceed();
+    }
+
+    /** Continue the call with the next interceptor, or run the call after the last one.  Can be called again to repeat it. */
+    public Object proceed()
+        throws Exception
+    {
+        int     current = index;
+        if (current >= interceptors.size())
+            return call.call();
+        index = current + 1;
+        try {
+            return interceptors.get(current).intercept(this);
+        } finally {
+            index = current;
+        }
+    }
+
+    /** The service of the call, SimpleDB, DynamoDB, or S3. */
+    public String getService() {
+        return service;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    /** The operation name, e.g. get, batchPut, or s3Load.  See Interceptor for the list. */
+    public String getOperation() {
+        return operation;
+    }
+
+    /** The table of a database call, or the bucket/key of an S3 call. */
+    public String getResource() {
+        return resource;
+    }
+
+    /** Number of objects in the request of a write or a get.  0 for a query or scan, whose result size is not known up front. */
+    public int getItems() {
+        return items;
+    }
+
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    public void setAttribute(String name, Object value) {
+        if (attributes == null)
+            attributes = new HashMap<String, Object>();
+        attributes.put(name, value);
+    }
+
+    public String toString() {
+        return service + " " + operation + " on " + modelName + " (" + resource + ", " + items + " items)";
+    }
+
+}
@@ -22,6 +22,7 @@ import java.util.*;
 import java.lang.annotation.*;
 import java.lang.reflect.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,6 +54,8 @@ import wwutil.model.annotation.CachePolicy;
 import wwutil.model.annotation.CacheByField;
 import wwutil.model.annotation.VersionLocking;
 import wwutil.model.annotation.S3Field;
+import wwutil.model.annotation.ShardedKey;
+import wwutil.model.annotation.ShardedTable;
 
 
 /**
@@ -70,6 +73,16 @@ public class Jsoda
     private ObjCacheMgr             objCacheMgr;
     private SimpleDBService         sdbMgr;
     private DynamoDBService         ddbMgr;
+    private DbServiceWrapper        sdbService;
+    private DbServiceWrapper        ddbService;
+    private volatile RetryPolicy    retryPolicy = new RetryPolicy();
+    private volatile HedgePolicy    hedgePolicy;
+    private volatile SlowQueryLog   slowQueryLog = new SlowQueryLog();
+    private volatile CircuitBreakerPolicy   circuitBreakerPolicy;
+    private Map<String, Long>       opDeadlines = new ConcurrentHashMap<String, Long>();
+    private Map<String, Long>       modelDeadlines = new ConcurrentHashMap<String, Long>();
+    private Metrics                 metrics = new Metrics();
+    private List<Interceptor>       interceptors = new CopyOnWriteArrayList<Interceptor>();
     private AmazonS3Client          s3Client;
     private AnnotationRegistry      preStore1Registry;
     private AnnotationRegistry      preStore2Registry;
@@ -80,6 +93,11 @@ public class Jsoda
     private String                  defaultS3Bucket = "";
     private String                  s3KeyPrefix = "";
     private String                  s3EndPoint;
+    private int                     s3PartSize = S3TransferOptions.DEFAULT_PART_SIZE;
+    private int                     s3TransferThreads = S3TransferOptions.DEFAULT_THREADS;
+    private ExecutorService         executor;
+    private volatile boolean        throughputLimiting = false;
+    private S3ContentCache          s3ContentCache;
 
     // Model registry
     private Map<String, Class>      modelClasses = new ConcurrentHashMap<String, Class>();
@@ -89,6 +107,8 @@ public class Jsoda
     private Map<String, Field>      modelRangeFields = new ConcurrentHashMap<String, Field>();
     private Map<String, Field>      modelVersionFields = new ConcurrentHashMap<String, Field>();
     private Map<String, Integer>    modelCachePolicy = new ConcurrentHashMap<String, Integer>();    // -1 for non-cacheable
+    private Map<String, Integer>    modelKeyShards = new ConcurrentHashMap<String, Integer>();      // for @ShardedKey models only
+    private Map<String, Integer>    modelTableShards = new ConcurrentHashMap<String, Integer>();    // for @ShardedTable models only
     private Map<String, Map<String, Field>>     modelAllFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();   // all fields include db, S3, and transient
     private Map<String, Map<String, Field>>     modelDbFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();    // db fields are the ones stored at SimpleDB/DynamoDB
     private Map<String, Map<String, Field>>     modelAttrFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();  // maps db attr names to db field names
@@ -101,6 +121,8 @@ public class Jsoda
     private Map<String, Dao>        modelDao = new ConcurrentHashMap<String, Dao>();
     private Map<String, S3Dao>      modelS3Dao = new ConcurrentHashMap<String, S3Dao>();
     private Map<String, EUtil>      modelEUtil = new ConcurrentHashMap<String, EUtil>();
+    private Map<String, Jsoda>      modelDualWrite = new ConcurrentHashMap<String, Jsoda>();
+    private Map<String, ThroughputLimiter>  modelLimiters = new ConcurrentHashMap<String, ThroughputLimiter>();
 
 
 
@@ -124,7 +146,10 @@ public class Jsoda
         this.objCacheMgr = new ObjCacheMgr(this, memCacheable);
         this.sdbMgr = new SimpleDBService(this, cred);
         this.ddbMgr = new DynamoDBService(this, cred);
+        this.sdbService = new DbServiceWrapper(this, sdbMgr);
+        this.ddbService = new DbServiceWrapper(this, ddbMgr);
         this.s3Client = new AmazonS3Client(cred);
+        this.executor = Executors.newCachedThreadPool(new WorkerThreadFactory());
         this.preStore1Registry = BuiltinFunc.clonePreStore1Registry();
         this.preStore2Registry = BuiltinFunc.clonePreStore2Registry();
         this.validationRegistry = BuiltinFunc.cloneValidationRegistry();
@@ -204,12 +229,57 @@ public class Jsoda
         return this.s3KeyPrefix;
     }
 
+    /** Set the part size for transferring large @S3Field content.  Content larger than the part size is uploaded
+     * with S3 multipart upload and downloaded with ranged GETs.  Minimum is 5MB, the smallest part allowed by S3.
+     */
+    public Jsoda setS3PartSize(int s3PartSize) {
+        if (s3PartSize < S3OutputStream.MIN_PART_SIZE)
+            throw new IllegalArgumentException("S3 part size cannot be less than " + S3OutputStream.MIN_PART_SIZE);
+        this.s3PartSize = s3PartSize;
+        return this;
+    }
+
+    public int getS3PartSize() {
+        return this.s3PartSize;
+    }
+
+    /** Set the number of parts of large @S3Field content to transfer in parallel.  Set to 1 to transfer sequentially. */
+    public Jsoda setS3TransferThreads(int s3TransferThreads) {
+        if (s3TransferThreads < 1)
+            throw new IllegalArgumentException("S3 transfer threads must be at least 1.");
+        this.s3TransferThreads = s3TransferThreads;
+        return this;
+    }
+
+    public int getS3TransferThreads() {
+        return this.s3TransferThreads;
+    }
+
+    /** Set a local disk cache for @S3Field content.  Cached content is revalidated with S3 on every load
+     * and is transferred again only when changed.  Set to null to turn off the cache.
+     */
+    public Jsoda setS3ContentCache(S3ContentCache s3ContentCache) {
+        this.s3ContentCache = s3ContentCache;
+        return this;
+    }
+
+    public S3ContentCache getS3ContentCache() {
+        return this.s3ContentCache;
+    }
+
+    /** Return the transfer options for large S3 content based on the current settings. */
+    public S3TransferOptions getS3TransferOptions() {
+        return new S3TransferOptions(s3PartSize, s3TransferThreads, S3TransferOptions.DEFAULT_PART_RETRIES, executor);
+    }
+
 
     /** Shut down any underlying database services and free up resources */
     public void shutdown() {
         objCacheMgr.shutdown();
         sdbMgr.shutdown();
         ddbMgr.shutdown();
+        executor.shutdownNow();
+        metrics.unregisterMBean();
         modelClasses.clear();
         modelTables.clear();
         modelDb.clear();
@@ -218,6 +288,8 @@ public class Jsoda
         modelRangeFields.clear();
         modelVersionFields.clear();
         modelCachePolicy.clear();
+        modelKeyShards.clear();
+        modelTableShards.clear();
         modelAllFieldMap.clear();
         modelDbFieldMap.clear();
         modelAttrFieldMap.clear();
@@ -230,6 +302,9 @@ public class Jsoda
         modelDao.clear();
         modelS3Dao.clear();
         modelEUtil.clear();
+        modelDualWrite.clear();
+        modelLimiters.clear();
+        modelDeadlines.clear();
     }
 
 
@@ -281,6 +356,8 @@ public class Jsoda
             if (versionField != null)
                 modelVersionFields.put(modelName, versionField);
             toCachePolicy(modelName, modelClass);
+            toKeyShards(modelName, modelClass, idField, rangeField);
+            toTableShards(modelName, modelClass);
             modelAllFieldMap.put(modelName, toFieldMap(allFields));
             modelDbFieldMap.put(modelName, toFieldMap(dbFields));
             modelAttrFieldMap.put(modelName, toAttrFieldMap(dbFields));
@@ -291,6 +368,7 @@ public class Jsoda
             modelDao.put(modelName, new Dao<T>(modelClass, this));
             modelS3Dao.put(modelName, new S3Dao<T>(modelClass, this));
             modelEUtil.put(modelName, new EUtil<T>(modelClass, this));
+            modelLimiters.put(modelName, toThroughputLimiter(modelName, modelClass));
 
             preStore1Registry.checkModelOnFields(modelAllFieldMap.get(modelName));
             preStore2Registry.checkModelOnFields(modelAllFieldMap.get(modelName));
@@ -367,6 +445,185 @@ public class Jsoda
         return modelDb.get(modelName);
     }
 
+    /** Set the retry policy of the database calls.  The AWS clients' own retrying is turned off in favor of it. */
+    public Jsoda setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("Retry policy cannot be null.  Use setMaxRetries(0) to turn off retrying.");
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /** Set the hedging policy of the single object reads to cut their tail latency.  null to turn off hedging, the default. */
+    public Jsoda setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /** Set the slow query log of the query runs and counts.  null to turn off.  The default logs the queries slower than 1 second. */
+    public Jsoda setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+        return this;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /** Set the circuit breaker policy of the database calls, to fail fast when the database degrades.  null to turn off, the default. */
+    public Jsoda setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        return this;
+    }
+
+    public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+        return circuitBreakerPolicy;
+    }
+
+    /** Return the circuit state of the model's DbService.  Always CLOSED when there's no circuit breaker policy. */
+    public CircuitBreaker.State getCircuitState(Class modelClass) {
+        CircuitBreakerPolicy    policy = circuitBreakerPolicy;
+        if (policy == null)
+            return CircuitBreaker.State.CLOSED;
+        String  modelName = getModelName(modelClass);
+        return policy.getBreaker(getDb(modelName).getDbTypeId(), modelName).getState();
+    }
+
+    /**
+     * Set the deadline of a database operation, covering all its retries.  The call is cancelled and fails
+     * with JsodaTimeoutException once the deadline has passed.  0 to remove the deadline.  The operations are put, putIf, batchPut, get,
+     * delete, batchDelete, queryCount, query (per page), and scan (per page).
+     */
+    public Jsoda setOperationDeadline(String op, long deadlineMs) {
+        if (!DbServiceWrapper.OPS.contains(op))
+            throw new IllegalArgumentException("Unknown operation " + op + ".  Operations are " + DbServiceWrapper.OPS);
+        if (deadlineMs > 0)
+            opDeadlines.put(op, deadlineMs);
+        else
+            opDeadlines.remove(op);
+        return this;
+    }
+
+    /** Return the deadline of a database operation, or 0 if none. */
+    public long getOperationDeadline(String op) {
+        Long    deadlineMs = opDeadlines.get(op);
+        return deadlineMs == null ? 0 : deadlineMs.longValue();
+    }
+
+    /**
+     * Set the default deadline of the Dao.get(), Dao.findBy(), Query.run(), and Query.count() calls on the model,
+     * covering the database calls, retries, and S3 field loads of a call.  The call is cancelled and fails with
+     * JsodaTimeoutException once the deadline has passed.  0 to remove the deadline.
+     * See Dao.withDeadline() and Query.deadline() for per-call deadlines.
+     */
+    public Jsoda setModelDeadline(Class modelClass, long deadlineMs) {
+        String  modelName = getModelName(modelClass);
+        validateRegisteredModel(modelName);
+        if (deadlineMs > 0)
+            modelDeadlines.put(modelName, deadlineMs);
+        else
+            modelDeadlines.remove(modelName);
+        return this;
+    }
+
+    /** Return the default deadline of the calls on the model, or 0 if none. */
+    public long getModelDeadline(Class modelClass) {
+        return getModelDeadline(getModelName(modelClass));
+    }
+
+    long getModelDeadline(String modelName) {
+        Long    deadlineMs = modelDeadlines.get(modelName);
+        return deadlineMs == null ? 0 : deadlineMs.longValue();
+    }
+
+    /** Return the metrics registry of the calls on the models. */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** Add an interceptor of the database and S3 calls.  Interceptors are called in the order added. */
+    public Jsoda addInterceptor(Interceptor interceptor) {
+        if (interceptor == null)
+            throw new IllegalArgumentException("Interceptor cannot be null.");
+        interceptors.add(interceptor);
+        return this;
+    }
+
+    public Jsoda removeInterceptor(Interceptor interceptor) {
+        interceptors.remove(interceptor);
+        return this;
+    }
+
+    public List<Interceptor> getInterceptors() {
+        return Collections.unmodifiableList(interceptors);
+    }
+
+    /** Return the live list of the interceptors, for running the calls through them. */
+    List<Interceptor> getInterceptorList() {
+        return interceptors;
+    }
+
+    /** Turn on client side limiting of the throughput used on the tables, so that batch jobs stay within the provisioned
+     * capacity and leave room for interactive calls.  See ThroughputLimiter.  Default is off.
+     */
+    public Jsoda setThroughputLimiting(boolean throughputLimiting) {
+        this.throughputLimiting = throughputLimiting;
+        return this;
+    }
+
+    public boolean isThroughputLimiting() {
+        return throughputLimiting;
+    }
+
+    /** Return the throughput limiter of the model class, for adjusting its rates.  DynamoDB models are seeded from
+     * the @Model readThroughput and writeThroughput; SimpleDB models are unlimited unless set.
+     */
+    public ThroughputLimiter getThroughputLimiter(Class modelClass) {
+        String  modelName = getModelName(modelClass);
+        validateRegisteredModel(modelName);
+        return modelLimiters.get(modelName);
+    }
+
+    /** Return the throughput limiter in effect for the model, which never limits when throughput limiting is off. */
+    ThroughputLimiter getLimiter(String modelName) {
+        if (!throughputLimiting)
+            return ThroughputLimiter.NONE;
+        ThroughputLimiter   limiter = modelLimiters.get(modelName);
+        return limiter == null ? ThroughputLimiter.NONE : limiter;
+    }
+
+    /** Mirror the writes and deletes done via the Dao of the model class to the same model registered in the secondary Jsoda,
+     * which can be bound to another dbtype.  It keeps the two databases in sync while migrating from one to the other.
+     * The @S3Field content is not mirrored.  Set secondary to null to stop.
+     */
+    public <T> void setDualWrite(Class<T> modelClass, Jsoda secondary)
+        throws JsodaException
+    {
+        String  modelName = getModelName(modelClass);
+        validateRegisteredModel(modelName);
+        if (secondary == null) {
+            modelDualWrite.remove(modelName);
+        } else {
+            if (secondary == this)
+                throw new IllegalArgumentException("Cannot dual-write to the same Jsoda object.");
+            if (!secondary.isRegistered(modelClass))
+                secondary.registerModel(modelClass);
+            modelDualWrite.put(modelName, secondary);
+        }
+    }
+
+    /** Return the secondary Jsoda for dual-write of the model, or null. */
+    Jsoda getDualWrite(String modelName) {
+        return modelDualWrite.get(modelName);
+    }
+
     public AmazonS3Client getS3Client() {
         return s3Client;
     }
@@ -382,6 +639,24 @@ public class Jsoda
         return getModelTable((String)getModelName(modelClass));
     }
 
+    /** Return the table names of a registered model class, one per shard for a @ShardedTable model. */
+    List<String> getModelTables(String modelName) {
+        int             shards = getTableShards(modelName);
+        List<String>    tables = new ArrayList<String>(shards);
+        if (shards <= 1)
+            tables.add(getModelTable(modelName));
+        else {
+            for (int shard = 0; shard < shards; shard++)
+                tables.add(getShardTable(modelName, shard));
+        }
+        return tables;
+    }
+
+    /** Return the table name of a shard of a @ShardedTable model. */
+    String getShardTable(String modelName, int shard) {
+        return getModelTable(modelName) + ShardedTable.SEPARATOR + shard;
+    }
+
     /** Return a field of a registered model class by the field name, including all fields. */
     Field getField(String modelName, String fieldName) {
         validateRegisteredModel(modelName);
@@ -441,8 +716,8 @@ public class Jsoda
         if (!isRegistered(modelClass))
             registerModel(modelClass);
         String  modelName = getModelName(modelClass);
-        String  tableName = getModelTable(modelName);
-        getDb(modelName).deleteTable(tableName);
+        for (String tableName : getModelTables(modelName))
+            getDb(modelName).deleteTable(tableName);
     }
 
     /** Delete the table in the database, as named in tableName, in the dbtype */
@@ -530,6 +805,47 @@ public class Jsoda
         return (EUtil<T>)modelEUtil.get(getModelName(modelClass));
     }
 
+    /** Create a bulk loader to load records from a NDJSON or CSV file into the table of the model class.
+     * <pre>
+     * e.g.
+     *   jsoda.bulkLoader(Model1.class).setThreads(8).loadNdjson(new File("model1.json"));
+     * </pre>
+     */
+    public <T> BulkLoader<T> bulkLoader(Class<T> modelClass)
+        throws JsodaException
+    {
+        if (!isRegistered(modelClass))
+            registerModel(modelClass);
+        return new BulkLoader<T>(modelClass, this);
+    }
+
+    /** Create an exporter to export all the objects of the model class to gzip compressed NDJSON files.
+     * <pre>
+     * e.g.
+     *   jsoda.exporter(Model1.class).setThreads(8).exportTo(new File("/backup/model1"));
+     * </pre>
+     */
+    public <T> Exporter<T> exporter(Class<T> modelClass)
+        throws JsodaException
+    {
+        if (!isRegistered(modelClass))
+            registerModel(modelClass);
+        return new Exporter<T>(modelClass, this);
+    }
+
+    /** Create a migrator to copy the table of the model class from this Jsoda's database to the target Jsoda's,
+     * which has the model class registered to another dbtype.
+     * <pre>
+     * e.g.
+     *   sdbJsoda.migrator(Model1.class, ddbJsoda).setReadThreads(8).migrate();
+     * </pre>
+     */
+    public <T> Migrator<T> migrator(Class<T> modelClass, Jsoda target)
+        throws JsodaException
+    {
+        return new Migrator<T>(modelClass, this, target);
+    }
+
 
     /** @deprecated Use EUtil.dump() instead.
      */
@@ -577,6 +893,18 @@ public class Jsoda
         return modelCachePolicy.get(modelName);
     }
 
+    /** Number of shards of the hash keys of a @ShardedKey model, or 1 for a model not sharded. */
+    int getKeyShards(String modelName) {
+        Integer shards = modelKeyShards.get(modelName);
+        return shards == null ? 1 : shards.intValue();
+    }
+
+    /** Number of tables of a @ShardedTable model, or 1 for a model not sharded. */
+    int getTableShards(String modelName) {
+        Integer shards = modelTableShards.get(modelName);
+        return shards == null ? 1 : shards.intValue();
+    }
+
     Method getPrePersistMethod(String modelName) {
         return modelPrePersistMethod.get(modelName);
     }
@@ -600,10 +928,12 @@ public class Jsoda
     }
 
     String makePkKey(String modelName, Object idKey, Object rangeKey) {
-        String  dbId = getDb(modelName).getDbTypeId();
         String  idStr = DataUtil.encodeValueToAttrStr(idKey, getIdField(modelName).getType());
         Field   rangeField = getRangeField(modelName);
-        return rangeField == null ? idStr : idStr + "/" + DataUtil.encodeValueToAttrStr(rangeKey, rangeField.getType());
+        if (rangeField == null)
+            return idStr;
+        String  rangeStr = String.valueOf(DataUtil.encodeValueToAttrStr(rangeKey, rangeField.getType()));
+        return new StringBuilder(idStr.length() + 1 + rangeStr.length()).append(idStr).append('/').append(rangeStr).toString();
     }
 
 
@@ -686,9 +1016,9 @@ public class Jsoda
             throw new IllegalArgumentException("Missing 'dbtype' parameter");
 
         if (dbtype == DbType.SimpleDB)
-            return sdbMgr;
+            return sdbService;
         if (dbtype == DbType.DynamoDB)
-            return ddbMgr;
+            return ddbService;
 
         throw new IllegalArgumentException(dbtype + " is not a supported dbtype");
     }
@@ -707,6 +1037,14 @@ public class Jsoda
         return getDbService(dbtype);
     }
 
+    private ThroughputLimiter toThroughputLimiter(String modelName, Class modelClass) {
+        if (modelDb.get(modelName).getDbType() != DbType.DynamoDB)
+            return new ThroughputLimiter(modelName, 0, 0);
+        long    readRate = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "readThroughput", Long.class, Long.valueOf(10));
+        long    writeRate = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "writeThroughput", Long.class, Long.valueOf(5));
+        return new ThroughputLimiter(modelName, readRate, writeRate);
+    }
+
     private String toTableName(Class modelClass) {
         String  modelName = getModelName(modelClass);
         String  tableName = ReflectUtil.getAnnotationValue(modelClass, Model.class, "table", modelName);   // default to modelName
@@ -734,7 +1072,7 @@ public class Jsoda
             if (cacheable) {
                 // Serializable and Cacheable.  Can cache.
                 int expireInSeconds = ReflectUtil.getAnnotationValue(modelClass, CachePolicy.class, "expireInSeconds", Integer.class, 0);
-                modelCachePolicy.put(modelName, new Integer(expireInSeconds));
+                modelCachePolicy.put(modelName, Integer.valueOf(expireInSeconds));
                 return;
             }
         } else {
@@ -745,10 +1083,38 @@ public class Jsoda
         }
 
         // Don't cache objects of the model.
-        modelCachePolicy.put(modelName, new Integer(-1));
+        modelCachePolicy.put(modelName, Integer.valueOf(-1));
     }
 
 
+    private void toKeyShards(String modelName, Class modelClass, Field idField, Field rangeField) {
+        modelKeyShards.remove(modelName);
+        if (!ReflectUtil.hasAnnotation(modelClass, ShardedKey.class))
+            return;
+        int     shards = ReflectUtil.getAnnotationValueEx(modelClass, ShardedKey.class, "shards", Integer.class, Integer.valueOf(1));
+        if (modelDb.get(modelName).getDbType() != DbType.DynamoDB)
+            throw new IllegalArgumentException("@ShardedKey is only supported on DynamoDB models.  Model: " + modelName);
+        if (shards < 1)
+            throw new IllegalArgumentException("@ShardedKey shards must be positive.  Model: " + modelName);
+        if (idField.getType() != String.class || rangeField == null)
+            throw new IllegalArgumentException("@ShardedKey model needs a String hash key and a range key.  Model: " + modelName);
+        if (shards > 1)
+            modelKeyShards.put(modelName, shards);
+    }
+
+    private void toTableShards(String modelName, Class modelClass) {
+        modelTableShards.remove(modelName);
+        if (!ReflectUtil.hasAnnotation(modelClass, ShardedTable.class))
+            return;
+        int     shards = ReflectUtil.getAnnotationValueEx(modelClass, ShardedTable.class, "shards", Integer.class, Integer.valueOf(1));
+        if (modelDb.get(modelName).getDbType() != DbType.SimpleDB)
+            throw new IllegalArgumentException("@ShardedTable is only supported on SimpleDB models.  Model: " + modelName);
+        if (shards < 1)
+            throw new IllegalArgumentException("@ShardedTable shards must be positive.  Model: " + modelName);
+        if (shards > 1)
+            modelTableShards.put(modelName, shards);
+    }
+
     private Map<String, Field> toFieldMap(List<Field> fields) {
         Map<String, Field>  map = new ConcurrentHashMap<String, Field>();
         for (Field field : fields)
@@ -885,5 +1251,21 @@ public class Jsoda
         postLoadSteps(dataObj, true);
     }
 
-}
 
+    /** Executor for background work of the Jsoda object, e.g. transferring parts of large S3 content in parallel. */
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /** Daemon worker threads so that a Jsoda object not shut down does not keep the JVM alive. */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger  threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread  t = new Thread(r, "jsoda-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
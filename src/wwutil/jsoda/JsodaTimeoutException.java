@@ -0,0 +1,33 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Thrown when a call has not completed within its deadline.  The work of the call is cancelled.
+ */
+public class JsodaTimeoutException extends JsodaException {
+
+    public JsodaTimeoutException(String msg) {
+        super(msg);
+    }
+
+    public JsodaTimeoutException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
+}
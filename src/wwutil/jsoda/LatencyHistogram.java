@@ -0,0 +1,91 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Latency histogram with log-linear buckets in the style of HdrHistogram.  Each power of two range of
+ * microseconds is split into 32 linear sub-buckets, giving about 3% precision from 1us up to days.
+ * Recording is a couple of atomic increments without locking.
+ * Class is thread-safe.
+ */
+class LatencyHistogram
+{
+    static final int        SUB_BITS = 5;
+    static final int        SUB_COUNT = 1 << SUB_BITS;
+    static final int        MAX_SHIFT = 36;
+    static final long       MAX_VALUE = (2L * SUB_COUNT << MAX_SHIFT) - 1;
+
+    private AtomicLongArray counts = new AtomicLongArray(SUB_COUNT * (MAX_SHIFT + 2));
+    private AtomicLong      count = new AtomicLong();
+    private AtomicLong      sum = new AtomicLong();
+    private AtomicLong      max = new AtomicLong();
+
+
+    void record(long micros) {
+        long    value = Math.max(0, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get())
+            ;
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long    n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /** Return the value at the percentile, between 0 and 1, as the middle of its bucket. */
+    long getPercentile(double percentile) {
+        long    n = count.get();
+        if (n == 0)
+            return 0;
+        long    rank = Math.max(1, (long)Math.ceil(percentile * n));
+        long    seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(max.get(), (lowValue(i) + lowValue(i + 1) - 1) / 2);
+        }
+        return max.get();
+    }
+
+    /** Values below 2 * SUB_COUNT have their own bucket.  Above, the bucket is the top SUB_BITS + 1 bits of the value. */
+    static int index(long value) {
+        int     shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return SUB_COUNT * shift + (int)(value >>> shift);
+    }
+
+    static long lowValue(int index) {
+        if (index < 2 * SUB_COUNT)
+            return index;
+        int     shift = index / SUB_COUNT - 1;
+        return (long)(index - SUB_COUNT * shift) << shift;
+    }
+
+}
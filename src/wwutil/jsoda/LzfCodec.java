@@ -0,0 +1,344 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Pure Java LZF codec, trading compression ratio for much faster compression and decompression than deflate.
+ * Content is compressed in independent chunks of up to 64KB, in the chunk format of the LZF stream
+ * ("ZV" header, then an uncompressed or compressed chunk).  The compression level is ignored.
+ */
+class LzfCodec extends CompressionCodec
+{
+    static final int            MAX_CHUNK = 0xFFFF;
+
+    private static final int    HASH_BITS = 14;
+    private static final int    MAX_OFFSET = 1 << 13;
+    private static final int    MAX_LITERAL = 1 << 5;
+    private static final int    MAX_MATCH = (1 << 8) + (1 << 3);    // 264, the longest back reference in LZF.
+    private static final int    CHUNK_UNCOMPRESSED = 0;
+    private static final int    CHUNK_COMPRESSED = 1;
+
+
+    public String getName() {
+        return "lzf";
+    }
+
+    public OutputStream compress(OutputStream os, int level) {
+        return new LzfOutputStream(os);
+    }
+
+    public InputStream decompress(InputStream is) {
+        return new LzfInputStream(is);
+    }
+
+
+    /** Compress in[0, inLen) into out.  out must have room for inLen + inLen / 32 + 1 bytes.  Return the compressed length. */
+    static int compressChunk(byte[] in, int inLen, byte[] out, int[] hashTable) {
+        Arrays.fill(hashTable, -1);
+        int ip = 0;
+        int op = 0;
+        int literalStart = 0;
+
+        while (ip < inLen - 2) {
+            int h = hash(in, ip);
+            int ref = hashTable[h];
+            hashTable[h] = ip;
+            int off = ip - ref - 1;
+            if (ref >= 0 && off < MAX_OFFSET && in[ref] == in[ip] && in[ref + 1] == in[ip + 1] && in[ref + 2] == in[ip + 2]) {
+                op = writeLiterals(in, literalStart, ip - literalStart, out, op);
+                int maxLen = Math.min(MAX_MATCH, inLen - ip);
+                int len = 3;
+                while (len < maxLen && in[ref + len] == in[ip + len])
+                    len++;
+                int l = len - 2;
+                if (l < 7) {
+                    out[op++] = (byte)((l << 5) + (off >> 8));
+                } else {
+                    out[op++] = (byte)((7 << 5) + (off >> 8));
+                    out[op++] = (byte)(l - 7);
+                }
+                out[op++] = (byte)off;
+                ip += len;
+                literalStart = ip;
+                if (ip < inLen - 2)
+                    hashTable[hash(in, ip - 1)] = ip - 1;
+            } else {
+                ip++;
+            }
+        }
+        return writeLiterals(in, literalStart, inLen - literalStart, out, op);
+    }
+
+    /** Decompress in[0, inLen) into out[0, outLen). */
+    static void decompressChunk(byte[] in, int inLen, byte[] out, int outLen)
+        throws IOException
+    {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < inLen) {
+                int ctrl = in[ip++] & 0xFF;
+                if (ctrl < MAX_LITERAL) {
+                    int len = ctrl + 1;
+                    System.arraycopy(in, ip, out, op, len);
+                    ip += len;
+                    op += len;
+                } else {
+                    int len = ctrl >> 5;
+                    if (len == 7)
+                        len += in[ip++] & 0xFF;
+                    len += 2;
+                    int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+                    if (ref < 0 || op + len > outLen)
+                        throw new IOException("Corrupt LZF content.");
+                    if (op - ref >= len) {
+                        System.arraycopy(out, ref, out, op, len);
+                        op += len;
+                    } else {
+                        for (int i = 0; i < len; i++)   // overlapping run.
+                            out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch(IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZF content.");
+        }
+        if (op != outLen)
+            throw new IOException("Corrupt LZF content.");
+    }
+
+    private static int hash(byte[] in, int ip) {
+        int v = ((in[ip] & 0xFF) << 16) | ((in[ip + 1] & 0xFF) << 8) | (in[ip + 2] & 0xFF);
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeLiterals(byte[] in, int start, int len, byte[] out, int op) {
+        while (len > 0) {
+            int n = Math.min(MAX_LITERAL, len);
+            out[op++] = (byte)(n - 1);
+            System.arraycopy(in, start, out, op, n);
+            op += n;
+            start += n;
+            len -= n;
+        }
+        return op;
+    }
+
+
+    private static class LzfOutputStream extends FilterOutputStream {
+        private byte[]      chunk = new byte[MAX_CHUNK];
+        private byte[]      compressed = new byte[MAX_CHUNK + MAX_CHUNK / 32 + 1];
+        private int[]       hashTable = new int[1 << HASH_BITS];
+        private int         count = 0;
+        private boolean     closed = false;
+
+        LzfOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            if (count == chunk.length)
+                writeChunk();
+            chunk[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            while (len > 0) {
+                if (count == chunk.length)
+                    writeChunk();
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                writeChunk();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeChunk()
+            throws IOException
+        {
+            if (count == 0)
+                return;
+            int clen = compressChunk(chunk, count, compressed, hashTable);
+            out.write('Z');
+            out.write('V');
+            if (clen < count) {
+                out.write(CHUNK_COMPRESSED);
+                writeShort(clen);
+                writeShort(count);
+                out.write(compressed, 0, clen);
+            } else {
+                out.write(CHUNK_UNCOMPRESSED);
+                writeShort(count);
+                out.write(chunk, 0, count);
+            }
+            count = 0;
+        }
+
+        private void writeShort(int v)
+            throws IOException
+        {
+            out.write((v >> 8) & 0xFF);
+            out.write(v & 0xFF);
+        }
+    }
+
+    private static class LzfInputStream extends FilterInputStream {
+        private byte[]      chunk = new byte[MAX_CHUNK];
+        private byte[]      compressed = new byte[MAX_CHUNK];
+        private int         pos = 0;
+        private int         limit = 0;
+
+        LzfInputStream(InputStream is) {
+            super(is);
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            if (pos == limit && !readChunk())
+                return -1;
+            return chunk[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (pos == limit && !readChunk())
+                return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+            throws IOException
+        {
+            long    skipped = 0;
+            while (skipped < n) {
+                if (pos == limit && !readChunk())
+                    break;
+                int k = (int)Math.min(n - skipped, limit - pos);
+                pos += k;
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private boolean readChunk()
+            throws IOException
+        {
+            int z = in.read();
+            if (z == -1)
+                return false;
+            if (z != 'Z' || readByte() != 'V')
+                throw new IOException("Corrupt LZF content.");
+            int type = readByte();
+            if (type == CHUNK_UNCOMPRESSED) {
+                int len = readShort();
+                readFully(chunk, len);
+                limit = len;
+            } else if (type == CHUNK_COMPRESSED) {
+                int clen = readShort();
+                int len = readShort();
+                readFully(compressed, clen);
+                decompressChunk(compressed, clen, chunk, len);
+                limit = len;
+            } else {
+                throw new IOException("Corrupt LZF content.");
+            }
+            pos = 0;
+            return true;
+        }
+
+        private int readByte()
+            throws IOException
+        {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException("Unexpected end of LZF content.");
+            return b;
+        }
+
+        private int readShort()
+            throws IOException
+        {
+            return (readByte() << 8) | readByte();
+        }
+
+        private void readFully(byte[] b, int len)
+            throws IOException
+        {
+            int off = 0;
+            while (off < len) {
+                int n = in.read(b, off, len - off);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of LZF content.");
+                off += n;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Metrics registry of a Jsoda object.  For each model and operation, it records the call count, error count,
+ * items, bytes, and a latency histogram.  The database operations are put, putIf, batchPut, get, delete,
+ * batchDelete, queryCount, query (per page), and scan (per page).  The S3 field operations are s3Load, s3Save,
+ * s3Delete, and s3BatchDelete (per bucket).
+ * For DynamoDB, the capacity units consumed are kept as a total and as the rolling rate over the last minute,
+ * to find which operations use up the provisioned throughput.
+ * With a HotKeySampler set, the most frequently accessed keys of each model are tracked, to find the hot keys.
+ *
+ * The metrics are read with getSnapshot() or over JMX after registerMBean().  Recording is lock-free.
+ * Class is thread-safe.
+ */
+public class Metrics implements MetricsMXBean
+{
+    private static Log  log = LogFactory.getLog(Metrics.class);
+
+    public static final String  OP_S3_LOAD = "s3Load";
+    public static final String  OP_S3_SAVE = "s3Save";
+    public static final String  OP_S3_DELETE = "s3Delete";
+    public static final String  OP_S3_BATCH_DELETE = "s3BatchDelete";
+
+    private volatile boolean    enabled = true;
+    private ConcurrentMap<String, ConcurrentMap<String, Recorder>>  recorders = new ConcurrentHashMap<String, ConcurrentMap<String, Recorder>>();
+    private volatile HotKeySampler  hotKeySampler;
+    private volatile ObjectName mbeanName;
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Turn recording on or off.  Default is on. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Return the snapshots of all the models and operations recorded, sorted by model and operation. */
+    public List<OperationStats> getOperations() {
+        return new ArrayList<OperationStats>(getSnapshot().values());
+    }
+
+    /** Return the snapshots of all the models and operations by "modelName/operation". */
+    public Map<String, OperationStats> getSnapshot() {
+        Map<String, OperationStats> map = new TreeMap<String, OperationStats>();
+        for (Map<String, Recorder> opRecorders : recorders.values()) {
+            for (Recorder recorder : opRecorders.values())
+                map.put(recorder.modelName + "/" + recorder.op, recorder.snapshot());
+        }
+        return map;
+    }
+
+    /** Return the snapshot of an operation on the model, or null if it has not been recorded. */
+    public OperationStats getSnapshot(Class modelClass, String operation) {
+        Map<String, Recorder>   opRecorders = recorders.get(Jsoda.getModelName(modelClass));
+        Recorder                recorder = opRecorders == null ? null : opRecorders.get(operation);
+        return recorder == null ? null : recorder.snapshot();
+    }
+
+    /** Set the sampler of the hot keys.  Default is null for no sampling. */
+    public Metrics setHotKeySampler(HotKeySampler hotKeySampler) {
+        this.hotKeySampler = hotKeySampler;
+        return this;
+    }
+
+    public HotKeySampler getHotKeySampler() {
+        return hotKeySampler;
+    }
+
+    /** Return the top 10 hot keys of every model and kind. */
+    public List<HotKey> getHotKeys() {
+        HotKeySampler   sampler = hotKeySampler;
+        return sampler == null ? new ArrayList<HotKey>() : sampler.getHotKeys(10);
+    }
+
+    /** Return the top k hot keys of the model of a kind, HotKeySampler.READ, WRITE, READ_HASH, or WRITE_HASH. */
+    public List<HotKey> getHotKeys(Class modelClass, String kind, int k) {
+        HotKeySampler   sampler = hotKeySampler;
+        return sampler == null ? new ArrayList<HotKey>() : sampler.getHotKeys(Jsoda.getModelName(modelClass), kind, k);
+    }
+
+    public void reset() {
+        recorders.clear();
+        HotKeySampler   sampler = hotKeySampler;
+        if (sampler != null)
+            sampler.reset();
+    }
+
+    public String dumpMetrics() {
+        StringBuilder   sb = new StringBuilder("Metrics");
+        for (OperationStats stats : getOperations())
+            sb.append("\n  ").append(stats);
+        HotKeySampler   sampler = hotKeySampler;
+        if (sampler != null)
+            sb.append("\n").append(sampler.dumpMetrics());
+        return sb.toString();
+    }
+
+    /** Register the metrics as an MXBean on the platform MBean server, under wwutil.jsoda:type=Metrics,name=<name>. */
+    public synchronized void registerMBean(String name)
+        throws JsodaException
+    {
+        unregisterMBean();
+        try {
+            ObjectName  objName = new ObjectName("wwutil.jsoda:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objName);
+            mbeanName = objName;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to register the metrics MBean " + name, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch(Exception e) {
+            log.warn("Failed to unregister the metrics MBean " + mbeanName + ".  Error: " + e);
+        }
+        mbeanName = null;
+    }
+
+
+    /** Record a call of the operation on the model. */
+    void record(String modelName, String op, long startNanos, boolean error) {
+        if (!enabled)
+            return;
+        Recorder    recorder = recorder(modelName, op);
+        recorder.calls.incrementAndGet();
+        if (error)
+            recorder.errors.incrementAndGet();
+        recorder.latency.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    void addItems(String modelName, String op, long items) {
+        if (enabled && items > 0)
+            recorder(modelName, op).items.addAndGet(items);
+    }
+
+    void addBytes(String modelName, String op, long bytes) {
+        if (enabled && bytes > 0)
+            recorder(modelName, op).bytes.addAndGet(bytes);
+    }
+
+    /** Add the capacity units consumed by a call, as reported by the database. */
+    void addCapacity(String modelName, String op, double units) {
+        if (enabled && units > 0) {
+            Recorder    recorder = recorder(modelName, op);
+            recorder.capacity.addAndGet(Math.round(units * 1000));
+            recorder.capacityRate.add(units);
+        }
+    }
+
+    private Recorder recorder(String modelName, String op) {
+        ConcurrentMap<String, Recorder> opRecorders = recorders.get(modelName);
+        if (opRecorders == null) {
+            recorders.putIfAbsent(modelName, new ConcurrentHashMap<String, Recorder>());
+            opRecorders = recorders.get(modelName);
+        }
+        Recorder    recorder = opRecorders.get(op);
+        if (recorder == null) {
+            opRecorders.putIfAbsent(op, new Recorder(modelName, op));
+            recorder = opRecorders.get(op);
+        }
+        return recorder;
+    }
+
+
+    private static class Recorder {
+        final String            modelName;
+        final String            op;
+        final AtomicLong        calls = new AtomicLong();
+        final AtomicLong        errors = new AtomicLong();
+        final AtomicLong        items = new AtomicLong();
+        final AtomicLong        bytes = new AtomicLong();
+        final AtomicLong        capacity = new AtomicLong();        // in thousandths of a unit.
+        final RollingRate       capacityRate = new RollingRate();
+        final LatencyHistogram  latency = new LatencyHistogram();
+
+        Recorder(String modelName, String op) {
+            this.modelName = modelName;
+            this.op = op;
+        }
+
+        OperationStats snapshot() {
+            return new OperationStats(modelName, op, calls.get(), errors.get(), items.get(), bytes.get(),
+                                      capacity.get() / 1000.0, capacityRate.getRate(), latency);
+        }
+    }
+
+}
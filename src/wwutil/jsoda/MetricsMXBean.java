@@ -0,0 +1,41 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.List;
+
+
+/**
+ * JMX interface of the metrics of a Jsoda object.
+ */
+public interface MetricsMXBean
+{
+    /** Return the snapshots of the metrics of all the models and operations. */
+    public List<OperationStats> getOperations();
+
+    /** Return the top hot keys of every model, when a HotKeySampler is set. */
+    public List<HotKey> getHotKeys();
+
+    public boolean isEnabled();
+
+    public void setEnabled(boolean enabled);
+
+    public void reset();
+
+    public String dumpMetrics();
+
+}
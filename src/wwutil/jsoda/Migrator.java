@@ -0,0 +1,515 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.ReflectUtil;
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.Model;
+
+
+/**
+ * Migrate the table of a model class from one database to another, e.g. from SimpleDB to DynamoDB.
+ * The source and target are two Jsoda objects with the model class registered to different dbtypes.
+ *
+ * The migration is pipelined.  Partitions of the source table are scanned in parallel, feeding the pages
+ * to a bounded queue, from which the writer threads write to the target in batches.  The scanning waits
+ * when the queue is full, so a slow target holds back the reading.  Writing is throttled to the target rate
+ * in items per second, which defaults to the @Model.writeThroughput when the target is DynamoDB.
+ * Objects are copied as stored, without running the pre-store steps.
+ *
+ * For cutting over with live traffic, turn on dual-write before migrating so that the writes via Dao
+ * during and after the migration are mirrored to the target.  Then verify the tables, which compares
+ * the checksums of the objects in each key range and reports the keys of the ranges that differ.
+ * <pre>
+ * e.g.
+ *   Jsoda  sdb = new Jsoda(cred);  sdb.registerModel(Model1.class, DbType.SimpleDB);
+ *   Jsoda  ddb = new Jsoda(cred);  ddb.registerModel(Model1.class, DbType.DynamoDB);
+ *   Migrator&lt;Model1&gt;  migrator = sdb.migrator(Model1.class, ddb);
+ *   migrator.startDualWrite();
+ *   migrator.migrate();
+ *   Migrator.VerifyResult  result = migrator.verify();
+ * </pre>
+ */
+public class Migrator<T>
+{
+    private static Log  log = LogFactory.getLog(Migrator.class);
+
+    public static final int     MAX_BATCH_SIZE = 25;
+    public static final int     DEFAULT_READ_THREADS = 4;
+    public static final int     DEFAULT_WRITE_THREADS = 4;
+    public static final int     DEFAULT_QUEUE_PAGES = 16;
+    public static final int     DEFAULT_VERIFY_RANGES = 64;
+    private static final long   POLL_MS = 100;
+    private static final long   FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long   FNV_PRIME = 0x100000001b3L;
+
+    private Class<T>            modelClass;
+    private String              modelName;
+    private Jsoda               source;
+    private Jsoda               target;
+    private int                 readThreads = DEFAULT_READ_THREADS;
+    private int                 writeThreads = DEFAULT_WRITE_THREADS;
+    private int                 batchSize = MAX_BATCH_SIZE;
+    private int                 queuePages = DEFAULT_QUEUE_PAGES;
+    private int                 verifyRanges = DEFAULT_VERIFY_RANGES;
+    private String[]            splitPoints;
+    private boolean             copyS3Fields = false;
+    private RateLimiter         rateLimiter;
+
+    // Progress of the current migration.
+    private AtomicLong          itemsRead = new AtomicLong();
+    private AtomicLong          itemsWritten = new AtomicLong();
+    private AtomicLong          pagesScanned = new AtomicLong();
+    private volatile Exception  failure;
+
+
+    public Migrator(Class<T> modelClass, Jsoda source, Jsoda target)
+        throws JsodaException
+    {
+        if (source == target)
+            throw new IllegalArgumentException("Source and target must be different Jsoda objects.");
+        this.modelClass = modelClass;
+        this.modelName = Jsoda.getModelName(modelClass);
+        this.source = source;
+        this.target = target;
+        if (!source.isRegistered(modelClass))
+            source.registerModel(modelClass);
+        if (!target.isRegistered(modelClass))
+            target.registerModel(modelClass);
+
+        long    rate = 0;
+        if (target.getDb(modelName).getDbType() == DbType.DynamoDB)
+            rate = ReflectUtil.getAnnotationValueEx(modelClass, Model.class, "writeThroughput", Long.class, Long.valueOf(5));
+        this.rateLimiter = new RateLimiter(rate);
+    }
+
+    /** Number of source partitions scanned concurrently.  For SimpleDB, it's also the default number of partitions. */
+    public Migrator<T> setReadThreads(int readThreads) {
+        if (readThreads < 1)
+            throw new IllegalArgumentException("Read threads must be at least 1.");
+        this.readThreads = readThreads;
+        return this;
+    }
+
+    /** Number of batches written to the target concurrently. */
+    public Migrator<T> setWriteThreads(int writeThreads) {
+        if (writeThreads < 1)
+            throw new IllegalArgumentException("Write threads must be at least 1.");
+        this.writeThreads = writeThreads;
+        return this;
+    }
+
+    /** Number of objects per batch write, up to 25. */
+    public Migrator<T> setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /** Number of scanned pages queued up for writing before the scanning waits. */
+    public Migrator<T> setQueuePages(int queuePages) {
+        if (queuePages < 1)
+            throw new IllegalArgumentException("Queue pages must be at least 1.");
+        this.queuePages = queuePages;
+        return this;
+    }
+
+    /** Target write rate in items per second.  0 for unlimited. */
+    public Migrator<T> setRate(double itemsPerSecond) {
+        rateLimiter.setRate(itemsPerSecond);
+        return this;
+    }
+
+    /** Item names to split a SimpleDB table into partitions for scanning, in ascending order.  See Exporter.setSplitPoints(). */
+    public Migrator<T> setSplitPoints(String... splitPoints) {
+        for (int i = 1; i < splitPoints.length; i++) {
+            if (splitPoints[i - 1].compareTo(splitPoints[i]) >= 0)
+                throw new IllegalArgumentException("Split points must be in ascending order.");
+        }
+        this.splitPoints = splitPoints;
+        return this;
+    }
+
+    /** Copy the @S3Field content from the source's S3 location to the target's.  Only needed when they use different buckets. */
+    public Migrator<T> setCopyS3Fields(boolean copyS3Fields) {
+        this.copyS3Fields = copyS3Fields;
+        return this;
+    }
+
+    /** Number of key ranges to compare checksums in verify(). */
+    public Migrator<T> setVerifyRanges(int verifyRanges) {
+        if (verifyRanges < 1)
+            throw new IllegalArgumentException("Verify ranges must be at least 1.");
+        this.verifyRanges = verifyRanges;
+        return this;
+    }
+
+
+    /** Mirror the writes via the source's Dao to the target, to keep the target in sync during cut-over. */
+    public void startDualWrite()
+        throws JsodaException
+    {
+        source.setDualWrite(modelClass, target);
+    }
+
+    public void stopDualWrite()
+        throws JsodaException
+    {
+        source.setDualWrite(modelClass, null);
+    }
+
+    /** Copy all the objects from the source table to the target table.  Return the number of objects copied. */
+    public long migrate()
+        throws JsodaException
+    {
+        itemsRead.set(0);
+        itemsWritten.set(0);
+        pagesScanned.set(0);
+        failure = null;
+
+        final BlockingQueue<List<T>>    queue = new ArrayBlockingQueue<List<T>>(queuePages);
+        final List<T>                   endOfPages = new ArrayList<T>();
+        List<Future<?>>                 writers = new ArrayList<Future<?>>();
+
+        try {
+            for (int i = 0; i < writeThreads; i++) {
+                writers.add(target.getExecutor().submit(new Runnable() {
+                        public void run() {
+                            try {
+                                while (failure == null) {
+                                    List<T> page = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                                    if (page == endOfPages)
+                                        break;
+                                    if (page != null)
+                                        writePage(page);
+                                }
+                            } catch(Exception e) {
+                                fail(e);
+                                log.error("Failed to write to " + modelName + " at " + target.getDb(modelName).getDbTypeId(), e);
+                            }
+                        }
+                    }));
+            }
+
+            scanTable(source, new PageHandler() {
+                    void handle(List<T> page) throws Exception {
+                        itemsRead.addAndGet(page.size());
+                        enqueue(queue, page);
+                    }
+                });
+
+            for (int i = 0; i < writeThreads; i++)
+                enqueue(queue, endOfPages);
+            for (Future<?> writer : writers)
+                writer.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        } catch(Exception e) {
+            fail(e);
+        } finally {
+            for (Future<?> writer : writers)
+                writer.cancel(true);
+        }
+
+        log.info(dumpProgress());
+        if (failure != null)
+            throw new JsodaException("Failed to migrate " + modelName, failure);
+        return itemsWritten.get();
+    }
+
+    /** Compare the objects of the source and target tables.  The objects are grouped into key ranges by the hash of
+     * their keys, and the count and checksum of each range are compared.  The ranges differing are scanned again
+     * to find the keys missing, extra, or different in the target.  Writes done during the verification
+     * can show up as differences.
+     */
+    public VerifyResult verify()
+        throws JsodaException
+    {
+        failure = null;
+        try {
+            final RangeChecksums    sourceSums = new RangeChecksums(verifyRanges);
+            final RangeChecksums    targetSums = new RangeChecksums(verifyRanges);
+            Future<?>               targetScan = source.getExecutor().submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        scanTable(target, targetSums);
+                        return null;
+                    }
+                });
+            scanTable(source, sourceSums);
+            targetScan.get();
+
+            VerifyResult    result = new VerifyResult(verifyRanges);
+            for (int i = 0; i < verifyRanges; i++) {
+                result.sourceCount += sourceSums.counts.get(i);
+                result.targetCount += targetSums.counts.get(i);
+                if (sourceSums.counts.get(i) != targetSums.counts.get(i) || sourceSums.sums.get(i) != targetSums.sums.get(i))
+                    result.mismatchedRanges.add(i);
+            }
+            if (result.mismatchedRanges.size() > 0)
+                diffRanges(result);
+
+            log.info("Verified " + modelName + " " + result);
+            return result;
+        } catch(JsodaException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to verify " + modelName, e);
+        }
+    }
+
+    public long getItemsRead() {
+        return itemsRead.get();
+    }
+
+    public long getItemsWritten() {
+        return itemsWritten.get();
+    }
+
+    public long getPagesScanned() {
+        return pagesScanned.get();
+    }
+
+    public String dumpProgress() {
+        return "Migrator " + modelName + " " + source.getDb(modelName).getDbTypeId() + " to " + target.getDb(modelName).getDbTypeId() +
+            " read: " + getItemsRead() + ", written: " + getItemsWritten() + ", pages: " + getPagesScanned();
+    }
+
+
+    private void writePage(List<T> page)
+        throws Exception
+    {
+        for (int i = 0; i < page.size() && failure == null; i += batchSize) {
+            List<T> batch = new ArrayList<T>(page.subList(i, Math.min(i + batchSize, page.size())));
+            rateLimiter.acquire(batch.size());
+            target.getDb(modelName).putObjs(modelClass, batch);
+            if (copyS3Fields) {
+                for (T obj : batch) {
+                    source.s3dao(modelClass).loadS3Fields(obj);
+                    target.s3dao(modelClass).saveS3Fields(obj);
+                }
+            }
+            itemsWritten.addAndGet(batch.size());
+        }
+    }
+
+    /** Put the page in the queue, waiting for space unless the migration has failed. */
+    private void enqueue(BlockingQueue<List<T>> queue, List<T> page)
+        throws InterruptedException
+    {
+        while (failure == null) {
+            if (queue.offer(page, POLL_MS, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    private void fail(Exception e) {
+        if (failure == null)
+            failure = e;
+    }
+
+    /** Scan the partitions of the model's table in the database of the jsoda in parallel, passing each page to the handler. */
+    private void scanTable(final Jsoda jsoda, final PageHandler handler)
+        throws Exception
+    {
+        final DbService         db = jsoda.getDb(modelName);
+        List<ScanPartition>     partitions = ScanPartition.split(db.getDbType(), readThreads, splitPoints);
+        final Semaphore         running = new Semaphore(readThreads);
+        List<Future<?>>         futures = new ArrayList<Future<?>>();
+        final Exception[]       scanFailure = new Exception[1];
+
+        for (int i = 0; i < partitions.size() && scanFailure[0] == null && failure == null; i++) {
+            final ScanPartition partition = partitions.get(i);
+            running.acquire();
+            futures.add(jsoda.getExecutor().submit(new Runnable() {
+                    public void run() {
+                        try {
+                            while (partition.hasNext() && scanFailure[0] == null && failure == null) {
+                                List<T> page = db.scanPartition(modelClass, partition);
+                                pagesScanned.incrementAndGet();
+                                handler.handle(page);
+                            }
+                        } catch(Exception e) {
+                            synchronized(scanFailure) {
+                                if (scanFailure[0] == null)
+                                    scanFailure[0] = e;
+                            }
+                            log.error("Failed to scan partition " + partition + " of " + modelName + " at " + db.getDbTypeId(), e);
+                        } finally {
+                            running.release();
+                        }
+                    }
+                }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        if (scanFailure[0] != null)
+            throw scanFailure[0];
+    }
+
+    /** Scan both tables again for the objects in the mismatched ranges and compare them by key. */
+    private void diffRanges(VerifyResult result)
+        throws Exception
+    {
+        final Set<Integer>  ranges = new HashSet<Integer>(result.mismatchedRanges);
+        final Map<String, Long> sourceObjs = new ConcurrentHashMap<String, Long>();
+        final Map<String, Long> targetObjs = new ConcurrentHashMap<String, Long>();
+
+        scanTable(source, new PageHandler() {
+                void handle(List<T> page) throws Exception {
+                    collectRanges(page, ranges, sourceObjs);
+                }
+            });
+        scanTable(target, new PageHandler() {
+                void handle(List<T> page) throws Exception {
+                    collectRanges(page, ranges, targetObjs);
+                }
+            });
+
+        for (Map.Entry<String, Long> entry : sourceObjs.entrySet()) {
+            Long    targetHash = targetObjs.get(entry.getKey());
+            if (targetHash == null)
+                result.missingKeys.add(entry.getKey());
+            else if (!targetHash.equals(entry.getValue()))
+                result.differentKeys.add(entry.getKey());
+        }
+        for (String key : targetObjs.keySet()) {
+            if (!sourceObjs.containsKey(key))
+                result.extraKeys.add(key);
+        }
+        Collections.sort(result.missingKeys);
+        Collections.sort(result.extraKeys);
+        Collections.sort(result.differentKeys);
+    }
+
+    private void collectRanges(List<T> page, Set<Integer> ranges, Map<String, Long> objs)
+        throws Exception
+    {
+        for (T obj : page) {
+            String  key = source.makePkKey(modelName, obj);
+            if (ranges.contains(toRange(key)))
+                objs.put(key, checksum(obj));
+        }
+    }
+
+    private int toRange(String key) {
+        return (key.hashCode() & 0x7fffffff) % verifyRanges;
+    }
+
+    /** 64-bit FNV-1a hash of the object's JSON, which covers all the stored fields. */
+    private static long checksum(Object obj)
+        throws Exception
+    {
+        String  json = DataUtil.toJson(obj);
+        long    hash = FNV_OFFSET;
+        for (int i = 0; i < json.length(); i++) {
+            hash ^= json.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+
+    private abstract class PageHandler {
+        abstract void handle(List<T> page) throws Exception;
+    }
+
+    /** Count and sum of the checksums of the objects in each key range.  The sum is independent of the scan order. */
+    private class RangeChecksums extends PageHandler {
+        AtomicLongArray counts;
+        AtomicLongArray sums;
+
+        RangeChecksums(int ranges) {
+            counts = new AtomicLongArray(ranges);
+            sums = new AtomicLongArray(ranges);
+        }
+
+        void handle(List<T> page) throws Exception {
+            for (T obj : page) {
+                int range = toRange(source.makePkKey(modelName, obj));
+                counts.incrementAndGet(range);
+                sums.addAndGet(range, checksum(obj));
+            }
+        }
+    }
+
+    /** Result of verify().  Keys are in the form of id or id/rangeKey. */
+    public static class VerifyResult {
+        private int             ranges;
+        private long            sourceCount;
+        private long            targetCount;
+        private List<Integer>   mismatchedRanges = new ArrayList<Integer>();
+        private List<String>    missingKeys = new ArrayList<String>();
+        private List<String>    extraKeys = new ArrayList<String>();
+        private List<String>    differentKeys = new ArrayList<String>();
+
+        VerifyResult(int ranges) {
+            this.ranges = ranges;
+        }
+
+        /** Whether the target has the same objects as the source. */
+        public boolean isConsistent() {
+            return mismatchedRanges.size() == 0;
+        }
+
+        public int getRanges() {
+            return ranges;
+        }
+
+        public long getSourceCount() {
+            return sourceCount;
+        }
+
+        public long getTargetCount() {
+            return targetCount;
+        }
+
+        /** Key ranges with different counts or checksums. */
+        public List<Integer> getMismatchedRanges() {
+            return mismatchedRanges;
+        }
+
+        /** Keys in the source but not in the target. */
+        public List<String> getMissingKeys() {
+            return missingKeys;
+        }
+
+        /** Keys in the target but not in the source. */
+        public List<String> getExtraKeys() {
+            return extraKeys;
+        }
+
+        /** Keys of the objects differing between the source and the target. */
+        public List<String> getDifferentKeys() {
+            return differentKeys;
+        }
+
+        public String toString() {
+            return "source: " + sourceCount + ", target: " + targetCount + ", mismatched ranges: " + mismatchedRanges.size() + "/" + ranges +
+                ", missing: " + missingKeys.size() + ", extra: " + extraKeys.size() + ", different: " + differentKeys.size();
+        }
+    }
+
+}
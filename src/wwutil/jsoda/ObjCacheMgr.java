@@ -18,12 +18,14 @@ package wwutil.jsoda;
 
 import java.io.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import wwutil.model.MemCacheable;
 import wwutil.model.MemCacheableNoop;
+import wwutil.model.StaleCacheable;
 import wwutil.model.annotation.CachePolicy;
 
 
@@ -36,6 +38,7 @@ class ObjCacheMgr
 
     private Jsoda           jsoda;
     private MemCacheable    memCacheable;
+    private ConcurrentMap<String, String>   pkKeyPrefixes = new ConcurrentHashMap<String, String>();
 
 
     ObjCacheMgr(Jsoda jsoda, MemCacheable memCacheable) {
@@ -57,9 +60,15 @@ class ObjCacheMgr
         return memCacheable;
     }
 
+    /** The key prefix of a model is kept, as the cache keys are made on every get and put. */
     private String makeCachePkKey(String modelName, String pkKey) {
         String  dbId = jsoda.getDb(modelName).getDbTypeId();
-        return dbId + "/" + modelName + "/pk/" + pkKey;
+        String  prefix = pkKeyPrefixes.get(modelName);
+        if (prefix == null || !prefix.startsWith(dbId)) {
+            prefix = dbId + "/" + modelName + "/pk/";
+            pkKeyPrefixes.put(modelName, prefix);
+        }
+        return prefix.concat(pkKey);
     }
 
     private String makeCacheFieldKey(String modelName, String fieldName, Object fieldValue) {
@@ -128,4 +137,18 @@ class ObjCacheMgr
         return (Object)memCacheable.get(makeCacheFieldKey(modelName, fieldName, fieldValue));
     }
 
+    /** Get the cached object even if expired, when the cache service supports it. */
+    Object cacheGetStale(String modelName, Object idValue, Object rangeValue) {
+        if (!(memCacheable instanceof StaleCacheable))
+            return null;
+        String  cacheKey = makeCachePkKey(modelName, jsoda.makePkKey(modelName, idValue, rangeValue));
+        return (Object)((StaleCacheable)memCacheable).getStale(cacheKey);
+    }
+
+    Object cacheGetStaleByField(String modelName, String fieldName, Object fieldValue) {
+        if (!(memCacheable instanceof StaleCacheable))
+            return null;
+        return (Object)((StaleCacheable)memCacheable).getStale(makeCacheFieldKey(modelName, fieldName, fieldValue));
+    }
+
 }
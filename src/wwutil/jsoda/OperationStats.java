@@ -0,0 +1,129 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Snapshot of the metrics of one operation on a model.  Latencies are in microseconds.
+ */
+public class OperationStats
+{
+    private String  modelName;
+    private String  operation;
+    private long    calls;
+    private long    errors;
+    private long    items;
+    private long    bytes;
+    private double  capacityUnits;
+    private double  capacityPerSecond;
+    private double  meanMicros;
+    private long    p50Micros;
+    private long    p90Micros;
+    private long    p99Micros;
+    private long    p999Micros;
+    private long    maxMicros;
+
+
+    OperationStats(String modelName, String operation, long calls, long errors, long items, long bytes,
+                   double capacityUnits, double capacityPerSecond, LatencyHistogram latency) {
+        this.modelName = modelName;
+        this.operation = operation;
+        this.calls = calls;
+        this.errors = errors;
+        this.items = items;
+        this.bytes = bytes;
+        this.capacityUnits = capacityUnits;
+        this.capacityPerSecond = capacityPerSecond;
+        this.meanMicros = latency.getMean();
+        this.p50Micros = latency.getPercentile(0.5);
+        this.p90Micros = latency.getPercentile(0.9);
+        this.p99Micros = latency.getPercentile(0.99);
+        this.p999Micros = latency.getPercentile(0.999);
+        this.maxMicros = latency.getMax();
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    /** Number of calls failed, including those rejected by an open circuit. */
+    public long getErrors() {
+        return errors;
+    }
+
+    /** Number of objects read or written. */
+    public long getItems() {
+        return items;
+    }
+
+    /** Approximate size of the attribute names and values read or written.  For s3Save, the size stored after
+     * compression.  For s3Load, the content size after decompression.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Capacity units consumed on DynamoDB.  0 for SimpleDB and S3. */
+    public double getCapacityUnits() {
+        return capacityUnits;
+    }
+
+    /** Capacity units consumed per second over the last minute. */
+    public double getCapacityPerSecond() {
+        return capacityPerSecond;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP90Micros() {
+        return p90Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getP999Micros() {
+        return p999Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    public String toString() {
+        return modelName + "/" + operation + " calls: " + calls + ", errors: " + errors + ", items: " + items + ", bytes: " + bytes +
+            ", mean: " + Math.round(meanMicros) + "us, p50: " + p50Micros + "us, p90: " + p90Micros + "us, p99: " + p99Micros +
+            "us, p999: " + p999Micros + "us, max: " + maxMicros + "us" +
+            (capacityUnits > 0 ? ", capacity: " + capacityUnits + " units, " + String.format("%.2f", capacityPerSecond) + "/s" : "");
+    }
+
+}
@@ -18,6 +18,7 @@ package wwutil.jsoda;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.lang.reflect.*;
 
 import org.apache.commons.logging.Log;
@@ -65,8 +66,17 @@ public class Query<T>
     int             selectType = SELECT_ALL;
     boolean         beforeRun = true;
     Object          nextKey = null;
+    long            deadlineMs = 0;
+    private long    deadlineAt = 0;
     private boolean queryParsed = false;
 
+    // Stats of the result set since the first run(), for the slow query log.
+    int             pages = 0;
+    long            itemsReturned = 0;
+    long            itemsScanned = 0;
+    long            runNanos = 0;
+    private double  consumedCapacity = 0;
+
 
     /** Create a Query object to build query, to run on the Jsoda object. */
     public Query(Class<T> modelClass, Jsoda jsoda) {
@@ -208,6 +218,33 @@ public class Query<T>
         return this;
     }
 
+    /** Bound the query by the deadline, from the first run() through the paging of the result set until reset(),
+     * instead of the model's default deadline per call.  Applies to count() as a single call.
+     */
+    public Query<T> deadline(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+        return this;
+    }
+
+    /** Describe how the query runs on the underlying database: the SimpleDB select expression or the DynamoDB
+     * query or scan request, whether it uses the key or scans, and where it's sorted.
+     */
+    public String explain() {
+        parseQuery();
+        return jsoda.getDb(modelName).explainQuery(this);
+    }
+
+    /** Capacity units consumed on DynamoDB by the runs since the first run() or reset(), and by the count() calls.
+     * 0 for SimpleDB.
+     */
+    public synchronized double getConsumedCapacity() {
+        return consumedCapacity;
+    }
+
+    synchronized void addConsumedCapacity(double units) {
+        consumedCapacity += units;
+    }
+
     private void parseQuery() {
 
         if (queryParsed)
@@ -271,7 +308,23 @@ public class Query<T>
         throws JsodaException
     {
         parseQuery();
-        return jsoda.getDb(modelName).queryCount(modelClass, this);
+        try {
+            long    callMs = deadlineMs > 0 ? deadlineMs : jsoda.getModelDeadline(modelName);
+            long    start = System.nanoTime();
+            long    count = Deadline.call("count on " + modelName, callMs, new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return jsoda.getDb(modelName).queryCount(modelClass, Query.this);
+                    }
+                }, jsoda.getExecutor());
+            SlowQueryLog    slowQueryLog = jsoda.getSlowQueryLog();
+            if (slowQueryLog != null)
+                slowQueryLog.logCount(this, System.nanoTime() - start, count);
+            return count;
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to count query", e);
+        }
     }
 
     /** Execute the query and start returning result items.  It might or might not return the entire result set.
@@ -285,6 +338,8 @@ public class Query<T>
      *          dump(item);
      *  }
      * </pre>
+     * A run() failed with JsodaTimeoutException does not advance the result set, and can be called again
+     * for the same batch if the query's deadline has not passed.
      */
     public List<T> run()
         throws JsodaException
@@ -292,11 +347,32 @@ public class Query<T>
         try {
             parseQuery();
 
-            List<T> resultObjs = jsoda.getDb(modelName).queryRun(modelClass, this, !beforeRun);
+            long    now = System.currentTimeMillis();
+            if (beforeRun)
+                deadlineAt = deadlineMs > 0 ? now + deadlineMs : 0;
+            long    callMs = jsoda.getModelDeadline(modelName);
+            if (deadlineAt > 0) {
+                callMs = deadlineAt - now;
+                if (callMs <= 0)
+                    throw new JsodaTimeoutException("query on " + modelName + " has passed its deadline of " + deadlineMs + "ms");
+            }
+
+            final boolean   continueFromLastRun = !beforeRun;
+            final QueryPage page = new QueryPage();
+            long            start = System.nanoTime();
+            List<T> resultObjs = Deadline.call("query on " + modelName, callMs, new Callable<List<T>>() {
+                    public List<T> call() throws Exception {
+                        return jsoda.getDb(modelName).queryRun(modelClass, Query.this, continueFromLastRun, page);
+                    }
+                }, jsoda.getExecutor());
+            // Advance the query on this thread, only after the run has returned in time.
+            nextKey = page.nextKey;
+            itemsScanned += page.itemsScanned;
             for (T obj : resultObjs) {
                 jsoda.postLoadSteps(obj, toCache());  // do callPostLoad and caching.
             }
             beforeRun = false;
+            logRun(System.nanoTime() - start, resultObjs.size());
             return resultObjs;
         } catch(JsodaException je) {
             throw je;
@@ -322,9 +398,25 @@ public class Query<T>
     public Query<T> reset() {
         beforeRun = true;
         nextKey = null;
+        pages = 0;
+        itemsReturned = 0;
+        itemsScanned = 0;
+        runNanos = 0;
+        synchronized(this) {
+            consumedCapacity = 0;
+        }
         return this;
     }
 
+    private void logRun(long elapsedNanos, int items) {
+        pages++;
+        itemsReturned += items;
+        runNanos += elapsedNanos;
+        SlowQueryLog    slowQueryLog = jsoda.getSlowQueryLog();
+        if (slowQueryLog != null)
+            slowQueryLog.logRun(this, elapsedNanos, items);
+    }
+
     private boolean toCache() {
         // Besides select *, all other select types have partial fields.
         // Don't cache partial field object.
@@ -0,0 +1,29 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Position of a query after a run, filled in by DbService.queryRun() for the caller to apply to the query.
+ * The query is only advanced by the caller once the run returns in time, so a run abandoned by its deadline,
+ * whose call may still complete on its thread, leaves the query as it was.
+ */
+class QueryPage
+{
+    Object          nextKey = null;
+    long            itemsScanned = 0;
+}
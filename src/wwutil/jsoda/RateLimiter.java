@@ -0,0 +1,125 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+
+/**
+ * Token bucket rate limiter.  Tokens are refilled at the rate per second, up to one second worth of burst.
+ * A request for more tokens than available is granted by going into debt, which the following requests wait to pay off,
+ * so that requests larger than the burst size still get through at the rate.  A rate of 0 or less means unlimited.
+ * Class is thread-safe.
+ */
+public class RateLimiter
+{
+    private static final long   NANOS_PER_SECOND = 1000000000L;
+
+    private double      rate;
+    private double      tokens;
+    private long        lastRefill = System.nanoTime();
+
+
+    /** Create a rate limiter of permitsPerSecond.  0 or less means unlimited. */
+    public RateLimiter(double permitsPerSecond) {
+        this.rate = permitsPerSecond;
+        this.tokens = Math.max(permitsPerSecond, 0);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /** Change the rate.  Tokens already accumulated are capped to the new burst size. */
+    public synchronized void setRate(double permitsPerSecond) {
+        refill();
+        this.rate = permitsPerSecond;
+        if (rate > 0)
+            tokens = Math.min(tokens, rate);
+    }
+
+    /** Take the permits, waiting until they are available at the rate. */
+    public void acquire(int permits)
+        throws InterruptedException
+    {
+        long    waitNanos = reserve(permits);
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1000000L, (int)(waitNanos % 1000000L));
+    }
+
+    /** Take the permits if they are available now without waiting.  Return false otherwise. */
+    public synchronized boolean tryAcquire(int permits) {
+        if (rate <= 0)
+            return true;
+        refill();
+        if (tokens < permits)
+            return false;
+        tokens -= permits;
+        return true;
+    }
+
+    /** Take the permits only when the tokens left would stay above the reserve fraction of the burst, waiting until then.
+     * Callers of lower priority use it to leave the reserve to the others.
+     */
+    public void acquireAboveReserve(int permits, double reserveFraction)
+        throws InterruptedException
+    {
+        long    waitNanos;
+        while ((waitNanos = reserveAboveReserve(permits, reserveFraction)) > 0)
+            Thread.sleep(waitNanos / 1000000L, (int)(waitNanos % 1000000L));
+    }
+
+    /** Take the permits if the tokens are above the reserve plus the permits, up to the burst size, and return 0.
+     * Otherwise return the nanoseconds until then without taking any.
+     */
+    synchronized long reserveAboveReserve(int permits, double reserveFraction) {
+        if (rate <= 0)
+            return 0;
+        refill();
+        double  threshold = Math.min(permits + rate * reserveFraction, rate);
+        if (tokens >= threshold) {
+            tokens -= permits;
+            return 0;
+        }
+        return Math.max((long)((threshold - tokens) / rate * NANOS_PER_SECOND), 1);
+    }
+
+    /** Adjust the tokens by the permits actually used beyond what were taken, without waiting.
+     * Negative permits return the unused ones.
+     */
+    synchronized void adjust(double permits) {
+        if (rate <= 0)
+            return;
+        refill();
+        tokens = Math.min(rate, tokens - permits);
+    }
+
+    /** Take the permits and return the nanoseconds the caller must wait before using them. */
+    synchronized long reserve(int permits) {
+        if (rate <= 0)
+            return 0;
+        refill();
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long)(-tokens / rate * NANOS_PER_SECOND);
+    }
+
+    private void refill() {
+        long    now = System.nanoTime();
+        if (rate > 0)
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+
+}
@@ -0,0 +1,250 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodb.model.ProvisionedThroughputExceededException;
+
+
+/**
+ * Retry policy of the database calls of a Jsoda object, with exponential backoff and full jitter.
+ * The wait before retry n is random between 0 and min(maxDelay, baseDelay * 2^n).
+ *
+ * Throttling errors reject the request without doing it and are always retried.  Other transient errors,
+ * such as internal server errors and network failures, leave it unknown whether the request was done,
+ * and are retried only for idempotent calls.  A conditional put is not idempotent.
+ *
+ * A call with a deadline is not retried when the backoff would pass the deadline.
+ *
+ * Retries are limited by a budget shared by all the calls, to avoid retry storms when the database is
+ * overloaded.  Each call adds the budget ratio to the budget and each retry takes one from it, on top of
+ * a minimum number of retries per second.  The retry counts and wait times are kept as metrics.
+ * Class is thread-safe.
+ */
+public class RetryPolicy
+{
+    private static Log  log = LogFactory.getLog(RetryPolicy.class);
+
+    public static final int     DEFAULT_MAX_RETRIES = 5;
+    public static final long    DEFAULT_BASE_DELAY_MS = 50;
+    public static final long    DEFAULT_MAX_DELAY_MS = 5000;
+    public static final double  DEFAULT_BUDGET_RATIO = 0.1;
+    public static final double  DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+    private static final double MAX_BUDGET = 1000;
+
+    private static final Set<String>    sThrottlingCodes = new HashSet<String>(Arrays.asList(
+        "ServiceUnavailable", "Throttling", "ThrottlingException", "SlowDown", "RequestLimitExceeded",
+        "ProvisionedThroughputExceededException"));
+
+    private volatile int        maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long       baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private volatile long       maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile double     budgetRatio = DEFAULT_BUDGET_RATIO;
+    private RateLimiter         minRetries = new RateLimiter(DEFAULT_MIN_RETRIES_PER_SECOND);
+    private double              budget;
+    private Random              random = new Random();
+
+    // Metrics
+    private AtomicLong          calls = new AtomicLong();
+    private AtomicLong          retries = new AtomicLong();
+    private AtomicLong          retryWaitMs = new AtomicLong();
+    private AtomicLong          budgetExhausted = new AtomicLong();
+    private AtomicLong          retriesExhausted = new AtomicLong();
+    private ConcurrentMap<String, AtomicLong>   retriesByOp = new ConcurrentHashMap<String, AtomicLong>();
+
+
+    /** Maximum retries of a call.  0 to turn off retrying. */
+    public RetryPolicy setMaxRetries(int maxRetries) {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("Max retries cannot be negative.");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public RetryPolicy setBaseDelayMs(long baseDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+        return this;
+    }
+
+    public RetryPolicy setMaxDelayMs(long maxDelayMs) {
+        this.maxDelayMs = maxDelayMs;
+        return this;
+    }
+
+    /** Retries earned per call into the budget. */
+    public RetryPolicy setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    /** Retries per second allowed regardless of the budget.  0 or less for unlimited. */
+    public RetryPolicy setMinRetriesPerSecond(double minRetriesPerSecond) {
+        minRetries.setRate(minRetriesPerSecond);
+        return this;
+    }
+
+    /** Number of calls, excluding the retries. */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /** Total time in milliseconds spent waiting before retrying. */
+    public long getRetryWaitMs() {
+        return retryWaitMs.get();
+    }
+
+    /** Number of failed calls not retried because the retry budget ran out. */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    /** Number of calls failed after the maximum retries. */
+    public long getRetriesExhausted() {
+        return retriesExhausted.get();
+    }
+
+    /** Number of retries by operation name. */
+    public Map<String, Long> getRetriesByOp() {
+        Map<String, Long>   map = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : retriesByOp.entrySet())
+            map.put(entry.getKey(), entry.getValue().get());
+        return map;
+    }
+
+    public String dumpMetrics() {
+        return "RetryPolicy calls: " + getCalls() + ", retries: " + getRetries() + ", retryWaitMs: " + getRetryWaitMs() +
+            ", budgetExhausted: " + getBudgetExhausted() + ", retriesExhausted: " + getRetriesExhausted() + ", byOp: " + getRetriesByOp();
+    }
+
+
+    /** Run the call, retrying on the retryable failures. */
+    <R> R execute(String op, boolean idempotent, Callable<R> call)
+        throws Exception
+    {
+        calls.incrementAndGet();
+        deposit();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return call.call();
+            } catch(Exception e) {
+                if (!isRetryable(e, idempotent))
+                    throw e;
+                if (attempt >= maxRetries) {
+                    if (maxRetries > 0)
+                        retriesExhausted.incrementAndGet();
+                    throw e;
+                }
+                if (!withdraw()) {
+                    budgetExhausted.incrementAndGet();
+                    throw e;
+                }
+                long    waitMs = backoff(attempt);
+                Deadline    deadline = Deadline.current();
+                if (deadline != null && deadline.remainingMs() <= waitMs)
+                    throw deadline.timeout(e);
+                retries.incrementAndGet();
+                retryWaitMs.addAndGet(waitMs);
+                countRetry(op);
+                if (log.isDebugEnabled())
+                    log.debug("Retry " + (attempt + 1) + " of " + op + " in " + waitMs + "ms.  Error: " + e.getMessage());
+                Thread.sleep(waitMs);
+            }
+        }
+    }
+
+    /** Full jitter backoff: random between 0 and the capped exponential delay. */
+    long backoff(int attempt) {
+        long    cap = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 30));
+        if (cap <= 0)
+            return 0;
+        synchronized(random) {
+            return (long)(random.nextDouble() * cap);
+        }
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+    }
+
+    private boolean withdraw() {
+        synchronized(this) {
+            if (budget >= 1) {
+                budget -= 1;
+                return true;
+            }
+        }
+        return minRetries.tryAcquire(1);
+    }
+
+    private void countRetry(String op) {
+        AtomicLong  count = retriesByOp.get(op);
+        if (count == null) {
+            retriesByOp.putIfAbsent(op, new AtomicLong());
+            count = retriesByOp.get(op);
+        }
+        count.incrementAndGet();
+    }
+
+    static boolean isRetryable(Throwable e, boolean idempotent) {
+        return isThrottling(e) || (idempotent && isTransient(e));
+    }
+
+    /** Whether the error is the database rejecting the request for being over its capacity. */
+    static boolean isThrottling(Throwable e) {
+        AmazonClientException   ace = findAwsException(e);
+        if (ace instanceof ProvisionedThroughputExceededException)
+            return true;
+        return ace instanceof AmazonServiceException && sThrottlingCodes.contains(((AmazonServiceException)ace).getErrorCode());
+    }
+
+    /** Whether the error is a server side failure or a network failure, which may go away on retry. */
+    static boolean isTransient(Throwable e) {
+        AmazonClientException   ace = findAwsException(e);
+        if (ace == null)
+            return false;
+        if (ace instanceof AmazonServiceException)
+            return ((AmazonServiceException)ace).getStatusCode() >= 500;
+        return ace.getCause() instanceof IOException;
+    }
+
+    /** Find the AWS exception in the cause chain, as the services wrap some of them in JsodaException. */
+    private static AmazonClientException findAwsException(Throwable e) {
+        for (int depth = 0; e != null && depth < 10; e = e.getCause(), depth++) {
+            if (e instanceof AmazonClientException)
+                return (AmazonClientException)e;
+        }
+        return null;
+    }
+
+}
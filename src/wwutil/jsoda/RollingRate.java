@@ -0,0 +1,77 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Rolling rate per second of an amount over the recent window, kept in per-second buckets.  The current
+ * second is not counted until it's over, so the rate lags by up to a second.  Adding is lock-free, at the cost
+ * of an amount added at a bucket's rollover occasionally being lost.
+ * Class is thread-safe.
+ */
+class RollingRate
+{
+    static final int            DEFAULT_WINDOW_SECONDS = 60;
+    private static final double SCALE = 1000;           // amounts are kept in thousandths.
+
+    private int                 windowSeconds;
+    private AtomicLongArray     seconds;
+    private AtomicLongArray     amounts;
+
+
+    RollingRate() {
+        this(DEFAULT_WINDOW_SECONDS);
+    }
+
+    RollingRate(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        this.seconds = new AtomicLongArray(windowSeconds + 1);
+        this.amounts = new AtomicLongArray(windowSeconds + 1);
+    }
+
+    void add(double amount) {
+        add(amount, System.currentTimeMillis());
+    }
+
+    void add(double amount, long nowMs) {
+        long    second = nowMs / 1000;
+        int     index = (int)(second % seconds.length());
+        long    stamp = seconds.get(index);
+        if (stamp != second && seconds.compareAndSet(index, stamp, second))
+            amounts.set(index, 0);
+        amounts.addAndGet(index, Math.round(amount * SCALE));
+    }
+
+    /** Average amount per second over the window of the completed seconds. */
+    double getRate() {
+        return getRate(System.currentTimeMillis());
+    }
+
+    double getRate(long nowMs) {
+        long    second = nowMs / 1000;
+        long    sum = 0;
+        for (int i = 0; i < seconds.length(); i++) {
+            long    stamp = seconds.get(i);
+            if (stamp < second && stamp >= second - windowSeconds)
+                sum += amounts.get(i);
+        }
+        return sum / SCALE / windowSeconds;
+    }
+
+}
@@ -0,0 +1,462 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import wwutil.sys.IOUtil;
+
+
+/**
+ * Local disk cache of S3 object content, for @S3Field content that is read much more often than written.
+ * A cached object is revalidated with a conditional GET on its ETag on every read, so that
+ * only changed content is transferred.  The cache is bounded by total size, evicting the least
+ * recently used entries.  Large entries are read with memory-mapped file.
+ *
+ * Each entry is stored as a data file with a properties sidecar file recording its bucket, key, ETag,
+ * content encoding and user metadata.
+ * Entries left in the cache directory are picked up again when the cache is created.
+ * Class is thread-safe.
+ */
+public class S3ContentCache
+{
+    private static Log  log = LogFactory.getLog(S3ContentCache.class);
+
+    public static final int     DEFAULT_MMAP_THRESHOLD = 1024 * 1024;
+
+    private static final String DATA_EXT = ".data";
+    private static final String META_EXT = ".meta";
+    private static final String TEMP_EXT = ".tmp";
+
+    private File                cacheDir;
+    private long                maxBytes;
+    private int                 mmapThreshold;
+    private long                totalBytes = 0;
+    private LinkedHashMap<String, Entry>    lru = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private AtomicInteger       hits = new AtomicInteger();
+    private AtomicInteger       misses = new AtomicInteger();
+    private AtomicLong          tempCounter = new AtomicLong();
+
+
+    /**
+     * Create a disk cache.
+     * @param cacheDir  the directory to store the cached content.  It's created if not existed.
+     * @param maxBytes  the maximum total size of the cached content.  Least recently used entries will be removed when exceeded.
+     */
+    public S3ContentCache(File cacheDir, long maxBytes)
+        throws IOException
+    {
+        this(cacheDir, maxBytes, DEFAULT_MMAP_THRESHOLD);
+    }
+
+    /**
+     * Create a disk cache.
+     * @param cacheDir  the directory to store the cached content.  It's created if not existed.
+     * @param maxBytes  the maximum total size of the cached content.  Least recently used entries will be removed when exceeded.
+     * @param mmapThreshold  entries of this size or larger are read with memory-mapped file.
+     */
+    public S3ContentCache(File cacheDir, long maxBytes, int mmapThreshold)
+        throws IOException
+    {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+            throw new IOException("Cannot create cache directory " + cacheDir);
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        this.mmapThreshold = mmapThreshold;
+        loadEntries();
+    }
+
+    /** Open the content stream of the S3 object, serving it from the cache if the cached ETag still matches.
+     * Changed or uncached content is downloaded into the cache first, in parts if the transfer options are given.
+     * Caller must close the stream.
+     */
+    public InputStream open(AmazonS3Client s3, String s3bucket, String s3key, S3TransferOptions options)
+        throws IOException
+    {
+        return openObject(s3, s3bucket, s3key, options).getObjectContent();
+    }
+
+    /** Same as open(), returning the S3 object with its content encoding and user metadata, cached along with the content.
+     * Caller must close the content stream.
+     */
+    public S3Object openObject(AmazonS3Client s3, String s3bucket, String s3key, S3TransferOptions options)
+        throws IOException
+    {
+        String  name = toEntryName(s3bucket, s3key);
+        Entry   entry;
+        synchronized(this) {
+            entry = lru.get(name);
+        }
+
+        GetObjectRequest    req = new GetObjectRequest(s3bucket, s3key);
+        if (options != null)
+            req.setRange(0, options.partSize - 1);
+        if (entry != null)
+            req.withNonmatchingETagConstraint(entry.etag);
+
+        S3Object    s3obj;
+        try {
+            s3obj = s3.getObject(req);
+        } catch(AmazonServiceException e) {
+            if (e.getStatusCode() == 404)
+                remove(s3bucket, s3key);
+            if (e.getStatusCode() != 416)
+                throw e;
+            // Range not satisfiable on empty object.
+            req = new GetObjectRequest(s3bucket, s3key);
+            if (entry != null)
+                req.withNonmatchingETagConstraint(entry.etag);
+            s3obj = s3.getObject(req);
+        }
+
+        if (s3obj == null) {
+            // Not modified since cached.
+            InputStream is = openEntry(name, entry);
+            if (is != null) {
+                hits.incrementAndGet();
+                return entry.toS3Object(is);
+            }
+            // Cached file is gone.  Download again without the condition.
+            return openObject(s3, s3bucket, s3key, options);
+        }
+
+        misses.incrementAndGet();
+        ObjectMetadata  md = s3obj.getObjectMetadata();
+        String      etag = md.getETag();
+        InputStream is = options == null ? s3obj.getObjectContent() : S3RangedInputStream.continueFrom(s3, s3bucket, s3key, s3obj, options);
+        if (etag == null) {
+            s3obj.setObjectContent(is);
+            return s3obj;       // Cannot be revalidated without ETag.  Don't cache.
+        }
+        File        tempFile = new File(cacheDir, name + "." + tempCounter.incrementAndGet() + TEMP_EXT);
+        long        size;
+        try {
+            size = copyToFile(is, tempFile);
+        } catch(IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            IOUtil.close(is);
+        }
+
+        Entry   newEntry = new Entry(name, s3bucket, s3key, etag, size, md.getContentEncoding(), md.getUserMetadata());
+        InputStream result = commitEntry(newEntry, tempFile);
+        evict();
+        return newEntry.toS3Object(result);
+    }
+
+    /** Remove the cached content of the S3 object, after it has been changed or deleted. */
+    public void remove(String s3bucket, String s3key) {
+        String  name = toEntryName(s3bucket, s3key);
+        synchronized(this) {
+            Entry   entry = lru.remove(name);
+            if (entry != null) {
+                totalBytes -= entry.size;
+                deleteFiles(name);
+            }
+        }
+    }
+
+    /** Remove all cached content. */
+    public synchronized void clear() {
+        for (String name : lru.keySet())
+            deleteFiles(name);
+        lru.clear();
+        totalBytes = 0;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return lru.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public String dumpStats() {
+        return "S3ContentCache entries: " + getEntryCount() + ", bytes: " + getTotalBytes() + ", hits: " + getHits() + ", misses: " + getMisses();
+    }
+
+
+    private InputStream openEntry(String name, Entry entry)
+        throws IOException
+    {
+        File    dataFile = new File(cacheDir, name + DATA_EXT);
+        synchronized(this) {
+            if (lru.get(name) != entry || !dataFile.isFile()) {
+                if (lru.get(name) == entry)
+                    remove(entry.s3bucket, entry.s3key);
+                return null;
+            }
+            dataFile.setLastModified(System.currentTimeMillis());     // Persist the access order across restarts.
+            return openDataFile(dataFile, entry.size);
+        }
+    }
+
+    private InputStream openDataFile(File dataFile, long size)
+        throws IOException
+    {
+        if (size < mmapThreshold)
+            return new BufferedInputStream(new FileInputStream(dataFile), S3Dao.IO_BUFFER_SIZE);
+
+        RandomAccessFile    raf = new RandomAccessFile(dataFile, "r");
+        try {
+            return new ByteBufferInputStream(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            raf.close();    // The mapping stays valid after the channel is closed.
+        }
+    }
+
+    private synchronized InputStream commitEntry(Entry entry, File tempFile)
+        throws IOException
+    {
+        Entry   oldEntry = lru.remove(entry.name);
+        if (oldEntry != null)
+            totalBytes -= oldEntry.size;
+
+        File    dataFile = new File(cacheDir, entry.name + DATA_EXT);
+        File    metaFile = new File(cacheDir, entry.name + META_EXT);
+        dataFile.delete();
+        if (!tempFile.renameTo(dataFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot move " + tempFile + " to " + dataFile);
+        }
+        entry.writeMeta(metaFile);
+
+        lru.put(entry.name, entry);
+        totalBytes += entry.size;
+        return openDataFile(dataFile, entry.size);
+    }
+
+    private synchronized void evict() {
+        Iterator<Entry> itr = lru.values().iterator();
+        while (totalBytes > maxBytes && itr.hasNext()) {
+            Entry   entry = itr.next();
+            itr.remove();
+            totalBytes -= entry.size;
+            deleteFiles(entry.name);
+            if (log.isDebugEnabled())
+                log.debug("Evicted " + entry.s3key + " from S3 content cache.");
+        }
+    }
+
+    private void deleteFiles(String name) {
+        new File(cacheDir, name + DATA_EXT).delete();
+        new File(cacheDir, name + META_EXT).delete();
+    }
+
+    /** Pick up the entries left in the cache directory, in the order of their last access. */
+    private synchronized void loadEntries() {
+        File[]  files = cacheDir.listFiles();
+        if (files == null)
+            return;
+
+        List<File>  dataFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_EXT))
+                file.delete();
+            else if (file.getName().endsWith(DATA_EXT))
+                dataFiles.add(file);
+        }
+        Collections.sort(dataFiles, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long    t1 = f1.lastModified();
+                    long    t2 = f2.lastModified();
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+
+        for (File dataFile : dataFiles) {
+            String  name = dataFile.getName().substring(0, dataFile.getName().length() - DATA_EXT.length());
+            Entry   entry = Entry.readMeta(name, new File(cacheDir, name + META_EXT));
+            if (entry == null || entry.size != dataFile.length()) {
+                deleteFiles(name);
+                continue;
+            }
+            lru.put(name, entry);
+            totalBytes += entry.size;
+        }
+        evict();
+    }
+
+    private static String toEntryName(String s3bucket, String s3key) {
+        return DigestUtils.md5Hex(s3bucket + "/" + s3key);
+    }
+
+    private static long copyToFile(InputStream is, File file)
+        throws IOException
+    {
+        OutputStream    os = new FileOutputStream(file);
+        try {
+            byte[]  buf = new byte[S3Dao.IO_BUFFER_SIZE];
+            long    total = 0;
+            int     n;
+            while ((n = is.read(buf)) >= 0) {
+                os.write(buf, 0, n);
+                total += n;
+            }
+            os.close();
+            os = null;
+            return total;
+        } finally {
+            IOUtil.close(os);
+        }
+    }
+
+
+    private static class Entry {
+        private static final String USER_META_PREFIX = "meta.";
+        private static final String META_VERSION = "2";        // entries of older versions lack the content encoding and are dropped.
+
+        final String    name;
+        final String    s3bucket;
+        final String    s3key;
+        final String    etag;
+        final long      size;
+        final String    contentEncoding;
+        final Map<String, String>   userMetadata;
+
+        Entry(String name, String s3bucket, String s3key, String etag, long size, String contentEncoding, Map<String, String> userMetadata) {
+            this.name = name;
+            this.s3bucket = s3bucket;
+            this.s3key = s3key;
+            this.etag = etag;
+            this.size = size;
+            this.contentEncoding = contentEncoding;
+            this.userMetadata = userMetadata == null ? new HashMap<String, String>() : new HashMap<String, String>(userMetadata);
+        }
+
+        S3Object toS3Object(InputStream is) {
+            ObjectMetadata  md = new ObjectMetadata();
+            md.setContentLength(size);
+            if (contentEncoding != null)
+                md.setContentEncoding(contentEncoding);
+            md.setUserMetadata(new HashMap<String, String>(userMetadata));
+            md.setHeader("ETag", etag);
+            S3Object    s3obj = new S3Object();
+            s3obj.setBucketName(s3bucket);
+            s3obj.setKey(s3key);
+            s3obj.setObjectMetadata(md);
+            s3obj.setObjectContent(is);
+            return s3obj;
+        }
+
+        void writeMeta(File metaFile)
+            throws IOException
+        {
+            Properties  props = new Properties();
+            props.setProperty("version", META_VERSION);
+            props.setProperty("bucket", s3bucket);
+            props.setProperty("key", s3key);
+            props.setProperty("etag", etag == null ? "" : etag);
+            props.setProperty("size", Long.toString(size));
+            if (contentEncoding != null)
+                props.setProperty("encoding", contentEncoding);
+            for (Map.Entry<String, String> meta : userMetadata.entrySet())
+                props.setProperty(USER_META_PREFIX + meta.getKey(), meta.getValue());
+            OutputStream    os = new FileOutputStream(metaFile);
+            try {
+                props.store(os, null);
+            } finally {
+                IOUtil.close(os);
+            }
+        }
+
+        static Entry readMeta(String name, File metaFile) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(metaFile);
+                Properties  props = new Properties();
+                props.load(is);
+                String  etag = props.getProperty("etag");
+                if (etag == null || etag.length() == 0 || !META_VERSION.equals(props.getProperty("version")))
+                    return null;
+                Map<String, String> userMetadata = new HashMap<String, String>();
+                for (String propName : props.stringPropertyNames()) {
+                    if (propName.startsWith(USER_META_PREFIX))
+                        userMetadata.put(propName.substring(USER_META_PREFIX.length()), props.getProperty(propName));
+                }
+                return new Entry(name, props.getProperty("bucket"), props.getProperty("key"), etag, Long.parseLong(props.getProperty("size")),
+                                 props.getProperty("encoding"), userMetadata);
+            } catch(Exception e) {
+                return null;
+            } finally {
+                IOUtil.close(is);
+            }
+        }
+    }
+
+    /** InputStream over a memory-mapped file buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer  buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+    }
+
+}
@@ -3,6 +3,7 @@ package wwutil.jsoda;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.lang.reflect.*;
@@ -10,10 +11,14 @@ import java.lang.reflect.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.codec.digest.DigestUtils;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 
 import wwutil.sys.ReflectUtil;
 import wwutil.sys.IOUtil;
@@ -25,6 +30,17 @@ public class S3Dao<T> {
 
     private static Log  log = LogFactory.getLog(S3Dao.class);
 
+    static final String     CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    static final String     CONTENT_TYPE_OBJECT = "application/octet-stream";
+    static final String     CONTENT_TYPE_TEXT = "text/plain; charset=UTF-8";
+    static final int        IO_BUFFER_SIZE = 8 * 1024;
+    static final int        MAX_DELETE_KEYS = 1000;     // S3 multi-object delete limit per request.
+
+    /** User metadata key of the S3 object for the digest of the uncompressed content. */
+    public static final String  META_DIGEST = "jsoda-digest";
+    /** User metadata key of the S3 object for the name of the compression codec of the content. */
+    public static final String  META_CODEC = "jsoda-codec";
+
     private Class<T>    modelClass;
     private String      modelName;
     private Jsoda       jsoda;
@@ -41,22 +57,44 @@ public class S3Dao<T> {
         throws Exception
     {
         for (Field field : jsoda.getS3Fields(modelName).values()) {
-            Object  value = field.get(dataObj);
+            final Object    value = field.get(dataObj);
             if (value == null)
                 continue;
 
-            boolean gzip = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "gzip", boolean.class, Boolean.FALSE);
+            final CompressionCodec  codec = getCodec(field);
+            final int       level = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "level", int.class, CompressionCodec.DEFAULT_LEVEL);
+            boolean         skipUnchanged = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "skipUnchanged", boolean.class, Boolean.FALSE);
+            final int       storeAs = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "storeAs", int.class, S3Field.AS_JSON);
 
-            switch (ReflectUtil.getAnnotationValueEx(field, S3Field.class, "storeAs", int.class, S3Field.AS_JSON)) {
-            case S3Field.AS_JSON: {
-                S3Dao.uploadJsonToS3(jsoda.getS3Client(), getS3Bucket(field), formatS3Key(dataObj, field), value, gzip);
-                break;
-            }
-            case S3Field.AS_OBJECT: {
-                S3Dao.uploadObjectToS3(jsoda.getS3Client(), getS3Bucket(field), formatS3Key(dataObj, field), (Serializable)value, gzip);
-                break;
-            }
+            if (!isSupportedStoreAs(storeAs))
+                continue;
+
+            final String    s3bucket = getS3Bucket(field);
+            final String    s3key = formatS3Key(dataObj, field);
+            Map<String, String> userMetadata = null;
+            byte[]              serialized = null;
+
+            if (skipUnchanged) {
+                // Serialize once to digest the content, and upload the same bytes if it has changed.
+                serialized = serializeContent(value, storeAs);
+                String  digest = DigestUtils.md5Hex(serialized);
+                if (isS3ContentUnchanged(jsoda.getS3Client(), s3bucket, s3key, digest, codec)) {
+                    log.debug("Skip uploading unchanged S3Field " + field.getName() + " to " + s3key);
+                    continue;
+                }
+                userMetadata = new HashMap<String, String>();
+                userMetadata.put(META_DIGEST, digest);
             }
+
+            invalidateS3Content(s3bucket, s3key);
+            final Map<String, String>   metadata = userMetadata;
+            final byte[]                content = serialized;
+            long    bytes = callS3(Metrics.OP_S3_SAVE, s3bucket, s3key, 1, new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return S3Dao.uploadContentToS3(jsoda.getS3Client(), s3bucket, s3key, value, content, storeAs, codec, level, metadata, jsoda.getS3TransferOptions());
+                    }
+                });
+            jsoda.getMetrics().addBytes(modelName, Metrics.OP_S3_SAVE, bytes);
         }        
     }
 
@@ -66,19 +104,21 @@ public class S3Dao<T> {
         Map<String, Field> s3Fields = jsoda.getS3Fields(modelName);
 
         for (Field field : jsoda.getS3Fields(modelName).values()) {
+            Deadline.checkCurrent();
             try {
-                boolean gzip = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "gzip", boolean.class, Boolean.FALSE);
-                Object  value = null;
-                switch (ReflectUtil.getAnnotationValueEx(field, S3Field.class, "storeAs", int.class, S3Field.AS_JSON)) {
-                case S3Field.AS_JSON: {
-                    value = S3Dao.downloadJsonFromS3(jsoda.getS3Client(), getS3Bucket(field), formatS3Key(dataObj, field), field.getType(), gzip);
-                    break;
-                }
-                case S3Field.AS_OBJECT: {
-                    value = S3Dao.downloadObjectFromS3(jsoda.getS3Client(), getS3Bucket(field), formatS3Key(dataObj, field), gzip);
-                    break;
-                }
-                }
+                final int   storeAs = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "storeAs", int.class, S3Field.AS_JSON);
+
+                if (!isSupportedStoreAs(storeAs))
+                    continue;
+
+                final Field     s3Field = field;
+                final String    s3bucket = getS3Bucket(field);
+                final String    s3key = formatS3Key(dataObj, field);
+                Object          value = callS3(Metrics.OP_S3_LOAD, s3bucket, s3key, 1, new Callable<Object>() {
+                        public Object call() throws Exception {
+                            return readS3Field(s3Field, storeAs, s3bucket, s3key);
+                        }
+                    });
 
                 if (value == null)
                     continue;
@@ -90,6 +130,77 @@ public class S3Dao<T> {
 
     }
 
+    /** Read and decode the content of the S3 field, adding the bytes read to the metrics. */
+    private Object readS3Field(Field field, int storeAs, String s3bucket, String s3key)
+        throws Exception
+    {
+        IOUtil.CountingInputStream  is = null;
+        try {
+            is = new IOUtil.CountingInputStream(openS3Content(s3bucket, s3key));
+            switch (storeAs) {
+            case S3Field.AS_JSON:
+                return DataUtil.fromJson(is, field.getType());
+            case S3Field.AS_OBJECT:
+                return IOUtil.objFromStream(is);
+            case S3Field.AS_BINARY:
+                return BinaryCodec.decode(is, field.getGenericType());
+            }
+            return null;
+        } finally {
+            IOUtil.close(is);
+            if (is != null)
+                jsoda.getMetrics().addBytes(modelName, Metrics.OP_S3_LOAD, is.getCount());
+        }
+    }
+
+    /** Run the S3 call through the interceptors of the Jsoda object, recording it in the metrics. */
+    private <R> R callS3(String op, String s3bucket, String s3key, int items, Callable<R> call)
+        throws Exception
+    {
+        long    start = System.nanoTime();
+        boolean error = true;
+        try {
+            R   result = Invocation.invoke(jsoda.getInterceptorList(), Invocation.SERVICE_S3, modelName, op, s3bucket + "/" + s3key, items, call);
+            jsoda.getMetrics().addItems(modelName, op, items);
+            error = false;
+            return result;
+        } finally {
+            jsoda.getMetrics().record(modelName, op, start, error);
+        }
+    }
+
+    /** Open the content stream of the S3 object, going through the S3 content cache if set on the Jsoda object.
+     * The content is decompressed with the codec recorded in the object metadata.
+     */
+    private InputStream openS3Content(String s3bucket, String s3key)
+        throws IOException
+    {
+        S3ContentCache  cache = jsoda.getS3ContentCache();
+        if (cache == null)
+            return downloadContentStreamFromS3(jsoda.getS3Client(), s3bucket, s3key, jsoda.getS3TransferOptions());
+        return toContentStream(cache.openObject(jsoda.getS3Client(), s3bucket, s3key, jsoda.getS3TransferOptions()));
+    }
+
+    /** Get the compression codec of the S3Field, from its codec or gzip setting. */
+    private static CompressionCodec getCodec(Field field) {
+        String  codecName = ReflectUtil.getAnnotationValue(field, S3Field.class, "codec", "");
+        if (StringUtils.isEmpty(codecName)) {
+            boolean gzip = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "gzip", boolean.class, Boolean.FALSE);
+            return gzip ? CompressionCodec.GZIP : CompressionCodec.NONE;
+        }
+        CompressionCodec    codec = CompressionCodec.get(codecName);
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown @S3Field.codec " + codecName + " on field " + field.getName());
+        return codec;
+    }
+
+    /** Drop the cached content of the S3 object, if the S3 content cache is set. */
+    private void invalidateS3Content(String s3bucket, String s3key) {
+        S3ContentCache  cache = jsoda.getS3ContentCache();
+        if (cache != null)
+            cache.remove(s3bucket, s3key);
+    }
+
     void deleteS3Fields(Object id, Object rangeKey)
         throws JsodaException
     {
@@ -97,7 +208,15 @@ public class S3Dao<T> {
 
         for (Field field : jsoda.getS3Fields(modelName).values()) {
             try {
-                jsoda.getS3Client().deleteObject(getS3Bucket(field), formatS3Key(id, rangeKey, field));
+                final String    s3bucket = getS3Bucket(field);
+                final String    s3key = formatS3Key(id, rangeKey, field);
+                invalidateS3Content(s3bucket, s3key);
+                callS3(Metrics.OP_S3_DELETE, s3bucket, s3key, 1, new Callable<Object>() {
+                        public Object call() throws Exception {
+                            jsoda.getS3Client().deleteObject(s3bucket, s3key);
+                            return null;
+                        }
+                    });
             } catch(Exception e) {
                 throw new JsodaException("Failed to delete S3Field " + field.getName(), e);
             }
@@ -105,6 +224,54 @@ public class S3Dao<T> {
 
     }
 
+    /** Delete the S3 fields of the objects with S3 multi-object delete, up to 1000 keys per request, sending the requests in parallel.
+     * Objects failed to be deleted are reported in S3DeleteException, after the rest have been deleted.
+     */
+    void batchDeleteS3Fields(List idList, List rangeKeyList)
+        throws JsodaException
+    {
+        Map<String, Field> s3Fields = jsoda.getS3Fields(modelName);
+        if (s3Fields.size() == 0)
+            return;
+
+        Map<String, List<String>>   bucketKeys = new HashMap<String, List<String>>();
+        try {
+            for (Field field : s3Fields.values()) {
+                String          s3bucket = getS3Bucket(field);
+                List<String>    keys = bucketKeys.get(s3bucket);
+                if (keys == null) {
+                    keys = new ArrayList<String>();
+                    bucketKeys.put(s3bucket, keys);
+                }
+                for (int i = 0; i < idList.size(); i++) {
+                    String  s3key = formatS3Key(idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i), field);
+                    invalidateS3Content(s3bucket, s3key);
+                    keys.add(s3key);
+                }
+            }
+        } catch(Exception e) {
+            throw new JsodaException("Failed to batch delete S3Fields", e);
+        }
+
+        Map<String, String> failedKeys = new TreeMap<String, String>();
+        for (final Map.Entry<String, List<String>> entry : bucketKeys.entrySet()) {
+            try {
+                failedKeys.putAll(callS3(Metrics.OP_S3_BATCH_DELETE, entry.getKey(), "", entry.getValue().size(), new Callable<Map<String, String>>() {
+                        public Map<String, String> call() {
+                            return batchDeleteFromS3(jsoda.getS3Client(), entry.getKey(), entry.getValue(),
+                                                     jsoda.getExecutor(), jsoda.getS3TransferThreads());
+                        }
+                    }));
+            } catch(JsodaException e) {
+                throw e;
+            } catch(Exception e) {
+                throw new JsodaException("Failed to batch delete S3Fields", e);
+            }
+        }
+        if (failedKeys.size() > 0)
+            throw new S3DeleteException("Failed to delete " + failedKeys.size() + " S3Field objects", failedKeys);
+    }
+
     private String getS3Bucket(Field field) {
         // Get s3Bucket from the S3Field with backup default from the Jsoda object.
         String  s3bucket = ReflectUtil.getAnnotationValue(field, S3Field.class, "s3Bucket", jsoda.getDefaultS3Bucket());
@@ -148,6 +315,12 @@ public class S3Dao<T> {
 
     public static long uploadStreamToS3(AmazonS3Client s3, String s3bucket, String s3key, InputStream is, String contentType, long contentLength, String contentEncoding)
         throws IOException
+    {
+        return uploadStreamToS3(s3, s3bucket, s3key, is, contentType, contentLength, contentEncoding, null);
+    }
+
+    public static long uploadStreamToS3(AmazonS3Client s3, String s3bucket, String s3key, InputStream is, String contentType, long contentLength, String contentEncoding, Map<String, String> userMetadata)
+        throws IOException
     {
         ObjectMetadata  md = new ObjectMetadata();
         if (contentType != null)
@@ -155,6 +328,8 @@ public class S3Dao<T> {
         md.setContentLength(contentLength);
         if (contentEncoding != null)
             md.setContentEncoding(contentEncoding);
+        if (userMetadata != null)
+            md.setUserMetadata(userMetadata);
         s3.putObject(s3bucket, s3key, is, md);
         return contentLength;
     }
@@ -172,10 +347,16 @@ public class S3Dao<T> {
 
     public static long uploadBytesToS3(AmazonS3Client s3, String s3bucket, String s3key, byte[] bytes, String contentType, String contentEncoding)
         throws IOException
+    {
+        return uploadBytesToS3(s3, s3bucket, s3key, bytes, contentType, contentEncoding, null);
+    }
+
+    public static long uploadBytesToS3(AmazonS3Client s3, String s3bucket, String s3key, byte[] bytes, String contentType, String contentEncoding, Map<String, String> userMetadata)
+        throws IOException
     {
         BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(bytes));
         try {
-            return uploadStreamToS3(s3, s3bucket, s3key, bis, contentType, bytes.length, contentEncoding);
+            return uploadStreamToS3(s3, s3bucket, s3key, bis, contentType, bytes.length, contentEncoding, userMetadata);
         } finally {
             IOUtil.close(bis);
         }
@@ -183,6 +364,12 @@ public class S3Dao<T> {
 
     public static long uploadGzipBytesToS3(AmazonS3Client s3, String s3bucket, String s3key, byte[] bytes, String contentType, boolean gzip)
         throws IOException
+    {
+        return uploadGzipBytesToS3(s3, s3bucket, s3key, bytes, contentType, gzip, null);
+    }
+
+    public static long uploadGzipBytesToS3(AmazonS3Client s3, String s3bucket, String s3key, byte[] bytes, String contentType, boolean gzip, Map<String, String> userMetadata)
+        throws IOException
     {
         if (gzip) {
             // Compress data
@@ -192,41 +379,201 @@ public class S3Dao<T> {
                 zos.write(bytes);
                 IOUtil.close(zos);
                 zos = null;
-                return uploadBytesToS3(s3, s3bucket, s3key, bosZipped.toByteArray(), contentType, "gzip");
+                return uploadBytesToS3(s3, s3bucket, s3key, bosZipped.toByteArray(), contentType, "gzip", userMetadata);
             } finally {
                 IOUtil.close(zos);
             }
         } else {
             // Plain data
-            return uploadBytesToS3(s3, s3bucket, s3key, bytes, contentType, null);
+            return uploadBytesToS3(s3, s3bucket, s3key, bytes, contentType, null, userMetadata);
+        }
+    }
+
+    /** Serialize the value in the storeAs format and stream it to S3, without buffering the whole content in memory.
+     * The content is compressed on the fly if gzip is set.
+     */
+    public static long uploadContentToS3(AmazonS3Client s3, String s3bucket, String s3key, Object value, int storeAs, boolean gzip, Map<String, String> userMetadata)
+        throws IOException
+    {
+        return uploadContentToS3(s3, s3bucket, s3key, value, storeAs, gzip, userMetadata, null);
+    }
+
+    /** Same as above, with content larger than the part size in the transfer options uploaded in parts with multipart upload.
+     * Null options uploads in the default minimum part size sequentially.
+     */
+    public static long uploadContentToS3(AmazonS3Client s3, String s3bucket, String s3key, Object value, int storeAs, boolean gzip, Map<String, String> userMetadata, S3TransferOptions options)
+        throws IOException
+    {
+        return uploadContentToS3(s3, s3bucket, s3key, value, storeAs, gzip ? CompressionCodec.GZIP : CompressionCodec.NONE,
+                                 CompressionCodec.DEFAULT_LEVEL, userMetadata, options);
+    }
+
+    /** Same as above, with the content compressed by the codec at the compression level.
+     * The codec name is recorded in the user metadata, and the Content-Encoding is set for the standard HTTP encodings.
+     */
+    public static long uploadContentToS3(AmazonS3Client s3, String s3bucket, String s3key, Object value, int storeAs,
+                                         CompressionCodec codec, int level, Map<String, String> userMetadata, S3TransferOptions options)
+        throws IOException
+    {
+        return uploadContentToS3(s3, s3bucket, s3key, value, null, storeAs, codec, level, userMetadata, options);
+    }
+
+    /** Same as above, uploading the content already serialized by serializeContent() if not null, instead of serializing the value. */
+    static long uploadContentToS3(AmazonS3Client s3, String s3bucket, String s3key, Object value, byte[] serialized, int storeAs,
+                                  CompressionCodec codec, int level, Map<String, String> userMetadata, S3TransferOptions options)
+        throws IOException
+    {
+        ObjectMetadata  md = new ObjectMetadata();
+        md.setContentType(storeAs == S3Field.AS_JSON ? CONTENT_TYPE_JSON : CONTENT_TYPE_OBJECT);
+        if (codec.getContentEncoding() != null)
+            md.setContentEncoding(codec.getContentEncoding());
+        Map<String, String> metadata = userMetadata == null ? new HashMap<String, String>() : new HashMap<String, String>(userMetadata);
+        if (codec != CompressionCodec.NONE)
+            metadata.put(META_CODEC, codec.getName());
+        md.setUserMetadata(metadata);
+
+        S3OutputStream  s3os = new S3OutputStream(s3, s3bucket, s3key, md, options);
+        boolean         done = false;
+        try {
+            OutputStream    os = codec.compress(s3os, level);
+            if (serialized != null)
+                os.write(serialized);
+            else
+                writeContent(os, value, storeAs);
+            os.close();         // finish the compression and complete the upload.
+            done = true;
+            return s3os.getBytesWritten();
+        } finally {
+            if (!done)
+                s3os.abort();
         }
     }
 
     public static long uploadJsonToS3(AmazonS3Client s3, String s3bucket, String s3key, Object obj, boolean gzip)
         throws IOException
     {
-        String  json = DataUtil.toJson(obj);
-        return uploadGzipBytesToS3(s3, s3bucket, s3key, json.getBytes("UTF-8"), "application/json; charset=UTF-8", gzip);
+        return uploadContentToS3(s3, s3bucket, s3key, obj, S3Field.AS_JSON, gzip, null);
     }
 
     public static long uploadObjectToS3(AmazonS3Client s3, String s3bucket, String s3key, Serializable obj, boolean gzip)
         throws IOException
     {
-        byte[]  bytes = IOUtil.objToBytes(obj);
-        return uploadGzipBytesToS3(s3, s3bucket, s3key, bytes, "application/octet-stream", gzip);
+        return uploadContentToS3(s3, s3bucket, s3key, obj, S3Field.AS_OBJECT, gzip, null);
     }
 
     public static long uploadStrToS3(AmazonS3Client s3, String s3bucket, String s3key, String str, boolean gzip)
         throws IOException
     {
-        return uploadGzipBytesToS3(s3, s3bucket, s3key, str.getBytes("UTF-8"), "text/plain; charset=UTF-8", gzip);
+        return uploadGzipBytesToS3(s3, s3bucket, s3key, str.getBytes("UTF-8"), CONTENT_TYPE_TEXT, gzip);
     }
 
 
+    /** Delete the keys in the bucket with S3 multi-object delete, up to 1000 keys per request,
+     * with up to the number of parallel requests in flight on the executor.  Null executor sends the requests sequentially.
+     * Return the "bucket/key" of the objects failed to be deleted, mapping to their error codes and messages.
+     */
+    public static Map<String, String> batchDeleteFromS3(final AmazonS3Client s3, final String s3bucket, List<String> s3keys, ExecutorService executor, int parallel) {
+        Map<String, String>                     failedKeys = new TreeMap<String, String>();
+        LinkedList<Future<Map<String, String>>> pending = new LinkedList<Future<Map<String, String>>>();
+
+        for (int start = 0; start < s3keys.size(); start += MAX_DELETE_KEYS) {
+            final List<String>  batch = s3keys.subList(start, Math.min(start + MAX_DELETE_KEYS, s3keys.size()));
+            Callable<Map<String, String>>   task = new Callable<Map<String, String>>() {
+                    public Map<String, String> call() {
+                        return deleteKeysFromS3(s3, s3bucket, batch);
+                    }
+                };
+            if (executor == null) {
+                failedKeys.putAll(deleteKeysFromS3(s3, s3bucket, batch));
+                continue;
+            }
+            while (pending.size() >= Math.max(parallel, 1))
+                failedKeys.putAll(getDeleteResult(pending.removeFirst()));
+            pending.add(executor.submit(task));
+        }
+        while (pending.size() > 0)
+            failedKeys.putAll(getDeleteResult(pending.removeFirst()));
+
+        return failedKeys;
+    }
+
+    private static Map<String, String> deleteKeysFromS3(AmazonS3Client s3, String s3bucket, List<String> s3keys) {
+        Map<String, String> failedKeys = new HashMap<String, String>();
+        try {
+            s3.deleteObjects(new DeleteObjectsRequest(s3bucket).withKeys(s3keys.toArray(new String[s3keys.size()])).withQuiet(true));
+        } catch(MultiObjectDeleteException e) {
+            for (MultiObjectDeleteException.DeleteError error : e.getErrors())
+                failedKeys.put(s3bucket + "/" + error.getKey(), error.getCode() + ": " + error.getMessage());
+        } catch(RuntimeException e) {
+            log.warn("Failed to delete " + s3keys.size() + " objects from S3 bucket " + s3bucket + ".  " + e.getMessage());
+            for (String s3key : s3keys)
+                failedKeys.put(s3bucket + "/" + s3key, e.toString());
+        }
+        return failedKeys;
+    }
+
+    private static Map<String, String> getDeleteResult(Future<Map<String, String>> future) {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            throw new IllegalStateException(e.getCause());      // deleteKeysFromS3 reports all failures in its result.
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting S3 objects.", e);
+        }
+    }
+
     public static S3Object getS3Object(AmazonS3Client s3, String s3bucket, String s3key) {
         return s3.getObject(s3bucket, s3key);
     }
 
+    /** Check whether the S3 object has the same content digest and encoding as the content about to be uploaded.
+     * Return false if the S3 object doesn't exist or has no digest stored.
+     */
+    public static boolean isS3ContentUnchanged(AmazonS3Client s3, String s3bucket, String s3key, String digest, boolean gzip) {
+        return isS3ContentUnchanged(s3, s3bucket, s3key, digest, gzip ? CompressionCodec.GZIP : CompressionCodec.NONE);
+    }
+
+    /** Same as above, comparing the compression codec instead. */
+    public static boolean isS3ContentUnchanged(AmazonS3Client s3, String s3bucket, String s3key, String digest, CompressionCodec codec) {
+        ObjectMetadata  md;
+        try {
+            md = s3.getObjectMetadata(s3bucket, s3key);
+        } catch(AmazonServiceException e) {
+            if (e.getStatusCode() != 404)
+                log.warn("Failed to get metadata of " + s3key + ".  " + e.getMessage());
+            return false;
+        }
+
+        String  storedDigest = md.getUserMetadata().get(META_DIGEST);
+        try {
+            return digest.equals(storedDigest) && codec == codecFromMetadata(md);
+        } catch(IOException e) {
+            return false;       // unknown codec, to be overwritten.
+        }
+    }
+
+    /** Get the compression codec of the S3 object from its metadata.  Objects without the codec recorded
+     * fall back to their Content-Encoding, for content stored before the codec was recorded.
+     */
+    public static CompressionCodec codecFromMetadata(ObjectMetadata md)
+        throws IOException
+    {
+        String  codecName = md.getUserMetadata() == null ? null : md.getUserMetadata().get(META_CODEC);
+        if (codecName == null) {
+            String  encoding = md.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding))
+                return CompressionCodec.GZIP;
+            if ("deflate".equalsIgnoreCase(encoding))
+                return CompressionCodec.DEFLATE;
+            return CompressionCodec.NONE;
+        }
+        CompressionCodec    codec = CompressionCodec.get(codecName);
+        if (codec == null)
+            throw new IOException("Unknown compression codec " + codecName + " of S3 object.");
+        return codec;
+    }
+
     public static InputStream downloadStreamFromS3(AmazonS3Client s3, String s3bucket, String s3key)
         throws IOException
     {
@@ -262,20 +609,128 @@ public class S3Dao<T> {
         return new String(bytes, "UTF-8");
     }
 
+    /** Open the content stream of the S3 object, decompressing it on the fly if gzip is set.  Caller must close the stream. */
+    public static InputStream downloadContentStreamFromS3(AmazonS3Client s3, String s3bucket, String s3key, boolean gzip)
+        throws IOException
+    {
+        return downloadContentStreamFromS3(s3, s3bucket, s3key, gzip, null);
+    }
+
+    /** Same as above, with object larger than the part size in the transfer options downloaded in parts with ranged GETs.
+     * Null options downloads the object with a single GET.
+     */
+    public static InputStream downloadContentStreamFromS3(AmazonS3Client s3, String s3bucket, String s3key, boolean gzip, S3TransferOptions options)
+        throws IOException
+    {
+        InputStream is = options == null ? downloadStreamFromS3(s3, s3bucket, s3key) : S3RangedInputStream.open(s3, s3bucket, s3key, options);
+        return toContentStream(is, gzip);
+    }
+
+    /** Open the content stream of the S3 object, decompressing it with the codec recorded in its metadata.
+     * Object larger than the part size in the transfer options is downloaded in parts.  Null options downloads with a single GET.
+     * Caller must close the stream.
+     */
+    public static InputStream downloadContentStreamFromS3(AmazonS3Client s3, String s3bucket, String s3key, S3TransferOptions options)
+        throws IOException
+    {
+        S3Object    s3obj = options == null ? getS3Object(s3, s3bucket, s3key) : S3RangedInputStream.openObject(s3, s3bucket, s3key, options);
+        return toContentStream(s3obj);
+    }
+
+    /** Wrap the raw S3 object stream for decompression if gzip is set.  The raw stream is closed on failure. */
+    static InputStream toContentStream(InputStream is, boolean gzip)
+        throws IOException
+    {
+        return toContentStream(is, gzip ? CompressionCodec.GZIP : CompressionCodec.NONE);
+    }
+
+    /** Wrap the content stream of the S3 object for decompression with the codec in its metadata.  The raw stream is closed on failure. */
+    static InputStream toContentStream(S3Object s3obj)
+        throws IOException
+    {
+        CompressionCodec    codec;
+        try {
+            codec = codecFromMetadata(s3obj.getObjectMetadata());
+        } catch(IOException e) {
+            IOUtil.close(s3obj.getObjectContent());
+            throw e;
+        }
+        return toContentStream(s3obj.getObjectContent(), codec);
+    }
+
+    private static InputStream toContentStream(InputStream is, CompressionCodec codec)
+        throws IOException
+    {
+        try {
+            return codec.decompress(is);
+        } catch(IOException e) {
+            IOUtil.close(is);
+            throw e;
+        }
+    }
+
     public static <T> T downloadJsonFromS3(AmazonS3Client s3, String s3bucket, String s3key, Class<T> objClass, boolean gzip)
         throws Exception
     {
-        String  json = downloadStrFromS3(s3, s3bucket, s3key, gzip);
-        return DataUtil.fromJson(json, objClass);
+        return downloadJsonFromS3(s3, s3bucket, s3key, objClass, gzip, null);
+    }
+
+    public static <T> T downloadJsonFromS3(AmazonS3Client s3, String s3bucket, String s3key, Class<T> objClass, boolean gzip, S3TransferOptions options)
+        throws Exception
+    {
+        InputStream is = downloadContentStreamFromS3(s3, s3bucket, s3key, gzip, options);
+        try {
+            return DataUtil.fromJson(is, objClass);
+        } finally {
+            IOUtil.close(is);
+        }
     }
 
     public static Object downloadObjectFromS3(AmazonS3Client s3, String s3bucket, String s3key, boolean gzip)
         throws Exception
     {
-        byte[]  bytes = downloadBytesFromS3(s3, s3bucket, s3key, gzip);
-        return IOUtil.objFromBytes(bytes);
+        return downloadObjectFromS3(s3, s3bucket, s3key, gzip, null);
+    }
+
+    public static Object downloadObjectFromS3(AmazonS3Client s3, String s3bucket, String s3key, boolean gzip, S3TransferOptions options)
+        throws Exception
+    {
+        InputStream is = downloadContentStreamFromS3(s3, s3bucket, s3key, gzip, options);
+        try {
+            return IOUtil.objFromStream(is);
+        } finally {
+            IOUtil.close(is);
+        }
     }
 
 
-}
+    static boolean isSupportedStoreAs(int storeAs) {
+        return storeAs == S3Field.AS_JSON || storeAs == S3Field.AS_OBJECT || storeAs == S3Field.AS_BINARY;
+    }
+
+    /** Serialize the value to the output stream in the storeAs format.  The output stream is flushed but not closed. */
+    static void writeContent(OutputStream os, Object value, int storeAs)
+        throws IOException
+    {
+        if (storeAs == S3Field.AS_OBJECT) {
+            ObjectOutputStream  oo = new ObjectOutputStream(os);
+            oo.writeObject(value);
+            oo.flush();
+        } else if (storeAs == S3Field.AS_BINARY) {
+            BinaryCodec.encode(os, value);
+        } else {
+            DataUtil.toJson(os, value);
+        }
+    }
 
+    /** Serialize the value in the storeAs format to bytes. */
+    static byte[] serializeContent(Object value, int storeAs)
+        throws IOException
+    {
+        ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+        writeContent(bos, value, storeAs);
+        return bos.toByteArray();
+    }
+
+
+}
@@ -0,0 +1,40 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+
+
+/**
+ * Thrown when some of the S3 objects in a batch delete failed to be deleted.
+ * The rest of the objects in the batch have been deleted.
+ */
+public class S3DeleteException extends JsodaException {
+
+    private Map<String, String> failedKeys;
+
+    public S3DeleteException(String msg, Map<String, String> failedKeys) {
+        super(msg);
+        this.failedKeys = failedKeys;
+    }
+
+    /** Return the "bucket/key" of the objects failed to be deleted, mapping to their error codes and messages. */
+    public Map<String, String> getFailedKeys() {
+        return failedKeys;
+    }
+
+}
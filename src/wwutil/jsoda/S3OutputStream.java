@@ -0,0 +1,282 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+
+
+/**
+ * OutputStream uploading its content to an S3 object, for content of unknown length.
+ * Content is buffered up to one part.  Content fitting in one part is uploaded with a single put
+ * when the stream is closed.  Larger content is uploaded part by part with S3 multipart upload,
+ * so that memory usage is bounded by the part size times the parts in flight, regardless of the content size.
+ * Parts are uploaded in parallel when the transfer options have an executor, and each part is retried on failure.
+ *
+ * Call close() to finish the upload.  Call abort() instead if the content writing has failed.
+ */
+public class S3OutputStream extends OutputStream
+{
+    private static Log  log = LogFactory.getLog(S3OutputStream.class);
+
+    /** Minimum part size allowed by S3 for all parts except the last one. */
+    public static final int     MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private AmazonS3Client      s3;
+    private String              s3bucket;
+    private String              s3key;
+    private ObjectMetadata      metadata;
+    private S3TransferOptions   options;
+    private PartBuffer          buffer = new PartBuffer();
+    private Queue<PartBuffer>   freeBuffers = new ConcurrentLinkedQueue<PartBuffer>();
+    private String              uploadId;
+    private List<Future<PartETag>>  partUploads = new ArrayList<Future<PartETag>>();
+    private int                 partsDone = 0;
+    private long                bytesWritten = 0;
+    private boolean             closed = false;
+
+
+    public S3OutputStream(AmazonS3Client s3, String s3bucket, String s3key, ObjectMetadata metadata) {
+        this(s3, s3bucket, s3key, metadata, new S3TransferOptions(MIN_PART_SIZE));
+    }
+
+    public S3OutputStream(AmazonS3Client s3, String s3bucket, String s3key, ObjectMetadata metadata, S3TransferOptions options) {
+        this.s3 = s3;
+        this.s3bucket = s3bucket;
+        this.s3key = s3key;
+        this.metadata = metadata == null ? new ObjectMetadata() : metadata;
+        this.options = options == null ? new S3TransferOptions(MIN_PART_SIZE) : options;
+    }
+
+    /** Total number of bytes written to the stream so far. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        ensureOpen();
+        if (buffer.size() >= options.partSize)
+            uploadPart(false);
+        buffer.write(b);
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        ensureOpen();
+        while (len > 0) {
+            if (buffer.size() >= options.partSize)
+                uploadPart(false);
+            int n = Math.min(len, options.partSize - buffer.size());
+            buffer.write(b, off, n);
+            off += n;
+            len -= n;
+            bytesWritten += n;
+        }
+    }
+
+    /** Finish the upload.  Upload the buffered content as a single object or as the last part of the multipart upload. */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+
+        if (uploadId == null) {
+            closed = true;
+            metadata.setContentLength(buffer.size());
+            s3.putObject(new PutObjectRequest(s3bucket, s3key, buffer.toInputStream(), metadata));
+            buffer = null;
+            return;
+        }
+
+        uploadPart(true);
+        waitForParts(0);
+        List<PartETag>  partETags = getPartETags();
+        closed = true;
+        try {
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(s3bucket, s3key, uploadId, partETags));
+        } catch(RuntimeException e) {
+            abortUpload();
+            throw e;
+        } finally {
+            buffer = null;
+            freeBuffers.clear();
+        }
+    }
+
+    /** Abandon the upload.  Any uploaded parts are discarded and the S3 object is left unchanged. */
+    public void abort() {
+        if (closed)
+            return;
+        closed = true;
+        for (Future<PartETag> partUpload : partUploads)
+            partUpload.cancel(true);
+        buffer = null;
+        freeBuffers.clear();
+        abortUpload();
+    }
+
+    private void uploadPart(boolean lastPart)
+        throws IOException
+    {
+        try {
+            if (uploadId == null) {
+                uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(s3bucket, s3key, metadata)).getUploadId();
+            }
+
+            final int           partNumber = partUploads.size() + 1;
+            final PartBuffer    partBuffer = buffer;
+            final boolean       isLastPart = lastPart;
+            Callable<PartETag>  task = new Callable<PartETag>() {
+                    public PartETag call() throws Exception {
+                        PartETag    partETag = uploadPartWithRetry(partNumber, partBuffer, isLastPart);
+                        partBuffer.reset();
+                        freeBuffers.add(partBuffer);
+                        return partETag;
+                    }
+                };
+
+            if (options.isParallel()) {
+                // Keep at most the number of transfer threads of parts in flight to bound the memory usage.
+                waitForParts(options.threads - 1);
+                partUploads.add(options.executor.submit(task));
+                buffer = freeBuffers.poll();
+                if (buffer == null)
+                    buffer = new PartBuffer();
+            } else {
+                FutureTask<PartETag>    inline = new FutureTask<PartETag>(task);
+                inline.run();
+                partUploads.add(inline);
+                waitForParts(0);
+                buffer = freeBuffers.poll();
+            }
+        } catch(IOException e) {
+            abort();
+            throw e;
+        } catch(RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private PartETag uploadPartWithRetry(int partNumber, PartBuffer partBuffer, boolean lastPart)
+        throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                UploadPartRequest   req = new UploadPartRequest()
+                    .withBucketName(s3bucket)
+                    .withKey(s3key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withPartSize(partBuffer.size())
+                    .withInputStream(partBuffer.toInputStream())
+                    .withLastPart(lastPart);
+                return s3.uploadPart(req).getPartETag();
+            } catch(RuntimeException e) {
+                if (attempt > options.partRetries || !S3TransferOptions.isRetryable(e))
+                    throw e;
+                log.warn("Retry uploading part " + partNumber + " of " + s3key + " after failure.  " + e.getMessage());
+                S3TransferOptions.backoff(attempt);
+            }
+        }
+    }
+
+    /** Wait until no more than maxPending part uploads are outstanding. */
+    private void waitForParts(int maxPending)
+        throws IOException
+    {
+        while (partUploads.size() - partsDone > maxPending) {
+            try {
+                partUploads.get(partsDone).get();
+                partsDone++;
+            } catch(ExecutionException e) {
+                abort();
+                Throwable   cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException)cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                throw new IOException("Failed to upload part " + (partsDone + 1) + " of " + s3key, cause);
+            } catch(InterruptedException e) {
+                abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + s3key);
+            }
+        }
+    }
+
+    /** Return the ETags of the uploaded parts in part order.  All parts must have been uploaded successfully. */
+    private List<PartETag> getPartETags() {
+        List<PartETag>  partETags = new ArrayList<PartETag>();
+        for (Future<PartETag> partUpload : partUploads) {
+            try {
+                partETags.add(partUpload.get());
+            } catch(Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return partETags;
+    }
+
+    private void abortUpload() {
+        if (uploadId == null)
+            return;
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(s3bucket, s3key, uploadId));
+        } catch(Exception e) {
+            log.warn("Failed to abort multipart upload of " + s3key + ".  " + e.getMessage());
+        }
+        uploadId = null;
+    }
+
+    private void ensureOpen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream to S3 object " + s3key + " has been closed.");
+    }
+
+
+    /** Part buffer reused across parts, uploading directly from its internal array without copying. */
+    private static class PartBuffer extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+}
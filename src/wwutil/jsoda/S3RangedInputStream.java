@@ -0,0 +1,287 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import wwutil.sys.IOUtil;
+
+
+/**
+ * InputStream reading a large S3 object part by part with ranged GETs.
+ * The following parts are prefetched in parallel while the current part is being read,
+ * up to the number of transfer threads.  Each part is retried on its own upon failure,
+ * and is pinned to the ETag of the first part so that a concurrent overwrite of the object is detected.
+ */
+public class S3RangedInputStream extends InputStream
+{
+    private static Log  log = LogFactory.getLog(S3RangedInputStream.class);
+
+    private AmazonS3Client      s3;
+    private String              s3bucket;
+    private String              s3key;
+    private String              etag;
+    private long                totalSize;
+    private S3TransferOptions   options;
+    private InputStream         current;
+    private long                nextPartStart;
+    private LinkedList<Future<byte[]>>  prefetched = new LinkedList<Future<byte[]>>();
+    private boolean             closed = false;
+
+
+    /** Open the content stream of the S3 object.  Object not larger than the part size is returned as a plain single GET stream.
+     * Caller must close the stream.
+     */
+    public static InputStream open(AmazonS3Client s3, String s3bucket, String s3key, S3TransferOptions options)
+        throws IOException
+    {
+        return openObject(s3, s3bucket, s3key, options).getObjectContent();
+    }
+
+    /** Same as open(), returning the S3 object with the metadata of the first part and the content stream of the whole object.
+     * Caller must close the content stream.
+     */
+    public static S3Object openObject(AmazonS3Client s3, String s3bucket, String s3key, S3TransferOptions options)
+        throws IOException
+    {
+        GetObjectRequest    req = new GetObjectRequest(s3bucket, s3key);
+        req.setRange(0, options.partSize - 1);
+        S3Object    s3obj;
+        try {
+            s3obj = s3.getObject(req);
+        } catch(AmazonServiceException e) {
+            if (e.getStatusCode() == 416)   // Range not satisfiable on empty object.
+                return s3.getObject(s3bucket, s3key);
+            throw e;
+        }
+
+        s3obj.setObjectContent(continueFrom(s3, s3bucket, s3key, s3obj, options));
+        return s3obj;
+    }
+
+    /** Continue reading the S3 object from the response of a GET on its first part range.  Caller must close the stream. */
+    static InputStream continueFrom(AmazonS3Client s3, String s3bucket, String s3key, S3Object s3obj, S3TransferOptions options)
+        throws IOException
+    {
+        ObjectMetadata  md = s3obj.getObjectMetadata();
+        long            totalSize = getTotalSize(md);
+        if (totalSize < 0) {
+            if (md.getContentLength() < options.partSize)
+                return s3obj.getObjectContent();
+            totalSize = s3.getObjectMetadata(s3bucket, s3key).getContentLength();
+        }
+        if (totalSize <= options.partSize)
+            return s3obj.getObjectContent();
+
+        return new S3RangedInputStream(s3, s3bucket, s3key, md.getETag(), totalSize, s3obj.getObjectContent(), options);
+    }
+
+    /** Parse the total object size from the Content-Range header "bytes start-end/total".  Return -1 if not available. */
+    private static long getTotalSize(ObjectMetadata md) {
+        for (Map.Entry<String, Object> entry : md.getRawMetadata().entrySet()) {
+            if ("Content-Range".equalsIgnoreCase(entry.getKey()) && entry.getValue() != null) {
+                String  contentRange = entry.getValue().toString();
+                int     slash = contentRange.lastIndexOf('/');
+                if (slash >= 0 && !contentRange.endsWith("*")) {
+                    try {
+                        return Long.parseLong(contentRange.substring(slash + 1).trim());
+                    } catch(NumberFormatException e) {
+                        log.warn("Unexpected Content-Range header: " + contentRange);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private S3RangedInputStream(AmazonS3Client s3, String s3bucket, String s3key, String etag, long totalSize, InputStream firstPart, S3TransferOptions options) {
+        this.s3 = s3;
+        this.s3bucket = s3bucket;
+        this.s3key = s3key;
+        this.etag = etag;
+        this.totalSize = totalSize;
+        this.options = options;
+        this.current = firstPart;
+        this.nextPartStart = options.partSize;
+        if (options.isParallel())
+            prefetchParts();
+    }
+
+    /** Total size of the S3 object. */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        while (true) {
+            ensureOpen();
+            int b = current.read();
+            if (b >= 0 || !nextPart())
+                return b;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0)
+            return 0;
+        while (true) {
+            ensureOpen();
+            int n = current.read(b, off, len);
+            if (n >= 0 || !nextPart())
+                return n;
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        for (Future<byte[]> part : prefetched)
+            part.cancel(true);
+        prefetched.clear();
+        IOUtil.close(current);
+        current = null;
+    }
+
+    /** Move on to the next part.  Return false at the end of the object. */
+    private boolean nextPart()
+        throws IOException
+    {
+        IOUtil.close(current);
+        current = null;
+
+        if (prefetched.isEmpty())
+            prefetchParts();
+        if (prefetched.isEmpty())
+            return false;
+
+        Future<byte[]>  part = prefetched.removeFirst();
+        try {
+            current = new ByteArrayInputStream(part.get());
+        } catch(ExecutionException e) {
+            close();
+            Throwable   cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("Failed to download " + s3key, cause);
+        } catch(InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + s3key);
+        }
+        if (options.isParallel())
+            prefetchParts();
+        return true;
+    }
+
+    /** Keep up to the number of transfer threads of parts in flight.  Parts are downloaded on demand when transferring sequentially. */
+    private void prefetchParts() {
+        int maxInFlight = options.isParallel() ? options.threads : 1;
+        while (prefetched.size() < maxInFlight && nextPartStart < totalSize) {
+            final long  start = nextPartStart;
+            final long  end = Math.min(start + options.partSize, totalSize) - 1;
+            nextPartStart = end + 1;
+            Callable<byte[]>    task = new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return downloadPartWithRetry(start, end);
+                    }
+                };
+            if (options.isParallel()) {
+                prefetched.add(options.executor.submit(task));
+            } else {
+                FutureTask<byte[]>  inline = new FutureTask<byte[]>(task);
+                inline.run();
+                prefetched.add(inline);
+            }
+        }
+    }
+
+    private byte[] downloadPartWithRetry(long start, long end)
+        throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return downloadPart(start, end);
+            } catch(Exception e) {
+                if (attempt > options.partRetries || !S3TransferOptions.isRetryable(e)) {
+                    if (e instanceof IOException)
+                        throw (IOException)e;
+                    throw (RuntimeException)e;
+                }
+                log.warn("Retry downloading bytes " + start + "-" + end + " of " + s3key + " after failure.  " + e.getMessage());
+                S3TransferOptions.backoff(attempt);
+            }
+        }
+    }
+
+    private byte[] downloadPart(long start, long end)
+        throws IOException
+    {
+        GetObjectRequest    req = new GetObjectRequest(s3bucket, s3key);
+        req.setRange(start, end);
+        if (etag != null)
+            req.withMatchingETagConstraint(etag);
+        S3Object    s3obj = s3.getObject(req);
+        if (s3obj == null)
+            throw new ConcurrentModificationException("S3 object " + s3key + " has been changed while being downloaded.");
+
+        byte[]      bytes = new byte[(int)(end - start + 1)];
+        InputStream is = s3obj.getObjectContent();
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = is.read(bytes, offset, bytes.length - offset);
+                if (n < 0)
+                    throw new EOFException("Unexpected end of bytes " + start + "-" + end + " of " + s3key);
+                offset += n;
+            }
+            return bytes;
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    private void ensureOpen()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream of S3 object " + s3key + " has been closed.");
+    }
+
+}
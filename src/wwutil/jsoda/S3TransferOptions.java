@@ -0,0 +1,100 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+
+/**
+ * Options for transferring large S3 content in parts.
+ * Content larger than the part size is uploaded with multipart upload and downloaded with ranged GETs,
+ * with up to the number of transfer threads of parts in flight at the same time.
+ * Each part is retried on its own upon failure.
+ */
+public class S3TransferOptions
+{
+    public static final int     DEFAULT_PART_SIZE = S3OutputStream.MIN_PART_SIZE;
+    public static final int     DEFAULT_THREADS = 4;
+    public static final int     DEFAULT_PART_RETRIES = 3;
+
+    final int               partSize;
+    final int               threads;
+    final int               partRetries;
+    final ExecutorService   executor;
+
+
+    /** Transfer parts one at a time in the calling thread. */
+    public S3TransferOptions(int partSize) {
+        this(partSize, 1, DEFAULT_PART_RETRIES, null);
+    }
+
+    /** Transfer up to threads parts in parallel, running on the executor. */
+    public S3TransferOptions(int partSize, int threads, int partRetries, ExecutorService executor) {
+        if (partSize < S3OutputStream.MIN_PART_SIZE)
+            throw new IllegalArgumentException("Part size cannot be less than " + S3OutputStream.MIN_PART_SIZE);
+        if (threads < 1)
+            throw new IllegalArgumentException("Transfer threads must be at least 1.");
+        this.partSize = partSize;
+        this.threads = executor == null ? 1 : threads;
+        this.partRetries = Math.max(partRetries, 0);
+        this.executor = executor;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getPartRetries() {
+        return partRetries;
+    }
+
+    boolean isParallel() {
+        return executor != null && threads > 1;
+    }
+
+    /** Network errors, server errors, and throttling are worth retrying on a part.  Client errors are not. */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException  ase = (AmazonServiceException)e;
+            return ase.getStatusCode() >= 500 ||
+                   "RequestTimeout".equals(ase.getErrorCode()) ||
+                   "SlowDown".equals(ase.getErrorCode());
+        }
+        return e instanceof AmazonClientException || e instanceof IOException;
+    }
+
+    /** Linear backoff before retrying a failed part. */
+    static void backoff(int attempt)
+        throws InterruptedIOException
+    {
+        try {
+            Thread.sleep(200L * attempt);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying part transfer.");
+        }
+    }
+
+}
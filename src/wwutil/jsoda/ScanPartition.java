@@ -0,0 +1,88 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import wwutil.model.annotation.DbType;
+
+/**
+ * A partition of a table scanned page by page with DbService.scanPartition(), for walking through a whole table.
+ * For SimpleDB, a partition covers the item names in [lowerBound, upperBound), with a null bound being open.
+ * DynamoDB has no key range scan and only supports a partition covering the whole table.
+ * For a @ShardedTable model, a partition goes through the domains of the shards one after another.
+ */
+class ScanPartition
+{
+    private static final String SPLIT_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    final String    lowerBound;
+    final String    upperBound;
+    boolean         started = false;
+    Object          nextKey = null;
+    int             shard = 0;
+
+
+    /** Partition covering the whole table. */
+    ScanPartition() {
+        this(null, null);
+    }
+
+    ScanPartition(String lowerBound, String upperBound) {
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+    }
+
+    /** Split a table into partitions at the split points, in ascending order.  N split points make N+1 partitions.
+     * Without split points, the item names are split evenly by their first alphanumeric character into count partitions.
+     * DynamoDB tables always have one partition covering the whole table.
+     */
+    static List<ScanPartition> split(DbType dbtype, int count, String[] splitPoints) {
+        List<ScanPartition> partitions = new ArrayList<ScanPartition>();
+        if (dbtype == DbType.DynamoDB) {
+            partitions.add(new ScanPartition());
+            return partitions;
+        }
+
+        String[]    points = splitPoints;
+        if (points == null) {
+            points = new String[Math.max(count, 1) - 1];
+            for (int i = 1; i < count; i++)
+                points[i - 1] = String.valueOf(SPLIT_CHARS.charAt(i * SPLIT_CHARS.length() / count));
+        }
+        String      lower = null;
+        for (String point : points) {
+            partitions.add(new ScanPartition(lower, point));
+            lower = point;
+        }
+        partitions.add(new ScanPartition(lower, null));
+        return partitions;
+    }
+
+    boolean isWholeTable() {
+        return lowerBound == null && upperBound == null;
+    }
+
+    /** Whether there are more pages to scan.  Always true before the first page. */
+    boolean hasNext() {
+        return !started || nextKey != null;
+    }
+
+    public String toString() {
+        return "[" + (lowerBound == null ? "" : lowerBound) + ", " + (upperBound == null ? "" : upperBound) + ")";
+    }
+
+}
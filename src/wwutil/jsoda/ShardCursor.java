@@ -0,0 +1,99 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+
+
+/**
+ * Position of a query on a sharded model in the shards, with the items fetched but not yet returned by each shard.
+ * The items of the shards are merged in the order of the comparator, stopping when a shard with more pages needs
+ * fetching, or taken from the buffered shards one after another without a comparator.  A cursor is kept as the
+ * query's nextKey, and each run advances a copy of it.  Used by both the DynamoDB and the SimpleDB sharded queries.
+ */
+class ShardCursor<I>
+{
+    final int                       shards;
+    final Object[]                  nextKeys;
+    private final Comparator<I>     order;          // null for unordered
+    private final boolean[]         fetched;
+    private final List<LinkedList<I>>   buffers = new ArrayList<LinkedList<I>>();
+
+
+    ShardCursor(int shards, Comparator<I> order) {
+        this.shards = shards;
+        this.order = order;
+        this.nextKeys = new Object[shards];
+        this.fetched = new boolean[shards];
+        for (int i = 0; i < shards; i++)
+            buffers.add(new LinkedList<I>());
+    }
+
+    private ShardCursor(ShardCursor<I> other) {
+        this.shards = other.shards;
+        this.order = other.order;
+        this.nextKeys = other.nextKeys.clone();
+        this.fetched = other.fetched.clone();
+        for (LinkedList<I> buffer : other.buffers)
+            buffers.add(new LinkedList<I>(buffer));
+    }
+
+    /** Copy of the cursor to advance, leaving this one as it was. */
+    ShardCursor<I> copy() {
+        return new ShardCursor<I>(this);
+    }
+
+    /** Whether the shard's buffer is empty and it has more pages. */
+    boolean needsFetch(int shard) {
+        return buffers.get(shard).isEmpty() && (!fetched[shard] || nextKeys[shard] != null);
+    }
+
+    boolean hasMore() {
+        for (int shard = 0; shard < shards; shard++) {
+            if (!buffers.get(shard).isEmpty() || needsFetch(shard))
+                return true;
+        }
+        return false;
+    }
+
+    void add(int shard, List<I> items, Object nextKey) {
+        buffers.get(shard).addAll(items);
+        nextKeys[shard] = nextKey;
+        fetched[shard] = true;
+    }
+
+    /** Move the items from the buffers to the list in the order, until the limit or a shard needs fetching.
+     * An unordered query takes the buffered items of the shards one after another.
+     */
+    void merge(List<I> items, int limit) {
+        while (limit <= 0 || items.size() < limit) {
+            int     next = -1;
+            for (int shard = 0; shard < shards; shard++) {
+                if (order != null && needsFetch(shard))
+                    return;
+                if (buffers.get(shard).isEmpty())
+                    continue;
+                if (next < 0 || (order != null && order.compare(buffers.get(shard).getFirst(), buffers.get(next).getFirst()) < 0))
+                    next = shard;
+            }
+            if (next < 0)
+                return;
+            items.add(buffers.get(next).removeFirst());
+        }
+    }
+
+}
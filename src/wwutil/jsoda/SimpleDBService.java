@@ -19,11 +19,14 @@ package wwutil.jsoda;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
@@ -92,7 +95,7 @@ class SimpleDBService implements DbService
         throws Exception
     {
         this.jsoda = jsoda;
-        this.sdbClient = new AmazonSimpleDBClient(cred);
+        this.sdbClient = new AmazonSimpleDBClient(cred, new ClientConfiguration().withMaxErrorRetry(0));   // retried by Jsoda's RetryPolicy
     }
 
     public void shutdown() {
@@ -118,8 +121,10 @@ class SimpleDBService implements DbService
 
     // Delegated SimpleDB API
 
+    /** Create the domain of the model, or the domains of all the shards of a @ShardedTable model. */
     public void createModelTable(String modelName) {
-        sdbClient.createDomain(new CreateDomainRequest(jsoda.getModelTable(modelName)));
+        for (String table : jsoda.getModelTables(modelName))
+            sdbClient.createDomain(new CreateDomainRequest(table));
     }
 
     public void deleteTable(String tableName) {
@@ -168,46 +173,87 @@ class SimpleDBService implements DbService
         return makeIdValue(modelName, id, rangeKey);
     }
 
+    /** Domain of an item, the domain of the shard picked by hashing the item name for a @ShardedTable model. */
+    private String toItemTable(String modelName, String idValue) {
+        int     shards = jsoda.getTableShards(modelName);
+        if (shards <= 1)
+            return jsoda.getModelTable(modelName);
+        return jsoda.getShardTable(modelName, (idValue.hashCode() & 0x7fffffff) % shards);
+    }
+
     public <T> void putObj(Class<T> modelClass, T dataObj, String expectedField, Object expectedValue, boolean expectedExists)
         throws Exception
     {
         String  modelName = jsoda.getModelName(modelClass);
-        String  table = jsoda.getModelTable(modelName);
         String  idValue = makeIdValue(modelName, dataObj);
+        String  table = toItemTable(modelName, idValue);
         PutAttributesRequest    req =
             expectedField == null ?
                 new PutAttributesRequest(table, idValue, buildAttrs(dataObj, modelName)) :
                 new PutAttributesRequest(table, idValue, buildAttrs(dataObj, modelName),
                                          buildExpectedValue(modelName, expectedField, expectedValue, expectedExists));
-        sdbClient.putAttributes(req);
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireWrite(1, false);
+        try {
+            sdbClient.putAttributes(req);
+        } catch(AmazonServiceException e) {
+            if (isThrottled(e))
+                limiter.throttledWrite();
+            throw e;
+        }
+        addWriteBytes(modelName, expectedField == null ? DbServiceWrapper.OP_PUT : DbServiceWrapper.OP_PUT_IF, idValue, req.getAttributes());
     }
 
+    /** The items are put in batches per domain, as the items of a @ShardedTable model are spread over the domains of the shards. */
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs)
         throws Exception
     {
         String  modelName = jsoda.getModelName(modelClass);
-        int     offset = 0;
-        String  table = jsoda.getModelTable(modelName);
-
-        while (offset < dataObjs.size()) {
-            List<ReplaceableItem>   items = buildPutItems(dataObjs, modelName, offset);
-            offset += items.size();
-            sdbClient.batchPutAttributes(new BatchPutAttributesRequest(table, items));
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+
+        for (Map.Entry<String, List<ReplaceableItem>> entry : buildPutItems(dataObjs, modelName).entrySet()) {
+            String                  table = entry.getKey();
+            List<ReplaceableItem>   tableItems = entry.getValue();
+            for (int offset = 0; offset < tableItems.size(); offset += MAX_PUT_ITEMS) {
+                List<ReplaceableItem>   items = new ArrayList<ReplaceableItem>(tableItems.subList(offset, Math.min(offset + MAX_PUT_ITEMS, tableItems.size())));
+                limiter.acquireWrite(items.size(), true);
+                try {
+                    sdbClient.batchPutAttributes(new BatchPutAttributesRequest(table, items));
+                } catch(AmazonServiceException e) {
+                    if (isThrottled(e))
+                        limiter.throttledWrite();
+                    throw e;
+                }
+                for (ReplaceableItem item : items)
+                    addWriteBytes(modelName, DbServiceWrapper.OP_BATCH_PUT, item.getName(), item.getAttributes());
+            }
         }
     }
 
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey)
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead)
         throws Exception
     {
         if (id == null)
             throw new IllegalArgumentException("Id cannot be null.");
 
         String              modelName = jsoda.getModelName(modelClass);
-        String              table = jsoda.getModelTable(modelName);
         String              idValue = makeIdValue(modelName, id, rangeKey);
-        GetAttributesResult result = sdbClient.getAttributes(new GetAttributesRequest(table, idValue));
+        String              table = toItemTable(modelName, idValue);
+        GetAttributesResult result;
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireRead(1, false);
+        try {
+            result = sdbClient.getAttributes(new GetAttributesRequest(table, idValue).withConsistentRead(consistentRead));
+        } catch(AmazonServiceException e) {
+            if (isThrottled(e))
+                limiter.throttledRead();
+            throw e;
+        }
         if (result.getAttributes().size() == 0)
             return null;        // not existed.
+        addReadBytes(modelName, DbServiceWrapper.OP_GET, idValue, result.getAttributes());
         return buildLoadObj(modelClass, modelName, idValue, result.getAttributes(), null);
         
     }
@@ -218,21 +264,53 @@ class SimpleDBService implements DbService
         if (id == null)
             throw new IllegalArgumentException("Id cannot be null.");
 
-        String  table = jsoda.getModelTable(modelName);
         String  idValue = makeIdValue(modelName, id, rangeKey);
-        sdbClient.deleteAttributes(new DeleteAttributesRequest(table, idValue));
+        String  table = toItemTable(modelName, idValue);
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        limiter.acquireWrite(1, false);
+        try {
+            sdbClient.deleteAttributes(new DeleteAttributesRequest(table, idValue));
+        } catch(AmazonServiceException e) {
+            if (isThrottled(e))
+                limiter.throttledWrite();
+            throw e;
+        }
     }
 
     public void batchDelete(String modelName, List idList, List rangeKeyList)
         throws Exception
     {
-        String  table = jsoda.getModelTable(modelName);
-        List<DeletableItem> items = new ArrayList<DeletableItem>();
+        Map<String, List<DeletableItem>>    tableItems = new LinkedHashMap<String, List<DeletableItem>>();
         for (int i = 0; i < idList.size(); i++) {
             String  idValue = makeIdValue(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
-            items.add(new DeletableItem().withName(idValue));
+            String  table = toItemTable(modelName, idValue);
+            if (!tableItems.containsKey(table))
+                tableItems.put(table, new ArrayList<DeletableItem>());
+            tableItems.get(table).add(new DeletableItem().withName(idValue));
+        }
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        for (Map.Entry<String, List<DeletableItem>> entry : tableItems.entrySet()) {
+            limiter.acquireWrite(entry.getValue().size(), true);
+            try {
+                sdbClient.batchDeleteAttributes(new BatchDeleteAttributesRequest(entry.getKey(), entry.getValue()));
+            } catch(AmazonServiceException e) {
+                if (isThrottled(e))
+                    limiter.throttledWrite();
+                throw e;
+            }
         }
-        sdbClient.batchDeleteAttributes(new BatchDeleteAttributesRequest(table, items));
+    }
+
+    /** SimpleDB signals throttling with the ServiceUnavailable error. */
+    private static boolean isThrottled(AmazonServiceException e) {
+        return "ServiceUnavailable".equals(e.getErrorCode());
+    }
+
+    private static void checkReadThrottled(Exception e, ThroughputLimiter limiter) {
+        if (e instanceof AmazonServiceException && isThrottled((AmazonServiceException)e))
+            limiter.throttledRead();
     }
 
     public void validateFilterOperator(String operator) {
@@ -244,11 +322,16 @@ class SimpleDBService implements DbService
     public <T> long queryCount(Class<T> modelClass, Query<T> query)
         throws JsodaException
     {
+        if (jsoda.getTableShards(query.modelName) > 1)
+            return shardedQueryCount(query);
+
         String          modelName = jsoda.getModelName(modelClass);
         String          queryStr = toQueryStr(query, true);
         SelectRequest   request = new SelectRequest(queryStr, query.consistentRead);
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
 
         try {
+            limiter.acquireRead(1, true);
             for (Item item : sdbClient.select(request).getItems()) {
                 for (Attribute attr : item.getAttributes()) {
                     String  attrName  = attr.getName();
@@ -258,37 +341,46 @@ class SimpleDBService implements DbService
                 }
             }
         } catch(Exception e) {
+            checkReadThrottled(e, limiter);
             throw new JsodaException("Query failed.  Query: " + request.getSelectExpression() + "  Error: " + e.getMessage(), e);
         }
         throw new JsodaException("Query failed.  Not result for count query.");
     }
 
     @SuppressWarnings("unchecked")
-    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun)
+    public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun, QueryPage page)
         throws JsodaException
     {
         List<T>         resultObjs = new ArrayList<T>();
 
         if (continueFromLastRun && !queryHasNext(query))
             return resultObjs;
+        if (jsoda.getTableShards(query.modelName) > 1)
+            return shardedQueryRun(modelClass, query, continueFromLastRun, page);
 
         String          queryStr = toQueryStr(query, false);
-        log.info("Query: " + queryStr);
+        if (log.isDebugEnabled())
+            log.debug("Query: " + queryStr);
         SelectRequest   request = new SelectRequest(queryStr, query.consistentRead);
 
         if (continueFromLastRun)
             request.setNextToken((String)query.nextKey);
 
+        ThroughputLimiter   limiter = jsoda.getLimiter(query.modelName);
         try {
+            limiter.acquireRead(1, true);
             SelectResult    result = sdbClient.select(request);
-            query.nextKey = request.getNextToken();
+            page.nextKey = result.getNextToken();
+            page.itemsScanned = result.getItems().size();       // SimpleDB reads only the matching items off its indexes.
             for (Item item : result.getItems()) {
                 String      idValue = item.getName();   // get the id from the item's name()
                 T           obj = buildLoadObj(modelClass, query.modelName, idValue, item.getAttributes(), query);
                 resultObjs.add(obj);
+                addReadBytes(query.modelName, DbServiceWrapper.OP_QUERY, idValue, item.getAttributes());
             }
             return resultObjs;
         } catch(Exception e) {
+            checkReadThrottled(e, limiter);
             throw new JsodaException("Query failed.  Query: " + request.getSelectExpression() + "  Error: " + e.getMessage(), e);
         }
     }
@@ -297,6 +389,182 @@ class SimpleDBService implements DbService
         return query.nextKey != null;
     }
 
+    /** Build the select request of a shard of a @ShardedTable model, starting at the next token. */
+    private <T> SelectRequest toShardRequest(Query<T> query, boolean selectCount, int shard, String nextToken) {
+        String  queryStr = toQueryStr(query, selectCount, jsoda.getShardTable(query.modelName, shard));
+        return new SelectRequest(queryStr, query.consistentRead).withNextToken(nextToken);
+    }
+
+    /** Run the select requests of the shards in parallel.  Fails if any of them fails. */
+    private <T> Map<Integer, SelectResult> selectShards(Query<T> query, Map<Integer, SelectRequest> requests)
+        throws Exception
+    {
+        final ThroughputLimiter             limiter = jsoda.getLimiter(query.modelName);
+        Map<Integer, Future<SelectResult>>  futures = new LinkedHashMap<Integer, Future<SelectResult>>();
+        for (Map.Entry<Integer, SelectRequest> entry : requests.entrySet()) {
+            final SelectRequest request = entry.getValue();
+            futures.put(entry.getKey(), jsoda.getExecutor().submit(ThroughputLimiter.withThreadBackground(new Callable<SelectResult>() {
+                    public SelectResult call() throws Exception {
+                        limiter.acquireRead(1, true);
+                        try {
+                            return sdbClient.select(request);
+                        } catch(Exception e) {
+                            checkReadThrottled(e, limiter);
+                            throw e;
+                        }
+                    }
+                })));
+        }
+
+        Map<Integer, SelectResult>  results = new HashMap<Integer, SelectResult>();
+        try {
+            for (Map.Entry<Integer, Future<SelectResult>> entry : futures.entrySet())
+                results.put(entry.getKey(), entry.getValue().get());
+            return results;
+        } catch(ExecutionException e) {
+            throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+        } finally {
+            for (Future<SelectResult> future : futures.values())
+                future.cancel(true);
+        }
+    }
+
+    private <T> long shardedQueryCount(Query<T> query)
+        throws JsodaException
+    {
+        Map<Integer, SelectRequest> requests = new LinkedHashMap<Integer, SelectRequest>();
+        for (int shard = 0; shard < jsoda.getTableShards(query.modelName); shard++)
+            requests.put(shard, toShardRequest(query, true, shard, null));
+        try {
+            long    count = 0;
+            for (SelectResult result : selectShards(query, requests).values()) {
+                for (Item item : result.getItems()) {
+                    for (Attribute attr : item.getAttributes())
+                        count += Long.parseLong(attr.getValue());
+                }
+            }
+            return count;
+        } catch(Exception e) {
+            throw new JsodaException("Query failed.  Query: " + toQueryStr(query, true) + "  Error: " + e.getMessage(), e);
+        }
+    }
+
+    /** Run the query on the domains of the shards and merge their items in the order-by order.  The pages of the shards
+     * are buffered in a ShardCursor kept as the query's nextKey.  A run returns up to the query's limit of items, stopping
+     * early when an ordered merge runs out of the buffer of a shard with more pages.  A run advances a copy of the
+     * query's cursor, returned in the page, so a retry or a run abandoned by its deadline leaves the query's cursor as it was.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> shardedQueryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun, QueryPage page)
+        throws JsodaException
+    {
+        ShardCursor<Item>   cursor = continueFromLastRun ? ((ShardCursor<Item>)query.nextKey).copy() :
+            new ShardCursor<Item>(jsoda.getTableShards(query.modelName), toOrderByOrder(query));
+        List<Item>  items = new ArrayList<Item>();
+        long        itemsScanned = 0;
+
+        try {
+            while (items.isEmpty() && cursor.hasMore()) {
+                Map<Integer, SelectRequest> requests = new LinkedHashMap<Integer, SelectRequest>();
+                for (int shard = 0; shard < cursor.shards; shard++) {
+                    if (cursor.needsFetch(shard))
+                        requests.put(shard, toShardRequest(query, false, shard, (String)cursor.nextKeys[shard]));
+                }
+                Map<Integer, SelectResult>  results = selectShards(query, requests);
+                for (Map.Entry<Integer, SelectResult> entry : results.entrySet()) {
+                    cursor.add(entry.getKey(), entry.getValue().getItems(), entry.getValue().getNextToken());
+                    itemsScanned += entry.getValue().getItems().size();
+                }
+                cursor.merge(items, query.limit);
+            }
+            page.nextKey = cursor.hasMore() ? cursor : null;
+            page.itemsScanned = itemsScanned;
+
+            List<T> resultObjs = new ArrayList<T>();
+            for (Item item : items) {
+                resultObjs.add(buildLoadObj(modelClass, query.modelName, item.getName(), item.getAttributes(), query));
+                addReadBytes(query.modelName, DbServiceWrapper.OP_QUERY, item.getName(), item.getAttributes());
+            }
+            return resultObjs;
+        } catch(Exception e) {
+            throw new JsodaException("Query failed.  Query: " + toQueryStr(query, false) + "  Error: " + e.getMessage(), e);
+        }
+    }
+
+    /** SimpleDB indexes all the attributes.  A query without filter scans the whole domain. */
+    public <T> String explainQuery(Query<T> query) {
+        StringBuilder   sb = new StringBuilder("SimpleDB select");
+        if (jsoda.getTableShards(query.modelName) > 1)
+            sb.append(" on the ").append(jsoda.getTableShards(query.modelName)).append(" domains of the shards in parallel,");
+        if (query.filters.size() == 0)
+            sb.append(" scanning the whole domain");
+        else if (hasItemNameFilter(query))
+            sb.append(" using the item name key");
+        else
+            sb.append(" using the attribute indexes");
+        if (jsoda.getTableShards(query.modelName) > 1) {
+            sb.append(query.orderbyFields.size() == 0 ? ", unsorted." : ", sorted by SimpleDB and merged.");
+            sb.append("  Select of a shard: ").append(toQueryStr(query, false, jsoda.getShardTable(query.modelName, 0)));
+        } else {
+            sb.append(query.orderbyFields.size() == 0 ? ", unsorted." : ", sorted by SimpleDB.");
+            sb.append("  Select: ").append(toQueryStr(query, false));
+        }
+        return sb.toString();
+    }
+
+    private <T> boolean hasItemNameFilter(Query<T> query) {
+        for (Filter filter : query.filters) {
+            if (ITEM_NAME.equals(getFieldAttrName(query.modelName, filter.fieldName)))
+                return true;
+        }
+        return false;
+    }
+
+    /** Select the next page of the items with item names in the partition range.  The domains of the shards of
+     * a @ShardedTable model are gone through one after another.
+     */
+    public <T> List<T> scanPartition(Class<T> modelClass, ScanPartition partition)
+        throws JsodaException
+    {
+        List<T>         resultObjs = new ArrayList<T>();
+        if (!partition.hasNext())
+            return resultObjs;
+
+        String          modelName = Jsoda.getModelName(modelClass);
+        int             shards = jsoda.getTableShards(modelName);
+        String          table = shards > 1 ? jsoda.getShardTable(modelName, partition.shard) : jsoda.getModelTable(modelName);
+        StringBuilder   sb = new StringBuilder();
+        sb.append("select * from ").append(SimpleDBUtils.quoteName(table));
+        if (partition.lowerBound != null)
+            sb.append(" where ").append(ITEM_NAME).append(" >= ").append(SimpleDBUtils.quoteValue(partition.lowerBound));
+        if (partition.upperBound != null)
+            sb.append(partition.lowerBound == null ? " where " : " and ").append(ITEM_NAME).append(" < ").append(SimpleDBUtils.quoteValue(partition.upperBound));
+
+        SelectRequest   request = new SelectRequest(sb.toString(), false);
+        if (partition.nextKey != null)
+            request.setNextToken((String)partition.nextKey);
+
+        ThroughputLimiter   limiter = jsoda.getLimiter(modelName);
+        try {
+            limiter.acquireRead(1, true);
+            SelectResult    result = sdbClient.select(request);
+            partition.started = true;
+            partition.nextKey = result.getNextToken();
+            if (partition.nextKey == null && partition.shard + 1 < shards) {
+                partition.shard++;
+                partition.started = false;
+            }
+            for (Item item : result.getItems()) {
+                resultObjs.add(buildLoadObj(modelClass, modelName, item.getName(), item.getAttributes(), null));
+                addReadBytes(modelName, DbServiceWrapper.OP_SCAN, item.getName(), item.getAttributes());
+            }
+            return resultObjs;
+        } catch(Exception e) {
+            checkReadThrottled(e, limiter);
+            throw new JsodaException("Scan failed.  Query: " + request.getSelectExpression() + "  Error: " + e.getMessage(), e);
+        }
+    }
+
 
     public String getFieldAttrName(String modelName, String fieldName) {
         // SimpleDB's attribute name for single Id always maps to "itemName()"
@@ -308,7 +576,7 @@ class SimpleDBService implements DbService
     }
 
 
-    private List<ReplaceableAttribute> buildAttrs(Object dataObj, String modelName)
+    List<ReplaceableAttribute> buildAttrs(Object dataObj, String modelName)
         throws Exception
     {
         List<ReplaceableAttribute>  attrs = new ArrayList<ReplaceableAttribute>();
@@ -349,20 +617,44 @@ class SimpleDBService implements DbService
         return cond;
     }
 
-    private List<ReplaceableItem> buildPutItems(List dataObjs, String modelName, int offset)
+    /** Add the approximate size of the item to the metrics, as the length of its name and attribute names and values. */
+    private void addReadBytes(String modelName, String op, String idValue, List<Attribute> attrs) {
+        Metrics metrics = jsoda.getMetrics();
+        if (!metrics.isEnabled())
+            return;
+        long    bytes = idValue.length();
+        for (Attribute attr : attrs)
+            bytes += attr.getName().length() + (attr.getValue() == null ? 0 : attr.getValue().length());
+        metrics.addBytes(modelName, op, bytes);
+    }
+
+    private void addWriteBytes(String modelName, String op, String idValue, List<ReplaceableAttribute> attrs) {
+        Metrics metrics = jsoda.getMetrics();
+        if (!metrics.isEnabled())
+            return;
+        long    bytes = idValue.length();
+        for (ReplaceableAttribute attr : attrs)
+            bytes += attr.getName().length() + (attr.getValue() == null ? 0 : attr.getValue().length());
+        metrics.addBytes(modelName, op, bytes);
+    }
+
+    /** Build the put items of the objects, grouped by their domains. */
+    private Map<String, List<ReplaceableItem>> buildPutItems(List dataObjs, String modelName)
         throws Exception
     {
-        List<ReplaceableItem>   items = new ArrayList<ReplaceableItem>();
+        Map<String, List<ReplaceableItem>>  tableItems = new LinkedHashMap<String, List<ReplaceableItem>>();
 
-        for (int i = offset; i < dataObjs.size() && items.size() < MAX_PUT_ITEMS; i++) {
-            Object  dataObj = dataObjs.get(i);
+        for (Object dataObj : dataObjs) {
             String  idValue = makeIdValue(modelName, dataObj);
-            items.add(new ReplaceableItem(idValue, buildAttrs(dataObj, modelName)));
+            String  table = toItemTable(modelName, idValue);
+            if (!tableItems.containsKey(table))
+                tableItems.put(table, new ArrayList<ReplaceableItem>());
+            tableItems.get(table).add(new ReplaceableItem(idValue, buildAttrs(dataObj, modelName)));
         }
-        return items;
+        return tableItems;
     }
 
-    private <T> T buildLoadObj(Class<T> modelClass, String modelName, String idValue, List<Attribute> attrs, Query query)
+    <T> T buildLoadObj(Class<T> modelClass, String modelName, String idValue, List<Attribute> attrs, Query query)
         throws Exception
     {
         T                   obj = modelClass.newInstance();
@@ -424,9 +716,13 @@ class SimpleDBService implements DbService
     }
 
     private <T> String toQueryStr(Query<T> query, boolean selectCount) {
+        return toQueryStr(query, selectCount, jsoda.getModelTable(query.modelName));
+    }
+
+    private <T> String toQueryStr(Query<T> query, boolean selectCount, String table) {
         StringBuilder   sb = new StringBuilder();
         addSelectStr(query, selectCount, sb);
-        addFromStr(query, sb);
+        addFromStr(table, sb);
         addFilterStr(query, sb);
         addOrderbyStr(query, sb);
         addLimitStr(query, sb);
@@ -482,8 +778,8 @@ class SimpleDBService implements DbService
         }
     }
 
-    private <T> void addFromStr(Query<T> query, StringBuilder sb) {
-        sb.append(" from ").append(SimpleDBUtils.quoteName(jsoda.getModelTable(query.modelName)));
+    private void addFromStr(String table, StringBuilder sb) {
+        sb.append(" from ").append(SimpleDBUtils.quoteName(table));
     }
 
     private <T> void addFilterStr(Query<T> query, StringBuilder sb) {
@@ -510,5 +806,32 @@ class SimpleDBService implements DbService
             sb.append(" limit ").append(query.limit);
     }
 
-}
+    /** Order of the items of a sharded query by its order-by term, or null for an unordered query. */
+    private <T> Comparator<Item> toOrderByOrder(Query<T> query) {
+        if (query.orderbyFields.size() == 0)
+            return null;
+        String          orderby = query.orderbyFields.get(0);
+        String          term = orderby.substring(1);
+        final String    orderAttrName = jsoda.getRangeField(query.modelName) == null && jsoda.isIdField(query.modelName, term) ?
+            ITEM_NAME : jsoda.getFieldAttrMap(query.modelName).get(term);
+        final boolean   forward = orderby.charAt(0) == '+';
+        return new Comparator<Item>() {
+                public int compare(Item item1, Item item2) {
+                    int cmp = orderValue(item1, orderAttrName).compareTo(orderValue(item2, orderAttrName));
+                    return forward ? cmp : -cmp;
+                }
+            };
+    }
+
+    /** Value of the order-by attribute of an item.  SimpleDB orders by the string values, which Jsoda encodes to sort in the value order. */
+    private static String orderValue(Item item, String orderAttrName) {
+        if (ITEM_NAME.equals(orderAttrName))
+            return item.getName();
+        for (Attribute attr : item.getAttributes()) {
+            if (attr.getName().equals(orderAttrName))
+                return attr.getValue();
+        }
+        return "";
+    }
 
+}
@@ -0,0 +1,139 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Slow query log of the Query runs and counts of a Jsoda object.  A run slower than the threshold is logged
+ * at WARN with its timing, the page number, the items returned and scanned so far in the result set, and the
+ * query plan from Query.explain().  A sample of the other runs can be logged at INFO the same way, to see
+ * the typical queries.
+ * Class is thread-safe.
+ */
+public class SlowQueryLog
+{
+    private static Log  log = LogFactory.getLog(SlowQueryLog.class);
+
+    public static final long    DEFAULT_THRESHOLD_MS = 1000;
+    public static final double  DEFAULT_SAMPLE_RATE = 0;
+
+    private volatile long       thresholdMs = DEFAULT_THRESHOLD_MS;
+    private volatile double     sampleRate = DEFAULT_SAMPLE_RATE;
+    private Random              random = new Random();
+
+    // Metrics
+    private AtomicLong          slowQueries = new AtomicLong();
+    private AtomicLong          sampledQueries = new AtomicLong();
+
+
+    /** Time of a query run or count to be logged as slow.  Negative to log no query as slow. */
+    public SlowQueryLog setThresholdMs(long thresholdMs) {
+        this.thresholdMs = thresholdMs;
+        return this;
+    }
+
+    public long getThresholdMs() {
+        return thresholdMs;
+    }
+
+    /** Ratio of the queries under the threshold to log, between 0 and 1. */
+    public SlowQueryLog setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1)
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1.");
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Number of queries logged as slow. */
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    /** Number of queries logged as samples. */
+    public long getSampledQueries() {
+        return sampledQueries.get();
+    }
+
+    public String dumpMetrics() {
+        return "SlowQueryLog slowQueries: " + getSlowQueries() + ", sampledQueries: " + getSampledQueries();
+    }
+
+
+    /** Log the run of a page of the query if it's slow or sampled.  The result set stats of the query include the page. */
+    void logRun(Query query, long elapsedNanos, int items) {
+        long    ms = elapsedNanos / 1000000L;
+        boolean slow = isSlow(ms);
+        if (!slow && !isSampled())
+            return;
+        write(slow, "Query on " + query.modelName + " took " + ms + "ms for page " + query.pages + " with " + items + " items." +
+              "  Result set so far: " + query.pages + " pages, " + query.itemsReturned + " items returned, " +
+              query.itemsScanned + " items scanned, " + query.runNanos / 1000000L + "ms, " +
+              query.getConsumedCapacity() + " capacity units.  " + explain(query));
+    }
+
+    /** Log the count of the query if it's slow or sampled. */
+    void logCount(Query query, long elapsedNanos, long count) {
+        long    ms = elapsedNanos / 1000000L;
+        boolean slow = isSlow(ms);
+        if (!slow && !isSampled())
+            return;
+        write(slow, "Count query on " + query.modelName + " took " + ms + "ms with count " + count + ".  " + explain(query));
+    }
+
+    private boolean isSlow(long ms) {
+        long    threshold = thresholdMs;
+        return threshold >= 0 && ms >= threshold && log.isWarnEnabled();
+    }
+
+    private boolean isSampled() {
+        double  rate = sampleRate;
+        if (rate <= 0 || !log.isInfoEnabled())
+            return false;
+        synchronized(random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void write(boolean slow, String message) {
+        if (slow) {
+            slowQueries.incrementAndGet();
+            log.warn("Slow query.  " + message);
+        } else {
+            sampledQueries.incrementAndGet();
+            log.info("Sampled query.  " + message);
+        }
+    }
+
+    private static String explain(Query query) {
+        try {
+            return query.explain();
+        } catch(Exception e) {
+            return "No plan: " + e.getMessage();
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Client side limiter of the read and write capacity units per second used on the table of a model.
+ * For DynamoDB, the rates are seeded from the @Model readThroughput and writeThroughput.  Each call takes
+ * its estimated units up front, and the consumed capacity returned by DynamoDB settles the difference.
+ * On throttling errors the rate is cut multiplicatively, and recovers additively toward the provisioned rate
+ * while there is no throttling.
+ *
+ * Interactive calls take priority over background calls.  Background calls wait while the tokens are within
+ * the reserve kept for interactive calls.  By default, single object get, put, and delete are interactive,
+ * while batch put, batch delete, query, and scan are background.  A thread can override it with setThreadBackground().
+ * Class is thread-safe.
+ */
+public class ThroughputLimiter
+{
+    private static Log  log = LogFactory.getLog(ThroughputLimiter.class);
+
+    public static final double  BACKGROUND_RESERVE = 0.25;      // fraction of the burst reserved for interactive calls.
+    static final double         DECREASE_FACTOR = 0.7;
+    static final double         MIN_RATE_FRACTION = 0.1;
+    static final double         INCREASE_FRACTION = 0.05;
+    static final long           DECREASE_INTERVAL_MS = 500;
+    static final long           INCREASE_INTERVAL_MS = 1000;
+
+    /** Limiter that never limits, used when throughput limiting is off. */
+    static final ThroughputLimiter  NONE = new ThroughputLimiter("none", 0, 0);
+
+    private static final ThreadLocal<Boolean>   threadBackground = new ThreadLocal<Boolean>();
+
+    private String      modelName;
+    private Capacity    read;
+    private Capacity    write;
+
+
+    /** Create a limiter of the read and write capacity units per second.  0 or less means unlimited. */
+    public ThroughputLimiter(String modelName, double readRate, double writeRate) {
+        this.modelName = modelName;
+        this.read = new Capacity("read", readRate);
+        this.write = new Capacity("write", writeRate);
+    }
+
+    /** Set the priority of the calls made by the current thread, overriding the default by operation.  null to restore the default. */
+    public static void setThreadBackground(Boolean background) {
+        if (background == null)
+            threadBackground.remove();
+        else
+            threadBackground.set(background);
+    }
+
+    static Boolean getThreadBackground() {
+        return threadBackground.get();
+    }
+
+    /** Wrap a call handed over to another thread to run with the priority override of the current thread, if any. */
+    static <R> Callable<R> withThreadBackground(final Callable<R> call) {
+        final Boolean   background = threadBackground.get();
+        if (background == null)
+            return call;
+        return new Callable<R>() {
+            public R call() throws Exception {
+                Boolean saved = threadBackground.get();
+                setThreadBackground(background);
+                try {
+                    return call.call();
+                } finally {
+                    setThreadBackground(saved);
+                }
+            }
+        };
+    }
+
+    /** Current read rate, which can be below the provisioned rate after throttling. */
+    public double getReadRate() {
+        return read.limiter.getRate();
+    }
+
+    public double getWriteRate() {
+        return write.limiter.getRate();
+    }
+
+    /** Set the provisioned read rate, e.g. after updating the table's throughput.  0 for unlimited. */
+    public ThroughputLimiter setReadRate(double readRate) {
+        read.setProvisioned(readRate);
+        return this;
+    }
+
+    public ThroughputLimiter setWriteRate(double writeRate) {
+        write.setProvisioned(writeRate);
+        return this;
+    }
+
+    public String toString() {
+        return "ThroughputLimiter " + modelName + " " + read + ", " + write;
+    }
+
+
+    void acquireRead(int units, boolean defaultBackground)
+        throws InterruptedException
+    {
+        read.acquire(units, defaultBackground);
+    }
+
+    void acquireWrite(int units, boolean defaultBackground)
+        throws InterruptedException
+    {
+        write.acquire(units, defaultBackground);
+    }
+
+    /** Settle the units acquired with the consumed capacity reported by the database, if any. */
+    void consumedRead(int acquired, Double consumed) {
+        if (consumed != null)
+            read.limiter.adjust(consumed.doubleValue() - acquired);
+    }
+
+    void consumedWrite(int acquired, Double consumed) {
+        if (consumed != null)
+            write.limiter.adjust(consumed.doubleValue() - acquired);
+    }
+
+    void throttledRead() {
+        read.throttled();
+    }
+
+    void throttledWrite() {
+        write.throttled();
+    }
+
+
+    /** Rate limiter of one kind of capacity, adjusted by AIMD within the provisioned rate. */
+    private class Capacity {
+        final String        name;
+        final RateLimiter   limiter;
+        volatile double     provisioned;
+        volatile long       lastAdjust;
+        volatile boolean    reduced;            // rate lowered below the provisioned rate.
+
+        Capacity(String name, double provisioned) {
+            this.name = name;
+            this.limiter = new RateLimiter(provisioned);
+            this.provisioned = provisioned;
+        }
+
+        void acquire(int units, boolean defaultBackground)
+            throws InterruptedException
+        {
+            if (provisioned <= 0)
+                return;
+            recover();
+            Boolean background = threadBackground.get();
+            if (background != null ? background.booleanValue() : defaultBackground)
+                limiter.acquireAboveReserve(units, BACKGROUND_RESERVE);
+            else
+                limiter.acquire(units);
+        }
+
+        synchronized void setProvisioned(double rate) {
+            provisioned = rate;
+            limiter.setRate(rate);
+            lastAdjust = System.currentTimeMillis();
+            reduced = false;
+        }
+
+        /** Cut the rate, once per interval as concurrent calls are throttled together. */
+        synchronized void throttled() {
+            long    now = System.currentTimeMillis();
+            if (provisioned <= 0 || now - lastAdjust < DECREASE_INTERVAL_MS)
+                return;
+            double  rate = Math.max(limiter.getRate() * DECREASE_FACTOR, provisioned * MIN_RATE_FRACTION);
+            limiter.setRate(rate);
+            lastAdjust = now;
+            reduced = true;
+            log.info("Throttled on " + modelName + " " + name + ", rate lowered to " + rate);
+        }
+
+        void recover() {
+            if (reduced && System.currentTimeMillis() - lastAdjust >= INCREASE_INTERVAL_MS)
+                increase();
+        }
+
+        private synchronized void increase() {
+            long    now = System.currentTimeMillis();
+            double  rate = limiter.getRate();
+            if (!reduced || now - lastAdjust < INCREASE_INTERVAL_MS)
+                return;
+            rate = Math.min(provisioned, rate + provisioned * INCREASE_FRACTION);
+            limiter.setRate(rate);
+            lastAdjust = now;
+            reduced = rate < provisioned;
+        }
+
+        public String toString() {
+            return name + ": " + limiter.getRate() + "/" + provisioned;
+        }
+    }
+
+}
@@ -25,8 +25,9 @@ import java.io.Serializable;
 
 /**
  * Simple cache service for single process JVM.  Thread-safe.
+ * Expired objects are kept until evicted by LRU or replaced, so that they can be served stale with getStale().
  */
-public class MemCacheableSimple implements MemCacheable {
+public class MemCacheableSimple implements StaleCacheable {
 
     private Map<String, CacheEntry> lruCache;
     private AtomicInteger           hits = new AtomicInteger();
@@ -76,7 +77,6 @@ public class MemCacheableSimple implements MemCacheable {
             return null;
         }
         if (entry.hasExpired()) {
-            delete(key);
             misses.incrementAndGet();
             return null;
         }
@@ -84,6 +84,16 @@ public class MemCacheableSimple implements MemCacheable {
         return entry.obj;
     }
 
+    /**
+     * Get an object from the cache even if it has expired, without loading it via the objectLoader.
+     * @param key  Unique key of the object.
+     */
+    @SuppressWarnings("unchecked")
+    public Serializable getStale(String key) {
+        CacheEntry<Serializable>    entry = (CacheEntry<Serializable>)lruCache.get(key);
+        return entry == null ? null : entry.obj;
+    }
+
     /**
      * Put an object into the cache.
      * @param key  Unique key of the object.
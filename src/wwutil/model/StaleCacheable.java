@@ -0,0 +1,29 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.io.Serializable;
+
+/**
+ * Cache service that can return the objects expired but not yet evicted, for serving stale data when the database is unavailable.
+ */
+public interface StaleCacheable extends MemCacheable {
+
+    /** Get an object from the cache even if it has expired.  Return null if it's not in the cache. */
+    public Serializable getStale(String key);
+
+}
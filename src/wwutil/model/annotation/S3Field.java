@@ -26,6 +26,13 @@ public @interface S3Field {
     // Constants for storeAs
     public static final int     AS_JSON = 1;
     public static final int     AS_OBJECT = 2;
+    public static final int     AS_BINARY = 3;      // compact binary encoding, see wwutil.jsoda.BinaryCodec.
+
+    // Constants for codec
+    public static final String  CODEC_NONE = "none";
+    public static final String  CODEC_GZIP = "gzip";
+    public static final String  CODEC_DEFLATE = "deflate";
+    public static final String  CODEC_LZF = "lzf";      // fast pure Java LZF, lower ratio than gzip.
 
     public int storeAs() default AS_JSON;
 
@@ -38,5 +45,20 @@ public @interface S3Field {
     /** Compress the content with gzip before storing.  Set the Content-Encoding of the S3 object to gzip. */
     public boolean gzip() default false;
 
+    /** Compression codec of the content, one of the CODEC_ constants or a name registered with wwutil.jsoda.CompressionCodec.
+     * Default is gzip if gzip is set, otherwise none.  The codec is recorded in the S3 object metadata,
+     * so that content is read back with the codec it was stored with regardless of the current setting.
+     */
+    public String codec() default "";
+
+    /** Compression level of the codec, 0-9 for gzip and deflate.  Default -1 uses the codec's default level. */
+    public int level() default -1;
+
+    /** Skip uploading the content if it has not changed since the last store.
+     * A digest of the content is stored with the S3 object and compared before uploading, at the cost of
+     * a HEAD request on every store and the serialized content buffered in memory.
+     */
+    public boolean skipUnchanged() default false;
+
 }
 
@@ -0,0 +1,37 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model.annotation;
+
+import java.lang.annotation.*;
+
+
+/**
+ * Model class annotation for DynamoDB.  Spread the items of each hash key over a number of physical hash keys,
+ * the logical hash key suffixed with "#" and the shard number, to avoid throttling on a hot hash key.
+ * The shard of an item is picked by hashing its range key, so the model needs a String hash key and a range key.
+ * Dao.get() and delete() go to the item's shard.  Query.run() and count() with an EQ condition on the hash key
+ * fan out to all the shards in parallel, and the results are merged in the range key order.
+ * The objects always carry the logical hash key.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface ShardedKey {
+    public static final String  SEPARATOR = "#";
+
+    /** Number of shards per hash key.  Changing it after items are stored makes them unreachable. */
+    public int shards();
+}
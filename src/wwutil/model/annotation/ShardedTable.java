@@ -0,0 +1,36 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model.annotation;
+
+import java.lang.annotation.*;
+
+
+/**
+ * Model class annotation for SimpleDB.  Hash-partition the items of the model over a number of domains, named as
+ * the table name suffixed with "_" and the shard number, to go beyond the size and throughput limits of a domain.
+ * The domain of an item is picked by hashing its item name.  Dao.get(), put(), and delete() go to the item's domain.
+ * Query.run() and count() run on all the domains in parallel, and the results are merged in the order-by order.
+ * Jsoda.createModelTable() and deleteModelTable() create and delete all the domains.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface ShardedTable {
+    public static final String  SEPARATOR = "_";
+
+    /** Number of domains.  Changing it after items are stored makes them unreachable. */
+    public int shards();
+}
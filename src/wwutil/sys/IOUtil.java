@@ -182,5 +182,47 @@ public class IOUtil {
     {
         return objFromStream(new BufferedInputStream(new FileInputStream(file)));
     }
-}
 
+    /** OutputStream discarding all data written to it. */
+    public static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /** InputStream counting the bytes read through it. */
+    public static class CountingInputStream extends FilterInputStream {
+        private long    count;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long    skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+}
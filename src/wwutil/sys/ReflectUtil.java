@@ -415,11 +415,11 @@ public class ReflectUtil
     {
         if (field.getType() == Integer.class || field.getType() == int.class) {
             Integer value = (Integer)field.get(dataObj);
-            value = value == null ? new Integer(1) : new Integer(value.intValue() + 1);
+            value = value == null ? Integer.valueOf(1) : Integer.valueOf(value.intValue() + 1);
             field.set(dataObj, value);
         } else if (field.getType() == Long.class || field.getType() == long.class) {
             Long    value = (Long)field.get(dataObj);
-            value = value == null ? new Long(1) : new Long(value.longValue() + 1);
+            value = value == null ? Long.valueOf(1) : Long.valueOf(value.longValue() + 1);
             field.set(dataObj, value);
         } else {
             throw new IllegalArgumentException("Cannot increment non-integer field " + field);
@@ -74,7 +74,7 @@ public class TlsMap
 
     public static void putBoolean(Object key, boolean value)
     {
-        put(key, new Boolean(value));
+        put(key, Boolean.valueOf(value));
     }
 
     public static boolean getBoolean(Object key)
@@ -85,7 +85,7 @@ public class TlsMap
 
     public static void putInt(Object key, int value)
     {
-        put(key, new Integer(value));
+        put(key, Integer.valueOf(value));
     }
 
     public static int getInt(Object key)
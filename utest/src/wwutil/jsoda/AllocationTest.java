@@ -0,0 +1,266 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodb.model.*;
+
+import wwutil.model.MemCacheableSimple;
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.Model;
+import wwutil.model.annotation.Key;
+
+
+
+
+//
+// Allocation budgets of the core code paths, measured with the thread allocated-bytes counter of the JVM.
+// The tests run against an in-process stand-in of the DynamoDB client, without AWS.  A test fails when the
+// bytes allocated per operation go over its budget.  The budgets include the allocations of the stand-in.
+// When a change legitimately needs more, raise the budget in the same change.  The tests are skipped on a JVM
+// not supporting the allocation measuring.
+//
+
+public class AllocationTest
+{
+    private static final int    WARMUP = 5000;
+    private static final int    OPS = 2000;
+    private static final int    QUERY_ITEMS = 20;
+
+    // Budgets in bytes per operation.
+    private static final long   PUT_BUDGET = 5000;
+    private static final long   PUT_CACHED_BUDGET = 5000;
+    private static final long   GET_BUDGET = 5000;
+    private static final long   GET_CACHED_BUDGET = 500;
+    private static final long   QUERY_ITEM_BUDGET = 3000;
+    private static final long   CACHE_KEY_BUDGET = 400;
+
+    private Jsoda           jsoda;
+    private Dao<AllocModel> dao;
+
+
+    @Before
+    public void setUp() throws Exception {
+        jsoda = new Jsoda(new BasicAWSCredentials("test", "test"));
+        jsoda.registerModel(AllocModel.class);
+        ((DynamoDBService)((DbServiceWrapper)jsoda.getDb(Jsoda.getModelName(AllocModel.class))).getService()).setClient(new LocalDynamoDB("id", "seq"));
+        dao = jsoda.dao(AllocModel.class);
+        for (int i = 0; i < QUERY_ITEMS; i++)
+            dao.put(new AllocModel("group1", i));
+    }
+
+    @After
+    public void tearDown() {
+        jsoda.shutdown();
+    }
+
+
+    @Test
+    public void test_put_no_cache() throws Exception {
+        jsoda.setMemCacheable(null);
+        final AllocModel    obj = new AllocModel("put1", 1);
+        assertBudget("Dao.put without cache", PUT_BUDGET, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    dao.put(obj);
+                    return null;
+                }
+            });
+    }
+
+    @Test
+    public void test_put_cached() throws Exception {
+        jsoda.setMemCacheable(new MemCacheableSimple(1000));
+        final AllocModel    obj = new AllocModel("put1", 1);
+        assertBudget("Dao.put with cache", PUT_CACHED_BUDGET, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    dao.put(obj);
+                    return null;
+                }
+            });
+    }
+
+    @Test
+    public void test_get_no_cache() throws Exception {
+        jsoda.setMemCacheable(null);
+        assertBudget("Dao.get without cache", GET_BUDGET, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return dao.get("group1", 5L);
+                }
+            });
+    }
+
+    @Test
+    public void test_get_cached() throws Exception {
+        jsoda.setMemCacheable(new MemCacheableSimple(1000));
+        dao.get("group1", 5L);
+        assertNotNull(jsoda.getObjCacheMgr().cacheGet(Jsoda.getModelName(AllocModel.class), "group1", 5L));
+        assertBudget("Dao.get with cache", GET_CACHED_BUDGET, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return dao.get("group1", 5L);
+                }
+            });
+    }
+
+    @Test
+    public void test_query_run() throws Exception {
+        jsoda.setMemCacheable(null);
+        assertEquals(QUERY_ITEMS, jsoda.query(AllocModel.class).eq("id", "group1").run().size());
+        assertBudget("Query.run per item", QUERY_ITEM_BUDGET, QUERY_ITEMS, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return jsoda.query(AllocModel.class).eq("id", "group1").run();
+                }
+            });
+    }
+
+    @Test
+    public void test_cache_key() throws Exception {
+        final String    modelName = Jsoda.getModelName(AllocModel.class);
+        final ObjCacheMgr   cacheMgr = jsoda.getObjCacheMgr();
+        jsoda.setMemCacheable(null);
+        assertBudget("Cache key generation", CACHE_KEY_BUDGET, 1, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return cacheMgr.cacheGet(modelName, "group1", 5L);
+                }
+            });
+    }
+
+
+    /** Run the operation and check the bytes it allocates per item against the budget. */
+    private void assertBudget(String name, long budget, int itemsPerOp, Callable<Object> op) throws Exception {
+        java.lang.management.ThreadMXBean   bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean &&
+                   ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean tbean = (com.sun.management.ThreadMXBean)bean;
+        long    threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++)
+            op.call();
+        long    start = tbean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < OPS; i++)
+            op.call();
+        long    perItem = (tbean.getThreadAllocatedBytes(threadId) - start) / OPS / itemsPerOp;
+
+        assertTrue(name + " allocated " + perItem + " bytes, over the budget of " + budget, perItem <= budget);
+    }
+
+
+    @Model(dbtype = DbType.DynamoDB)
+    public static class AllocModel implements Serializable {
+        @Key(hashKey=true)
+        public String   id;
+        @Key(rangeKey=true)
+        public Long     seq;
+        public String   name;
+        public int      count;
+        public long     total;
+        public double   price;
+        public boolean  active;
+        public Date     created;
+
+        public AllocModel() {}
+
+        public AllocModel(String id, int seq) {
+            this.id = id;
+            this.seq = Long.valueOf(seq);
+            this.name = "name" + seq;
+            this.count = seq;
+            this.total = 1000000L + seq;
+            this.price = 9.95 * seq;
+            this.active = seq % 2 == 0;
+            this.created = new Date(1350000000000L + seq * 1000L);
+        }
+    }
+
+
+    /** In-process stand-in of the DynamoDB client, storing the items of a single table keyed by hash and range key.
+     * Queries match the hash key only, and scans return all the items, without paging.
+     */
+    static class LocalDynamoDB extends AmazonDynamoDBClient {
+        private String  hashAttr;
+        private String  rangeAttr;
+        private ConcurrentMap<String, ConcurrentSkipListMap<String, Map<String, AttributeValue>>>   items =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Map<String, AttributeValue>>>();
+
+        LocalDynamoDB(String hashAttr, String rangeAttr) {
+            super(new BasicAWSCredentials("test", "test"));
+            this.hashAttr = hashAttr;
+            this.rangeAttr = rangeAttr;
+        }
+
+        private static String str(AttributeValue value) {
+            return value == null ? "" : value.getS() != null ? value.getS() : value.getN();
+        }
+
+        private ConcurrentSkipListMap<String, Map<String, AttributeValue>> partition(String hashKey) {
+            ConcurrentSkipListMap<String, Map<String, AttributeValue>>  partition = items.get(hashKey);
+            if (partition == null) {
+                items.putIfAbsent(hashKey, new ConcurrentSkipListMap<String, Map<String, AttributeValue>>());
+                partition = items.get(hashKey);
+            }
+            return partition;
+        }
+
+        private void store(Map<String, AttributeValue> item) {
+            partition(str(item.get(hashAttr))).put(str(item.get(rangeAttr)), item);
+        }
+
+        public PutItemResult putItem(PutItemRequest req) {
+            store(req.getItem());
+            return new PutItemResult().withConsumedCapacityUnits(1.0);
+        }
+
+        public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest req) {
+            for (List<WriteRequest> writes : req.getRequestItems().values()) {
+                for (WriteRequest write : writes)
+                    store(write.getPutRequest().getItem());
+            }
+            return new BatchWriteItemResult();
+        }
+
+        public GetItemResult getItem(GetItemRequest req) {
+            Map<String, AttributeValue> item = partition(str(req.getKey().getHashKeyElement())).get(str(req.getKey().getRangeKeyElement()));
+            return new GetItemResult().withItem(item).withConsumedCapacityUnits(0.5);
+        }
+
+        public DeleteItemResult deleteItem(DeleteItemRequest req) {
+            partition(str(req.getKey().getHashKeyElement())).remove(str(req.getKey().getRangeKeyElement()));
+            return new DeleteItemResult().withConsumedCapacityUnits(1.0);
+        }
+
+        public QueryResult query(QueryRequest req) {
+            List<Map<String, AttributeValue>>   list = new ArrayList<Map<String, AttributeValue>>(partition(str(req.getHashKeyValue())).values());
+            return new QueryResult().withItems(list).withCount(list.size()).withConsumedCapacityUnits(1.0);
+        }
+
+        public ScanResult scan(ScanRequest req) {
+            List<Map<String, AttributeValue>>   list = new ArrayList<Map<String, AttributeValue>>();
+            for (Map<String, Map<String, AttributeValue>> partition : items.values())
+                list.addAll(partition.values());
+            return new ScanResult().withItems(list).withCount(list.size()).withScannedCount(list.size()).withConsumedCapacityUnits(1.0);
+        }
+    }
+
+}
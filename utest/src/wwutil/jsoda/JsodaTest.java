@@ -37,6 +37,7 @@ import com.amazonaws.auth.BasicAWSCredentials;
 
 import wwutil.sys.ReflectUtil;
 import wwutil.sys.FnUtil;
+import wwutil.sys.IOUtil;
 import wwutil.model.MemCacheableSimple;
 import wwutil.model.annotation.Key;
 import wwutil.model.annotation.PrePersist;
@@ -67,6 +68,8 @@ import wwutil.model.annotation.MaskMatch;
 import wwutil.model.annotation.EmailMatch;
 import wwutil.model.annotation.S3Field;
 import wwutil.model.annotation.FormatMsg;
+import wwutil.model.annotation.ShardedKey;
+import wwutil.model.annotation.ShardedTable;
 
 import static wwutil.jsoda.Query.*;
 
@@ -1657,12 +1660,414 @@ public class JsodaTest extends TestCase
 
     }
 
+    public void xx_test_s3fields_multipart() throws Exception {
+
+        // Point S3_ENDPOINT to an S3-compatible test endpoint to avoid using the real S3.
+        if (System.getenv("S3_ENDPOINT") != null)
+            jsodaSdb.setS3Endpoint(System.getenv("S3_ENDPOINT"));
+        jsodaSdb.setS3PartSize(5 * 1024 * 1024).setS3TransferThreads(3);
+        jsodaSdb.registerModel(Model7.class, DbType.SimpleDB);
+
+        // Content over the part size is uploaded in parts and downloaded with ranged GETs.
+        Model7  model7 = new Model7("name-multipart", 30);
+        model7.colors = new String[1000000];
+        for (int i = 0; i < model7.colors.length; i++)
+            model7.colors[i] = "color-" + i;
+        model7.books = new HashMap();
+        for (int i = 0; i < 500000; i++)
+            model7.books.put("book" + i, "title of book " + i);
+
+        jsodaSdb.dao(Model7.class).put(model7);
+
+        Model7  model7a = jsodaSdb.dao(Model7.class).get("name-multipart");
+        assertTrue(Arrays.equals(model7.colors, model7a.colors));
+        assertEquals(model7.books, model7a.books);
+
+        jsodaSdb.dao(Model7.class).delete("name-multipart");
+    }
+
+    public void xx_test_s3fields_cache() throws Exception {
+
+        File            cacheDir = new File(System.getProperty("java.io.tmpdir"), "jsoda-s3cache-test");
+        S3ContentCache  cache = new S3ContentCache(cacheDir, 10 * 1024 * 1024);
+        cache.clear();
+        jsodaSdb.setS3ContentCache(cache);
+        jsodaSdb.registerModel(Model7.class, DbType.SimpleDB);
+
+        Model7  model7 = new Model7("name-cache", 30);
+        model7.colors = new String[] {"Red", "Green", "Blue"};
+        model7.books = FnUtil.asMap("book1", "Lord of the Rings", "book2", "Ender's Game");
+        jsodaSdb.dao(Model7.class).put(model7);
+
+        // First load fills the cache; second load revalidates and reads from the cache.
+        Model7  model7a = jsodaSdb.dao(Model7.class).get("name-cache");
+        Model7  model7b = jsodaSdb.dao(Model7.class).get("name-cache");
+        assertTrue(Arrays.equals(model7.colors, model7b.colors));
+        assertEquals(model7.books, model7b.books);
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        System.out.println(cache.dumpStats());
+
+        jsodaSdb.dao(Model7.class).delete("name-cache");
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void xx_test_s3fields_batchdelete() throws Exception {
+
+        jsodaSdb.registerModel(Model7.class, DbType.SimpleDB);
+        List<String>    ids = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            Model7  model7 = new Model7("batch" + i, i);
+            model7.colors = new String[] {"Red", "Green", "Blue"};
+            model7.books = FnUtil.asMap("book1", "Lord of the Rings");
+            jsodaSdb.dao(Model7.class).put(model7);
+            ids.add(model7.name);
+        }
+
+        // S3 fields of all the objects are deleted with multi-object delete requests.
+        jsodaSdb.dao(Model7.class).batchDelete(ids);
+        for (String id : ids)
+            assertNull(jsodaSdb.dao(Model7.class).get(id));
+    }
+
+    public void xx_test_bulk_load() throws Exception {
+
+        File    ndjsonFile = File.createTempFile("jsoda-bulk", ".json");
+        File    csvFile = File.createTempFile("jsoda-bulk", ".csv");
+        File    checkpointFile = new File(ndjsonFile.getPath() + ".ckpt");
+        ndjsonFile.deleteOnExit();
+        csvFile.deleteOnExit();
+        checkpointFile.deleteOnExit();
+
+        PrintWriter out = new PrintWriter(ndjsonFile, "UTF-8");
+        for (int i = 0; i < 100; i++)
+            out.println("{\"name\":\"bulk" + i + "\",\"age\":" + i + "}");
+        out.println("{not json");
+        out.close();
+
+        out = new PrintWriter(csvFile, "UTF-8");
+        out.println("name,age");
+        out.println("\"bulk, csv\",40");
+        out.close();
+
+        BulkLoader<Model1>  loader = jsodaDyn.bulkLoader(Model1.class).setThreads(4).setCheckpointFile(checkpointFile);
+        assertEquals(100, loader.loadNdjson(ndjsonFile));
+        assertEquals(1, loader.getRecordsInvalid());
+        assertEquals(101, loader.getRecordsDone());
+        assertEquals(50, jsodaDyn.dao(Model1.class).get("bulk50").age);
+
+        // Loading again with the same checkpoint resumes after the records done.
+        assertEquals(0, loader.loadNdjson(ndjsonFile));
+
+        assertEquals(1, jsodaDyn.bulkLoader(Model1.class).loadCsv(csvFile));
+        assertEquals(40, jsodaDyn.dao(Model1.class).get("bulk, csv").age);
+    }
+
+    public void xx_test_export() throws Exception {
+
+        File    dir = new File(System.getProperty("java.io.tmpdir"), "jsoda-export");
+        jsodaSdb.registerModel(Model1.class, DbType.SimpleDB);
+        jsodaSdb.dao(Model1.class).batchPut(new Model1("export1", 1), new Model1("export2", 2), new Model1("export3", 3));
+
+        Exporter<Model1>    exporter = jsodaSdb.exporter(Model1.class).setThreads(4);
+        long                count = exporter.exportTo(dir);
+        assertTrue(count >= 3);
+        assertEquals(count, exporter.getItemsExported());
+
+        long    lines = 0;
+        for (File file : exporter.getFiles()) {
+            BufferedReader  in = new BufferedReader(new InputStreamReader(new java.util.zip.GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                assertNotNull(DataUtil.fromJson(line, Model1.class).name);
+                lines++;
+            }
+            in.close();
+            file.delete();
+        }
+        assertEquals(count, lines);
+    }
+
+    public void xx_test_migrate() throws Exception {
+
+        jsodaSdb.registerModel(Model1.class, DbType.SimpleDB);
+        jsodaDyn.registerModel(Model1.class, DbType.DynamoDB);
+        jsodaSdb.dao(Model1.class).batchPut(new Model1("migrate1", 1), new Model1("migrate2", 2));
+
+        Migrator<Model1>    migrator = jsodaSdb.migrator(Model1.class, jsodaDyn);
+        migrator.startDualWrite();
+        assertTrue(migrator.migrate() >= 2);
+        assertEquals(2, jsodaDyn.dao(Model1.class).get("migrate2").age);
+
+        // Writes via the source's Dao are mirrored to the target.
+        jsodaSdb.dao(Model1.class).put(new Model1("migrate3", 3));
+        assertEquals(3, jsodaDyn.dao(Model1.class).get("migrate3").age);
+        jsodaSdb.dao(Model1.class).delete("migrate3");
+        assertNull(jsodaDyn.dao(Model1.class).get("migrate3"));
+        migrator.stopDualWrite();
+
+        Migrator.VerifyResult   result = migrator.verify();
+        assertTrue(result.isConsistent());
+
+        jsodaDyn.dao(Model1.class).delete("migrate1");
+        result = migrator.verify();
+        assertFalse(result.isConsistent());
+        assertEquals(Arrays.asList("migrate1"), result.getMissingKeys());
+    }
+
+    public void xx_test_throughput_limiting() throws Exception {
+
+        jsodaDyn.registerModel(Model1.class, DbType.DynamoDB);
+        jsodaDyn.setThroughputLimiting(true);
+        ThroughputLimiter   limiter = jsodaDyn.getThroughputLimiter(Model1.class);
+        limiter.setWriteRate(2);
+
+        // The burst of 2 goes through, then the puts are paced at 2 per second.
+        long    start = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++)
+            jsodaDyn.dao(Model1.class).put(new Model1("limit" + i, i));
+        assertTrue(System.currentTimeMillis() - start >= 1500);
+
+        ThroughputLimiter.setThreadBackground(Boolean.TRUE);
+        jsodaDyn.dao(Model1.class).batchPut(new Model1("limit10", 10), new Model1("limit11", 11));
+        ThroughputLimiter.setThreadBackground(null);
+
+        limiter.setWriteRate(0);
+        jsodaDyn.setThroughputLimiting(false);
+    }
+
+    public void xx_test_retry_policy() throws Exception {
+
+        RetryPolicy policy = new RetryPolicy().setBaseDelayMs(100).setMaxDelayMs(1000);
+        jsodaDyn.setRetryPolicy(policy);
+        jsodaDyn.dao(Model1.class).put(new Model1("retry1", 1));
+        assertEquals(1, jsodaDyn.dao(Model1.class).get("retry1").age);
+        assertTrue(policy.getCalls() >= 1);
+        jsodaDyn.setRetryPolicy(new RetryPolicy());
+    }
+
+    public void xx_test_hedged_get() throws Exception {
+
+        HedgePolicy hedgePolicy = new HedgePolicy().setMaxHedgeRatio(0.5);
+        jsodaDyn.setHedgePolicy(hedgePolicy);
+        jsodaDyn.dao(Model1.class).put(new Model1("hedge1", 1));
+
+        for (int i = 0; i < 200; i++)
+            assertEquals(1, jsodaDyn.dao(Model1.class).getConsistent("hedge1").age);
+        assertEquals(200, hedgePolicy.getReads());
+        assertTrue(hedgePolicy.getHedgeRate() <= 0.5);
+        assertTrue(hedgePolicy.getDelayMs(Model1.class) <= HedgePolicy.DEFAULT_MAX_DELAY_MS);
+        System.out.println(hedgePolicy.dumpMetrics());
+
+        jsodaDyn.setHedgePolicy(null);
+    }
+
+    public void xx_test_circuit_breaker() throws Exception {
+
+        CircuitBreakerPolicy    policy = new CircuitBreakerPolicy().setMinimumCalls(5);
+        jsodaDyn.setCircuitBreakerPolicy(policy);
+        jsodaDyn.setOperationDeadline("get", 10000);
+        jsodaDyn.dao(Model1.class).put(new Model1("circuit1", 1));
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(1, jsodaDyn.dao(Model1.class).getConsistent("circuit1").age);
+        assertEquals(CircuitBreaker.State.CLOSED, jsodaDyn.getCircuitState(Model1.class));
+        assertEquals(0, policy.getRejected());
+        System.out.println(policy.dumpMetrics());
+
+        jsodaDyn.setOperationDeadline("get", 0);
+        jsodaDyn.setCircuitBreakerPolicy(null);
+    }
+
+    public void xx_test_deadlines() throws Exception {
+
+        jsodaDyn.dao(Model1.class).put(new Model1("deadline1", 1));
+        jsodaDyn.setModelDeadline(Model1.class, 10000);
+        assertEquals(1, jsodaDyn.dao(Model1.class).withDeadline(5000).getConsistent("deadline1").age);
+        assertEquals(1, jsodaDyn.query(Model1.class).eq("name", "deadline1").deadline(10000).run().size());
+
+        try {
+            jsodaDyn.dao(Model1.class).withDeadline(1).getConsistent("deadline1");
+            fail("expected JsodaTimeoutException");
+        } catch(JsodaTimeoutException expected) {
+        }
+        jsodaDyn.setModelDeadline(Model1.class, 0);
+    }
+
+    public void xx_test_metrics() throws Exception {
+
+        Metrics metrics = jsodaDyn.getMetrics();
+        jsodaDyn.dao(Model1.class).put(new Model1("metrics1", 1));
+        jsodaDyn.dao(Model1.class).getConsistent("metrics1");
+
+        OperationStats  stats = metrics.getSnapshot(Model1.class, "get");
+        assertTrue(stats.getCalls() >= 1);
+        assertTrue(stats.getItems() >= 1);
+        assertTrue(stats.getBytes() > 0);
+        assertTrue(stats.getMaxMicros() >= stats.getP50Micros());
+        assertTrue(metrics.getSnapshot().containsKey(jsodaDyn.getModelName(Model1.class) + "/put"));
+        System.out.println(metrics.dumpMetrics());
+    }
+
+    public void xx_test_query_explain() throws Exception {
+
+        String  plan = jsodaSdb.query(Model1.class).eq("name", "explain1").explain();
+        assertTrue(plan.contains("item name key"));
+        assertTrue(plan.contains("itemName() = 'explain1'"));
+        assertTrue(jsodaDyn.query(Model1.class).gt("age", 10).explain().startsWith("DynamoDB scan"));
+
+        jsodaSdb.setSlowQueryLog(new SlowQueryLog().setThresholdMs(0));
+        jsodaSdb.query(Model1.class).gt("age", 10).run();
+        assertTrue(jsodaSdb.getSlowQueryLog().getSlowQueries() >= 1);
+        jsodaSdb.setSlowQueryLog(new SlowQueryLog());
+    }
+
+    public void xx_test_consumed_capacity() throws Exception {
+
+        jsodaDyn.dao(Model1.class).put(new Model1("capacity1", 1));
+        Query<Model1>   query = jsodaDyn.query(Model1.class).gt("age", 0);
+        query.run();
+        assertTrue(query.getConsumedCapacity() > 0);
+
+        OperationStats  stats = jsodaDyn.getMetrics().getSnapshot(Model1.class, "query");
+        assertTrue(stats.getCapacityUnits() >= query.getConsumedCapacity());
+        assertTrue(jsodaDyn.getMetrics().getSnapshot(Model1.class, "put").getCapacityUnits() > 0);
+        query.reset();
+        assertEquals(0.0, query.getConsumedCapacity());
+    }
+
+    public void xx_test_interceptor() throws Exception {
+
+        final List<String>  ops = Collections.synchronizedList(new ArrayList<String>());
+        Interceptor         interceptor = new Interceptor() {
+                public Object intercept(Invocation invocation) throws Exception {
+                    ops.add(invocation.getService() + "/" + invocation.getOperation() + "/" + invocation.getItems());
+                    return invocation.proceed();
+                }
+            };
+        jsodaDyn.addInterceptor(interceptor);
+        try {
+            jsodaDyn.dao(Model1.class).put(new Model1("intercept1", 1));
+            jsodaDyn.dao(Model1.class).getConsistent("intercept1");
+        } finally {
+            jsodaDyn.removeInterceptor(interceptor);
+        }
+        assertTrue(ops.contains("DynamoDB/put/1"));
+        assertTrue(ops.contains("DynamoDB/get/1"));
+    }
+
+    public void xx_test_hot_keys() throws Exception {
+
+        jsodaDyn.getMetrics().setHotKeySampler(new HotKeySampler().setSampleRate(1));
+        try {
+            jsodaDyn.dao(Model1.class).put(new Model1("hot1", 1));
+            for (int i = 0; i < 3; i++)
+                jsodaDyn.dao(Model1.class).getConsistent("hot1");
+            jsodaDyn.dao(Model1.class).getConsistent("hot2");
+            List<HotKey>    hotKeys = jsodaDyn.getMetrics().getHotKeys(Model1.class, HotKeySampler.READ, 1);
+            assertEquals(1, hotKeys.size());
+            assertEquals("hot1", hotKeys.get(0).getKey());
+            assertTrue(hotKeys.get(0).getCount() >= 3);
+            assertEquals("hot1", jsodaDyn.getMetrics().getHotKeys(Model1.class, HotKeySampler.WRITE_HASH, 5).get(0).getKey());
+            System.out.println(jsodaDyn.getMetrics().getHotKeySampler().dumpMetrics());
+        } finally {
+            jsodaDyn.getMetrics().setHotKeySampler(null);
+        }
+    }
+
+    public void xx_test_sharded_key() throws Exception {
+
+        jsodaDyn.registerModel(Model8.class, DbType.DynamoDB);
+        jsodaDyn.createModelTable(Model8.class);
+        Dao<Model8> dao = jsodaDyn.dao(Model8.class);
+        for (int i = 0; i < 20; i++)
+            dao.put(new Model8("stream1", 1000L + i, "event" + i));
+
+        Model8  obj = dao.getConsistent("stream1", 1005L);
+        assertEquals("stream1", obj.stream);
+        assertEquals("event5", obj.payload);
+
+        // Query fans out to the shards and merges in the range key order.
+        List<Model8>    items = jsodaDyn.query(Model8.class).eq("stream", "stream1").ge("time", 1010L).order_by_desc("time").run();
+        assertEquals(10, items.size());
+        for (int i = 0; i < items.size(); i++)
+            assertEquals(1019L - i, items.get(i).time);
+        System.out.println(jsodaDyn.query(Model8.class).eq("stream", "stream1").explain());
+
+        dao.delete("stream1", 1005L);
+        assertNull(dao.getConsistent("stream1", 1005L));
+    }
+
+    public void xx_test_sharded_table() throws Exception {
+
+        jsodaSdb.registerModel(Model9.class, DbType.SimpleDB);
+        jsodaSdb.createModelTable(Model9.class);
+        Dao<Model9> dao = jsodaSdb.dao(Model9.class);
+        List<Model9>    objs = new ArrayList<Model9>();
+        for (int i = 0; i < 30; i++)
+            objs.add(new Model9("item" + i, i));
+        dao.batchPut(objs);
+
+        assertEquals(7, dao.getConsistent("item7").age);
+        assertEquals(30, jsodaSdb.query(Model9.class).consistentRead(true).count());
+
+        // Query runs on all the domains and merges in the order-by order.
+        List<Model9>    items = jsodaSdb.query(Model9.class).ge("age", 20).order_by("age").consistentRead(true).run();
+        assertEquals(10, items.size());
+        for (int i = 0; i < items.size(); i++)
+            assertEquals(20 + i, items.get(i).age);
+        System.out.println(jsodaSdb.query(Model9.class).ge("age", 20).order_by("age").explain());
+
+        dao.delete("item7");
+        assertNull(dao.getConsistent("item7"));
+        jsodaSdb.deleteModelTable(Model9.class);
+    }
+
     public void xx_test_s3fields_delete() throws Exception {
 
         jsodaSdb.registerModel(Model7.class, DbType.SimpleDB);
         jsodaSdb.dao(Model7.class).delete("name1");
     }
 
+    public void xx_test_binary_codec_bench() throws Exception {
+
+        OfflineTest.BinModel    obj = OfflineTest.BinModel.sample(0);
+        for (int i = 1; i < 1000; i++)
+            obj.children.add(OfflineTest.BinModel.sample(i));
+
+        int     iterations = 50;
+        byte[]  binBytes = BinaryCodec.toBytes(obj);
+        byte[]  serBytes = IOUtil.objToBytes(obj);
+        byte[]  jsonBytes = DataUtil.toJson(obj).getBytes("UTF-8");
+        System.out.println("Encoded size - binary: " + binBytes.length + ", java serialization: " + serBytes.length + ", json: " + jsonBytes.length);
+
+        for (int round = 0; round < 2; round++) {           // first round warms up the JIT.
+            long    start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                BinaryCodec.toBytes(obj);
+            long    binEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                BinaryCodec.fromBytes(binBytes, OfflineTest.BinModel.class);
+            long    binDecode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                IOUtil.objToBytes(obj);
+            long    serEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                IOUtil.objFromBytes(serBytes);
+            long    serDecode = System.nanoTime() - start;
+
+            System.out.println("Round " + round + " ms/op - binary encode: " + (binEncode / iterations / 1000000.0) +
+                               ", decode: " + (binDecode / iterations / 1000000.0) +
+                               "; java serialization encode: " + (serEncode / iterations / 1000000.0) +
+                               ", decode: " + (serDecode / iterations / 1000000.0));
+        }
+    }
+
     public void xx_test_eutil() throws Exception {
 
         jsodaSdb.registerModel(Model7.class, DbType.SimpleDB);
@@ -2057,6 +2462,40 @@ public class JsodaTest extends TestCase
     }
     
 
+    /** Test sharded hash key in DynamoDB */
+    @ShardedKey(shards = 4)
+    public static class Model8 implements Serializable {
+        @Key(hashKey=true)
+        public String       stream;
+
+        @Key(rangeKey=true)
+        public long         time;
+
+        public String       payload;
+
+        public Model8() {}
+        public Model8(String stream, long time, String payload) {
+            this.stream = stream;
+            this.time = time;
+            this.payload = payload;
+        }
+    }
+
+    /** Test sharded table in SimpleDB */
+    @ShardedTable(shards = 3)
+    public static class Model9 implements Serializable {
+        @Key
+        public String       name;
+
+        public int          age;
+
+        public Model9() {}
+        public Model9(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+    }
+
     /** Invalid CachePolicy test.  CachePolicy by default turns on caching but class is not Serializable */
     @CachePolicy
     public static class InvalidModel1 {
@@ -0,0 +1,531 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import junit.framework.*;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodb.model.ListTablesResult;
+import com.amazonaws.services.dynamodb.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodb.model.DeleteTableResult;
+import com.amazonaws.services.dynamodb.model.ScanRequest;
+import com.amazonaws.services.dynamodb.model.ScanResult;
+import com.amazonaws.services.dynamodb.model.Key;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+
+import wwutil.sys.IOUtil;
+import wwutil.model.annotation.DbType;
+import wwutil.model.annotation.S3Field;
+
+
+
+
+//
+// Tests of the logic needing no AWS account, e.g. the codecs and the policies, run with the other tests.
+//
+
+public class OfflineTest extends TestCase
+{
+
+    public void test_retry_policy() throws Exception {
+
+        AmazonServiceException  throttled = serviceException("ServiceUnavailable", 503);
+        AmazonServiceException  internal = serviceException("InternalFailure", 500);
+
+        assertTrue(RetryPolicy.isRetryable(throttled, false));
+        assertTrue(RetryPolicy.isRetryable(new JsodaException("Query failed", throttled), true));
+        assertTrue(RetryPolicy.isRetryable(internal, true));
+        assertFalse(RetryPolicy.isRetryable(internal, false));
+        assertFalse(RetryPolicy.isRetryable(new JsodaException("Validation"), true));
+
+        RetryPolicy policy = new RetryPolicy().setBaseDelayMs(100).setMaxDelayMs(1000);
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long    wait = policy.backoff(attempt);
+            assertTrue(wait >= 0 && wait < Math.min(1000, 100 << attempt));
+        }
+    }
+
+    public void test_admin_call_retry() throws Exception {
+
+        final int[]     listCalls = new int[1];
+        final int[]     deleteCalls = new int[1];
+        Jsoda           jsoda = new Jsoda(new BasicAWSCredentials("test", "test"));
+        jsoda.setRetryPolicy(new RetryPolicy().setBaseDelayMs(1));
+        jsoda.registerModel(AllocationTest.AllocModel.class);
+        ((DynamoDBService)((DbServiceWrapper)jsoda.getDb(Jsoda.getModelName(AllocationTest.AllocModel.class))).getService())
+            .setClient(new AmazonDynamoDBClient(new BasicAWSCredentials("test", "test")) {
+                    public ListTablesResult listTables() {
+                        if (listCalls[0]++ == 0)
+                            throw serviceException("ThrottlingException", 400);
+                        return new ListTablesResult().withTableNames("table1");
+                    }
+                    public DeleteTableResult deleteTable(DeleteTableRequest req) {
+                        deleteCalls[0]++;
+                        throw serviceException("InternalFailure", 500);
+                    }
+                });
+        try {
+            // Throttled admin calls are retried.
+            assertEquals(Arrays.asList("table1"), jsoda.listNativeTables(DbType.DynamoDB));
+            assertEquals(2, listCalls[0]);
+
+            // Table deletes are not idempotent and are not retried on other errors.
+            try {
+                jsoda.deleteNativeTable(DbType.DynamoDB, "table1");
+                fail("expected AmazonServiceException");
+            } catch(AmazonServiceException expected) {
+            }
+            assertEquals(1, deleteCalls[0]);
+        } finally {
+            jsoda.shutdown();
+        }
+    }
+
+    public void test_deadline_keeps_thread_background() throws Exception {
+
+        ExecutorService     executor = Executors.newCachedThreadPool();
+        Callable<Boolean>   read = new Callable<Boolean>() {
+                public Boolean call() {
+                    return ThroughputLimiter.getThreadBackground();
+                }
+            };
+        ThroughputLimiter.setThreadBackground(Boolean.TRUE);
+        try {
+            assertEquals(Boolean.TRUE, Deadline.call("get", 10000, read, executor));
+            assertEquals(Boolean.TRUE, new HedgePolicy().execute("model1", read, executor));
+            ThroughputLimiter.setThreadBackground(null);
+            assertNull(Deadline.call("get", 10000, read, executor));
+        } finally {
+            ThroughputLimiter.setThreadBackground(null);
+            executor.shutdown();
+        }
+    }
+
+    public void test_query_timeout_keeps_position() throws Exception {
+
+        final CountDownLatch    slowScanDone = new CountDownLatch(1);
+        final int[]             scans = new int[1];
+        Jsoda                   jsoda = new Jsoda(new BasicAWSCredentials("test", "test"));
+        jsoda.registerModel(AllocationTest.AllocModel.class);
+        ((DynamoDBService)((DbServiceWrapper)jsoda.getDb(Jsoda.getModelName(AllocationTest.AllocModel.class))).getService())
+            .setClient(new AllocationTest.LocalDynamoDB("id", "seq") {
+                    public ScanResult scan(ScanRequest req) {
+                        boolean slow = ++scans[0] == 1;
+                        // Ignore the interrupts like the HTTP call of the SDK.
+                        for (long until = System.currentTimeMillis() + (slow ? 300 : 0); System.currentTimeMillis() < until; ) {
+                            try {
+                                Thread.sleep(until - System.currentTimeMillis());
+                            } catch(InterruptedException ignored) {
+                            }
+                        }
+                        if (slow)
+                            slowScanDone.countDown();
+                        return super.scan(req).withLastEvaluatedKey(new Key(new AttributeValue("page2")));
+                    }
+                });
+        try {
+            Query<AllocationTest.AllocModel>    query = jsoda.query(AllocationTest.AllocModel.class).deadline(50);
+            try {
+                query.run();
+                fail("expected JsodaTimeoutException");
+            } catch(JsodaTimeoutException expected) {
+            }
+
+            // The abandoned run completing afterward does not advance the query.
+            slowScanDone.await();
+            Thread.sleep(50);
+            assertNull(query.nextKey);
+
+            query.run();
+            assertEquals("page2", ((Key)query.nextKey).getHashKeyElement().getS());
+        } finally {
+            jsoda.shutdown();
+        }
+    }
+
+    public void test_shard_cursor() throws Exception {
+
+        ShardCursor<Integer>    cursor = new ShardCursor<Integer>(2, Collections.<Integer>reverseOrder());
+        assertTrue(cursor.needsFetch(0) && cursor.needsFetch(1));
+        cursor.add(0, Arrays.asList(9, 5, 1), null);
+        cursor.add(1, Arrays.asList(8, 7), "page2");
+
+        // Merges in the order until a shard with more pages runs out, leaving the copied cursor as it was.
+        ShardCursor<Integer>    copy = cursor.copy();
+        List<Integer>           items = new ArrayList<Integer>();
+        copy.merge(items, 0);
+        assertEquals(Arrays.asList(9, 8, 7), items);
+        assertTrue(copy.needsFetch(1));
+        assertFalse(cursor.needsFetch(1));
+        copy.add(1, Arrays.asList(6, 2), null);
+        items.clear();
+        copy.merge(items, 2);
+        assertEquals(Arrays.asList(6, 5), items);
+        items.clear();
+        copy.merge(items, 0);
+        assertEquals(Arrays.asList(2, 1), items);
+        assertFalse(copy.hasMore());
+        assertTrue(cursor.hasMore());
+
+        // Unordered takes the buffered items without waiting for the other shards.
+        ShardCursor<Integer>    unordered = new ShardCursor<Integer>(2, null);
+        unordered.add(1, Arrays.asList(3, 4), "page2");
+        items.clear();
+        unordered.merge(items, 0);
+        assertEquals(Arrays.asList(3, 4), items);
+        assertTrue(unordered.needsFetch(0) && unordered.needsFetch(1));
+    }
+
+    public void test_rate_limiter() throws Exception {
+
+        RateLimiter limiter = new RateLimiter(10);
+        assertTrue(limiter.tryAcquire(10));
+        assertFalse(limiter.tryAcquire(5));
+
+        // Going into debt makes the following callers wait it off at the rate.
+        long        waitNanos = limiter.reserve(5);
+        assertTrue(waitNanos > 400000000L && waitNanos <= 500000000L);
+        limiter.adjust(-15);
+        assertTrue(limiter.tryAcquire(10));
+
+        // Lower priority callers leave the reserve to the others.
+        limiter = new RateLimiter(10);
+        assertEquals(0, limiter.reserveAboveReserve(5, 0.5));
+        assertTrue(limiter.reserveAboveReserve(1, 0.5) > 0);
+        assertTrue(limiter.tryAcquire(5));
+
+        limiter.setRate(0);
+        assertTrue(limiter.tryAcquire(1000));
+        assertEquals(0, limiter.reserve(1000));
+
+        // Lowering the rate caps the tokens to the new burst size.
+        limiter = new RateLimiter(10);
+        limiter.setRate(2);
+        assertTrue(limiter.tryAcquire(2));
+        assertFalse(limiter.tryAcquire(1));
+    }
+
+    public void test_hedged_read() throws Exception {
+
+        ExecutorService         executor = Executors.newCachedThreadPool();
+        final CountDownLatch    primaryCancelled = new CountDownLatch(1);
+        final int[]             calls = new int[1];
+        final Thread            caller = Thread.currentThread();
+        Callable<Thread>        read = new Callable<Thread>() {
+                public Thread call() throws Exception {
+                    synchronized(calls) {
+                        calls[0]++;
+                        if (calls[0] > 1)
+                            return Thread.currentThread();
+                    }
+                    try {
+                        Thread.sleep(10000);
+                    } catch(InterruptedException e) {
+                        primaryCancelled.countDown();
+                    }
+                    return Thread.currentThread();
+                }
+            };
+        try {
+            // The hedge fires after the delay, wins, and the slow primary read is cancelled.
+            HedgePolicy policy = new HedgePolicy().setMaxDelayMs(20);
+            assertNotSame(caller, policy.execute("model1", read, executor));
+            assertEquals(1, policy.getHedges());
+            assertEquals(1, policy.getHedgeWins());
+            assertTrue(primaryCancelled.await(5, TimeUnit.SECONDS));
+
+            // With the budget used up, the read runs on the calling thread.
+            assertSame(caller, policy.execute("model1", read, executor));
+            assertEquals(1, policy.getHedges());
+            assertEquals(2, policy.getReads());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void test_hedge_latency_tracker() throws Exception {
+
+        HedgePolicy policy = new HedgePolicy().setMinDelayMs(5).setMaxDelayMs(1000);
+        HedgePolicy.LatencyTracker  tracker = policy.tracker("model1");
+
+        // The max delay is used until enough latencies are sampled.
+        for (int i = 1; i < HedgePolicy.MIN_SAMPLES; i++)
+            tracker.record(i);
+        assertEquals(1000, tracker.delayMs());
+
+        // p95 of 1..128ms once recomputed.
+        for (int i = HedgePolicy.MIN_SAMPLES; i <= 2 * HedgePolicy.RECOMPUTE_INTERVAL; i++)
+            tracker.record(i);
+        assertEquals(121, tracker.delayMs());
+        assertEquals(1000, policy.tracker("model2").delayMs());
+
+        // The delay stays between the min and max delay.
+        policy.setMaxDelayMs(100);
+        assertEquals(100, tracker.delayMs());
+        for (int i = 0; i < HedgePolicy.SAMPLE_SIZE; i++)
+            tracker.record(0);
+        assertEquals(5, tracker.delayMs());
+    }
+
+    public void test_circuit_breaker_states() throws Exception {
+
+        CircuitBreakerPolicy    policy = new CircuitBreakerPolicy().setMinimumCalls(4).setWindowSize(10)
+            .setOpenMs(50).setHalfOpenCalls(2).setSlowCallMs(1000);
+        CircuitBreaker          breaker = new CircuitBreaker(policy, "model1");
+
+        // Opens once the failure rate of the minimum calls reaches the threshold.
+        breaker.onResult(false, 1);
+        breaker.onResult(false, 1);
+        breaker.onResult(true, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // Lets the trial calls through after the open period, and opens again on a failed one.
+        Thread.sleep(60);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.onResult(true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // Closes after all the trial calls succeed.
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onResult(false, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(false, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        // Slow calls count too.
+        for (int i = 0; i < 4; i++)
+            breaker.onResult(false, 1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void test_latency_histogram() throws Exception {
+
+        LatencyHistogram    histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean());
+        assertEquals(500, histogram.getPercentile(0.5), 500 * 0.04);
+        assertEquals(990, histogram.getPercentile(0.99), 990 * 0.04);
+        assertEquals(1000, histogram.getPercentile(1.0), 1000 * 0.04);
+
+        // Every value falls in the bucket covering it.
+        for (long value = 0; value < LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 1) {
+            int     index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.lowValue(index) <= value && value < LatencyHistogram.lowValue(index + 1));
+        }
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+    }
+
+    public void test_hot_key_sketch() throws Exception {
+
+        HotKeySketch    sketch = new HotKeySketch(3, 1000, 0);
+        for (int i = 0; i < 5; i++)
+            sketch.add("a", 0);
+        for (int i = 0; i < 3; i++)
+            sketch.add("b", 0);
+        sketch.add("c", 0);
+
+        // A new key takes over the least counter when full, with its count as the error bound.
+        sketch.add("d", 0);
+        List<HotKeySketch.Entry>    top = sketch.top(10, 500);
+        assertEquals(3, top.size());
+        assertEquals("a", top.get(0).key);
+        assertEquals("b", top.get(1).key);
+        assertEquals("d", top.get(2).key);
+        assertEquals(2, top.get(2).count);
+        assertEquals(1, top.get(2).error);
+        assertEquals(2, sketch.top(2, 500).size());
+
+        // Counts carry over one window, and are dropped after two.
+        sketch.add("a", 1500);
+        top = sketch.top(1, 1500);
+        assertEquals("a", top.get(0).key);
+        assertEquals(6, top.get(0).count);
+        assertEquals(4.0, top.get(0).perSecond);
+        assertEquals(1, sketch.top(10, 2500).size());
+        assertTrue(sketch.top(10, 5000).isEmpty());
+    }
+
+    public void test_csv_record() throws Exception {
+
+        Reader  in = new StringReader("a,\"b,c\",d\r\n" +
+                                      "\"say \"\"hi\"\"\",x\n" +
+                                      "\"line1\r\nline2\",y\r\n" +
+                                      "p,q,\n" +
+                                      "\n\r\n" +
+                                      "\"\",last");
+        assertEquals(Arrays.asList("a", "b,c", "d"), BulkLoader.readCsvRecord(in));
+        assertEquals(Arrays.asList("say \"hi\"", "x"), BulkLoader.readCsvRecord(in));
+        assertEquals(Arrays.asList("line1\r\nline2", "y"), BulkLoader.readCsvRecord(in));
+        assertEquals(Arrays.asList("p", "q", ""), BulkLoader.readCsvRecord(in));
+        assertEquals(Arrays.asList("", "last"), BulkLoader.readCsvRecord(in));     // blank lines skipped, no line break at the end
+        assertNull(BulkLoader.readCsvRecord(in));
+
+        try {
+            BulkLoader.readCsvRecord(new StringReader("a,\"open\nvalue"));
+            fail("expected IOException");
+        } catch(IOException expected) {
+        }
+    }
+
+    public void test_binary_codec() throws Exception {
+
+        BinModel    obj = BinModel.sample(1);
+        obj.children.add(BinModel.sample(2));
+        obj.children.add(BinModel.sample(3));
+
+        byte[]      bytes = BinaryCodec.toBytes(obj);
+        BinModel    obj2 = BinaryCodec.fromBytes(bytes, BinModel.class);
+        assertEquals(Jsoda.dump(obj), Jsoda.dump(obj2));
+        assertEquals(obj.scores, obj2.scores);
+        assertTrue(Arrays.equals(obj.ids, obj2.ids));
+        assertEquals(2, obj2.children.size());
+        assertEquals(obj.children.get(1).name, obj2.children.get(1).name);
+
+        // Numbers are coerced to the expected type.
+        assertEquals(Long.valueOf(5), BinaryCodec.fromBytes(BinaryCodec.toBytes(5), Long.class));
+        assertNull(BinaryCodec.fromBytes(BinaryCodec.toBytes(null), BinModel.class));
+    }
+
+    public void test_binary_codec_object_arrays() throws Exception {
+
+        // The array's component class is defined without field names before its objects are written.
+        BinModel[]  array = new BinModel[] {BinModel.sample(1), null, BinModel.sample(2)};
+        BinModel[]  array2 = BinaryCodec.fromBytes(BinaryCodec.toBytes(array), BinModel[].class);
+        assertEquals(3, array2.length);
+        assertEquals("name1", array2[0].name);
+        assertNull(array2[1]);
+        assertEquals(2, array2[2].age);
+
+        BinHolder   holder = new BinHolder();
+        holder.models = array;
+        holder.lists.add(new BinModel[] {BinModel.sample(3)});
+        holder.lists.add(new BinModel[] {BinModel.sample(4), BinModel.sample(5)});
+        holder.first = BinModel.sample(6);
+        BinHolder   holder2 = BinaryCodec.fromBytes(BinaryCodec.toBytes(holder), BinHolder.class);
+        assertEquals("name2", holder2.models[2].name);
+        assertEquals(2, holder2.lists.size());
+        assertEquals("name3", holder2.lists.get(0)[0].name);
+        assertEquals(5, holder2.lists.get(1)[1].age);
+        assertEquals("name6", holder2.first.name);
+
+        // A list of arrays at the top level.
+        List<BinModel[]>    lists = new ArrayList<BinModel[]>(holder.lists);
+        List                lists2 = BinaryCodec.fromBytes(BinaryCodec.toBytes(lists), List.class);
+        assertEquals(2, lists2.size());
+        assertEquals("name4", ((BinModel[])lists2.get(1))[0].name);
+    }
+
+    public void test_compression_codec() throws Exception {
+
+        StringBuilder   sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item").append(i % 97).append("\"},");
+        byte[]  data = sb.toString().getBytes("UTF-8");
+
+        for (String codecName : new String[] {S3Field.CODEC_NONE, S3Field.CODEC_GZIP, S3Field.CODEC_DEFLATE, S3Field.CODEC_LZF}) {
+            CompressionCodec        codec = CompressionCodec.get(codecName);
+            ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+            OutputStream            os = codec.compress(bos, 1);
+            os.write(data);
+            os.close();
+            byte[]  compressed = bos.toByteArray();
+
+            InputStream             is = codec.decompress(new ByteArrayInputStream(compressed));
+            ByteArrayOutputStream   decompressed = new ByteArrayOutputStream();
+            IOUtil.copy(is, decompressed);
+            is.close();
+            assertTrue(Arrays.equals(data, decompressed.toByteArray()));
+            if (codec == CompressionCodec.NONE)
+                assertEquals(data.length, compressed.length);
+            else
+                assertTrue(codecName + " " + data.length + " -> " + compressed.length, compressed.length < data.length / 2);
+        }
+
+        // The gzip codec writes and reads the standard gzip format.
+        ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+        OutputStream            os = CompressionCodec.GZIP.compress(bos, 9);
+        os.write(data);
+        os.close();
+        ByteArrayOutputStream   decompressed = new ByteArrayOutputStream();
+        IOUtil.copy(new java.util.zip.GZIPInputStream(new ByteArrayInputStream(bos.toByteArray())), decompressed);
+        assertTrue(Arrays.equals(data, decompressed.toByteArray()));
+    }
+
+
+    private static AmazonServiceException serviceException(String errorCode, int statusCode) {
+        AmazonServiceException  e = new AmazonServiceException(errorCode);
+        e.setErrorCode(errorCode);
+        e.setStatusCode(statusCode);
+        return e;
+    }
+
+
+    /** Object graph for testing the binary codec. */
+    public static class BinModel implements Serializable {
+        public String               name;
+        public int                  age;
+        public long                 stamp;
+        public double               ratio;
+        public boolean              active;
+        public Date                 created;
+        public long[]               ids;
+        public Map<String, Integer> scores = new HashMap<String, Integer>();
+        public List<BinModel>       children = new ArrayList<BinModel>();
+        public transient String     temp;
+
+        public static BinModel sample(int i) {
+            BinModel    obj = new BinModel();
+            obj.name = "name" + i;
+            obj.age = i;
+            obj.stamp = 1350000000000L + i;
+            obj.ratio = i / 3.0;
+            obj.active = i % 2 == 0;
+            obj.created = new Date(obj.stamp);
+            obj.ids = new long[] {i, i * 1000L, -i};
+            obj.scores.put("math", i * 7);
+            obj.scores.put("art", i * 3);
+            obj.temp = "temp";
+            return obj;
+        }
+    }
+
+    /** Holder of arrays of objects for testing the binary codec. */
+    public static class BinHolder implements Serializable {
+        public BinModel[]           models;
+        public List<BinModel[]>     lists = new ArrayList<BinModel[]>();
+        public BinModel             first;
+    }
+
+}